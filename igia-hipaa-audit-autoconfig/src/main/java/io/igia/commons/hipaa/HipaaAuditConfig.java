@@ -14,32 +14,116 @@ package io.igia.commons.hipaa;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.cloud.netflix.zuul.filters.RouteLocator;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
 
 import io.igia.commons.hipaa.HipaaAuditProperties;
 import io.igia.commons.hipaa.HipaaAuditZuulFilter;
 
 @Configuration
-@Import(HipaaAuditProperties.class)
+@Import(HipaaAuditCommonConfig.class)
 public class HipaaAuditConfig {
 	
 	private final Logger log = LoggerFactory.getLogger(HipaaAuditConfig.class);
 	
 	@Bean
-	public HipaaAuditZuulFilter hipaaAuditZuulFilter(ApplicationEventPublisher publisher, HipaaAuditProperties
-	 applicationProperties) {
+	public HipaaAuditRoutePolicies hipaaAuditRoutePolicies(HipaaAuditFilterComponents hipaaAuditFilterComponents,
+			HipaaAuditProperties applicationProperties, ObjectProvider<RouteLocator> routeLocator) {
+		HipaaAuditRoutePolicies routePolicies = new HipaaAuditRoutePolicies(applicationProperties,
+				routeLocator.getIfAvailable());
+		routePolicies.setSnapshot(hipaaAuditFilterComponents.getSnapshot());
+		return routePolicies;
+	}
+
+	@Bean
+	public HipaaAuditZuulFilter hipaaAuditZuulFilter(HipaaAuditFilterComponents hipaaAuditFilterComponents,
+			HipaaAuditProperties applicationProperties, HipaaAuditRoutePolicies hipaaAuditRoutePolicies) {
 		log.info("Configuring Hippa Audit Zuul Filter");
-		return new HipaaAuditZuulFilter(publisher, applicationProperties);
+		HipaaAuditZuulFilter filter = new HipaaAuditZuulFilter(hipaaAuditFilterComponents.getEventPublisher(),
+				applicationProperties);
+		filter.setSnapshot(hipaaAuditFilterComponents.getSnapshot());
+		filter.setDecisionCache(hipaaAuditFilterComponents.getRequestDecisionCache());
+		filter.setMetrics(hipaaAuditFilterComponents.getRequestMetrics());
+		filter.setRoutePolicies(hipaaAuditRoutePolicies);
+		return filter;
 	}
 	
 	@Bean
-	public HipaaResponseAuditZuulFilter hipaaResponseAuditZuulFilter(ApplicationEventPublisher publisher, HipaaAuditProperties
-	 applicationProperties) {
+	public HipaaResponseAuditZuulFilter hipaaResponseAuditZuulFilter(HipaaAuditFilterComponents hipaaAuditFilterComponents,
+			HipaaAuditProperties applicationProperties, HipaaAuditRoutePolicies hipaaAuditRoutePolicies) {
 		log.info("Configuring Hippa Response Audit Zuul Filter");
-		return new HipaaResponseAuditZuulFilter(publisher, applicationProperties);
+		HipaaResponseAuditZuulFilter filter = new HipaaResponseAuditZuulFilter(
+				hipaaAuditFilterComponents.getEventPublisher(), applicationProperties);
+		filter.setSnapshot(hipaaAuditFilterComponents.getSnapshot());
+		filter.setDecisionCache(hipaaAuditFilterComponents.getResponseDecisionCache());
+		filter.setMetrics(hipaaAuditFilterComponents.getResponseMetrics());
+		filter.setAdaptiveFidelity(hipaaAuditFilterComponents.getAdaptiveFidelity());
+		filter.setBufferPool(bufferPool(applicationProperties));
+		filter.setRoutePolicies(hipaaAuditRoutePolicies);
+		return filter;
+	}
+
+	@Bean
+	public HipaaRequestBodyCompletionZuulFilter hipaaRequestBodyCompletionZuulFilter() {
+		return new HipaaRequestBodyCompletionZuulFilter();
+	}
+
+	@Bean
+	public HipaaResponseBodyCompletionZuulFilter hipaaResponseBodyCompletionZuulFilter() {
+		return new HipaaResponseBodyCompletionZuulFilter(FilterConstants.POST_TYPE);
+	}
+
+	@Bean
+	public HipaaResponseBodyCompletionZuulFilter hipaaResponseBodyErrorCompletionZuulFilter() {
+		return new HipaaResponseBodyCompletionZuulFilter(FilterConstants.ERROR_TYPE);
+	}
+
+	private HipaaBufferPool bufferPool(HipaaAuditProperties applicationProperties) {
+		if (applicationProperties.getResponseCapture() == null
+				|| !applicationProperties.getResponseCapture().getBufferPool().isEnabled()) {
+			return null;
+		}
+		log.info("Configuring Hipaa response body buffer pool of up to {} pooled bytes",
+				applicationProperties.getResponseCapture().getBufferPool().getMaxPooledBytes());
+		return new HipaaBufferPool(applicationProperties.getResponseCapture().getBufferPool());
+	}
+
+	@Configuration
+	@ConditionalOnClass(EnvironmentChangeEvent.class)
+	static class HipaaAuditReloadConfig {
+
+		@Bean
+		public HipaaAuditConfigReloader hipaaAuditConfigReloader(Environment environment,
+				HipaaAuditFilterComponents hipaaAuditFilterComponents) {
+			HipaaAuditConfigReloader reloader = new HipaaAuditConfigReloader(environment,
+					hipaaAuditFilterComponents.getSnapshot());
+			reloader.addValidator(hipaaAuditFilterComponents::validate);
+			reloader.addListener(snapshot -> hipaaAuditFilterComponents.invalidateDecisions());
+			return reloader;
+		}
+	}
+
+	@Configuration
+	@ConditionalOnClass(MeterBinder.class)
+	static class HipaaAuditMetricsConfig {
+
+		@Bean
+		public MeterBinder hipaaAuditBufferPoolMetrics(HipaaResponseAuditZuulFilter hipaaResponseAuditZuulFilter) {
+			return registry -> {
+				if (hipaaResponseAuditZuulFilter.getBufferPool() != null) {
+					hipaaResponseAuditZuulFilter.getBufferPool().bindTo(registry);
+				}
+			};
+		}
 	}
 }
 
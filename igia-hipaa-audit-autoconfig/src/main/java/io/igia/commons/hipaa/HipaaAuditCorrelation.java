@@ -0,0 +1,104 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Correlation;
+
+/**
+ * Hand-over of the audit record of a request from {@link HipaaAuditZuulFilter} to
+ * {@link HipaaResponseAuditZuulFilter} through the {@link RequestContext}.
+ * <p>
+ * When correlation is enabled the request filter stores a partial record
+ * instead of publishing an event. The response filter completes
+ * the record with the response data, status and request duration and publishes a
+ * single audit event for the request.
+ */
+public final class HipaaAuditCorrelation {
+
+    /**
+     * {@link HipaaAuditRecord.Builder} of the request, until the response filter takes it.
+     */
+    public static final String RECORD_KEY = "hipaaAuditRecord";
+
+    /**
+     * {@link System#nanoTime()} when the request filter started the record.
+     */
+    public static final String START_KEY = "hipaaAuditStartNanos";
+
+    private HipaaAuditCorrelation() {
+    }
+
+    static boolean isEnabled(HipaaAuditProperties properties) {
+        Correlation correlation = properties.getCorrelation();
+        return correlation != null && correlation.isEnabled();
+    }
+
+    /**
+     * Request ID from the configured request header, or a new random UUID which is
+     * also passed to the upstream service in that header.
+     */
+    static String requestId(RequestContext ctx, HipaaAuditProperties properties) {
+        String header = properties.getCorrelation().getRequestIdHeader();
+        String requestId = header != null ? ctx.getRequest().getHeader(header) : null;
+        if (requestId == null || requestId.isEmpty()) {
+            requestId = newRequestId();
+            if (header != null) {
+                ctx.addZuulRequestHeader(header, requestId);
+            }
+        }
+        return requestId;
+    }
+
+    /**
+     * Random version 4 UUID, from {@link ThreadLocalRandom} to avoid the shared
+     * SecureRandom of {@link UUID#randomUUID()}.
+     */
+    static String newRequestId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (random.nextLong() & ~0xf000L) | 0x4000L;
+        long leastSigBits = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    static void begin(RequestContext ctx, HipaaAuditRecord.Builder auditRecord) {
+        ctx.set(START_KEY, System.nanoTime());
+        ctx.set(RECORD_KEY, auditRecord);
+    }
+
+    static boolean isPending(RequestContext ctx) {
+        return ctx.get(RECORD_KEY) != null;
+    }
+
+    /**
+     * Remove the record started by the request filter from the context.
+     *
+     * @return the record, or null when the request filter did not start one
+     */
+    static HipaaAuditRecord.Builder take(RequestContext ctx) {
+        return (HipaaAuditRecord.Builder) ctx.remove(RECORD_KEY);
+    }
+
+    /**
+     * Milliseconds since the request filter started the record, null if it did not.
+     */
+    static Long durationMillis(RequestContext ctx) {
+        Object start = ctx.get(START_KEY);
+        return start instanceof Long ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (Long) start) : null;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.netflix.zuul.RoutesRefreshedEvent;
+import org.springframework.cloud.netflix.zuul.filters.Route;
+import org.springframework.cloud.netflix.zuul.filters.RouteLocator;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.context.ApplicationListener;
+
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Lookup table of the audit policies of the Zuul routes, keyed by the route id
+ * which {@code PreDecorationFilter} stores in the {@link RequestContext}.
+ * <p>
+ * A policy configured under the id of a route, or else under the service id the
+ * route forwards to, applies to that route. The table is rebuilt when Zuul
+ * refreshes its routes, and on the first lookup after the audit configuration
+ * was swapped, and swapped in whole, so lookups never lock.
+ */
+public class HipaaAuditRoutePolicies implements ApplicationListener<RoutesRefreshedEvent> {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditRoutePolicies.class);
+
+    private final HipaaAuditProperties applicationProperties;
+
+    private volatile RouteLocator routeLocator;
+
+    private AtomicReference<HipaaAuditSnapshot> snapshot = new AtomicReference<>();
+
+    private volatile Table table;
+
+    public HipaaAuditRoutePolicies(HipaaAuditProperties applicationProperties, RouteLocator routeLocator) {
+        this.applicationProperties = applicationProperties;
+        this.routeLocator = routeLocator;
+    }
+
+    /**
+     * Policy of the route the request is proxied to, null when no policy covers it.
+     *
+     * @param ctx request context of the proxied request
+     * @return the policy of the route, or null
+     */
+    public HipaaAuditRoutePolicy get(RequestContext ctx) {
+        Object routeId = ctx.get(FilterConstants.PROXY_KEY);
+        return routeId != null ? getPolicies().get(routeId) : null;
+    }
+
+    @Override
+    public void onApplicationEvent(RoutesRefreshedEvent event) {
+        refresh(event.getLocator());
+    }
+
+    /**
+     * Rebuild the table for the routes of the locator.
+     *
+     * @param locator locator of the Zuul routes
+     */
+    public void refresh(RouteLocator locator) {
+        this.routeLocator = locator;
+        HipaaAuditSnapshot current = getSnapshot();
+        this.table = new Table(current, build(current, locator));
+    }
+
+    /**
+     * Rebuild the table with the route policies of a new audit configuration.
+     *
+     * @param snapshot the new audit configuration
+     */
+    public void reload(HipaaAuditSnapshot snapshot) {
+        this.snapshot.set(snapshot);
+    }
+
+    /**
+     * Read the audit configuration from the given reference, shared with the
+     * audit filters so that a reload swaps it for all of them at once.
+     *
+     * @param snapshot reference to the audit configuration
+     */
+    public void setSnapshot(AtomicReference<HipaaAuditSnapshot> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    Map<String, HipaaAuditRoutePolicy> getPolicies() {
+        HipaaAuditSnapshot current = getSnapshot();
+        Table built = this.table;
+        if (built == null || built.snapshot != current) {
+            built = new Table(current, build(current, routeLocator));
+            this.table = built;
+        }
+        return built.policies;
+    }
+
+    private Map<String, HipaaAuditRoutePolicy> build(HipaaAuditSnapshot current, RouteLocator locator) {
+        Map<String, HipaaAuditRoutePolicy> compiled = current.getRoutePolicies();
+        if (compiled.isEmpty() || locator == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, HipaaAuditRoutePolicy> table = new HashMap<>();
+        Set<String> unused = new HashSet<>(compiled.keySet());
+        for (Route route : locator.getRoutes()) {
+            String key = route.getId();
+            if (!compiled.containsKey(key)) {
+                key = serviceId(route);
+            }
+            if (key != null && compiled.containsKey(key)) {
+                table.put(route.getId(), compiled.get(key));
+                unused.remove(key);
+            }
+        }
+        if (!unused.isEmpty()) {
+            log.warn("Hipaa audit route policies {} match no Zuul route", unused);
+        }
+        log.debug("Resolved Hipaa audit policies of Zuul routes {}", table.keySet());
+        return Collections.unmodifiableMap(table);
+    }
+
+    private HipaaAuditSnapshot getSnapshot() {
+        HipaaAuditSnapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, HipaaAuditSnapshot.compile(this.applicationProperties));
+            current = snapshot.get();
+        }
+        return current;
+    }
+
+    /**
+     * Service id of a route, null when the route forwards to a URL.
+     */
+    private static String serviceId(Route route) {
+        String location = route.getLocation();
+        return location != null && location.indexOf(':') < 0 ? location : null;
+    }
+
+    /**
+     * Policies of the routes and the configuration they were resolved from.
+     */
+    private static final class Table {
+
+        private final HipaaAuditSnapshot snapshot;
+
+        private final Map<String, HipaaAuditRoutePolicy> policies;
+
+        Table(HipaaAuditSnapshot snapshot, Map<String, HipaaAuditRoutePolicy> policies) {
+            this.snapshot = snapshot;
+            this.policies = policies;
+        }
+    }
+}
@@ -12,37 +12,98 @@
  */
 package io.igia.commons.hipaa;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.io.Charsets;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
 import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.core.context.SecurityContextHolder;
 
 import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.constants.ZuulHeaders;
 import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.util.HTTPRequestUtils;
 
-public class HipaaAuditZuulFilter extends ZuulFilter {
-	public static final String AUDIT_APPLICATION_EVENT_TYPE = "HIPAA_AUDIT";
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics.Phase;
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+
+public class HipaaAuditZuulFilter extends ZuulFilter implements InitializingBean {
+	public static final String AUDIT_APPLICATION_EVENT_TYPE = HipaaAuditRecord.AUDIT_EVENT_TYPE;
+
+    /**
+     * {@link HipaaTeeInputStream} capturing a streamed request body, until
+     * {@link HipaaRequestBodyCompletionZuulFilter} completes it.
+     */
+    public static final String REQUEST_BODY_CAPTURE_KEY = "hipaaAuditRequestBody";
+
+    /**
+     * Largest request body read whole before it is routed, whatever the maximum
+     * capture size. Larger bodies are captured while they are streamed.
+     */
+    static final int MAX_READ_BODY_BYTES = 1024 * 1024;
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 8192;
 	
     private final ApplicationEventPublisher publisher;
 
     private HipaaAuditProperties applicationProperties;
 
+    private AtomicReference<HipaaAuditSnapshot> snapshot = new AtomicReference<>();
+
+    private HipaaAuditDecisionCache decisionCache;
+
+    private HipaaAuditFilterMetrics metrics;
+
+    private HipaaAuditRoutePolicies routePolicies;
+
     @Autowired
     public HipaaAuditZuulFilter(ApplicationEventPublisher publisher, HipaaAuditProperties applicationProperties) {
         this.publisher = publisher;
         this.applicationProperties = applicationProperties;
     }
 
+    /**
+     * Compile the audit URI patterns and parameter lists at startup instead of on first request.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        getSnapshot();
+    }
+
+    /**
+     * Apply a new audit configuration to the following requests. Cached audit
+     * decisions of the previous configuration are discarded.
+     *
+     * @param snapshot the new audit configuration
+     */
+    public void reload(HipaaAuditSnapshot snapshot) {
+        this.snapshot.set(snapshot);
+        if (decisionCache != null) {
+            decisionCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Read the audit configuration from the given reference, shared with the other
+     * audit filters so that a reload swaps it for all of them at once.
+     *
+     * @param snapshot reference to the audit configuration
+     */
+    public void setSnapshot(AtomicReference<HipaaAuditSnapshot> snapshot) {
+        this.snapshot = snapshot;
+    }
+
     @Override
     public String filterType() {
         return FilterConstants.PRE_TYPE;
@@ -63,46 +124,205 @@ public class HipaaAuditZuulFilter extends ZuulFilter {
             return false;
         } 
 
-        String requestUri = RequestContext.getCurrentContext().getRequest().getRequestURI();
-         return (!isRequestUriInBlacklistPatterns(requestUri)
-             && isRequestUriInWhitelistPatterns(requestUri));
+        long start = startTimer();
+        HipaaAuditRoutePolicy routePolicy = getRoutePolicy(RequestContext.getCurrentContext());
+        boolean audit;
+        if (routePolicy != null && routePolicy.getRequestAudit() != null) {
+            audit = routePolicy.getRequestAudit();
+        } else {
+            String requestUri = RequestContext.getCurrentContext().getRequest().getRequestURI();
+            HipaaAuditUriMatcher matcher = getSnapshot().getRequestMatcher();
+            audit = decisionCache != null ? decisionCache.shouldAudit(requestUri, matcher)
+                : matcher.shouldAudit(requestUri);
+        }
+        if (metrics != null) {
+            metrics.record(Phase.MATCH, start);
+            metrics.decided(audit);
+        }
+        return audit;
+    }
+
+    private HipaaAuditSnapshot getSnapshot() {
+        HipaaAuditSnapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, HipaaAuditSnapshot.compile(this.applicationProperties));
+            current = snapshot.get();
+        }
+        return current;
     }
 
-    private boolean isRequestUriInBlacklistPatterns(String requestUri) {
-        Collection<String> patterns = this.applicationProperties.getHipaaBlacklistUriPatterns();
-        boolean isAvailable = patterns.stream().anyMatch(s->requestUri.matches(s));
-    	return isAvailable;
-    	
+    private HipaaAuditRoutePolicy getRoutePolicy(RequestContext ctx) {
+        return routePolicies != null ? routePolicies.get(ctx) : null;
     }
 
-    private boolean isRequestUriInWhitelistPatterns(String requestUri) {
-    	Collection<String> patterns = this.applicationProperties.getHipaaWhitelistUriPatterns();
-        boolean isAvailable = patterns.stream().anyMatch(s->requestUri.matches(s));
-    	return isAvailable;
+    public HipaaAuditRoutePolicies getRoutePolicies() {
+        return routePolicies;
+    }
+
+    /**
+     * Resolve requests to Zuul routes with the given policies before the URI patterns,
+     * or only with the URI patterns when null.
+     *
+     * @param routePolicies policies of the Zuul routes, or null
+     */
+    public void setRoutePolicies(HipaaAuditRoutePolicies routePolicies) {
+        this.routePolicies = routePolicies;
     }
 
+    public HipaaAuditDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Cache audit decisions in the given cache, or evaluate every request when null.
+     *
+     * @param decisionCache cache of the audit decisions, or null
+     */
+    public void setDecisionCache(HipaaAuditDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    public HipaaAuditFilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Time the filter phases with the given metrics, or not at all when null.
+     *
+     * @param metrics metrics of the filter phases, or null
+     */
+    public void setMetrics(HipaaAuditFilterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private long startTimer() {
+        return metrics != null ? System.nanoTime() : 0L;
+    }
+
+    private void record(Phase phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, start);
+        }
+    }
+
+    /**
+     * Publish the request audit event or, when correlation is enabled, leave the
+     * record to the response filter, see {@link HipaaAuditCorrelation}.
+     */
     @Override
     public Object run() {
+        long start = startTimer();
         String principal = SecurityContextHolder.getContext().getAuthentication().getName();
-        Map<String, Object> data = new HashMap<>();
-        HttpServletRequest req = RequestContext.getCurrentContext().getRequest();
+        RequestContext ctx = RequestContext.getCurrentContext();
+        HttpServletRequest req = ctx.getRequest();
+        HipaaAuditRoutePolicy routePolicy = getRoutePolicy(ctx);
+        HipaaRequestParamSerializer serializer = routePolicy != null && routePolicy.getParamSerializer() != null
+            ? routePolicy.getParamSerializer() : getSnapshot().getParamSerializer();
 
-        data.put("remoteAddress", req.getRemoteAddr());
-        data.put("httpMethod", req.getMethod());
-        data.put("requestUri", req.getRequestURI());
-        data.put("requestParam", convert(req.getParameterMap()));
-        data.put("message", String.join("", "Attempt to access API ", req.getRequestURI()));
+        HipaaAuditRecord.Builder auditRecord = HipaaAuditRecord.builder(principal, AUDIT_APPLICATION_EVENT_TYPE)
+            .remoteAddress(req.getRemoteAddr())
+            .httpMethod(req.getMethod())
+            .requestUri(req.getRequestURI())
+            .requestParam(serializer.serialize(req.getParameterMap()))
+            .message(String.join("", "Attempt to access API ", req.getRequestURI()));
+        boolean correlated = HipaaAuditCorrelation.isEnabled(applicationProperties);
+        boolean streamed = captureRequestBody(ctx, auditRecord, correlated);
+        if (correlated) {
+            auditRecord.requestId(HipaaAuditCorrelation.requestId(ctx, applicationProperties));
+            HipaaAuditCorrelation.begin(ctx, auditRecord);
+            record(Phase.CAPTURE, start);
+            return null;
+        }
+        record(Phase.CAPTURE, start);
+        if (streamed) {
+            // published when the route has read the body
+            return null;
+        }
 
-        AuditApplicationEvent event = new AuditApplicationEvent(principal, AUDIT_APPLICATION_EVENT_TYPE, data);
-        publisher.publishEvent(event);
+        start = startTimer();
+        publisher.publishEvent(new HipaaAuditApplicationEvent(auditRecord.build()));
+        record(Phase.PUBLISH, start);
         return null;
     }
 
-    private String convert(Map<String, String[]> paraMap) {
-        return paraMap.entrySet()
-            .stream()
-            .filter(s -> !"cacheBuster".equals(s.getKey()))
-            .map(s -> s.getKey() + ":" + Arrays.toString(s.getValue()))
-            .collect(Collectors.joining(", "));
+    /**
+     * Capture the request body if the request is opted in, sharing a single copy
+     * with the routing filters through {@link FilterConstants#REQUEST_ENTITY_KEY}.
+     * A body of known length within the maximum size and
+     * {@link #MAX_READ_BODY_BYTES} is read whole and recorded now. Any other body
+     * is captured while the route streams it, and recorded when the stream
+     * completes.
+     *
+     * @return whether the body is streamed, so that the record is not complete yet
+     */
+    private boolean captureRequestBody(RequestContext ctx, HipaaAuditRecord.Builder auditRecord,
+        boolean correlated) {
+        HipaaRequestCapturePolicy policy = getSnapshot().getRequestCapturePolicy();
+        if (!policy.isEnabled()) {
+            return false;
+        }
+        HttpServletRequest req = ctx.getRequest();
+        String contentEncoding = req.getHeader(ZuulHeaders.CONTENT_ENCODING);
+        boolean gzipped = contentEncoding != null && HTTPRequestUtils.getInstance().isGzipped(contentEncoding);
+        HipaaBodyCapture capture = policy.newCapture(req.getMethod(), req.getRequestURI(), gzipped);
+        if (capture == null) {
+            return false;
+        }
+        Charset charset = Charsets.toCharset(req.getCharacterEncoding());
+        try {
+            InputStream body = requestEntity(ctx);
+            long contentLength = req.getContentLengthLong();
+            if (capture.getBodyMode() == BodyMode.FULL && contentLength >= 0 && contentLength <= MAX_READ_BODY_BYTES
+                && (capture.getMaxBytes() < 0 || contentLength <= capture.getMaxBytes())) {
+                byte[] bytes = readFully(body, (int) contentLength);
+                ctx.set(FilterConstants.REQUEST_ENTITY_KEY, new ByteArrayInputStream(bytes));
+                policy.applyBody(auditRecord, bytes, bytes.length, charset);
+                return false;
+            }
+            HipaaTeeInputStream tee = new HipaaTeeInputStream(body, capture, endOfStream -> {
+                capture.applyToRequest(auditRecord, charset, policy.getTruncationMarker());
+                if (!endOfStream) {
+                    auditRecord.requestBodyComplete(Boolean.FALSE);
+                }
+                if (!correlated) {
+                    long start = startTimer();
+                    publisher.publishEvent(new HipaaAuditApplicationEvent(auditRecord.build()));
+                    record(Phase.PUBLISH, start);
+                }
+            });
+            ctx.set(FilterConstants.REQUEST_ENTITY_KEY, tee);
+            ctx.set(REQUEST_BODY_CAPTURE_KEY, tee);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The request body, as cached by an earlier filter or from the request.
+     */
+    private static InputStream requestEntity(RequestContext ctx) throws IOException {
+        InputStream cached = (InputStream) ctx.get(FilterConstants.REQUEST_ENTITY_KEY);
+        return cached != null ? cached : ctx.getRequest().getInputStream();
+    }
+
+    /**
+     * Read up to {@code length} bytes. The buffer grows as the bytes arrive, so a
+     * declared content length the client does not send is not allocated.
+     */
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, INITIAL_READ_BUFFER_SIZE)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min((long) bytes.length << 1, length));
+            }
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read == bytes.length ? bytes : Arrays.copyOf(bytes, read);
     }
 }
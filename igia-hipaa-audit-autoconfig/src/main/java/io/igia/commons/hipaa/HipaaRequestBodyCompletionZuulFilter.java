@@ -0,0 +1,64 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Completes the request body captured by {@link HipaaAuditZuulFilter} while it
+ * is streamed, in case the route did not read the body to its end, e.g. because
+ * the upstream service failed. Closing the capture records the body read so
+ * far as incomplete, so that the audit event of the request is never lost.
+ * <p>
+ * Runs before {@link HipaaResponseAuditZuulFilter}, which publishes correlated
+ * records.
+ */
+public class HipaaRequestBodyCompletionZuulFilter extends ZuulFilter {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaRequestBodyCompletionZuulFilter.class);
+
+    @Override
+    public String filterType() {
+        return FilterConstants.POST_TYPE;
+    }
+
+    @Override
+    public int filterOrder() {
+        return FilterConstants.SEND_RESPONSE_FILTER_ORDER - 2;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        return RequestContext.getCurrentContext().containsKey(HipaaAuditZuulFilter.REQUEST_BODY_CAPTURE_KEY);
+    }
+
+    @Override
+    public Object run() {
+        InputStream capture = (InputStream) RequestContext.getCurrentContext()
+            .remove(HipaaAuditZuulFilter.REQUEST_BODY_CAPTURE_KEY);
+        try {
+            capture.close();
+        } catch (IOException e) {
+            log.debug("Could not close the captured request body", e);
+        }
+        return null;
+    }
+}
@@ -15,16 +15,17 @@ package io.igia.commons.hipaa;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.Charsets;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
 import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
 import org.springframework.cloud.netflix.zuul.util.ZuulRuntimeException;
 import org.springframework.context.ApplicationEventPublisher;
@@ -36,20 +37,71 @@ import com.netflix.zuul.ZuulFilter;
 import com.netflix.zuul.context.RequestContext;
 import com.netflix.zuul.exception.ZuulException;
 
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics.Phase;
+import io.igia.commons.hipaa.HipaaAuditProperties.CaptureMode;
+
 /**
  * Class which extends ZuulFilter and logs an audit event for API responses.
- * Response body is logged.
+ * Response body is logged, either read fully before the response is sent or copied
+ * while it is streamed to the client. Gzipped bodies are logged compressed, see
+ * {@link HipaaGzippedResponseBody}.
  * Should be used for queries in which multiple patient's data might be returned.
  * Filter order is right before SendResponseFilter.
  */
-public class HipaaResponseAuditZuulFilter extends ZuulFilter {
-	public static final String AUDIT_APPLICATION_EVENT_TYPE = "HIPAA_AUDIT";
+public class HipaaResponseAuditZuulFilter extends ZuulFilter implements InitializingBean {
+	public static final String AUDIT_APPLICATION_EVENT_TYPE = HipaaAuditRecord.AUDIT_EVENT_TYPE;
+
+	public static final String RESPONSE_BODY = HipaaAuditRecord.RESPONSE_BODY;
+
+	/**
+	 * Set to false when a streamed response was closed before its end.
+	 */
+	public static final String RESPONSE_BODY_COMPLETE = HipaaAuditRecord.RESPONSE_BODY_COMPLETE;
+
+	/**
+	 * Set to true when the body was truncated at the configured maximum size.
+	 */
+	public static final String RESPONSE_BODY_TRUNCATED = HipaaAuditRecord.RESPONSE_BODY_TRUNCATED;
+
+	/**
+	 * Size in bytes of a truncated or digested body.
+	 */
+	public static final String RESPONSE_BODY_LENGTH = HipaaAuditRecord.RESPONSE_BODY_LENGTH;
+
+	/**
+	 * Hex SHA-256 digest of the body, in DIGEST body mode.
+	 */
+	public static final String RESPONSE_BODY_SHA256 = HipaaAuditRecord.RESPONSE_BODY_SHA256;
+
+	/**
+	 * Request context key of the {@link HipaaTeeInputStream} of a streamed response,
+	 * abandoned by {@link HipaaResponseBodyCompletionZuulFilter} when the response
+	 * was not sent.
+	 */
+	public static final String RESPONSE_BODY_TEE_KEY = "hipaaAuditResponseBody";
+
+	/**
+	 * Whether the response body of a request correlated with its request audit is captured.
+	 */
+	private static final String CAPTURE_BODY_KEY = "hipaaAuditCaptureResponseBody";
 
 	private final Logger log = LoggerFactory.getLogger(HipaaResponseAuditZuulFilter.class);
 	
 	private HipaaAuditProperties applicationProperties;
 
 	private ApplicationEventPublisher publisher;
+
+	private AtomicReference<HipaaAuditSnapshot> snapshot = new AtomicReference<>();
+
+	private HipaaAuditDecisionCache decisionCache;
+
+	private HipaaAuditFilterMetrics metrics;
+
+	private HipaaAuditRoutePolicies routePolicies;
+
+	private HipaaAdaptiveFidelity adaptiveFidelity;
+
+	private HipaaBufferPool bufferPool;
 	
     @Autowired
     public HipaaResponseAuditZuulFilter(ApplicationEventPublisher publisher, HipaaAuditProperties applicationProperties) {
@@ -57,6 +109,37 @@ public class HipaaResponseAuditZuulFilter extends ZuulFilter {
         this.applicationProperties = applicationProperties;
     }
 
+	/**
+	 * Compile the response audit URI patterns at startup instead of on first request.
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		getSnapshot();
+	}
+
+	/**
+	 * Apply a new audit configuration to the following responses. Cached audit
+	 * decisions of the previous configuration are discarded.
+	 *
+	 * @param snapshot the new audit configuration
+	 */
+	public void reload(HipaaAuditSnapshot snapshot) {
+		this.snapshot.set(snapshot);
+		if (decisionCache != null) {
+			decisionCache.invalidateAll();
+		}
+	}
+
+	/**
+	 * Read the audit configuration from the given reference, shared with the other
+	 * audit filters so that a reload swaps it for all of them at once.
+	 *
+	 * @param snapshot reference to the audit configuration
+	 */
+	public void setSnapshot(AtomicReference<HipaaAuditSnapshot> snapshot) {
+		this.snapshot = snapshot;
+	}
+
 	@Override
 	public String filterType() {
 		return FilterConstants.POST_TYPE;
@@ -69,56 +152,194 @@ public class HipaaResponseAuditZuulFilter extends ZuulFilter {
 	}
 
 	/**
-	 * Determine whether the response should be audited.
+	 * Determine whether the response should be audited. A request whose audit
+	 * record was left by the request filter is always completed and published,
+	 * with the response body only when the response patterns match.
 	 */
 	@Override
-	public boolean shouldFilter(){
+	public boolean shouldFilter() {
+		RequestContext ctx = RequestContext.getCurrentContext();
+		boolean captureBody = shouldCaptureBody();
+		if (HipaaAuditCorrelation.isPending(ctx)) {
+			ctx.set(CAPTURE_BODY_KEY, captureBody);
+			return true;
+		}
+		return captureBody;
+	}
+
+	private boolean shouldCaptureBody() {
         String requestMethod = RequestContext.getCurrentContext().getRequest().getMethod();
         if (!requestMethod.equals(HttpMethod.GET.name()) &&
         		!requestMethod.equals(HttpMethod.POST.name())) {
             return false;
         }
                
-        String requestUri = (RequestContext.getCurrentContext().getRequest().getQueryString() != null) ? 
-        		String.join("", RequestContext.getCurrentContext().getRequest().getRequestURI(), "?", RequestContext.getCurrentContext().getRequest().getQueryString()) 
-        		: RequestContext.getCurrentContext().getRequest().getRequestURI() ;
-        return (!isRequestUriInBlacklistPatterns(requestUri)
-            && isRequestUriInWhitelistPatterns(requestUri));
+        long start = startTimer();
+        HipaaAuditRoutePolicy routePolicy = getRoutePolicy(RequestContext.getCurrentContext());
+        boolean audit;
+        if (routePolicy != null && routePolicy.getResponseAudit() != null) {
+        	audit = routePolicy.getResponseAudit();
+        } else {
+        	String requestUri = requestUri(RequestContext.getCurrentContext().getRequest());
+        	HipaaAuditUriMatcher matcher = getSnapshot().getResponseMatcher();
+        	audit = decisionCache != null ? decisionCache.shouldAudit(requestUri, matcher)
+        			: matcher.shouldAudit(requestUri);
+        }
+        if (metrics != null) {
+        	metrics.record(Phase.MATCH, start);
+        	metrics.decided(audit);
+        }
+        return audit;
 	}
-	
-    private boolean isRequestUriInBlacklistPatterns(String requestUri) {
-        Collection<String> patterns = this.applicationProperties.getHipaaResponseBlacklistUriPatterns();
-        boolean isAvailable = patterns.stream().anyMatch(s->requestUri.matches(s));
-    	return isAvailable;
-    	
-    }
 
-    private boolean isRequestUriInWhitelistPatterns(String requestUri) {
-    	Collection<String> patterns = this.applicationProperties.getHipaaResponseWhitelistUriPatterns();
-        boolean isAvailable = patterns.stream().anyMatch(s->requestUri.matches(s));
-    	return isAvailable;
-    }
+	private HipaaAuditSnapshot getSnapshot() {
+		HipaaAuditSnapshot current = snapshot.get();
+		if (current == null) {
+			snapshot.compareAndSet(null, HipaaAuditSnapshot.compile(this.applicationProperties));
+			current = snapshot.get();
+		}
+		return current;
+	}
+
+	private HipaaAuditRoutePolicy getRoutePolicy(RequestContext ctx) {
+		return routePolicies != null ? routePolicies.get(ctx) : null;
+	}
+
+	public HipaaAuditRoutePolicies getRoutePolicies() {
+		return routePolicies;
+	}
+
+	/**
+	 * Resolve responses of Zuul routes with the given policies before the URI patterns,
+	 * or only with the URI patterns when null.
+	 *
+	 * @param routePolicies policies of the Zuul routes, or null
+	 */
+	public void setRoutePolicies(HipaaAuditRoutePolicies routePolicies) {
+		this.routePolicies = routePolicies;
+	}
+
+	public HipaaAdaptiveFidelity getAdaptiveFidelity() {
+		return adaptiveFidelity;
+	}
+
+	/**
+	 * Degrade body capture under load with the given policy and record the fidelity
+	 * of each event, or always capture as configured when null.
+	 *
+	 * @param adaptiveFidelity adaptive fidelity policy, or null
+	 */
+	public void setAdaptiveFidelity(HipaaAdaptiveFidelity adaptiveFidelity) {
+		this.adaptiveFidelity = adaptiveFidelity;
+	}
+
+	public HipaaBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Read buffered response bodies into slabs of the given pool, or into a heap
+	 * array when null.
+	 *
+	 * @param bufferPool pool of the body slabs, or null
+	 */
+	public void setBufferPool(HipaaBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	public HipaaAuditDecisionCache getDecisionCache() {
+		return decisionCache;
+	}
+
+	/**
+	 * Cache audit decisions in the given cache, or evaluate every request when null.
+	 *
+	 * @param decisionCache cache of the audit decisions, or null
+	 */
+	public void setDecisionCache(HipaaAuditDecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+	}
+
+	public HipaaAuditFilterMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Time the filter phases with the given metrics, or not at all when null.
+	 *
+	 * @param metrics metrics of the filter phases, or null
+	 */
+	public void setMetrics(HipaaAuditFilterMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private long startTimer() {
+		return metrics != null ? System.nanoTime() : 0L;
+	}
+
+	private void record(Phase phase, long start) {
+		if (metrics != null) {
+			metrics.record(phase, start);
+		}
+	}
 
 	@Override
 	public Object run() {
-		String principal = SecurityContextHolder.getContext().getAuthentication().getName();
-		Map<String, Object> data = new HashMap<String, Object>();
-
+		long auditStart = adaptiveFidelity != null ? System.nanoTime() : 0L;
 		RequestContext ctx = RequestContext.getCurrentContext();
+		HipaaAuditRecord.Builder auditRecord = HipaaAuditCorrelation.take(ctx);
+		if (auditRecord == null) {
+			String principal = SecurityContextHolder.getContext().getAuthentication().getName();
+			auditRecord = HipaaAuditRecord.builder(principal, AUDIT_APPLICATION_EVENT_TYPE)
+					.remoteAddress(ctx.getRequest().getRemoteAddr());
+		}
+		auditRecord.message(String.join("", "API ", ctx.getRequest().getRequestURI(), " accessed"));
+		if (Boolean.FALSE.equals(ctx.get(CAPTURE_BODY_KEY))) {
+			publish(ctx, auditRecord, auditStart);
+			return null;
+		}
+		HipaaAuditFidelity fidelity = null;
+		if (adaptiveFidelity != null) {
+			fidelity = adaptiveFidelity.next();
+			auditRecord.fidelity(fidelity).requestUri(ctx.getRequest().getRequestURI())
+					.responseStatus(ctx.getResponseStatusCode());
+			if (fidelity == HipaaAuditFidelity.METADATA) {
+				publish(ctx, auditRecord, auditStart);
+				return null;
+			}
+		}
+		HipaaResponseCapturePolicy policy = getSnapshot().getCapturePolicy();
+		HipaaAuditRoutePolicy routePolicy = getRoutePolicy(ctx);
+		String requestUri = requestUri(ctx.getRequest());
+		HipaaBodyCapture capture = routePolicy != null ? routePolicy.newCapture(policy, requestUri)
+				: policy.newCapture(requestUri);
+		capture = HipaaAdaptiveFidelity.degrade(capture, fidelity);
+
+		if (policy.getMode() == CaptureMode.STREAMING) {
+			captureStreaming(ctx, auditRecord, capture, policy.getTruncationMarker(), auditStart);
+			return null;
+		}
 
 		// TODO more checking
 		try (final InputStream responseDataStream = ctx.getResponseDataStream()) {
+			if (bufferPool != null) {
+				capturePooled(ctx, responseDataStream, auditRecord, capture, policy.getTruncationMarker());
+				publish(ctx, auditRecord, auditStart);
+				return null;
+			}
+			long start = startTimer();
 			final byte[] ba = IOUtils.toByteArray(responseDataStream);
-			InputStream is = new ByteArrayInputStream(ba);
-			if (ctx.getResponseGZipped()) {
-				 is = new GZIPInputStream(is);
+			capture.write(ba, 0, ba.length);
+			record(Phase.CAPTURE, start);
+			if (metrics != null) {
+				metrics.captured(capture.getLength());
 			}
-			
-			String responseBody = IOUtils.toString(is, ctx.getResponse().getCharacterEncoding());
-			data.put("responseBody", responseBody);
-			data.put("remoteAddress", ctx.getRequest().getRemoteAddr());
-			data.put("message", String.join("", "API ", ctx.getRequest().getRequestURI(), " accessed"));
-			
+
+			start = startTimer();
+			Charset charset = Charsets.toCharset(ctx.getResponse().getCharacterEncoding());
+			capture.applyTo(auditRecord, ctx.getResponseGZipped(), charset, policy.getTruncationMarker());
+			record(Phase.RECORD, start);
+
 			ctx.setResponseDataStream(new ByteArrayInputStream(ba));
 		} catch (IOException e) {
 			log.error("Error reading response body", e);
@@ -126,9 +347,103 @@ public class HipaaResponseAuditZuulFilter extends ZuulFilter {
 					new ZuulException(e, HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage()));			
 		}
 
-		AuditApplicationEvent event = new AuditApplicationEvent(principal, AUDIT_APPLICATION_EVENT_TYPE, data);	
-		publisher.publishEvent(event);
-
+		publish(ctx, auditRecord, auditStart);
 		return null;
 	}
+
+	/**
+	 * Publish the audit event, with the response status and request duration when
+	 * the record was started by the request filter. The time spent auditing since
+	 * {@code auditStart} feeds the adaptive fidelity.
+	 */
+	private void publish(RequestContext ctx, HipaaAuditRecord.Builder auditRecord, long auditStart) {
+		Long durationMillis = HipaaAuditCorrelation.durationMillis(ctx);
+		if (durationMillis != null) {
+			auditRecord.responseStatus(ctx.getResponseStatusCode()).durationMillis(durationMillis);
+		}
+		long start = startTimer();
+		publisher.publishEvent(new HipaaAuditApplicationEvent(auditRecord.build()));
+		record(Phase.PUBLISH, start);
+		if (adaptiveFidelity != null) {
+			adaptiveFidelity.recordNanos(System.nanoTime() - auditStart);
+		}
+	}
+
+	/**
+	 * Read the body into pooled slabs shared by the stream replaying it to the client
+	 * and the capture, instead of a heap array. The replay stream releases its
+	 * reference when SendResponseFilter closes it.
+	 */
+	private void capturePooled(RequestContext ctx, InputStream responseDataStream,
+			HipaaAuditRecord.Builder auditRecord, HipaaBodyCapture capture, String truncationMarker)
+			throws IOException {
+		long start = startTimer();
+		Long contentLength = ctx.getOriginContentLength();
+		HipaaPooledBody body = HipaaPooledBody.read(responseDataStream, bufferPool,
+				contentLength != null ? contentLength : 0);
+		try {
+			body.writeTo(capture);
+			record(Phase.CAPTURE, start);
+			if (metrics != null) {
+				metrics.captured(capture.getLength());
+			}
+
+			start = startTimer();
+			Charset charset = Charsets.toCharset(ctx.getResponse().getCharacterEncoding());
+			capture.applyTo(auditRecord, ctx.getResponseGZipped(), charset, truncationMarker);
+			record(Phase.RECORD, start);
+
+			ctx.setResponseDataStream(body.newInputStream());
+		} finally {
+			body.release();
+		}
+	}
+
+	private static String requestUri(HttpServletRequest request) {
+		return request.getQueryString() != null
+				? String.join("", request.getRequestURI(), "?", request.getQueryString())
+				: request.getRequestURI();
+	}
+
+	/**
+	 * Wrap the response data stream so that the body is copied while SendResponseFilter
+	 * writes it to the client. The audit event is published once the stream is read
+	 * to its end or closed, or by {@link HipaaResponseBodyCompletionZuulFilter} when
+	 * the response is not sent.
+	 */
+	private void captureStreaming(RequestContext ctx, HipaaAuditRecord.Builder auditRecord,
+			HipaaBodyCapture capture, String truncationMarker, long auditStart) {
+		InputStream responseDataStream = ctx.getResponseDataStream();
+		if (responseDataStream == null) {
+			publish(ctx, auditRecord, auditStart);
+			return;
+		}
+		boolean gzipped = ctx.getResponseGZipped();
+		Charset charset = Charsets.toCharset(ctx.getResponse().getCharacterEncoding());
+		HipaaTeeInputStream tee = new HipaaTeeInputStream(responseDataStream, capture, endOfStream -> {
+			ctx.remove(RESPONSE_BODY_TEE_KEY);
+			if (metrics != null) {
+				metrics.captured(capture.getLength());
+			}
+			// the body is copied while the client reads it, only decoding and publishing add to the audit time
+			long decodeStart = adaptiveFidelity != null ? System.nanoTime() : 0L;
+			long start = startTimer();
+			try {
+				capture.applyTo(auditRecord, gzipped, charset, truncationMarker);
+			} catch (IOException e) {
+				log.warn("Error decoding captured response body", e);
+			}
+			record(Phase.RECORD, start);
+			if (!endOfStream) {
+				auditRecord.responseBodyComplete(Boolean.FALSE);
+			}
+			try {
+				publish(ctx, auditRecord, decodeStart);
+			} catch (RuntimeException e) {
+				log.error("Error publishing response audit event", e);
+			}
+		});
+		ctx.set(RESPONSE_BODY_TEE_KEY, tee);
+		ctx.setResponseDataStream(tee);
+	}
 }
@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+
+/**
+ * Publishes the audit event of a response streamed by
+ * {@link HipaaResponseAuditZuulFilter} when the response stream was not sent,
+ * e.g. because a filter failed or replaced the response body, instead of
+ * losing it. The body copied so far is recorded as incomplete.
+ * <p>
+ * As a post filter, runs after SendResponseFilter; as an error filter, runs
+ * before SendErrorFilter, for post filters failing before SendResponseFilter.
+ */
+public class HipaaResponseBodyCompletionZuulFilter extends ZuulFilter {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaResponseBodyCompletionZuulFilter.class);
+
+    private final String filterType;
+
+    /**
+     * @param filterType {@link FilterConstants#POST_TYPE} or {@link FilterConstants#ERROR_TYPE}
+     */
+    public HipaaResponseBodyCompletionZuulFilter(String filterType) {
+        if (!FilterConstants.POST_TYPE.equals(filterType) && !FilterConstants.ERROR_TYPE.equals(filterType)) {
+            throw new IllegalArgumentException("Unsupported filter type " + filterType);
+        }
+        this.filterType = filterType;
+    }
+
+    @Override
+    public String filterType() {
+        return filterType;
+    }
+
+    @Override
+    public int filterOrder() {
+        return FilterConstants.POST_TYPE.equals(filterType) ? FilterConstants.SEND_RESPONSE_FILTER_ORDER + 1
+            : FilterConstants.SEND_ERROR_FILTER_ORDER - 1;
+    }
+
+    @Override
+    public boolean shouldFilter() {
+        return RequestContext.getCurrentContext().containsKey(HipaaResponseAuditZuulFilter.RESPONSE_BODY_TEE_KEY);
+    }
+
+    @Override
+    public Object run() {
+        HipaaTeeInputStream tee = (HipaaTeeInputStream) RequestContext.getCurrentContext()
+            .remove(HipaaResponseAuditZuulFilter.RESPONSE_BODY_TEE_KEY);
+        try {
+            tee.abandon();
+        } catch (IOException e) {
+            log.debug("Could not close the abandoned response body", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.cloud.netflix.zuul.metrics.EmptyCounterFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.CounterFactory;
+
+public class HipaaAuditCorrelationTest {
+
+    private final List<AuditApplicationEvent> events = new ArrayList<>();
+
+    private final ApplicationEventPublisher publisher = event -> events.add((AuditApplicationEvent) event);
+
+    private HipaaAuditProperties properties;
+
+    private HipaaAuditZuulFilter requestFilter;
+
+    private HipaaResponseAuditZuulFilter responseFilter;
+
+    @Before
+    public void init() {
+        properties = new HipaaAuditProperties();
+        properties.getHipaaResponseWhitelistUriPatterns().add(".*/api/Patient.*");
+        properties.getCorrelation().setEnabled(true);
+        requestFilter = new HipaaAuditZuulFilter(publisher, properties);
+        responseFilter = new HipaaResponseAuditZuulFilter(publisher, properties);
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        when(authentication.getName()).thenReturn("admin");
+        when(securityContext.getAuthentication()).thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+        CounterFactory.initialize(new EmptyCounterFactory());
+    }
+
+    @After
+    public void cleanup() {
+        RequestContext.getCurrentContext().unset();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testPublishesOneCorrelatedEvent() {
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+        request.setParameter("name", "doe");
+        RequestContext context = createRequestContext(request, "{\"resourceType\":\"Bundle\"}");
+
+        proxy(context);
+
+        assertThat(events).hasSize(1);
+        HipaaAuditRecord record = ((HipaaAuditApplicationEvent) events.get(0)).getRecord();
+        assertThat(record.getPrincipal()).isEqualTo("admin");
+        assertThat(record.getRequestUri()).isEqualTo("/api/Patient");
+        assertThat(record.getRequestParam()).isEqualTo("name:[doe]");
+        assertThat(record.getResponseBody()).hasToString("{\"resourceType\":\"Bundle\"}");
+        assertThat(record.getResponseStatus()).isEqualTo(200);
+        assertThat(record.getDurationMillis()).isNotNull().isGreaterThanOrEqualTo(0L);
+        assertThat(record.getRequestId()).hasSize(36);
+        assertThat(context.getZuulRequestHeaders()).containsEntry("x-request-id", record.getRequestId());
+
+        Map<String, Object> data = events.get(0).getAuditEvent().getData();
+        assertThat(data).containsKeys(HipaaAuditRecord.REQUEST_ID, HipaaAuditRecord.RESPONSE_STATUS,
+            HipaaAuditRecord.DURATION_MILLIS, HipaaAuditRecord.RESPONSE_BODY, HipaaAuditRecord.HTTP_METHOD);
+    }
+
+    @Test
+    public void testKeepsRequestIdHeader() {
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+        request.addHeader("X-Request-Id", "abc-123");
+        RequestContext context = createRequestContext(request, "content");
+
+        proxy(context);
+
+        assertThat(events).hasSize(1);
+        assertThat(((HipaaAuditApplicationEvent) events.get(0)).getRecord().getRequestId()).isEqualTo("abc-123");
+        assertThat(context.getZuulRequestHeaders()).doesNotContainKey("x-request-id");
+    }
+
+    @Test
+    public void testCompletesRecordWithoutBodyWhenResponseIsNotAudited() {
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.DELETE.name(), "/api/Observation/1");
+        RequestContext context = createRequestContext(request, "");
+        context.setResponseStatusCode(204);
+
+        proxy(context);
+
+        assertThat(events).hasSize(1);
+        HipaaAuditRecord record = ((HipaaAuditApplicationEvent) events.get(0)).getRecord();
+        assertThat(record.getHttpMethod()).isEqualTo("DELETE");
+        assertThat(record.getResponseStatus()).isEqualTo(204);
+        assertThat(record.getResponseBody()).isNull();
+        assertThat(record.getMessage()).isEqualTo("API /api/Observation/1 accessed");
+    }
+
+    @Test
+    public void testPublishesTwoEventsWhenDisabled() {
+        properties.getCorrelation().setEnabled(false);
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+        RequestContext context = createRequestContext(request, "content");
+
+        proxy(context);
+
+        assertThat(events).hasSize(2);
+        assertThat(((HipaaAuditApplicationEvent) events.get(0)).getRecord().getRequestId()).isNull();
+        assertThat(((HipaaAuditApplicationEvent) events.get(1)).getRecord().getDurationMillis()).isNull();
+        assertThat(context.get(HipaaAuditCorrelation.RECORD_KEY)).isNull();
+    }
+
+    private void proxy(RequestContext context) {
+        if (requestFilter.shouldFilter()) {
+            requestFilter.run();
+        }
+        if (responseFilter.shouldFilter()) {
+            responseFilter.run();
+        }
+        assertThat(context.get(HipaaAuditCorrelation.RECORD_KEY)).isNull();
+    }
+
+    private static RequestContext createRequestContext(MockHttpServletRequest request, String responseBody) {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(new MockHttpServletResponse());
+        context.setResponseDataStream(new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.UTF_8)));
+        context.setResponseGZipped(false);
+        // as set by the routing filter
+        context.setResponseStatusCode(200);
+        RequestContext.testSetCurrentContext(context);
+        return context;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.DecisionCache;
+
+public class HipaaAuditDecisionCacheTest {
+
+    private DecisionCache properties;
+
+    private HipaaAuditUriMatcher matcher;
+
+    @Before
+    public void setup() {
+        properties = new DecisionCache();
+        properties.setEnabled(true);
+        properties.setNormalizeIdSegments(true);
+        properties.setNormalizeQueryValues(true);
+        matcher = HipaaAuditUriMatcher.compile(Arrays.asList(".*/api/.*", ".*/Patient\\?.*"),
+            Collections.singletonList(".*/api/profile-info$"));
+    }
+
+    @Test
+    public void testNormalizeNumericAndUuidSegments() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        assertThat(cache.normalize("/fhir/Patient/123")).isEqualTo("/fhir/Patient/{id}");
+        assertThat(cache.normalize("/fhir/Patient/123/_history/2")).isEqualTo("/fhir/Patient/{id}/_history/{id}");
+        assertThat(cache.normalize("/fhir/Patient/0f8fad5b-d9cb-469f-a165-70867728950e/"))
+            .isEqualTo("/fhir/Patient/{id}/");
+        assertThat(cache.normalize("/api/v1/patients")).as("unchanged URI").isSameAs("/api/v1/patients");
+    }
+
+    @Test
+    public void testNormalizeQueryValues() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        assertThat(cache.normalize("/Patient?identifier=12345&_count=10"))
+            .isEqualTo("/Patient?identifier=&_count=");
+        assertThat(cache.normalize("/Patient/7?_format=json&flag")).isEqualTo("/Patient/{id}?_format=&flag");
+        assertThat(cache.normalize("/Patient/7/?a=1/2")).isEqualTo("/Patient/{id}/?a=");
+    }
+
+    @Test
+    public void testNormalizeWithCustomIdSegmentPattern() {
+        properties.setIdSegmentPattern("[A-Za-z]+-[0-9]+");
+        properties.setNormalizeQueryValues(false);
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        assertThat(cache.normalize("/fhir/Patient/mrn-42/123?x=1")).isEqualTo("/fhir/Patient/{id}/123?x=1");
+    }
+
+    @Test
+    public void testNothingIsNormalizedByDefault() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(new DecisionCache());
+        assertThat(cache.normalize("/fhir/Patient/123?identifier=1")).isEqualTo("/fhir/Patient/123?identifier=1");
+        cache.validate(Collections.singletonList(".*/Patient/123"));
+    }
+
+    @Test
+    public void testValidateRejectsValueDependentPatterns() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        cache.validate(Arrays.asList(".*/api/.*", ".*/Patient\\?.*", "^/fhir/Patient/[^/]+$", ".*/api/profile-info$",
+            ".*/api/v1/(Patient|Observation)/.*", ".*/api(/.*)?", "^/fhir/Patient/[^/]+/_history$"));
+        assertThat(HipaaAuditDecisionCache.describedUri("^/fhir/Patient/\\d+\\?_id=[0-9]*$"))
+            .isEqualTo("/fhir/Patient/0?_id=0");
+
+        for (String pattern : Arrays.asList(".*/Patient/123", "/fhir/Patient/\\d+", ".*/Patient\\?identifier=42")) {
+            assertThatThrownBy(() -> cache.validate(Collections.singletonList(pattern)))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining(pattern);
+        }
+
+        for (String pattern : Arrays.asList(".*/Patient/123.*", ".*/Patient/[1-5].*", ".*/Patient/a.*",
+                "^/fhir/Patient/[0-9a-f]{8}-.*$", ".*/Patient/.{1,4}$")) {
+            assertThatThrownBy(() -> cache.validate(Collections.singletonList(pattern)))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining(pattern);
+        }
+
+        HipaaAuditProperties auditProperties = new HipaaAuditProperties();
+        auditProperties.getHipaaResponseBlacklistUriPatterns().add("/fhir/Patient/[0-9]+/_history");
+        assertThatThrownBy(() -> cache.validate(auditProperties)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        assertThat(cache.shouldAudit("/gw/api/patient/1", matcher)).isTrue();
+        assertThat(cache.shouldAudit("/gw/api/patient/2", matcher)).isTrue();
+        assertThat(cache.shouldAudit("/gw/api/profile-info", matcher)).isFalse();
+        assertThat(cache.shouldAudit("/gw/api/profile-info", matcher)).isFalse();
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+
+        cache.invalidateAll();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void testDecisionsOfReplacedMatcherAreNotServed() {
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        assertThat(cache.shouldAudit("/gw/api/patient/1", matcher)).isTrue();
+
+        // a lookup racing a reload may still cache a decision of the replaced matcher
+        HipaaAuditUriMatcher reloaded = HipaaAuditUriMatcher.compile(Collections.singletonList(".*/fhir/.*"),
+            Collections.emptyList());
+        assertThat(cache.shouldAudit("/gw/api/patient/2", reloaded)).isFalse();
+        assertThat(cache.getHitCount()).isZero();
+        assertThat(cache.shouldAudit("/gw/api/patient/3", reloaded)).isFalse();
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEvictionIsBounded() {
+        properties.setMaximumSize(2);
+        properties.setNormalizeIdSegments(false);
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        for (int i = 0; i < 100; i++) {
+            cache.shouldAudit("/api/" + i, matcher);
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void testFilterUsesDecisionCache() {
+        HipaaAuditProperties auditProperties = new HipaaAuditProperties();
+        HipaaResponseAuditZuulFilter filter = new HipaaResponseAuditZuulFilter(null, auditProperties);
+        auditProperties.getHipaaResponseWhitelistUriPatterns().add(".*/Patient\\?.*");
+        HipaaAuditDecisionCache cache = new HipaaAuditDecisionCache(properties);
+        filter.setDecisionCache(cache);
+
+        for (String query : Arrays.asList("identifier=1", "identifier=2", "identifier=3")) {
+            MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/Patient");
+            request.setQueryString(query);
+            RequestContext.getCurrentContext().setRequest(request);
+            assertThat(filter.shouldFilter()).isTrue();
+        }
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(2);
+    }
+}
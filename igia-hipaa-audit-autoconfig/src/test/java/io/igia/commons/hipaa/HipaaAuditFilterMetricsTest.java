@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.cloud.netflix.zuul.metrics.EmptyCounterFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.CounterFactory;
+
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics.Phase;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class HipaaAuditFilterMetricsTest {
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testPercentilesOfWindow() {
+        HipaaAuditFilterMetrics metrics = new HipaaAuditFilterMetrics("request", 60000);
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordNanos(Phase.MATCH, TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertThat(metrics.getCount(Phase.MATCH)).isEqualTo(100);
+        assertThat(metrics.getCount(Phase.PUBLISH)).isZero();
+        assertThat(metrics.getMax(Phase.MATCH)).as("window not completed").isZero();
+
+        metrics.roll();
+        assertThat(metrics.getPercentile(Phase.MATCH, 0.5)).isCloseTo(TimeUnit.MILLISECONDS.toNanos(50),
+            within((double) TimeUnit.MILLISECONDS.toNanos(1)));
+        assertThat(metrics.getMax(Phase.MATCH)).isCloseTo(TimeUnit.MILLISECONDS.toNanos(100), within((double) TimeUnit.MILLISECONDS.toNanos(1)));
+        assertThat(metrics.getMax(Phase.PUBLISH)).isZero();
+
+        metrics.roll();
+        assertThat(metrics.getMax(Phase.MATCH)).as("empty window").isZero();
+        metrics.close();
+    }
+
+    @Test
+    public void testWindowIsRolledByTimer() throws InterruptedException {
+        HipaaAuditFilterMetrics metrics = new HipaaAuditFilterMetrics("request", 50);
+        metrics.recordNanos(Phase.MATCH, TimeUnit.MILLISECONDS.toNanos(5));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getMax(Phase.MATCH) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(metrics.getMax(Phase.MATCH)).isGreaterThan(0);
+        metrics.close();
+    }
+
+    @Test
+    public void testBindTo() {
+        HipaaAuditFilterMetrics metrics = new HipaaAuditFilterMetrics("response", 60000);
+        MeterRegistry registry = new SimpleMeterRegistry();
+        metrics.bindTo(registry);
+        metrics.decided(true);
+        metrics.decided(false);
+        metrics.decided(false);
+        metrics.captured(42);
+        metrics.record(Phase.CAPTURE, System.nanoTime() - 1000);
+        metrics.roll();
+
+        assertThat(registry.get("hipaa.audit.filter.requests").tags("filter", "response", "outcome", "skipped")
+            .functionCounter().count()).isEqualTo(2);
+        assertThat(registry.get("hipaa.audit.filter.captured.bytes").functionCounter().count()).isEqualTo(42);
+        assertThat(registry.get("hipaa.audit.filter.latency.count").tags("phase", "capture").functionCounter()
+            .count()).isEqualTo(1);
+        assertThat(registry.get("hipaa.audit.filter.latency").tags("phase", "capture", "percentile", "0.99")
+            .timeGauge().value(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+    }
+
+    @Test
+    public void testFiltersRecordPhases() {
+        CounterFactory.initialize(new EmptyCounterFactory());
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("admin", null));
+        HipaaAuditProperties properties = new HipaaAuditProperties();
+        properties.getHipaaResponseWhitelistUriPatterns().add(".*/api/.*");
+        HipaaAuditZuulFilter requestFilter = new HipaaAuditZuulFilter(event -> { }, properties);
+        HipaaAuditFilterMetrics requestMetrics = new HipaaAuditFilterMetrics("request", 60000);
+        requestFilter.setMetrics(requestMetrics);
+        HipaaResponseAuditZuulFilter responseFilter = new HipaaResponseAuditZuulFilter(event -> { }, properties);
+        HipaaAuditFilterMetrics responseMetrics = new HipaaAuditFilterMetrics("response", 60000);
+        responseFilter.setMetrics(responseMetrics);
+
+        RequestContext context = new RequestContext();
+        context.setRequest(new MockHttpServletRequest(HttpMethod.GET.name(), "/content/main.js"));
+        RequestContext.testSetCurrentContext(context);
+        assertThat(requestFilter.shouldFilter()).isFalse();
+
+        context.setRequest(new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient"));
+        context.setResponse(new MockHttpServletResponse());
+        context.setResponseGZipped(false);
+        context.setResponseDataStream(new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)));
+        assertThat(requestFilter.shouldFilter()).isTrue();
+        requestFilter.run();
+        assertThat(responseFilter.shouldFilter()).isTrue();
+        responseFilter.run();
+
+        assertThat(requestMetrics.getAuditedCount()).isEqualTo(1);
+        assertThat(requestMetrics.getSkippedCount()).isEqualTo(1);
+        assertThat(requestMetrics.getCount(Phase.MATCH)).isEqualTo(2);
+        assertThat(requestMetrics.getCount(Phase.CAPTURE)).isEqualTo(1);
+        assertThat(requestMetrics.getCount(Phase.PUBLISH)).isEqualTo(1);
+        for (Phase phase : Phase.values()) {
+            assertThat(responseMetrics.getCount(phase)).as(phase.name()).isEqualTo(1);
+        }
+        assertThat(responseMetrics.getCapturedBytes()).isEqualTo(7);
+    }
+}
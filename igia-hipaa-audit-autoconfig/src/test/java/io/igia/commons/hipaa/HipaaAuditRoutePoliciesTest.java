@@ -0,0 +1,167 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.cloud.netflix.zuul.RoutesRefreshedEvent;
+import org.springframework.cloud.netflix.zuul.filters.Route;
+import org.springframework.cloud.netflix.zuul.filters.RouteLocator;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.cloud.netflix.zuul.metrics.EmptyCounterFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+import com.netflix.zuul.monitoring.CounterFactory;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.RoutePolicy;
+
+public class HipaaAuditRoutePoliciesTest {
+
+    private final List<Object> events = new ArrayList<>();
+
+    private final ApplicationEventPublisher publisher = events::add;
+
+    private HipaaAuditProperties properties;
+
+    private RouteLocator routeLocator;
+
+    private HipaaAuditRoutePolicies routePolicies;
+
+    @Before
+    public void init() {
+        properties = new HipaaAuditProperties();
+        properties.getHipaaBlacklistUriPatterns().add(".*/api/fhir/.*");
+        RoutePolicy fhir = new RoutePolicy();
+        fhir.setRequestAudit(true);
+        fhir.setResponseAudit(true);
+        fhir.setMaxBytes(4);
+        fhir.getMaskedRequestParams().add("name");
+        properties.getRoutePolicies().put("fhir", fhir);
+        RoutePolicy uaa = new RoutePolicy();
+        uaa.setRequestAudit(false);
+        properties.getRoutePolicies().put("uaa", uaa);
+
+        routeLocator = Mockito.mock(RouteLocator.class);
+        when(routeLocator.getRoutes()).thenReturn(Arrays.asList(
+            route("fhir", "/api/fhir/**", "http://fhir:8080"),
+            route("auth", "/api/uaa/**", "uaa")));
+        routePolicies = new HipaaAuditRoutePolicies(properties, routeLocator);
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        when(authentication.getName()).thenReturn("admin");
+        when(securityContext.getAuthentication()).thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+        CounterFactory.initialize(new EmptyCounterFactory());
+    }
+
+    @After
+    public void cleanup() {
+        RequestContext.getCurrentContext().unset();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testResolvesRoutesByIdAndServiceId() {
+        assertThat(routePolicies.getPolicies()).containsOnlyKeys("fhir", "auth");
+        assertThat(routePolicies.getPolicies().get("fhir").getRequestAudit()).isTrue();
+        // the auth route forwards to the uaa service
+        assertThat(routePolicies.getPolicies().get("auth").getRequestAudit()).isFalse();
+    }
+
+    @Test
+    public void testRoutePolicyTakesPrecedenceOverUriPatterns() {
+        HipaaAuditZuulFilter requestFilter = new HipaaAuditZuulFilter(publisher, properties);
+        HipaaResponseAuditZuulFilter responseFilter = new HipaaResponseAuditZuulFilter(publisher, properties);
+        requestFilter.setRoutePolicies(routePolicies);
+        responseFilter.setRoutePolicies(routePolicies);
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/fhir/Patient");
+        request.setParameter("name", "doe");
+        createRequestContext(request, "fhir", "0123456789");
+
+        assertThat(requestFilter.shouldFilter()).isTrue();
+        requestFilter.run();
+        assertThat(responseFilter.shouldFilter()).isTrue();
+        responseFilter.run();
+
+        assertThat(events).hasSize(2);
+        HipaaAuditRecord requestRecord = ((HipaaAuditApplicationEvent) events.get(0)).getRecord();
+        assertThat(requestRecord.getRequestParam()).isEqualTo("name:[***]");
+        HipaaAuditRecord responseRecord = ((HipaaAuditApplicationEvent) events.get(1)).getRecord();
+        assertThat(responseRecord.getResponseBody().toString()).startsWith("0123").doesNotContain("4");
+        assertThat(responseRecord.getResponseBodyTruncated()).isTrue();
+    }
+
+    @Test
+    public void testFallsBackToUriPatternsWithoutRoutePolicy() {
+        HipaaAuditZuulFilter requestFilter = new HipaaAuditZuulFilter(publisher, properties);
+        requestFilter.setRoutePolicies(routePolicies);
+
+        createRequestContext(new MockHttpServletRequest(HttpMethod.GET.name(), "/api/fhir/Patient"), "other", "");
+        assertThat(requestFilter.shouldFilter()).isFalse();
+
+        createRequestContext(new MockHttpServletRequest(HttpMethod.GET.name(), "/api/uaa/token"), "auth", "");
+        assertThat(requestFilter.shouldFilter()).isFalse();
+
+        createRequestContext(new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient"), null, "");
+        assertThat(requestFilter.shouldFilter()).isTrue();
+    }
+
+    @Test
+    public void testRebuildsTableWhenRoutesRefresh() {
+        assertThat(routePolicies.getPolicies()).containsKey("fhir");
+
+        when(routeLocator.getRoutes()).thenReturn(Collections.singletonList(route("fhir-v2", "/api/v2/**", "fhir")));
+        routePolicies.onApplicationEvent(new RoutesRefreshedEvent(routeLocator));
+
+        assertThat(routePolicies.getPolicies()).containsOnlyKeys("fhir-v2");
+    }
+
+    private static Route route(String id, String path, String location) {
+        return new Route(id, path, location, "", null, Collections.emptySet());
+    }
+
+    private static RequestContext createRequestContext(MockHttpServletRequest request, String routeId,
+        String responseBody) {
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setResponse(new MockHttpServletResponse());
+        context.setResponseDataStream(new ByteArrayInputStream(responseBody.getBytes(StandardCharsets.UTF_8)));
+        context.setResponseGZipped(false);
+        if (routeId != null) {
+            // as set by PreDecorationFilter
+            context.set(FilterConstants.PROXY_KEY, routeId);
+        }
+        RequestContext.testSetCurrentContext(context);
+        return context;
+    }
+}
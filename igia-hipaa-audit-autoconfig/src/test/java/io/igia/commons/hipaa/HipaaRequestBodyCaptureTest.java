@@ -0,0 +1,201 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
+public class HipaaRequestBodyCaptureTest {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"gender\":\"female\"}";
+
+    private final List<AuditApplicationEvent> events = new ArrayList<>();
+
+    private final ApplicationEventPublisher publisher = event -> events.add((AuditApplicationEvent) event);
+
+    private HipaaAuditProperties properties;
+
+    private HipaaAuditZuulFilter filter;
+
+    @Before
+    public void init() {
+        properties = new HipaaAuditProperties();
+        Route patients = new Route();
+        patients.setUriPattern(".*/api/Patient.*");
+        Route binaries = new Route();
+        binaries.setUriPattern(".*/api/Binary.*");
+        binaries.setBodyMode(BodyMode.DIGEST);
+        properties.getRequestCapture().getRoutes().add(patients);
+        properties.getRequestCapture().getRoutes().add(binaries);
+        filter = new HipaaAuditZuulFilter(publisher, properties);
+
+        Authentication authentication = Mockito.mock(Authentication.class);
+        SecurityContext securityContext = Mockito.mock(SecurityContext.class);
+        when(authentication.getName()).thenReturn("admin");
+        when(securityContext.getAuthentication()).thenReturn(authentication);
+        SecurityContextHolder.setContext(securityContext);
+    }
+
+    @After
+    public void cleanup() {
+        RequestContext.getCurrentContext().unset();
+        SecurityContextHolder.clearContext();
+    }
+
+    private static RequestContext createRequestContext(String method, String uri, String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        request.setCharacterEncoding("UTF-8");
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        RequestContext.testSetCurrentContext(context);
+        return context;
+    }
+
+    private HipaaAuditRecord record() {
+        assertThat(events).hasSize(1);
+        return ((HipaaAuditApplicationEvent) events.get(0)).getRecord();
+    }
+
+    @Test
+    public void testBufferedBodyIsSharedWithRoute() throws IOException {
+        RequestContext context = createRequestContext("POST", "/api/Patient", PATIENT);
+
+        filter.run();
+
+        assertThat(record().getRequestBody()).isEqualTo(PATIENT);
+        assertThat(record().getRequestBodyTruncated()).isNull();
+        InputStream entity = (InputStream) context.get(FilterConstants.REQUEST_ENTITY_KEY);
+        assertThat(entity).isInstanceOf(ByteArrayInputStream.class);
+        assertThat(IOUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo(PATIENT);
+        assertThat(context.containsKey(HipaaAuditZuulFilter.REQUEST_BODY_CAPTURE_KEY)).isFalse();
+    }
+
+    @Test
+    public void testBodyIsNotCapturedWithoutOptIn() {
+        RequestContext context = createRequestContext("POST", "/api/Observation", "{}");
+
+        filter.run();
+
+        assertThat(record().getRequestBody()).isNull();
+        assertThat(context.get(FilterConstants.REQUEST_ENTITY_KEY)).isNull();
+    }
+
+    @Test
+    public void testLargeBodyIsStreamedAndTruncated() throws IOException {
+        properties.getRequestCapture().setMaxBytes(10);
+        RequestContext context = createRequestContext("PUT", "/api/Patient/1", PATIENT);
+
+        filter.run();
+        assertThat(events).isEmpty();
+        InputStream entity = (InputStream) context.get(FilterConstants.REQUEST_ENTITY_KEY);
+        assertThat(IOUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo(PATIENT);
+
+        assertThat(record().getRequestBody()).isEqualTo("{\"resource...[TRUNCATED]");
+        assertThat(record().getRequestBodyTruncated()).isTrue();
+        assertThat(record().getRequestBodyLength()).isEqualTo(PATIENT.length());
+        assertThat(record().getRequestBodyComplete()).isNull();
+    }
+
+    @Test
+    public void testBodyOverReadCeilingIsStreamed() throws IOException {
+        properties.getRequestCapture().setMaxBytes(-1);
+        RequestContext context = createRequestContext("POST", "/api/Patient", PATIENT);
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/Patient") {
+            @Override
+            public long getContentLengthLong() {
+                return HipaaAuditZuulFilter.MAX_READ_BODY_BYTES + 1L;
+            }
+        };
+        request.setContent(PATIENT.getBytes(StandardCharsets.UTF_8));
+        context.setRequest(request);
+
+        filter.run();
+        InputStream entity = (InputStream) context.get(FilterConstants.REQUEST_ENTITY_KEY);
+        assertThat(entity).isInstanceOf(HipaaTeeInputStream.class);
+        assertThat(IOUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo(PATIENT);
+        assertThat(record().getRequestBody()).isEqualTo(PATIENT);
+    }
+
+    @Test
+    public void testReadFullyDoesNotTrustTheDeclaredLength() throws IOException {
+        byte[] body = HipaaAuditZuulFilter.readFully(new ByteArrayInputStream(PATIENT.getBytes(StandardCharsets.UTF_8)),
+            HipaaAuditZuulFilter.MAX_READ_BODY_BYTES);
+        assertThat(new String(body, StandardCharsets.UTF_8)).isEqualTo(PATIENT);
+
+        byte[] large = new byte[20000];
+        large[large.length - 1] = 1;
+        assertThat(HipaaAuditZuulFilter.readFully(new ByteArrayInputStream(large), large.length)).isEqualTo(large);
+        assertThat(HipaaAuditZuulFilter.readFully(new ByteArrayInputStream(large), 10000)).hasSize(10000);
+    }
+
+    @Test
+    public void testDigestOnlyBodyIsStreamed() throws IOException {
+        RequestContext context = createRequestContext("POST", "/api/Binary", "0123456789");
+
+        filter.run();
+        IOUtils.toByteArray((InputStream) context.get(FilterConstants.REQUEST_ENTITY_KEY));
+
+        assertThat(record().getRequestBody()).isNull();
+        assertThat(record().getRequestBodyLength()).isEqualTo(10);
+        // sha256sum of "0123456789"
+        assertThat(record().getRequestBodySha256())
+            .isEqualTo("84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882");
+    }
+
+    @Test
+    public void testPartlyReadBodyIsCompletedAfterRouting() throws IOException {
+        RequestContext context = createRequestContext("POST", "/api/Binary", "");
+        // cached by an earlier filter
+        context.set(FilterConstants.REQUEST_ENTITY_KEY,
+            new ByteArrayInputStream("0123456789".getBytes(StandardCharsets.US_ASCII)));
+
+        filter.run();
+        InputStream entity = (InputStream) context.get(FilterConstants.REQUEST_ENTITY_KEY);
+        assertThat(IOUtils.read(entity, new byte[4])).isEqualTo(4);
+        assertThat(events).isEmpty();
+
+        HipaaRequestBodyCompletionZuulFilter completion = new HipaaRequestBodyCompletionZuulFilter();
+        assertThat(completion.shouldFilter()).isTrue();
+        completion.run();
+
+        assertThat(completion.shouldFilter()).isFalse();
+        assertThat(record().getRequestBodyComplete()).isFalse();
+        assertThat(record().getRequestBodyLength()).isEqualTo(4);
+    }
+}
@@ -16,12 +16,19 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -34,6 +41,7 @@ import org.mockito.stubbing.Answer;
 import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.cloud.netflix.zuul.metrics.EmptyCounterFactory;
+import org.springframework.cloud.netflix.zuul.filters.support.FilterConstants;
 import org.springframework.cloud.netflix.zuul.util.ZuulRuntimeException;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpMethod;
@@ -48,6 +56,13 @@ import com.netflix.zuul.context.RequestContext;
 import com.netflix.zuul.exception.ZuulException;
 import com.netflix.zuul.monitoring.CounterFactory;
 
+import io.igia.commons.hipaa.HipaaAuditProperties.Adaptive;
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.CaptureMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+import io.igia.commons.hipaa.HipaaAuditProperties.ResponseCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
 @RunWith(SpringJUnit4ClassRunner.class)
 public class HipaaResponseAuditZuulFilterTest {
 	
@@ -167,6 +182,289 @@ public class HipaaResponseAuditZuulFilterTest {
 		filter.run();
 	}
 	
+	@Test
+	public void testStreamingCapturePublishesAtEndOfStream() throws IOException {
+		String principal = "admin";
+		String responseBody = "{\"resourceType\":\"Bundle\"}";
+
+		setupMocks(principal);
+		setupStreamingCapture();
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, responseBody);
+
+		filter.run();
+		assertThat(event).as("no event before the body is sent").isNull();
+
+		try (InputStream is = context.getResponseDataStream()) {
+			assertThat(IOUtils.toString(is, StandardCharsets.UTF_8)).as("client receives the body").isEqualTo(responseBody);
+			assertThat(event).as("event published at end of stream").isNotNull();
+		}
+		assertThat(event.getAuditEvent().getPrincipal()).isEqualTo(principal);
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY)).isEqualTo(responseBody);
+		assertThat(event.getAuditEvent().getData()).doesNotContainKey(HipaaResponseAuditZuulFilter.RESPONSE_BODY_COMPLETE);
+		Mockito.verify(publisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any());
+	}
+
+	@Test
+	public void testStreamingCaptureDecodesGzippedBody() throws IOException {
+		String responseBody = "gzipped content";
+		setupMocks("admin");
+		setupStreamingCapture();
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "");
+		context.setResponseDataStream(new ByteArrayInputStream(gzip(responseBody)));
+		context.setResponseGZipped(true);
+
+		filter.run();
+		// as SendResponseFilter does for clients not accepting gzip
+		try (InputStream is = new GZIPInputStream(context.getResponseDataStream())) {
+			assertThat(IOUtils.toString(is, StandardCharsets.UTF_8)).isEqualTo(responseBody);
+		}
+		assertThat(((HipaaAuditApplicationEvent) event).getRecord().getResponseBody())
+				.isInstanceOf(HipaaGzippedResponseBody.class).hasToString(responseBody);
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY))
+				.isEqualTo(responseBody);
+		assertThat(event.getAuditEvent().getData()).doesNotContainKey(HipaaResponseAuditZuulFilter.RESPONSE_BODY_COMPLETE);
+	}
+
+	@Test
+	public void testGzippedBodyIsKeptCompressed() throws IOException {
+		String responseBody = "gzipped content";
+		setupMocks("admin");
+
+		byte[] compressed = gzip(responseBody);
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "");
+		context.setResponseDataStream(new ByteArrayInputStream(compressed));
+		context.setResponseGZipped(true);
+
+		filter.run();
+		HipaaGzippedResponseBody body = (HipaaGzippedResponseBody) ((HipaaAuditApplicationEvent) event).getRecord()
+				.getResponseBody();
+		assertThat(body.isDecoded()).as("not decompressed on the request thread").isFalse();
+		assertThat(body.getCompressed()).isEqualTo(compressed);
+		assertThat(body.getContentEncoding()).isEqualTo("gzip");
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY))
+				.as("a String in the audit event data").isInstanceOf(String.class).isEqualTo(responseBody);
+		assertThat(body.isDecoded()).isTrue();
+		assertThat(IOUtils.toByteArray(context.getResponseDataStream())).as("client receives the compressed body")
+				.isEqualTo(compressed);
+	}
+
+	@Test
+	public void testStreamingCaptureMarksIncompleteBodyOnClose() throws IOException {
+		setupMocks("admin");
+		setupStreamingCapture();
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "content");
+
+		filter.run();
+		InputStream is = context.getResponseDataStream();
+		byte[] buffer = new byte[3];
+		assertThat(is.read(buffer)).isEqualTo(3);
+		is.close();
+		is.close();
+
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY)).isEqualTo("con");
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_COMPLETE)).isEqualTo(Boolean.FALSE);
+		Mockito.verify(publisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any());
+	}
+
+	@Test
+	public void testStreamingCapturePublishesAbandonedBody() throws IOException {
+		setupMocks("admin");
+		setupStreamingCapture();
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "content");
+
+		filter.run();
+		// SendResponseFilter skipped, e.g. after a post filter failed
+		HipaaResponseBodyCompletionZuulFilter completion = new HipaaResponseBodyCompletionZuulFilter(
+				FilterConstants.ERROR_TYPE);
+		assertThat(completion.shouldFilter()).isTrue();
+		completion.run();
+
+		assertThat(event).as("event published for the abandoned body").isNotNull();
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY)).isEqualTo("");
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_COMPLETE)).isEqualTo(Boolean.FALSE);
+		assertThat(completion.shouldFilter()).isFalse();
+		context.getResponseDataStream().close();
+		Mockito.verify(publisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any());
+	}
+
+	@Test
+	public void testStreamingCaptureIsNotCompletedTwice() throws IOException {
+		setupMocks("admin");
+		setupStreamingCapture();
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "content");
+
+		filter.run();
+		try (InputStream is = context.getResponseDataStream()) {
+			IOUtils.toByteArray(is);
+		}
+		HipaaResponseBodyCompletionZuulFilter completion = new HipaaResponseBodyCompletionZuulFilter(
+				FilterConstants.POST_TYPE);
+		assertThat(completion.shouldFilter()).as("nothing to complete once sent").isFalse();
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY)).isEqualTo("content");
+		Mockito.verify(publisher, Mockito.times(1)).publishEvent(ArgumentMatchers.any());
+	}
+
+	@Test
+	public void testBodyTruncatedAtMaxBytes() throws UnsupportedEncodingException {
+		setupMocks("admin");
+		ResponseCapture responseCapture = new ResponseCapture();
+		responseCapture.setMaxBytes(4);
+		when(applicationProperties.getResponseCapture()).thenReturn(responseCapture);
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "content");
+
+		filter.run();
+		Map<String, Object> data = event.getAuditEvent().getData();
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY)).isEqualTo("cont...[TRUNCATED]");
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_TRUNCATED)).isEqualTo(Boolean.TRUE);
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_LENGTH)).isEqualTo(7L);
+		assertThat(context.getResponseDataStream()).as("client receives the whole body")
+				.hasSameContentAs(new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testStreamingDigestOnlyRoute() throws IOException {
+		setupMocks("admin");
+		setupStreamingCapture();
+		Route route = new Route();
+		route.setUriPattern(".*/\\$everything$");
+		route.setBodyMode(BodyMode.DIGEST);
+		applicationProperties.getResponseCapture().getRoutes().add(route);
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient/1/$everything");
+		RequestContext context = createRequestContext(request, "0123456789");
+
+		filter.run();
+		IOUtils.toByteArray(context.getResponseDataStream());
+		Map<String, Object> data = event.getAuditEvent().getData();
+		assertThat(data).doesNotContainKey(HipaaResponseAuditZuulFilter.RESPONSE_BODY);
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_SHA256))
+				.isEqualTo("84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882");
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_LENGTH)).isEqualTo(10L);
+	}
+
+	@Test
+	public void testRedactsRecordedBody() throws IOException {
+		setupMocks("admin");
+		Redaction redaction = new Redaction();
+		redaction.setEnabled(true);
+		redaction.setFieldNames(Arrays.asList("birthDate"));
+		when(applicationProperties.getRedaction()).thenReturn(redaction);
+		String responseBody = "{\"birthDate\":\"1970-01-01\",\"text\":\"SSN 123-45-6789\"}";
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, responseBody);
+
+		filter.run();
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY))
+				.isEqualTo("{\"birthDate\":\"***\",\"text\":\"SSN ***-**-****\"}");
+		assertThat(IOUtils.toString(context.getResponseDataStream(), StandardCharsets.UTF_8))
+				.as("client receives the body unchanged").isEqualTo(responseBody);
+	}
+
+	@Test
+	public void testPooledBodySharedWithClient() throws IOException {
+		setupMocks("admin");
+		HipaaBufferPool bufferPool = new HipaaBufferPool(Long.MAX_VALUE);
+		filter.setBufferPool(bufferPool);
+		StringBuilder responseBody = new StringBuilder();
+		while (responseBody.length() < 10000) {
+			responseBody.append("{\"resourceType\":\"Patient\"}");
+		}
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, responseBody.toString());
+
+		filter.run();
+		assertThat(event.getAuditEvent().getData().get(HipaaResponseAuditZuulFilter.RESPONSE_BODY))
+				.isEqualTo(responseBody.toString());
+		assertThat(bufferPool.getPooledBytes()).as("slabs held by the client stream").isZero();
+		try (InputStream is = context.getResponseDataStream()) {
+			assertThat(IOUtils.toString(is, StandardCharsets.UTF_8)).as("client receives the body")
+					.isEqualTo(responseBody.toString());
+		}
+		assertThat(bufferPool.getPooledBytes()).as("slabs returned once the client stream is closed")
+				.isEqualTo((4 + 16) * 1024);
+	}
+
+	@Test
+	public void testAdaptiveDigestOverLatencyBudget() throws UnsupportedEncodingException {
+		setupMocks("admin");
+		HipaaAdaptiveFidelity adaptiveFidelity = adaptiveFidelity(1.5);
+		filter.setAdaptiveFidelity(adaptiveFidelity);
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		createRequestContext(request, "0123456789");
+
+		filter.run();
+		Map<String, Object> data = event.getAuditEvent().getData();
+		assertThat(data).doesNotContainKey(HipaaResponseAuditZuulFilter.RESPONSE_BODY);
+		assertThat(data.get(HipaaResponseAuditZuulFilter.RESPONSE_BODY_SHA256))
+				.isEqualTo("84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882");
+		assertThat(data.get(HipaaAuditRecord.AUDIT_FIDELITY)).isEqualTo(HipaaAuditFidelity.DIGEST);
+		assertThat(adaptiveFidelity.getCount(HipaaAuditFidelity.DIGEST)).isEqualTo(1);
+	}
+
+	@Test
+	public void testAdaptiveMetadataOnlyUnderHeavyLoad() throws UnsupportedEncodingException {
+		setupMocks("admin");
+		filter.setAdaptiveFidelity(adaptiveFidelity(10));
+
+		MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+		RequestContext context = createRequestContext(request, "content");
+		context.setResponseStatusCode(200);
+
+		filter.run();
+		Map<String, Object> data = event.getAuditEvent().getData();
+		assertThat(data).doesNotContainKeys(HipaaResponseAuditZuulFilter.RESPONSE_BODY,
+				HipaaResponseAuditZuulFilter.RESPONSE_BODY_SHA256);
+		assertThat(data.get(HipaaAuditRecord.AUDIT_FIDELITY)).isEqualTo(HipaaAuditFidelity.METADATA);
+		assertThat(data.get(HipaaAuditRecord.REQUEST_URI)).isEqualTo("/api/Patient");
+		assertThat(data.get(HipaaAuditRecord.RESPONSE_STATUS)).isEqualTo(200);
+		assertThat(context.getResponseDataStream()).as("response is left untouched")
+				.hasSameContentAs(new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Adaptive fidelity with a 1 ms budget, loaded to the given multiple of it.
+	 */
+	private static HipaaAdaptiveFidelity adaptiveFidelity(double load) {
+		Adaptive adaptive = new Adaptive();
+		adaptive.setLatencyBudget(1);
+		adaptive.setSampleRate(0);
+		HipaaAdaptiveFidelity adaptiveFidelity = new HipaaAdaptiveFidelity(adaptive, null);
+		for (int i = 0; i < 200; i++) {
+			adaptiveFidelity.recordNanos((long) (load * 1_000_000));
+		}
+		return adaptiveFidelity;
+	}
+
+	private void setupStreamingCapture() {
+		ResponseCapture responseCapture = new ResponseCapture();
+		responseCapture.setMode(CaptureMode.STREAMING);
+		when(applicationProperties.getResponseCapture()).thenReturn(responseCapture);
+	}
+
+	private static byte[] gzip(String content) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(content.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return compressed.toByteArray();
+	}
+
 	private RequestContext createRequestContext(HttpServletRequest request, String responseBody) throws UnsupportedEncodingException {		
 		RequestContext context = new RequestContext();
 		context.setRequest(request);
@@ -0,0 +1,344 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.load;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.cloud.netflix.zuul.EnableZuulProxy;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+
+/**
+ * End-to-end load harness of the audit filters in a Zuul gateway, started with
+ * the auto-configuration in front of a stub FHIR backend, all on the loopback
+ * interface. The same load is run with auditing off, request audit only and
+ * request and response audit, and the throughput and latency percentiles of each
+ * are logged.
+ * <p>
+ * Skipped unless {@code hipaa.audit.load} is set, e.g.
+ * <pre>
+ * mvn test -pl igia-hipaa-audit-autoconfig -am -Dtest=HipaaAuditLoadTest -DfailIfNoTests=false -Dhipaa.audit.load=true \
+ *     -Dhipaa.audit.load.bodySize=65536 -Dhipaa.audit.load.gzip=true
+ * </pre>
+ * Other {@code igia.hipaa.audit} settings, e.g. {@code -Digia.hipaa.audit.async.enabled=true},
+ * apply to the gateway as system properties.
+ */
+public class HipaaAuditLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(HipaaAuditLoadTest.class);
+
+    private static final String PROPERTY_PREFIX = "hipaa.audit.load.";
+
+    private static final String AUDITED_URIS = ".*/api/.*";
+
+    /**
+     * Audit configurations compared by the harness.
+     */
+    enum Mode {
+        OFF, REQUEST, REQUEST_RESPONSE
+    }
+
+    private final int threads = Integer.getInteger(PROPERTY_PREFIX + "threads", 8);
+
+    /**
+     * Each round runs all modes, only the last one is reported: the gateways share
+     * the JVM, so the first mode run would otherwise also warm up the code of the others.
+     */
+    private final int rounds = Integer.getInteger(PROPERTY_PREFIX + "rounds", 2);
+
+    private final int warmupRequests = Integer.getInteger(PROPERTY_PREFIX + "warmupRequests", 2000);
+
+    private final int requests = Integer.getInteger(PROPERTY_PREFIX + "requests", 20000);
+
+    private final int bodySize = Integer.getInteger(PROPERTY_PREFIX + "bodySize", 16 * 1024);
+
+    private final boolean gzip = Boolean.getBoolean(PROPERTY_PREFIX + "gzip");
+
+    private HttpServer backend;
+
+    private ExecutorService backendExecutor;
+
+    @Before
+    public void startBackend() throws IOException {
+        Assume.assumeTrue("load harness enabled with -Dhipaa.audit.load=true", Boolean.getBoolean("hipaa.audit.load"));
+        // without TCP_NODELAY the stub backend adds the delayed ACK time to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        byte[] body = fhirBundle(bodySize, gzip);
+        backendExecutor = Executors.newFixedThreadPool(threads * 2);
+        backend = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        backend.setExecutor(backendExecutor);
+        backend.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() >= 0) {
+                    // drain
+                }
+            }
+            exchange.getResponseHeaders().set(HttpHeaders.CONTENT_TYPE, "application/fhir+json;charset=UTF-8");
+            if (gzip) {
+                exchange.getResponseHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        backend.start();
+    }
+
+    @After
+    public void stopBackend() {
+        if (backend != null) {
+            backend.stop(0);
+            backendExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAuditOverhead() throws Exception {
+        log.info("Load of {} requests on {} threads, {} byte bodies{}", requests, threads, bodySize,
+            gzip ? " gzipped" : "");
+        List<String> report = new ArrayList<>();
+        for (int round = 1; round <= rounds; round++) {
+            report.clear();
+            for (Mode mode : Mode.values()) {
+                report.add(run(mode));
+            }
+        }
+        log.info("Audit overhead in a Zuul gateway:\n{}", String.join("\n", report));
+    }
+
+    private String run(Mode mode) throws Exception {
+        try (ConfigurableApplicationContext gateway = startGateway(mode);
+            CloseableHttpClient client = HttpClients.custom().disableContentCompression()
+                .setMaxConnTotal(threads).setMaxConnPerRoute(threads).build()) {
+            int port = ((ServletWebServerApplicationContext) gateway).getWebServer().getPort();
+            String uri = "http://127.0.0.1:" + port + "/api/Patient?_count=100";
+
+            load(client, uri, warmupRequests, new ConcurrentHistogram(3));
+            Histogram latencies = new ConcurrentHistogram(3);
+            long start = System.nanoTime();
+            int errors = load(client, uri, requests, latencies);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            assertThat(errors).as("failed requests with auditing %s", mode).isZero();
+            long events = gateway.getBean(AuditEventCounter.class).getCount();
+            if (mode == Mode.OFF) {
+                assertThat(events).as("audit events with auditing off").isZero();
+            } else {
+                assertThat(events).as("audit events with auditing %s", mode).isPositive();
+            }
+            return String.format(Locale.ROOT, "%-17s %9.0f req/s  p50 %8.3f ms  p99 %8.3f ms  p99.9 %8.3f ms",
+                mode, requests / seconds, millis(latencies, 50), millis(latencies, 99), millis(latencies, 99.9));
+        }
+    }
+
+    /**
+     * Send the requests from the harness threads, recording each latency.
+     *
+     * @return the number of requests which did not complete with status 200
+     */
+    private int load(CloseableHttpClient client, String uri, int count, Histogram latencies) throws Exception {
+        AtomicInteger remaining = new AtomicInteger(count);
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    while (remaining.getAndDecrement() > 0) {
+                        HttpGet get = new HttpGet(uri);
+                        if (gzip) {
+                            get.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+                        }
+                        long start = System.nanoTime();
+                        try (CloseableHttpResponse response = client.execute(get)) {
+                            EntityUtils.consume(response.getEntity());
+                            if (response.getStatusLine().getStatusCode() != 200) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies.recordValue(System.nanoTime() - start);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return errors.get();
+    }
+
+    private ConfigurableApplicationContext startGateway(Mode mode) {
+        List<String> properties = new ArrayList<>();
+        properties.add("server.address=127.0.0.1");
+        properties.add("server.port=0");
+        properties.add("spring.main.banner-mode=off");
+        properties.add("zuul.routes.fhir.path=/api/**");
+        properties.add("zuul.routes.fhir.url=http://127.0.0.1:" + backend.getAddress().getPort());
+        properties.add("zuul.host.max-total-connections=" + threads * 2);
+        properties.add("zuul.host.max-per-route-connections=" + threads * 2);
+        if (mode == Mode.OFF) {
+            // requests under /api are audited by default
+            properties.add("igia.hipaa.audit.hipaa-blacklist-uri-patterns=.*");
+        } else {
+            properties.add("igia.hipaa.audit.hipaa-whitelist-uri-patterns=" + AUDITED_URIS);
+        }
+        if (mode == Mode.REQUEST_RESPONSE) {
+            properties.add("igia.hipaa.audit.hipaa-response-whitelist-uri-patterns=" + AUDITED_URIS);
+        }
+        return new SpringApplicationBuilder(LoadTestGateway.class).web(WebApplicationType.SERVLET)
+            .properties(properties.toArray(new String[0])).run();
+    }
+
+    private static double millis(Histogram latencies, double percentile) {
+        return latencies.getValueAtPercentile(percentile) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * FHIR search set bundle of Patient entries of at least the given size.
+     */
+    static byte[] fhirBundle(int size, boolean gzip) throws IOException {
+        StringBuilder bundle = new StringBuilder(size + 256);
+        bundle.append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[");
+        for (int i = 0; bundle.length() < size; i++) {
+            if (i > 0) {
+                bundle.append(',');
+            }
+            bundle.append("{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"").append(i)
+                .append("\",\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],\"birthDate\":\"1970-01-01\"}}");
+        }
+        bundle.append("]}");
+        byte[] bytes = bundle.toString().getBytes(StandardCharsets.UTF_8);
+        if (!gzip) {
+            return bytes;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Minimal Zuul gateway with the audit auto-configuration.
+     */
+    @Configuration
+    @EnableAutoConfiguration
+    @EnableZuulProxy
+    static class LoadTestGateway {
+
+        /**
+         * Authenticate every request, as the security filter chain of a gateway would.
+         */
+        @Bean
+        public Filter loadTestAuthenticationFilter() {
+            return new Filter() {
+
+                @Override
+                public void init(javax.servlet.FilterConfig filterConfig) {
+                    // nothing to initialize
+                }
+
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                    throws IOException, ServletException {
+                    SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("load", null));
+                    try {
+                        chain.doFilter(request, response);
+                    } finally {
+                        SecurityContextHolder.clearContext();
+                    }
+                }
+
+                @Override
+                public void destroy() {
+                    // nothing to release
+                }
+            };
+        }
+
+        @Bean
+        public AuditEventCounter auditEventCounter() {
+            return new AuditEventCounter();
+        }
+    }
+
+    static class AuditEventCounter implements ApplicationListener<HipaaAuditApplicationEvent> {
+
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void onApplicationEvent(HipaaAuditApplicationEvent event) {
+            count.increment();
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+}
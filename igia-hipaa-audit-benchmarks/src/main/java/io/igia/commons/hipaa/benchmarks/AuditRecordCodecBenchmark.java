@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+import io.igia.commons.hipaa.HipaaAuditZuulFilter;
+
+/**
+ * Serialization of a response audit event by the binary record codec, compared
+ * with JSON serialization of the audit event as the journal did before.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuditRecordCodecBenchmark {
+
+    @Param({"0", "1024"})
+    public int bodySize;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private HipaaAuditRecord record;
+
+    private AuditEvent auditEvent;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder(bodySize);
+        while (body.length() < bodySize) {
+            body.append("{\"resourceType\":\"Patient\"}");
+        }
+        HipaaAuditRecord.Builder builder = HipaaAuditRecord
+            .builder("admin", HipaaAuditZuulFilter.AUDIT_APPLICATION_EVENT_TYPE)
+            .timestamp(Instant.now())
+            .remoteAddress("10.0.0.1")
+            .httpMethod("GET")
+            .requestUri("/api/patients/123")
+            .requestParam("name:[doe], birthdate:[1970-01-01]")
+            .message("Attempt to access API /api/patients/123");
+        if (bodySize > 0) {
+            builder.responseBody(body.substring(0, bodySize));
+        }
+        record = builder.build();
+        auditEvent = new AuditEvent(record.getTimestamp(), record.getPrincipal(), record.getType(),
+            new LinkedHashMap<>(record.toAuditEvent().getData()));
+        encoded = HipaaAuditRecordCodec.encode(record);
+    }
+
+    @Benchmark
+    public byte[] json() throws JsonProcessingException {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("timestamp", auditEvent.getTimestamp().toString());
+        json.put("principal", auditEvent.getPrincipal());
+        json.put("type", auditEvent.getType());
+        json.put("data", auditEvent.getData());
+        return objectMapper.writeValueAsBytes(json);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return HipaaAuditRecordCodec.encode(record);
+    }
+
+    @Benchmark
+    public HipaaAuditRecord decode() {
+        return HipaaAuditRecordCodec.decode(encoded);
+    }
+}
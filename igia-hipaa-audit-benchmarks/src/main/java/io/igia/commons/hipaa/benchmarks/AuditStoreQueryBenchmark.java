@@ -0,0 +1,121 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.store.HipaaAuditQuery;
+import io.igia.commons.hipaa.store.HipaaAuditStore;
+
+/**
+ * Queries of the audit store holding audit records of 60 days in hourly
+ * partitions: the accesses to one patient in the last 30 days, and the accesses
+ * of one principal in a day. Filling the store with 10 million records, e.g.
+ * {@code -p records=10000000}, takes a few minutes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditStoreQueryBenchmark {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final long DAYS = 60;
+
+    private static final int PATIENTS = 100000;
+
+    private static final int PRINCIPALS = 1000;
+
+    @Param({"1000000"})
+    public int records;
+
+    private Path directory;
+
+    private HipaaAuditStore store;
+
+    private Instant end;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("hipaa-audit-store");
+        store = new HipaaAuditStore(directory, HOUR);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Instant start = Instant.parse("2019-01-01T00:00:00Z");
+        long step = DAYS * 24 * HOUR / records;
+        for (int i = 0; i < records; i++) {
+            String uri = "/api/fhir/Patient/" + random.nextInt(PATIENTS);
+            String principal = "user" + random.nextInt(PRINCIPALS);
+            store.append(HipaaAuditRecord.builder(principal, HipaaAuditRecord.AUDIT_EVENT_TYPE)
+                .timestamp(start.plusMillis(i * step))
+                .remoteAddress("10.0." + random.nextInt(256) + "." + random.nextInt(256))
+                .httpMethod("GET")
+                .requestUri(uri)
+                .requestParam("")
+                .message("Attempt to access API " + uri)
+                .build());
+        }
+        end = start.plusMillis(DAYS * 24 * HOUR);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<HipaaAuditRecord> patientLastMonth() throws IOException {
+        return store.query(HipaaAuditQuery.builder()
+            .resource("Patient/" + ThreadLocalRandom.current().nextInt(PATIENTS))
+            .from(end.minusMillis(30 * 24 * HOUR))
+            .to(end)
+            .build());
+    }
+
+    @Benchmark
+    public List<HipaaAuditRecord> principalInDay() throws IOException {
+        Instant day = end.minusMillis((1 + ThreadLocalRandom.current().nextInt((int) DAYS - 1)) * 24 * HOUR);
+        return store.query(HipaaAuditQuery.builder()
+            .principal("user" + ThreadLocalRandom.current().nextInt(PRINCIPALS))
+            .from(day)
+            .to(day.plusMillis(24 * HOUR))
+            .build());
+    }
+}
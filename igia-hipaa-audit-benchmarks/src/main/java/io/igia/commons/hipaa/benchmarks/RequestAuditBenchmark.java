@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditZuulFilter;
+
+/**
+ * Cost of building the request audit event, for growing request parameter maps.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestAuditBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int parameterCount;
+
+    private HipaaAuditZuulFilter filter;
+
+    private Object lastEvent;
+
+    @Setup
+    public void setup() {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("admin", null));
+
+        MockHttpServletRequest request = new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient");
+        for (int i = 0; i < parameterCount; i++) {
+            request.addParameter("parameter" + i, "value" + i);
+        }
+        request.addParameter("cacheBuster", "1546300800000");
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        RequestContext.testSetCurrentContext(context);
+
+        filter = new HipaaAuditZuulFilter(event -> lastEvent = event, new HipaaAuditProperties());
+        filter.afterPropertiesSet();
+    }
+
+    @Benchmark
+    public Object run() {
+        filter.run();
+        return lastEvent;
+    }
+}
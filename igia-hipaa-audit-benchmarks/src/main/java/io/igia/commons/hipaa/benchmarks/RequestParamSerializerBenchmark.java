@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.commons.hipaa.HipaaRequestParamSerializer;
+
+/**
+ * Request parameter serialization of the request audit event, compared with the
+ * former stream based implementation. Run with the GC profiler to compare the
+ * bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParamSerializerBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int parameterCount;
+
+    private Map<String, String[]> parameters;
+
+    private HipaaRequestParamSerializer serializer;
+
+    @Setup
+    public void setup() {
+        parameters = new LinkedHashMap<>();
+        for (int i = 0; i < parameterCount; i++) {
+            parameters.put("parameter" + i, i % 3 == 0 ? new String[] {"value" + i, "other" + i}
+                : new String[] {"value" + i});
+        }
+        parameters.put("cacheBuster", new String[] {"1546300800000"});
+        serializer = new HipaaRequestParamSerializer(Collections.emptyList(), Collections.emptyList());
+    }
+
+    @Benchmark
+    public String streams() {
+        return parameters.entrySet()
+            .stream()
+            .filter(s -> !"cacheBuster".equals(s.getKey()))
+            .map(s -> s.getKey() + ":" + Arrays.toString(s.getValue()))
+            .collect(Collectors.joining(", "));
+    }
+
+    @Benchmark
+    public String serializer() {
+        return serializer.serialize(parameters);
+    }
+}
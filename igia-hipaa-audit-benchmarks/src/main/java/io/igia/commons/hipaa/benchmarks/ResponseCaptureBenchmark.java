@@ -0,0 +1,131 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditProperties.CaptureMode;
+import io.igia.commons.hipaa.HipaaResponseAuditZuulFilter;
+
+/**
+ * Cost of capturing a response body for the audit event, including forwarding
+ * the body the way SendResponseFilter does, for plain and gzipped bodies of 1 KB
+ * to 10 MB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class ResponseCaptureBenchmark {
+
+    private static final String ENTRY = "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"%d\","
+        + "\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],\"birthDate\":\"1970-01-01\"}},";
+
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int bodySize;
+
+    @Param({"false", "true"})
+    public boolean gzipped;
+
+    @Param({"BUFFERED", "STREAMING"})
+    public CaptureMode captureMode;
+
+    private HipaaResponseAuditZuulFilter filter;
+
+    private RequestContext context;
+
+    private byte[] payload;
+
+    private final byte[] buffer = new byte[8192];
+
+    private Object lastEvent;
+
+    @Setup
+    public void setup() throws IOException {
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("admin", null));
+
+        byte[] body = bundle(bodySize);
+        payload = gzipped ? gzip(body) : body;
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        context = new RequestContext();
+        context.setRequest(new MockHttpServletRequest(HttpMethod.GET.name(), "/api/Patient"));
+        context.setResponse(response);
+        context.setResponseGZipped(gzipped);
+        RequestContext.testSetCurrentContext(context);
+
+        HipaaAuditProperties properties = new HipaaAuditProperties();
+        properties.getHipaaResponseWhitelistUriPatterns().add(".*/api/.*");
+        properties.getResponseCapture().setMode(captureMode);
+        filter = new HipaaResponseAuditZuulFilter(event -> lastEvent = event, properties);
+        filter.afterPropertiesSet();
+    }
+
+    @Benchmark
+    public Object capture() throws IOException {
+        context.setResponseDataStream(new ByteArrayInputStream(payload));
+        filter.run();
+        try (InputStream forwarded = context.getResponseDataStream()) {
+            while (forwarded.read(buffer) >= 0) {
+                // written to the client by SendResponseFilter
+            }
+        }
+        return lastEvent;
+    }
+
+    private static byte[] bundle(int size) {
+        StringBuilder bundle = new StringBuilder(size + 256).append("{\"resourceType\":\"Bundle\",\"entry\":[");
+        for (int i = 0; bundle.length() < size - 2; i++) {
+            bundle.append(String.format(ENTRY, i));
+        }
+        bundle.setLength(size - 2);
+        return bundle.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        return compressed.toByteArray();
+    }
+}
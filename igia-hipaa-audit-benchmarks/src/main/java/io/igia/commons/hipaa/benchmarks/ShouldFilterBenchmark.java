@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.netflix.zuul.context.RequestContext;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditZuulFilter;
+import io.igia.commons.hipaa.HipaaResponseAuditZuulFilter;
+
+/**
+ * Cost of deciding whether a request is audited, for growing white and black lists.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShouldFilterBenchmark {
+
+    /**
+     * Number of white and black list patterns besides the default {@code .*}{@code /api/.*}.
+     */
+    @Param({"1", "10", "100"})
+    public int patternCount;
+
+    @Param({"/api/v1/Patient/123", "/gateway/routes", "/content/main.js"})
+    public String requestUri;
+
+    private HipaaAuditZuulFilter requestFilter;
+
+    private HipaaResponseAuditZuulFilter responseFilter;
+
+    @Setup
+    public void setup() {
+        HipaaAuditProperties properties = new HipaaAuditProperties();
+        for (int i = 0; i < patternCount; i++) {
+            properties.getHipaaWhitelistUriPatterns().add(".*/fhir/v" + i + "/Resource" + i + "/.*");
+            properties.getHipaaBlacklistUriPatterns().add(".*/internal" + i + "/.*");
+            properties.getHipaaResponseWhitelistUriPatterns().add(".*/fhir/v" + i + "/Resource" + i + "\\?.*");
+            properties.getHipaaResponseBlacklistUriPatterns().add(".*/internal" + i + "/.*\\.json$");
+        }
+        properties.getHipaaBlacklistUriPatterns().add(".*/gateway/.*");
+        properties.getHipaaResponseWhitelistUriPatterns().add(".*/api/.*");
+
+        RequestContext context = new RequestContext();
+        context.setRequest(new MockHttpServletRequest(HttpMethod.GET.name(), requestUri));
+        RequestContext.testSetCurrentContext(context);
+
+        requestFilter = new HipaaAuditZuulFilter(event -> { }, properties);
+        requestFilter.afterPropertiesSet();
+        responseFilter = new HipaaResponseAuditZuulFilter(event -> { }, properties);
+        responseFilter.afterPropertiesSet();
+    }
+
+    @Benchmark
+    public boolean requestFilter() {
+        return requestFilter.shouldFilter();
+    }
+
+    @Benchmark
+    public boolean responseFilter() {
+        return responseFilter.shouldFilter();
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Adaptive;
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Chooses the {@link HipaaAuditFidelity} of each response audit from the current
+ * load, see {@link Adaptive}.
+ * <p>
+ * The load is the larger of the average response audit time relative to the
+ * latency budget and the async queue fill relative to its threshold. The average
+ * is exponentially weighted and updated without synchronization: a racing update
+ * may be lost, which only delays adaptation by a sample. Degraded audits are
+ * cheap, so the average falls back under the budget once the load passes.
+ */
+public class HipaaAdaptiveFidelity implements MeterBinder {
+
+    /**
+     * Weight of a new sample in the average audit time.
+     */
+    private static final double SMOOTHING = 0.1;
+
+    private final double budgetNanos;
+
+    private final double sampleRate;
+
+    private final DoubleSupplier queueLoad;
+
+    private final LongAdder[] counts = new LongAdder[HipaaAuditFidelity.values().length];
+
+    private volatile double averageNanos;
+
+    /**
+     * @param properties adaptive fidelity properties
+     * @param asyncPublisher publisher whose queue depth is taken into account, or null
+     */
+    public HipaaAdaptiveFidelity(Adaptive properties, HipaaAsyncAuditEventPublisher asyncPublisher) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(properties.getLatencyBudget());
+        this.sampleRate = properties.getSampleRate();
+        double threshold = properties.getQueueThreshold();
+        if (asyncPublisher != null && threshold > 0) {
+            this.queueLoad = () -> asyncPublisher.getQueueDepth() / (threshold * asyncPublisher.getQueueCapacity());
+        } else {
+            this.queueLoad = () -> 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Fidelity to audit the next response at.
+     *
+     * @return the fidelity of the next response
+     */
+    public HipaaAuditFidelity next() {
+        double load = getLoad();
+        HipaaAuditFidelity fidelity;
+        if (load < 1) {
+            fidelity = HipaaAuditFidelity.FULL;
+        } else if (load < 2) {
+            fidelity = HipaaAuditFidelity.DIGEST;
+        } else {
+            fidelity = ThreadLocalRandom.current().nextDouble() < sampleRate ? HipaaAuditFidelity.DIGEST
+                : HipaaAuditFidelity.METADATA;
+        }
+        counts[fidelity.ordinal()].increment();
+        return fidelity;
+    }
+
+    /**
+     * Capture for the body at the given fidelity: the capture itself, or a digest
+     * capture when a full body capture is degraded to {@link HipaaAuditFidelity#DIGEST}.
+     *
+     * @param capture capture configured for the response
+     * @param fidelity fidelity of the response
+     * @return the capture to use
+     */
+    public static HipaaBodyCapture degrade(HipaaBodyCapture capture, HipaaAuditFidelity fidelity) {
+        if (fidelity == HipaaAuditFidelity.DIGEST && capture.getBodyMode() == BodyMode.FULL) {
+            return new HipaaBodyCapture(BodyMode.DIGEST, -1);
+        }
+        return capture;
+    }
+
+    /**
+     * Record the time spent auditing a response.
+     *
+     * @param nanos time spent in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        double average = averageNanos;
+        averageNanos = average + (Math.max(0, nanos) - average) * SMOOTHING;
+    }
+
+    /**
+     * Current load, 1 at the latency budget or queue threshold.
+     *
+     * @return the current load
+     */
+    public double getLoad() {
+        double latencyLoad = budgetNanos > 0 ? averageNanos / budgetNanos : 0;
+        return Math.max(latencyLoad, queueLoad.getAsDouble());
+    }
+
+    public double getAverageNanos() {
+        return averageNanos;
+    }
+
+    public long getCount(HipaaAuditFidelity fidelity) {
+        return counts[fidelity.ordinal()].sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (HipaaAuditFidelity fidelity : HipaaAuditFidelity.values()) {
+            FunctionCounter.builder("hipaa.audit.response.fidelity", this, adaptive -> adaptive.getCount(fidelity))
+                .tag("fidelity", fidelity.name().toLowerCase(Locale.ROOT)).description("Responses audited at the fidelity")
+                .register(registry);
+        }
+        Gauge.builder("hipaa.audit.response.load", this, HipaaAdaptiveFidelity::getLoad)
+            .description("Load of the response audit relative to its budget").register(registry);
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Async;
+import io.igia.commons.hipaa.HipaaAuditProperties.OverflowPolicy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * ApplicationEventPublisher that hands audit events to background consumer
+ * threads through a bounded lock-free ring buffer, so that slow audit listeners
+ * do not add to the latency of proxied requests.
+ * <p>
+ * Consumers drain up to {@code batch-size} events from the queue at once and
+ * deliver them to the delegate publisher one by one, in queue order per
+ * consumer. When the queue is full the configured {@link OverflowPolicy}
+ * applies; events without bodies are then queued again, or in a small overflow
+ * queue the consumers also drain, and never delivered on the publishing thread.
+ * After {@link #destroy()} events are published synchronously.
+ */
+public class HipaaAsyncAuditEventPublisher implements ApplicationEventPublisher, MeterBinder, DisposableBean {
+
+    static final String BODY_DROPPED = HipaaAuditRecord.BODY_DROPPED;
+
+    private static final String[] BODY_KEYS = {HipaaAuditRecord.RESPONSE_BODY};
+
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAsyncAuditEventPublisher.class);
+
+    private final ApplicationEventPublisher delegate;
+
+    private final HipaaAuditRingBuffer<QueuedEvent> queue;
+
+    private final HipaaAuditRingBuffer<QueuedEvent> overflow;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int batchSize;
+
+    private final long shutdownTimeout;
+
+    private final Thread[] consumers;
+
+    private final LongAdder published = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder bodiesDropped = new LongAdder();
+
+    private volatile boolean running = true;
+
+    private volatile Timer latency;
+
+    public HipaaAsyncAuditEventPublisher(ApplicationEventPublisher delegate, Async properties) {
+        this.delegate = delegate;
+        this.queue = new HipaaAuditRingBuffer<>(properties.getQueueCapacity());
+        this.overflowPolicy = properties.getOverflowPolicy();
+        this.overflow = overflowPolicy == OverflowPolicy.DROP_BODY_KEEP_METADATA
+            ? new HipaaAuditRingBuffer<>(properties.getOverflowCapacity()) : null;
+        this.batchSize = Math.max(1, properties.getBatchSize());
+        this.shutdownTimeout = properties.getShutdownTimeout();
+        this.consumers = new Thread[Math.max(1, properties.getConsumerThreads())];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Thread(this::consume, "hipaa-audit-publisher-" + i);
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+    }
+
+    @Override
+    public void publishEvent(ApplicationEvent event) {
+        publishEvent((Object) event);
+    }
+
+    @Override
+    public void publishEvent(Object event) {
+        if (!running) {
+            deliver(event);
+            return;
+        }
+        QueuedEvent queued = new QueuedEvent(event, System.nanoTime());
+        if (queue.offer(queued)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                long idle = 1000;
+                while (!queue.offer(queued)) {
+                    if (!running) {
+                        deliver(event);
+                        return;
+                    }
+                    LockSupport.parkNanos(idle);
+                    idle = Math.min(idle << 1, MAX_IDLE_NANOS);
+                }
+                break;
+            case DROP_BODY_KEEP_METADATA:
+                QueuedEvent metadata = new QueuedEvent(withoutBody(event), queued.enqueued);
+                if (queue.offer(metadata) || overflow.offer(metadata)) {
+                    bodiesDropped.increment();
+                } else {
+                    dropped.increment();
+                    log.warn("Hipaa audit queues are full, dropping audit event");
+                }
+                break;
+            default:
+                dropped.increment();
+                log.warn("Hipaa audit queue is full, dropping audit event");
+                break;
+        }
+    }
+
+    /**
+     * Copy of an audit event without captured bodies, marked with {@value #BODY_DROPPED}.
+     */
+    static Object withoutBody(Object event) {
+        if (event instanceof HipaaAuditApplicationEvent) {
+            HipaaAuditRecord auditRecord = ((HipaaAuditApplicationEvent) event).getRecord();
+            HipaaAuditRecord withoutBody = auditRecord.withoutBody();
+            return withoutBody != auditRecord ? new HipaaAuditApplicationEvent(withoutBody) : event;
+        }
+        if (!(event instanceof AuditApplicationEvent)) {
+            return event;
+        }
+        AuditEvent auditEvent = ((AuditApplicationEvent) event).getAuditEvent();
+        Map<String, Object> data = new HashMap<>(auditEvent.getData());
+        boolean removed = false;
+        for (String key : BODY_KEYS) {
+            removed |= data.remove(key) != null;
+        }
+        if (!removed) {
+            return event;
+        }
+        data.put(BODY_DROPPED, Boolean.TRUE);
+        return new AuditApplicationEvent(new AuditEvent(auditEvent.getTimestamp(), auditEvent.getPrincipal(),
+            auditEvent.getType(), data));
+    }
+
+    private void consume() {
+        QueuedEvent[] batch = new QueuedEvent[batchSize];
+        long idle = 0;
+        while (running || !isEmpty()) {
+            int count = deliver(queue, batch) + (overflow != null ? deliver(overflow, batch) : 0);
+            if (count == 0) {
+                idle = idle == 0 ? 1000 : Math.min(idle << 1, MAX_IDLE_NANOS);
+                LockSupport.parkNanos(idle);
+            } else {
+                idle = 0;
+            }
+        }
+    }
+
+    private int deliver(HipaaAuditRingBuffer<QueuedEvent> source, QueuedEvent[] batch) {
+        int count = source.drainTo(batch, batchSize);
+        for (int i = 0; i < count; i++) {
+            deliver(batch[i].event);
+            Timer timer = this.latency;
+            if (timer != null) {
+                timer.record(System.nanoTime() - batch[i].enqueued, TimeUnit.NANOSECONDS);
+            }
+            batch[i] = null;
+        }
+        return count;
+    }
+
+    private boolean isEmpty() {
+        return queue.isEmpty() && (overflow == null || overflow.isEmpty());
+    }
+
+    private void deliver(Object event) {
+        try {
+            delegate.publishEvent(event);
+            published.increment();
+        } catch (RuntimeException e) {
+            log.error("Error publishing Hipaa audit event", e);
+        }
+    }
+
+    /**
+     * Stop the consumers after the queued events have been delivered.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+        for (Thread consumer : consumers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0) {
+                consumer.join(remaining);
+            }
+        }
+        // events enqueued while the consumers were stopping
+        QueuedEvent queued;
+        while (System.nanoTime() < deadline && (queued = poll()) != null) {
+            deliver(queued.event);
+        }
+        if (!isEmpty()) {
+            log.warn("{} Hipaa audit events were not published before shutdown",
+                queue.size() + getOverflowDepth());
+        }
+    }
+
+    private QueuedEvent poll() {
+        QueuedEvent queued = queue.poll();
+        return queued != null || overflow == null ? queued : overflow.poll();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Number of events without bodies waiting in the overflow queue.
+     *
+     * @return the depth of the overflow queue, 0 without one
+     */
+    public int getOverflowDepth() {
+        return overflow != null ? overflow.size() : 0;
+    }
+
+    public int getQueueCapacity() {
+        return queue.capacity();
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getBodyDroppedCount() {
+        return bodiesDropped.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("hipaa.audit.async.queue.depth", this, HipaaAsyncAuditEventPublisher::getQueueDepth)
+            .description("Audit events waiting to be published").register(registry);
+        Gauge.builder("hipaa.audit.async.queue.capacity", this, HipaaAsyncAuditEventPublisher::getQueueCapacity)
+            .description("Capacity of the audit event queue").register(registry);
+        Gauge.builder("hipaa.audit.async.overflow.depth", this, HipaaAsyncAuditEventPublisher::getOverflowDepth)
+            .description("Audit events without bodies waiting in the overflow queue").register(registry);
+        FunctionCounter.builder("hipaa.audit.async.published", this, HipaaAsyncAuditEventPublisher::getPublishedCount)
+            .description("Audit events delivered to the listeners").register(registry);
+        FunctionCounter.builder("hipaa.audit.async.dropped", this, HipaaAsyncAuditEventPublisher::getDroppedCount)
+            .description("Audit events discarded because the queues were full").register(registry);
+        FunctionCounter.builder("hipaa.audit.async.bodies.dropped", this,
+            HipaaAsyncAuditEventPublisher::getBodyDroppedCount)
+            .description("Audit events queued without bodies because the queue was full").register(registry);
+        this.latency = Timer.builder("hipaa.audit.async.latency")
+            .description("Time from enqueueing an audit event until the listeners returned")
+            .publishPercentiles(0.5, 0.99, 0.999).register(registry);
+    }
+
+    private static final class QueuedEvent {
+        private final Object event;
+        private final long enqueued;
+
+        QueuedEvent(Object event, long enqueued) {
+            this.event = event;
+            this.enqueued = enqueued;
+        }
+    }
+}
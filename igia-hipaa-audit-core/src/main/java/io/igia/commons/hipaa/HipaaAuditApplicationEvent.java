@@ -0,0 +1,51 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+
+/**
+ * Audit application event of a {@link HipaaAuditRecord}.
+ * <p>
+ * Listeners of {@link AuditApplicationEvent} see the usual audit event, whose data
+ * is a view of the record. Listeners aware of this type read the typed record.
+ */
+public class HipaaAuditApplicationEvent extends AuditApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient HipaaAuditRecord record;
+
+    public HipaaAuditApplicationEvent(HipaaAuditRecord record) {
+        super(record.toAuditEvent());
+        this.record = record;
+    }
+
+    public HipaaAuditRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * The record of an audit application event, converted from the audit event
+     * data unless the event is a {@link HipaaAuditApplicationEvent}.
+     *
+     * @param event audit application event
+     * @return the record of the event
+     */
+    public static HipaaAuditRecord recordOf(AuditApplicationEvent event) {
+        if (event instanceof HipaaAuditApplicationEvent) {
+            return ((HipaaAuditApplicationEvent) event).getRecord();
+        }
+        return HipaaAuditRecord.fromAuditEvent(event.getAuditEvent());
+    }
+}
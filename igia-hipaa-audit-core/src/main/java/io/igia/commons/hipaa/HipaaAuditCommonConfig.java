@@ -0,0 +1,97 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import io.igia.commons.hipaa.analytics.HipaaAccessAnalyticsConfig;
+import io.igia.commons.hipaa.journal.HipaaAuditJournalConfig;
+import io.igia.commons.hipaa.sink.HipaaAuditSinkConfig;
+import io.igia.commons.hipaa.store.HipaaAuditStoreConfig;
+
+/**
+ * Hipaa audit configuration shared by the gateway audit configurations: the
+ * properties, the publishers the audit events go through, the components of
+ * the audit filters, and the journal, store, sinks and analytics of the events.
+ */
+@Configuration
+@Import({HipaaAuditProperties.class, HipaaAuditJournalConfig.class, HipaaAuditStoreConfig.class,
+    HipaaAuditSinkConfig.class, HipaaAccessAnalyticsConfig.class})
+public class HipaaAuditCommonConfig {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditCommonConfig.class);
+
+    @Bean
+    @ConditionalOnProperty(prefix = "igia.hipaa.audit.async", name = "enabled", havingValue = "true")
+    public HipaaAsyncAuditEventPublisher hipaaAsyncAuditEventPublisher(ApplicationEventPublisher publisher,
+        HipaaAuditProperties applicationProperties) {
+        log.info("Configuring Hipaa asynchronous audit event publisher with {} consumer thread(s)",
+            applicationProperties.getAsync().getConsumerThreads());
+        return new HipaaAsyncAuditEventPublisher(publisher, applicationProperties.getAsync());
+    }
+
+    /**
+     * Coalescing publisher, unless request correlation gives every request its own
+     * request id, so that no audit events would be coalesced.
+     *
+     * @param publisher application context publisher
+     * @param applicationProperties audit properties
+     * @param asyncPublisher asynchronous publisher, when enabled
+     * @return the coalescing publisher
+     */
+    @Bean
+    @ConditionalOnExpression("${igia.hipaa.audit.coalescing.enabled:false}"
+        + " && !${igia.hipaa.audit.correlation.enabled:false}")
+    public HipaaCoalescingAuditEventPublisher hipaaCoalescingAuditEventPublisher(ApplicationEventPublisher publisher,
+        HipaaAuditProperties applicationProperties, ObjectProvider<HipaaAsyncAuditEventPublisher> asyncPublisher) {
+        log.info("Configuring Hipaa audit event coalescing over a window of {} ms",
+            applicationProperties.getCoalescing().getWindow());
+        ApplicationEventPublisher async = asyncPublisher.getIfAvailable();
+        return new HipaaCoalescingAuditEventPublisher(async != null ? async : publisher,
+            applicationProperties.getCoalescing());
+    }
+
+    /**
+     * Components of the audit filters, publishing through the coalescing publisher,
+     * else the asynchronous publisher, else the application context.
+     *
+     * @param publisher application context publisher
+     * @param applicationProperties audit properties
+     * @param asyncPublisher asynchronous publisher, when enabled
+     * @param coalescingPublisher coalescing publisher, when enabled
+     * @return the components of the audit filters
+     */
+    @Bean
+    public HipaaAuditFilterComponents hipaaAuditFilterComponents(ApplicationEventPublisher publisher,
+        HipaaAuditProperties applicationProperties, ObjectProvider<HipaaAsyncAuditEventPublisher> asyncPublisher,
+        ObjectProvider<HipaaCoalescingAuditEventPublisher> coalescingPublisher) {
+        if (applicationProperties.getCoalescing().isEnabled() && applicationProperties.getCorrelation().isEnabled()) {
+            log.warn("Hipaa audit event coalescing is not configured, as request correlation gives every request"
+                + " its own request id");
+        }
+        ApplicationEventPublisher eventPublisher = coalescingPublisher.getIfAvailable();
+        if (eventPublisher == null) {
+            eventPublisher = asyncPublisher.getIfAvailable();
+        }
+        return new HipaaAuditFilterComponents(eventPublisher != null ? eventPublisher : publisher,
+            applicationProperties, asyncPublisher.getIfAvailable());
+    }
+}
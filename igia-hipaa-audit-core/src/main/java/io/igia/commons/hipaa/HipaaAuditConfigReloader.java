@@ -0,0 +1,139 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.Environment;
+
+/**
+ * Reloads the audit configuration when {@code igia.hipaa.audit} properties change,
+ * e.g. on {@code /actuator/refresh}.
+ * <p>
+ * The properties are bound into a new {@link HipaaAuditProperties} instead of
+ * the shared bean, compiled into a {@link HipaaAuditSnapshot} and checked by
+ * the validators on the thread of the refresh, and only then swapped into the
+ * snapshot reference all filters read, at once. The listeners are notified
+ * after the swap. An invalid configuration is logged and the current one is
+ * kept.
+ */
+public class HipaaAuditConfigReloader implements ApplicationListener<EnvironmentChangeEvent> {
+
+    public static final String PREFIX = "igia.hipaa.audit";
+
+    /**
+     * Prefix of the properties when set as environment variables.
+     */
+    private static final String ENV_PREFIX = "IGIA_HIPAA_AUDIT";
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditConfigReloader.class);
+
+    private final Environment environment;
+
+    private final AtomicReference<HipaaAuditSnapshot> snapshot;
+
+    private final List<Consumer<HipaaAuditProperties>> validators = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<HipaaAuditSnapshot>> listeners = new CopyOnWriteArrayList<>();
+
+    public HipaaAuditConfigReloader(Environment environment) {
+        this(environment, new AtomicReference<>());
+    }
+
+    /**
+     * @param environment environment the properties are bound from
+     * @param snapshot reference to the configuration the filters read
+     */
+    public HipaaAuditConfigReloader(Environment environment, AtomicReference<HipaaAuditSnapshot> snapshot) {
+        this.environment = environment;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Register a check of the reloaded properties, rejecting them by throwing
+     * a {@link RuntimeException}.
+     *
+     * @param validator check of the reloaded properties
+     */
+    public void addValidator(Consumer<HipaaAuditProperties> validator) {
+        validators.add(validator);
+    }
+
+    /**
+     * Register a consumer of the reloaded configurations, notified once the
+     * configuration is swapped in.
+     *
+     * @param listener consumer of the reloaded configurations
+     */
+    public void addListener(Consumer<HipaaAuditSnapshot> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onApplicationEvent(EnvironmentChangeEvent event) {
+        if (event.getKeys().stream().anyMatch(HipaaAuditConfigReloader::isAuditProperty)) {
+            reload();
+        }
+    }
+
+    /**
+     * Bind, compile and validate the current audit properties, swap them in and
+     * pass them to the listeners.
+     *
+     * @return the new configuration, or null when it is invalid
+     */
+    public HipaaAuditSnapshot reload() {
+        HipaaAuditSnapshot reloaded;
+        try {
+            HipaaAuditProperties properties = Binder.get(environment)
+                .bind(PREFIX, Bindable.ofInstance(new HipaaAuditProperties()))
+                .orElseGet(HipaaAuditProperties::new);
+            reloaded = HipaaAuditSnapshot.compile(properties);
+            for (Consumer<HipaaAuditProperties> validator : validators) {
+                validator.accept(properties);
+            }
+        } catch (RuntimeException e) {
+            log.error("Invalid Hipaa audit configuration, keeping the current configuration", e);
+            return null;
+        }
+        snapshot.set(reloaded);
+        for (Consumer<HipaaAuditSnapshot> listener : listeners) {
+            listener.accept(reloaded);
+        }
+        log.info("Reloaded Hipaa audit configuration");
+        return reloaded;
+    }
+
+    /**
+     * Reference to the configuration the filters read.
+     *
+     * @return the reference swapped on reload
+     */
+    public AtomicReference<HipaaAuditSnapshot> getSnapshot() {
+        return snapshot;
+    }
+
+    private static boolean isAuditProperty(String key) {
+        return key.toLowerCase(Locale.ROOT).startsWith(PREFIX) || key.startsWith(ENV_PREFIX);
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.util.StringUtils;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.DecisionCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Size bounded cache of audit decisions keyed by normalized request URI,
+ * evicted by Caffeine's Window TinyLFU policy without a global lock.
+ * <p>
+ * Resource IDs in path segments are replaced by {@value #ID_PLACEHOLDER} and
+ * query parameter values are removed, so that requests differing only by IDs
+ * and search values share one entry. On a miss the decision is evaluated
+ * against the original URI, and cached for all URIs of its key, so the audit
+ * URI patterns must not depend on IDs or query values, see {@link #validate}.
+ * <p>
+ * Each decision is stored with the matcher it was evaluated by and only served
+ * to requests matched by that same matcher, so a decision of a configuration
+ * which has since been reloaded is never served, even when it is stored after
+ * the cache was invalidated.
+ */
+public class HipaaAuditDecisionCache {
+
+    static final String ID_PLACEHOLDER = "{id}";
+
+    /**
+     * Digit classes of a pattern, standing for an ID in the URI it describes.
+     */
+    private static final Pattern DIGITS = Pattern.compile("\\\\d[+*]?|\\[0-9\\][+*]?");
+
+    /**
+     * Escaped characters of a pattern, standing for themselves.
+     */
+    private static final Pattern ESCAPE = Pattern.compile("\\\\([^\\p{Alnum}])");
+
+    /**
+     * Path segment of a pattern matching a whole segment of any content, and so
+     * an ID and its placeholder alike, optionally within a group.
+     */
+    private static final Pattern WILDCARD_SEGMENT =
+        Pattern.compile("(?:\\((?:\\?:)?)*(?:\\.|\\[\\^/\\])[*+][?+]?(?:\\)[?*]?)*");
+
+    /**
+     * Path segment of a pattern without wildcards, classes or quantifiers,
+     * standing for itself and checked against its normalization as such.
+     */
+    private static final Pattern LITERAL_SEGMENT =
+        Pattern.compile("(?:[^\\\\.\\[\\]*+?{}^$]|\\\\[^\\p{Alnum}]|\\(\\?:)*");
+
+    private final Map<String, Decision> decisions;
+
+    private final boolean normalizeIdSegments;
+
+    private final Pattern idSegmentPattern;
+
+    private final boolean normalizeQueryValues;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public HipaaAuditDecisionCache(DecisionCache properties) {
+        // eviction is cheap without a removal listener, run it on the calling thread
+        this.decisions = Caffeine.newBuilder().maximumSize(properties.getMaximumSize()).executor(Runnable::run)
+            .<String, Decision>build().asMap();
+        this.normalizeIdSegments = properties.isNormalizeIdSegments();
+        this.idSegmentPattern = StringUtils.hasText(properties.getIdSegmentPattern())
+            ? Pattern.compile(properties.getIdSegmentPattern()) : null;
+        this.normalizeQueryValues = properties.isNormalizeQueryValues();
+    }
+
+    /**
+     * Return the decision for the URI cached by the matcher, evaluating and
+     * caching it on a miss.
+     *
+     * @param uri request URI
+     * @param matcher matcher of the current audit configuration
+     * @return true when the URI should be audited
+     */
+    public boolean shouldAudit(String uri, HipaaAuditUriMatcher matcher) {
+        String key = normalize(uri);
+        Decision cached = decisions.get(key);
+        if (cached != null && cached.matcher == matcher) {
+            hits.increment();
+            return cached.audit;
+        }
+        misses.increment();
+        boolean audit = matcher.shouldAudit(uri);
+        decisions.put(key, new Decision(matcher, audit));
+        return audit;
+    }
+
+    /**
+     * Check the request and response URI patterns of the properties, see
+     * {@link #validate(Collection)}.
+     *
+     * @param properties audit properties holding the URI patterns
+     */
+    public void validate(HipaaAuditProperties properties) {
+        List<String> patterns = new ArrayList<>(properties.getHipaaWhitelistUriPatterns());
+        patterns.addAll(properties.getHipaaBlacklistUriPatterns());
+        patterns.addAll(properties.getHipaaResponseWhitelistUriPatterns());
+        patterns.addAll(properties.getHipaaResponseBlacklistUriPatterns());
+        validate(patterns);
+    }
+
+    /**
+     * Check that the URI patterns decide the URIs of a cache key alike, i.e. that
+     * each pattern decides the URI it describes, with its digit classes standing
+     * for IDs, the same as the normalized URI. When ID segments are normalized,
+     * each path segment of a pattern must moreover be a literal or a wildcard over
+     * the whole segment, since a segment such as {@code 123.*}, {@code [0-9a-f]{8}}
+     * or {@code a.*} matches some IDs but not their placeholder. Nothing is
+     * checked when nothing is normalized.
+     *
+     * @param patterns the whitelist and blacklist URI patterns
+     * @throws IllegalStateException naming the patterns which depend on IDs or
+     *         query values
+     */
+    public void validate(Collection<String> patterns) {
+        if (!normalizeIdSegments && !normalizeQueryValues) {
+            return;
+        }
+        List<String> valueDependent = new ArrayList<>();
+        for (String regex : patterns) {
+            Pattern pattern = Pattern.compile(regex);
+            String uri = describedUri(regex);
+            if ((normalizeIdSegments && dependsOnIdSegments(regex))
+                || pattern.matcher(uri).matches() != pattern.matcher(normalize(uri)).matches()) {
+                valueDependent.add(regex);
+            }
+        }
+        if (!valueDependent.isEmpty()) {
+            throw new IllegalStateException("Hipaa audit URI patterns " + valueDependent + " depend on IDs or query"
+                + " values normalized by the decision cache; match each path segment by a literal or by a"
+                + " wildcard such as .* or [^/]+, or disable normalize-id-segments and normalize-query-values or"
+                + " the decision cache");
+        }
+    }
+
+    /**
+     * URI described by a pattern: its anchors removed, its digit classes
+     * replaced by a digit and its escaped characters unescaped.
+     */
+    static String describedUri(String regex) {
+        String uri = regex.startsWith("^") ? regex.substring(1) : regex;
+        if (uri.endsWith("$") && !uri.endsWith("\\$")) {
+            uri = uri.substring(0, uri.length() - 1);
+        }
+        uri = DIGITS.matcher(uri).replaceAll("0");
+        return ESCAPE.matcher(uri).replaceAll("$1");
+    }
+
+    /**
+     * Whether a path segment of the pattern, up to its query string, is neither a
+     * wildcard over the whole segment nor a literal.
+     */
+    static boolean dependsOnIdSegments(String regex) {
+        for (String segment : pathSegments(regex)) {
+            if (!WILDCARD_SEGMENT.matcher(segment).matches() && !LITERAL_SEGMENT.matcher(segment).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Path segments of a pattern without its anchors, split at the slashes
+     * outside of character classes, up to an escaped question mark.
+     */
+    private static List<String> pathSegments(String regex) {
+        String path = regex.startsWith("^") ? regex.substring(1) : regex;
+        if (path.endsWith("$") && !path.endsWith("\\$")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        List<String> segments = new ArrayList<>();
+        boolean inClass = false;
+        int start = 0;
+        int end = path.length();
+        for (int i = 0; i < end; i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                if (!inClass && path.charAt(i + 1) == '?') {
+                    end = i;
+                }
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '/' && !inClass) {
+                segments.add(path.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(path.substring(start, end));
+        return segments;
+    }
+
+    /**
+     * Remove all cached decisions, e.g. to free the decisions of the previous
+     * configuration after the audit patterns changed.
+     */
+    public void invalidateAll() {
+        decisions.clear();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long size() {
+        return decisions.size();
+    }
+
+    /**
+     * Register the hit, miss and size meters, tagged with the name of the filter.
+     *
+     * @param registry registry of the meters
+     * @param filter name of the filter, "request" or "response"
+     */
+    public void bindTo(MeterRegistry registry, String filter) {
+        FunctionCounter.builder("hipaa.audit.decision.cache.hits", this, HipaaAuditDecisionCache::getHitCount)
+            .tag("filter", filter).description("Audit decisions served from the cache").register(registry);
+        FunctionCounter.builder("hipaa.audit.decision.cache.misses", this, HipaaAuditDecisionCache::getMissCount)
+            .tag("filter", filter).description("Audit decisions evaluated against the URI patterns")
+            .register(registry);
+        Gauge.builder("hipaa.audit.decision.cache.size", this, HipaaAuditDecisionCache::size)
+            .tag("filter", filter).description("Number of cached audit decisions").register(registry);
+    }
+
+    /**
+     * Normalize the URI into a cache key. The URI itself is returned when
+     * nothing is normalized.
+     */
+    String normalize(String uri) {
+        if (uri == null) {
+            return "";
+        }
+        int length = uri.length();
+        int query = uri.indexOf('?');
+        int pathEnd = query < 0 ? length : query;
+        StringBuilder key = null;
+        int copied = 0;
+
+        if (normalizeIdSegments) {
+            Matcher matcher = idSegmentPattern != null ? idSegmentPattern.matcher(uri) : null;
+            int start = 0;
+            while (start <= pathEnd) {
+                int end = uri.indexOf('/', start);
+                if (end < 0 || end > pathEnd) {
+                    end = pathEnd;
+                }
+                if (end > start && isIdSegment(uri, start, end, matcher)) {
+                    if (key == null) {
+                        key = new StringBuilder(length);
+                    }
+                    key.append(uri, copied, start).append(ID_PLACEHOLDER);
+                    copied = end;
+                }
+                start = end + 1;
+            }
+        }
+
+        if (normalizeQueryValues && query >= 0) {
+            int start = query + 1;
+            while (start < length) {
+                int end = uri.indexOf('&', start);
+                if (end < 0) {
+                    end = length;
+                }
+                int equals = uri.indexOf('=', start);
+                if (equals >= 0 && equals + 1 < end) {
+                    if (key == null) {
+                        key = new StringBuilder(length);
+                    }
+                    key.append(uri, copied, equals + 1);
+                    copied = end;
+                }
+                start = end + 1;
+            }
+        }
+
+        if (key == null) {
+            return uri;
+        }
+        return key.append(uri, copied, length).toString();
+    }
+
+    private static boolean isIdSegment(String uri, int start, int end, Matcher matcher) {
+        if (matcher != null) {
+            return matcher.region(start, end).matches();
+        }
+        return isNumeric(uri, start, end) || isUuid(uri, start, end);
+    }
+
+    private static boolean isNumeric(String uri, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUuid(String uri, int start, int end) {
+        if (end - start != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = uri.charAt(start + i);
+            boolean valid = (i == 8 || i == 13 || i == 18 || i == 23) ? c == '-'
+                : (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cached decision and the matcher it was evaluated by.
+     */
+    private static final class Decision {
+
+        private final HipaaAuditUriMatcher matcher;
+
+        private final boolean audit;
+
+        Decision(HipaaAuditUriMatcher matcher, boolean audit) {
+            this.matcher = matcher;
+            this.audit = audit;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+/**
+ * Level of detail a response was audited at. Metadata (principal, URI, remote
+ * address and response status) is recorded at every level.
+ */
+public enum HipaaAuditFidelity {
+
+    /** Response body recorded as configured. */
+    FULL,
+
+    /** Only the SHA-256 digest and length of the response body recorded. */
+    DIGEST,
+
+    /** No response body recorded. */
+    METADATA;
+
+    /**
+     * Level of the given name, null when unknown.
+     *
+     * @param name name of the level
+     * @return the level, or null
+     */
+    public static HipaaAuditFidelity parse(String name) {
+        for (HipaaAuditFidelity fidelity : values()) {
+            if (fidelity.name().equals(name)) {
+                return fidelity;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationEventPublisher;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Components of the request and response audit filters of a gateway, created
+ * from the {@code igia.hipaa.audit} properties: the publisher the audit events
+ * go through, the reference to the audit configuration all filters read, the
+ * decision cache and metrics of each filter and the adaptive fidelity of the
+ * response filter. Components which are not enabled are null.
+ * <p>
+ * Binds the meters of the components.
+ */
+public class HipaaAuditFilterComponents implements MeterBinder, DisposableBean {
+
+    public static final String REQUEST_FILTER = "request";
+
+    public static final String RESPONSE_FILTER = "response";
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditFilterComponents.class);
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final AtomicReference<HipaaAuditSnapshot> snapshot;
+
+    private final HipaaAuditDecisionCache requestDecisionCache;
+
+    private final HipaaAuditDecisionCache responseDecisionCache;
+
+    private final HipaaAuditFilterMetrics requestMetrics;
+
+    private final HipaaAuditFilterMetrics responseMetrics;
+
+    private final HipaaAdaptiveFidelity adaptiveFidelity;
+
+    /**
+     * @param eventPublisher publisher of the audit events
+     * @param applicationProperties audit properties
+     * @param asyncPublisher asynchronous publisher whose backlog feeds the adaptive
+     *        fidelity, or null
+     */
+    public HipaaAuditFilterComponents(ApplicationEventPublisher eventPublisher,
+        HipaaAuditProperties applicationProperties, HipaaAsyncAuditEventPublisher asyncPublisher) {
+        this.eventPublisher = eventPublisher;
+        this.snapshot = new AtomicReference<>(HipaaAuditSnapshot.compile(applicationProperties));
+        this.requestDecisionCache = decisionCache(applicationProperties);
+        this.responseDecisionCache = decisionCache(applicationProperties);
+        this.requestMetrics = filterMetrics(REQUEST_FILTER, applicationProperties);
+        this.responseMetrics = filterMetrics(RESPONSE_FILTER, applicationProperties);
+        if (applicationProperties.getAdaptive().isEnabled()) {
+            log.info("Configuring Hipaa adaptive response audit with a latency budget of {} ms",
+                applicationProperties.getAdaptive().getLatencyBudget());
+            this.adaptiveFidelity = new HipaaAdaptiveFidelity(applicationProperties.getAdaptive(), asyncPublisher);
+        } else {
+            this.adaptiveFidelity = null;
+        }
+    }
+
+    private HipaaAuditDecisionCache decisionCache(HipaaAuditProperties applicationProperties) {
+        if (!applicationProperties.getDecisionCache().isEnabled()) {
+            return null;
+        }
+        log.info("Configuring Hipaa audit decision cache of at most {} decisions",
+            applicationProperties.getDecisionCache().getMaximumSize());
+        HipaaAuditDecisionCache decisionCache = new HipaaAuditDecisionCache(applicationProperties.getDecisionCache());
+        decisionCache.validate(applicationProperties);
+        return decisionCache;
+    }
+
+    private static HipaaAuditFilterMetrics filterMetrics(String filter, HipaaAuditProperties applicationProperties) {
+        if (!applicationProperties.getMetrics().isEnabled()) {
+            return null;
+        }
+        return new HipaaAuditFilterMetrics(filter, applicationProperties.getMetrics().getWindow());
+    }
+
+    public ApplicationEventPublisher getEventPublisher() {
+        return eventPublisher;
+    }
+
+    /**
+     * Reference to the audit configuration, swapped by the {@link HipaaAuditConfigReloader}.
+     *
+     * @return the reference shared by the filters
+     */
+    public AtomicReference<HipaaAuditSnapshot> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Check that the decision caches may cache the decisions of the URI patterns
+     * of the properties, see {@link HipaaAuditDecisionCache#validate(HipaaAuditProperties)}.
+     *
+     * @param applicationProperties audit properties, e.g. reloaded ones
+     */
+    public void validate(HipaaAuditProperties applicationProperties) {
+        if (requestDecisionCache != null) {
+            requestDecisionCache.validate(applicationProperties);
+        }
+        if (responseDecisionCache != null) {
+            responseDecisionCache.validate(applicationProperties);
+        }
+    }
+
+    /**
+     * Discard the cached decisions, e.g. of the previous configuration.
+     */
+    public void invalidateDecisions() {
+        if (requestDecisionCache != null) {
+            requestDecisionCache.invalidateAll();
+        }
+        if (responseDecisionCache != null) {
+            responseDecisionCache.invalidateAll();
+        }
+    }
+
+    public HipaaAuditDecisionCache getRequestDecisionCache() {
+        return requestDecisionCache;
+    }
+
+    public HipaaAuditDecisionCache getResponseDecisionCache() {
+        return responseDecisionCache;
+    }
+
+    public HipaaAuditFilterMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    public HipaaAuditFilterMetrics getResponseMetrics() {
+        return responseMetrics;
+    }
+
+    public HipaaAdaptiveFidelity getAdaptiveFidelity() {
+        return adaptiveFidelity;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        if (requestDecisionCache != null) {
+            requestDecisionCache.bindTo(registry, REQUEST_FILTER);
+        }
+        if (responseDecisionCache != null) {
+            responseDecisionCache.bindTo(registry, RESPONSE_FILTER);
+        }
+        if (requestMetrics != null) {
+            requestMetrics.bindTo(registry);
+        }
+        if (responseMetrics != null) {
+            responseMetrics.bindTo(registry);
+        }
+        if (adaptiveFidelity != null) {
+            adaptiveFidelity.bindTo(registry);
+        }
+    }
+
+    /**
+     * Stop rolling the latency windows of the filter metrics.
+     */
+    @Override
+    public void destroy() {
+        if (requestMetrics != null) {
+            requestMetrics.close();
+        }
+        if (responseMetrics != null) {
+            responseMetrics.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Latency and volume of an audit filter.
+ * <p>
+ * The time spent in every {@link Phase} is recorded into an HdrHistogram
+ * {@link Recorder}, which records without locking. Percentiles are reported for
+ * the last completed window of {@code windowMillis}, so that they reflect recent
+ * traffic rather than the whole uptime. The windows of all phases are rolled over
+ * together by a timer, so that every window covers {@code windowMillis} however
+ * often, and by however many registries, the meters are read.
+ */
+public class HipaaAuditFilterMetrics implements MeterBinder, Closeable {
+
+    /**
+     * Phases of auditing a request.
+     */
+    public enum Phase {
+        /** Matching the request URI against the audit patterns. */
+        MATCH,
+        /** Reading the request data or the response body. */
+        CAPTURE,
+        /**
+         * Recording the captured body into the audit record. A plain body is
+         * decoded, a gzipped body is only decompressed when the event is read,
+         * see {@link HipaaGzippedResponseBody}.
+         */
+        RECORD,
+        /** Publishing the audit event. */
+        PUBLISH
+    }
+
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Timer rolling the windows of all filter metrics, on a daemon thread.
+     */
+    private static final ScheduledThreadPoolExecutor ROLLER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "hipaa-audit-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ROLLER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final String filter;
+
+    private final Map<Phase, PhaseRecorder> phases = new EnumMap<>(Phase.class);
+
+    private final LongAdder audited = new LongAdder();
+
+    private final LongAdder skipped = new LongAdder();
+
+    private final LongAdder capturedBytes = new LongAdder();
+
+    private final ScheduledFuture<?> rolling;
+
+    /**
+     * @param filter name of the filter, used as meter tag
+     * @param windowMillis length of the percentile window
+     */
+    public HipaaAuditFilterMetrics(String filter, long windowMillis) {
+        this.filter = filter;
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new PhaseRecorder());
+        }
+        long window = Math.max(1, windowMillis);
+        this.rolling = ROLLER.scheduleAtFixedRate(this::roll, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record the time elapsed since {@code startNanos}, a {@link System#nanoTime()} value.
+     *
+     * @param phase timed phase
+     * @param startNanos start of the phase
+     */
+    public void record(Phase phase, long startNanos) {
+        recordNanos(phase, System.nanoTime() - startNanos);
+    }
+
+    void recordNanos(Phase phase, long nanos) {
+        PhaseRecorder recorder = phases.get(phase);
+        recorder.recorder.recordValue(Math.max(0, nanos));
+        recorder.count.increment();
+    }
+
+    /**
+     * Complete the current window of every phase.
+     */
+    void roll() {
+        for (PhaseRecorder recorder : phases.values()) {
+            recorder.roll();
+        }
+    }
+
+    /**
+     * Count a request the filter decided on.
+     *
+     * @param audit whether the request is audited
+     */
+    public void decided(boolean audit) {
+        (audit ? audited : skipped).increment();
+    }
+
+    public void captured(long bytes) {
+        capturedBytes.add(bytes);
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public long getAuditedCount() {
+        return audited.sum();
+    }
+
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    public long getCapturedBytes() {
+        return capturedBytes.sum();
+    }
+
+    public long getCount(Phase phase) {
+        return phases.get(phase).count.sum();
+    }
+
+    /**
+     * Latency in nanoseconds at the percentile (0..1) of the last completed window.
+     *
+     * @param phase timed phase
+     * @param percentile percentile between 0 and 1
+     * @return the latency in nanoseconds
+     */
+    public double getPercentile(Phase phase, double percentile) {
+        return phases.get(phase).window.getValueAtPercentile(percentile * 100);
+    }
+
+    /**
+     * Maximum latency in nanoseconds of the last completed window.
+     *
+     * @param phase timed phase
+     * @return the latency in nanoseconds
+     */
+    public double getMax(Phase phase) {
+        return phases.get(phase).window.getMaxValue();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Phase phase : Phase.values()) {
+            String phaseTag = phase.name().toLowerCase();
+            for (double percentile : PERCENTILES) {
+                TimeGauge.builder("hipaa.audit.filter.latency", this, TimeUnit.NANOSECONDS,
+                    metrics -> metrics.getPercentile(phase, percentile))
+                    .tags("filter", filter, "phase", phaseTag, "percentile", Double.toString(percentile))
+                    .description("Latency percentile of an audit filter phase").register(registry);
+            }
+            TimeGauge.builder("hipaa.audit.filter.latency.max", this, TimeUnit.NANOSECONDS,
+                metrics -> metrics.getMax(phase))
+                .tags("filter", filter, "phase", phaseTag)
+                .description("Maximum latency of an audit filter phase").register(registry);
+            FunctionCounter.builder("hipaa.audit.filter.latency.count", this, metrics -> metrics.getCount(phase))
+                .tags("filter", filter, "phase", phaseTag)
+                .description("Number of timed audit filter phases").register(registry);
+        }
+        FunctionCounter.builder("hipaa.audit.filter.requests", this, HipaaAuditFilterMetrics::getAuditedCount)
+            .tags("filter", filter, "outcome", "audited").description("Requests audited by the filter")
+            .register(registry);
+        FunctionCounter.builder("hipaa.audit.filter.requests", this, HipaaAuditFilterMetrics::getSkippedCount)
+            .tags("filter", filter, "outcome", "skipped").description("Requests not audited by the filter")
+            .register(registry);
+        FunctionCounter.builder("hipaa.audit.filter.captured.bytes", this, HipaaAuditFilterMetrics::getCapturedBytes)
+            .tags("filter", filter).description("Body bytes passed through the capture").register(registry);
+    }
+
+    /**
+     * Stop rolling the windows over.
+     */
+    @Override
+    public void close() {
+        rolling.cancel(false);
+    }
+
+    private static final class PhaseRecorder {
+
+        private final Recorder recorder = new Recorder(3);
+
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * The last completed window, replaced rather than recycled so that it can
+         * be read while the next one completes.
+         */
+        private volatile Histogram window = new Histogram(3);
+
+        void roll() {
+            window = recorder.getIntervalHistogram();
+        }
+    }
+}
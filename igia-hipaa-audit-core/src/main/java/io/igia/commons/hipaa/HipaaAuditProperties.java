@@ -0,0 +1,1611 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Properties specific to igia hipaa auditing
+ * <p>
+ * Properties are configured in the application.yml file.
+ */
+@ConfigurationProperties(prefix = "igia.hipaa.audit", ignoreUnknownFields = false)
+public class HipaaAuditProperties {
+
+        /**
+         * Holds the Java regex patterns of incoming request URIs that are to
+         * be HIPAA audited.
+         */
+        private List<String> hipaaWhitelistUriPatterns = new ArrayList<>();
+
+        /**
+         * Holds the Java regex patterns of incoming request URIs that are not
+         * to be HIPAA audited. Blacklisted patterns are given higher precedence
+         * over whitelisted patterns.
+         */
+        private List<String> hipaaBlacklistUriPatterns = new ArrayList<>();
+        
+        /**
+         * Holds the Java regex patterns of incoming request URIs for which outgoing response is to
+         * be HIPAA audited.
+         */
+        private List<String> hipaaResponseWhitelistUriPatterns = new ArrayList<>();
+
+        /**
+         * Holds the Java regex patterns of incoming request URIs for which outgoing responses are not
+         * to be HIPAA audited. Blacklisted patterns are given higher precedence
+         * over whitelisted patterns.
+         */
+        private List<String> hipaaResponseBlacklistUriPatterns = new ArrayList<>();
+
+        /**
+         * Names of request parameters left out of audit events, in addition to
+         * {@code cacheBuster}.
+         */
+        private List<String> hipaaExcludedRequestParams = new ArrayList<>();
+
+        /**
+         * Names of request parameters whose values are masked in audit events.
+         */
+        private List<String> hipaaMaskedRequestParams = new ArrayList<>();
+
+        /**
+         * Cache of audit decisions, keyed by normalized request URI.
+         */
+        private final DecisionCache decisionCache = new DecisionCache();
+
+        /**
+         * Publishing of audit events off the request thread.
+         */
+        private final Async async = new Async();
+
+        /**
+         * Coalescing of identical audit events within a time window.
+         */
+        private final Coalescing coalescing = new Coalescing();
+
+        /**
+         * Capture of response bodies for the response audit.
+         */
+        private final ResponseCapture responseCapture = new ResponseCapture();
+
+        /**
+         * Request body capture, opt-in per URI pattern.
+         */
+        private final RequestCapture requestCapture = new RequestCapture();
+
+        /**
+         * Local durable journal of audit events.
+         */
+        private final Journal journal = new Journal();
+
+        /**
+         * Local store of audit events indexed for queries.
+         */
+        private final Store store = new Store();
+
+        /**
+         * File sink of audit events striped across writers.
+         */
+        private final FileSink fileSink = new FileSink();
+
+        /**
+         * Database sink of audit events written in batches.
+         */
+        private final JdbcSink jdbcSink = new JdbcSink();
+
+        /**
+         * Access frequency analytics and alerts over a sliding window.
+         */
+        private final Analytics analytics = new Analytics();
+
+        /**
+         * Latency and volume metrics of the audit filters.
+         */
+        private final Metrics metrics = new Metrics();
+
+        /**
+         * Correlation of the request and response audit of a request into one audit event.
+         */
+        private final Correlation correlation = new Correlation();
+
+        /**
+         * Degradation of response body capture under load.
+         */
+        private final Adaptive adaptive = new Adaptive();
+
+        /**
+         * Masking of PHI in captured request and response bodies.
+         */
+        private final Redaction redaction = new Redaction();
+
+        /**
+         * Audit policies of Zuul routes, keyed by route id or service id. A route
+         * policy takes precedence over the URI patterns for requests to the route.
+         */
+        private Map<String, RoutePolicy> routePolicies = new LinkedHashMap<>();
+
+		public HipaaAuditProperties() {
+            hipaaWhitelistUriPatterns.add(".*/api/.*");
+        }
+
+        public List<String> getHipaaWhitelistUriPatterns() {
+            return this.hipaaWhitelistUriPatterns;
+        }
+
+        public List<String> getHipaaBlacklistUriPatterns() {
+            return this.hipaaBlacklistUriPatterns;
+        }
+        
+        public List<String> getHipaaResponseWhitelistUriPatterns() {
+			return hipaaResponseWhitelistUriPatterns;
+		}
+
+		public List<String> getHipaaResponseBlacklistUriPatterns() {
+			return hipaaResponseBlacklistUriPatterns;
+		}
+
+        public List<String> getHipaaExcludedRequestParams() {
+            return hipaaExcludedRequestParams;
+        }
+
+        public List<String> getHipaaMaskedRequestParams() {
+            return hipaaMaskedRequestParams;
+        }
+
+        public DecisionCache getDecisionCache() {
+            return decisionCache;
+        }
+
+        public Async getAsync() {
+            return async;
+        }
+
+        public Coalescing getCoalescing() {
+            return coalescing;
+        }
+
+        public ResponseCapture getResponseCapture() {
+            return responseCapture;
+        }
+
+        public RequestCapture getRequestCapture() {
+            return requestCapture;
+        }
+
+        public Journal getJournal() {
+            return journal;
+        }
+
+        public Store getStore() {
+            return store;
+        }
+
+        public FileSink getFileSink() {
+            return fileSink;
+        }
+
+        public JdbcSink getJdbcSink() {
+            return jdbcSink;
+        }
+
+        public Analytics getAnalytics() {
+            return analytics;
+        }
+
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        public Correlation getCorrelation() {
+            return correlation;
+        }
+
+        public Adaptive getAdaptive() {
+            return adaptive;
+        }
+
+        public Redaction getRedaction() {
+            return redaction;
+        }
+
+        public Map<String, RoutePolicy> getRoutePolicies() {
+            return routePolicies;
+        }
+
+        public void setRoutePolicies(Map<String, RoutePolicy> routePolicies) {
+            this.routePolicies = routePolicies;
+        }
+
+        /**
+         * Bounded cache of the shouldFilter decision of the request and response
+         * audit filters.
+         * <p>
+         * The cache key is the request URI (including the query string for
+         * response auditing) after normalization. Normalization must not merge
+         * URIs that the configured patterns distinguish, e.g. do not normalize
+         * query values when a pattern matches on a parameter value.
+         */
+        public static class DecisionCache {
+
+            /**
+             * Whether audit decisions are cached.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Maximum number of cached decisions per filter, evicted by Caffeine's
+             * Window TinyLFU policy.
+             */
+            private long maximumSize = 10000;
+
+            /**
+             * Whether path segments holding resource IDs are replaced by a placeholder.
+             * The audit URI patterns must then not depend on IDs, which is checked at
+             * startup: each path segment of a pattern must be a literal or a wildcard
+             * over whole segments, such as .* or [^/]+.
+             */
+            private boolean normalizeIdSegments = false;
+
+            /**
+             * Java regex matching a whole path segment that is a resource ID. When
+             * not set, numeric and UUID segments are treated as IDs.
+             */
+            private String idSegmentPattern;
+
+            /**
+             * Whether query parameter values are removed, keeping the parameter names.
+             * The audit URI patterns must then not depend on query values, which is
+             * checked at startup.
+             */
+            private boolean normalizeQueryValues = false;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getMaximumSize() {
+                return maximumSize;
+            }
+
+            public void setMaximumSize(long maximumSize) {
+                this.maximumSize = maximumSize;
+            }
+
+            public boolean isNormalizeIdSegments() {
+                return normalizeIdSegments;
+            }
+
+            public void setNormalizeIdSegments(boolean normalizeIdSegments) {
+                this.normalizeIdSegments = normalizeIdSegments;
+            }
+
+            public String getIdSegmentPattern() {
+                return idSegmentPattern;
+            }
+
+            public void setIdSegmentPattern(String idSegmentPattern) {
+                this.idSegmentPattern = idSegmentPattern;
+            }
+
+            public boolean isNormalizeQueryValues() {
+                return normalizeQueryValues;
+            }
+
+            public void setNormalizeQueryValues(boolean normalizeQueryValues) {
+                this.normalizeQueryValues = normalizeQueryValues;
+            }
+        }
+
+        /**
+         * Action taken when the asynchronous audit queue is full.
+         */
+        public enum OverflowPolicy {
+            /** Wait on the request thread until the queue has room. */
+            BLOCK,
+            /**
+             * Queue the event without captured bodies, in the event queue if it
+             * has room again, otherwise in the overflow queue; discard it when
+             * both are full.
+             */
+            DROP_BODY_KEEP_METADATA,
+            /** Discard the event. */
+            DROP
+        }
+
+        /**
+         * Asynchronous audit event publishing through a bounded ring buffer.
+         */
+        public static class Async {
+
+            /**
+             * Whether audit events are published by background consumer threads.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Capacity of the event queue, rounded up to a power of two.
+             */
+            private int queueCapacity = 8192;
+
+            /**
+             * Number of consumer threads delivering events to the listeners.
+             */
+            private int consumerThreads = 1;
+
+            /**
+             * Maximum number of events a consumer takes from the queue at once;
+             * they are delivered to the listeners one by one.
+             */
+            private int batchSize = 256;
+
+            private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+            /**
+             * Capacity of the queue of events without bodies, used when the
+             * event queue is full with the DROP_BODY_KEEP_METADATA overflow
+             * policy, rounded up to a power of two.
+             */
+            private int overflowCapacity = 1024;
+
+            /**
+             * Maximum time in milliseconds to deliver queued events on shutdown.
+             */
+            private long shutdownTimeout = 10000;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public int getQueueCapacity() {
+                return queueCapacity;
+            }
+
+            public void setQueueCapacity(int queueCapacity) {
+                this.queueCapacity = queueCapacity;
+            }
+
+            public int getConsumerThreads() {
+                return consumerThreads;
+            }
+
+            public void setConsumerThreads(int consumerThreads) {
+                this.consumerThreads = consumerThreads;
+            }
+
+            public int getBatchSize() {
+                return batchSize;
+            }
+
+            public void setBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+            }
+
+            public OverflowPolicy getOverflowPolicy() {
+                return overflowPolicy;
+            }
+
+            public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+                this.overflowPolicy = overflowPolicy;
+            }
+
+            public int getOverflowCapacity() {
+                return overflowCapacity;
+            }
+
+            public void setOverflowCapacity(int overflowCapacity) {
+                this.overflowCapacity = overflowCapacity;
+            }
+
+            public long getShutdownTimeout() {
+                return shutdownTimeout;
+            }
+
+            public void setShutdownTimeout(long shutdownTimeout) {
+                this.shutdownTimeout = shutdownTimeout;
+            }
+        }
+
+        /**
+         * How response bodies are captured for the response audit.
+         */
+        public enum CaptureMode {
+            /** The whole body is read before it is sent to the client. */
+            BUFFERED,
+            /** The body is copied while it is sent to the client. */
+            STREAMING
+        }
+
+        /**
+         * What is recorded of a captured response body.
+         */
+        public enum BodyMode {
+            /** The body text, up to the configured maximum size. */
+            FULL,
+            /** Only the SHA-256 digest and the length of the body. */
+            DIGEST
+        }
+
+        /**
+         * Response body capture.
+         */
+        public static class ResponseCapture {
+
+            private CaptureMode mode = CaptureMode.BUFFERED;
+
+            private BodyMode bodyMode = BodyMode.FULL;
+
+            /**
+             * Maximum number of body bytes recorded in an audit event, unlimited when
+             * negative. Gzipped bodies are limited by their compressed size.
+             */
+            private int maxBytes = -1;
+
+            /**
+             * Text appended to bodies truncated at the maximum size.
+             */
+            private String truncationMarker = "...[TRUNCATED]";
+
+            /**
+             * Capture settings overriding the above for matching request URIs. The
+             * first route whose pattern matches applies.
+             */
+            private List<Route> routes = new ArrayList<>();
+
+            /**
+             * Pool of direct buffers holding BUFFERED response bodies.
+             */
+            private final BufferPool bufferPool = new BufferPool();
+
+            public CaptureMode getMode() {
+                return mode;
+            }
+
+            public void setMode(CaptureMode mode) {
+                this.mode = mode;
+            }
+
+            public BodyMode getBodyMode() {
+                return bodyMode;
+            }
+
+            public void setBodyMode(BodyMode bodyMode) {
+                this.bodyMode = bodyMode;
+            }
+
+            public int getMaxBytes() {
+                return maxBytes;
+            }
+
+            public void setMaxBytes(int maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            public String getTruncationMarker() {
+                return truncationMarker;
+            }
+
+            public void setTruncationMarker(String truncationMarker) {
+                this.truncationMarker = truncationMarker;
+            }
+
+            public List<Route> getRoutes() {
+                return routes;
+            }
+
+            public void setRoutes(List<Route> routes) {
+                this.routes = routes;
+            }
+
+            public BufferPool getBufferPool() {
+                return bufferPool;
+            }
+        }
+
+        /**
+         * Request body capture. Only requests whose method is listed and whose URI
+         * matches one of the routes are captured. The body is read once: bodies of
+         * a known length within the maximum size are cached for Zuul to forward,
+         * other bodies are captured while Zuul streams them to the route.
+         */
+        public static class RequestCapture {
+
+            /**
+             * HTTP methods whose request bodies are captured.
+             */
+            private List<String> methods = new ArrayList<>(Arrays.asList("POST", "PUT", "PATCH"));
+
+            private BodyMode bodyMode = BodyMode.FULL;
+
+            /**
+             * Maximum number of body bytes recorded in an audit event. Bodies of
+             * unknown length or longer are streamed and truncated at this size.
+             */
+            private int maxBytes = 64 * 1024;
+
+            /**
+             * Text appended to bodies truncated at the maximum size.
+             */
+            private String truncationMarker = "...[TRUNCATED]";
+
+            /**
+             * Request URIs whose bodies are captured, with the settings overriding
+             * the above. The first route whose pattern matches applies, no body is
+             * captured when none does.
+             */
+            private List<Route> routes = new ArrayList<>();
+
+            public List<String> getMethods() {
+                return methods;
+            }
+
+            public void setMethods(List<String> methods) {
+                this.methods = methods;
+            }
+
+            public BodyMode getBodyMode() {
+                return bodyMode;
+            }
+
+            public void setBodyMode(BodyMode bodyMode) {
+                this.bodyMode = bodyMode;
+            }
+
+            public int getMaxBytes() {
+                return maxBytes;
+            }
+
+            public void setMaxBytes(int maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            public String getTruncationMarker() {
+                return truncationMarker;
+            }
+
+            public void setTruncationMarker(String truncationMarker) {
+                this.truncationMarker = truncationMarker;
+            }
+
+            public List<Route> getRoutes() {
+                return routes;
+            }
+
+            public void setRoutes(List<Route> routes) {
+                this.routes = routes;
+            }
+        }
+
+        /**
+         * Pool of direct buffers in which BUFFERED response bodies are read, so
+         * that the body sent to the client and the captured body share one off-heap
+         * copy instead of several heap copies.
+         */
+        public static class BufferPool {
+
+            private boolean enabled = false;
+
+            /**
+             * Maximum number of bytes kept in the pool for reuse. Buffers released
+             * beyond it are left to the garbage collector.
+             */
+            private long maxPooledBytes = 32 * 1024 * 1024;
+
+            /**
+             * Maximum number of direct buffer bytes held by bodies at once. Buffers
+             * acquired beyond it are allocated on the heap and not pooled.
+             */
+            private long maxDirectBytes = 256 * 1024 * 1024;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getMaxPooledBytes() {
+                return maxPooledBytes;
+            }
+
+            public void setMaxPooledBytes(long maxPooledBytes) {
+                this.maxPooledBytes = maxPooledBytes;
+            }
+
+            public long getMaxDirectBytes() {
+                return maxDirectBytes;
+            }
+
+            public void setMaxDirectBytes(long maxDirectBytes) {
+                this.maxDirectBytes = maxDirectBytes;
+            }
+        }
+
+        /**
+         * Body capture settings for request URIs matching a pattern.
+         */
+        public static class Route {
+
+            /**
+             * Java regex pattern of the request URI, including the query string.
+             */
+            private String uriPattern;
+
+            /**
+             * Body mode of the route, the default body mode when not set.
+             */
+            private BodyMode bodyMode;
+
+            /**
+             * Maximum number of body bytes of the route, the default maximum when not set.
+             */
+            private Integer maxBytes;
+
+            public String getUriPattern() {
+                return uriPattern;
+            }
+
+            public void setUriPattern(String uriPattern) {
+                this.uriPattern = uriPattern;
+            }
+
+            public BodyMode getBodyMode() {
+                return bodyMode;
+            }
+
+            public void setBodyMode(BodyMode bodyMode) {
+                this.bodyMode = bodyMode;
+            }
+
+            public Integer getMaxBytes() {
+                return maxBytes;
+            }
+
+            public void setMaxBytes(Integer maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+        }
+
+        /**
+         * Append-only journal of audit events in memory-mapped segment files.
+         */
+        public static class Journal {
+
+            /**
+             * Whether audit events are written to the journal.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Directory of the journal segment files.
+             */
+            private String directory = "audit-journal";
+
+            /**
+             * Size in bytes of a segment file. A record must fit into one segment.
+             */
+            private int segmentSize = 64 * 1024 * 1024;
+
+            /**
+             * Number of pending records after which the journal is synced to disk without waiting for more.
+             */
+            private int groupCommitCount = 256;
+
+            /**
+             * Time in milliseconds a sync waits for more records to sync together, adding to the latency of
+             * appending, which waits for the sync; 0 syncs at once the records appended during the previous sync.
+             */
+            private long groupCommitInterval = 0;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public String getDirectory() {
+                return directory;
+            }
+
+            public void setDirectory(String directory) {
+                this.directory = directory;
+            }
+
+            public int getSegmentSize() {
+                return segmentSize;
+            }
+
+            public void setSegmentSize(int segmentSize) {
+                this.segmentSize = segmentSize;
+            }
+
+            public int getGroupCommitCount() {
+                return groupCommitCount;
+            }
+
+            public void setGroupCommitCount(int groupCommitCount) {
+                this.groupCommitCount = groupCommitCount;
+            }
+
+            public long getGroupCommitInterval() {
+                return groupCommitInterval;
+            }
+
+            public void setGroupCommitInterval(long groupCommitInterval) {
+                this.groupCommitInterval = groupCommitInterval;
+            }
+        }
+
+        /**
+         * Embedded store of audit events in time partitions, with indexes on the
+         * principal, the remote address and the FHIR resources accessed, queried
+         * through the {@code hipaaaudit} actuator endpoint.
+         */
+        public static class Store {
+
+            /**
+             * Whether audit events are written to the store.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Directory of the store partitions.
+             */
+            private String directory = "audit-store";
+
+            /**
+             * Time range in milliseconds of a partition. The indexes of a partition
+             * are written to disk when the next partition starts.
+             */
+            private long partitionDuration = 60 * 60 * 1000;
+
+            /**
+             * Time in milliseconds audit events are kept, relative to the start of
+             * the current partition. Older partitions are deleted when a partition
+             * starts. Audit events are kept forever when not positive.
+             */
+            private long retention = 0;
+
+            /**
+             * Maximum number of events returned by a query.
+             */
+            private int maxResults = 1000;
+
+            /**
+             * Whether the query endpoint returns the request parameters, messages and
+             * bodies of the audit events, which may contain PHI, rather than their
+             * metadata only.
+             */
+            private boolean includeBodies = false;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public String getDirectory() {
+                return directory;
+            }
+
+            public void setDirectory(String directory) {
+                this.directory = directory;
+            }
+
+            public long getPartitionDuration() {
+                return partitionDuration;
+            }
+
+            public void setPartitionDuration(long partitionDuration) {
+                this.partitionDuration = partitionDuration;
+            }
+
+            public long getRetention() {
+                return retention;
+            }
+
+            public void setRetention(long retention) {
+                this.retention = retention;
+            }
+
+            public int getMaxResults() {
+                return maxResults;
+            }
+
+            public void setMaxResults(int maxResults) {
+                this.maxResults = maxResults;
+            }
+
+            public boolean isIncludeBodies() {
+                return includeBodies;
+            }
+
+            public void setIncludeBodies(boolean includeBodies) {
+                this.includeBodies = includeBodies;
+            }
+        }
+
+        /**
+         * File sink writing audit events to several stripes of segment files, so
+         * that concurrent threads do not contend on one writer. Closed segments are
+         * compressed in the background.
+         */
+        public static class FileSink {
+
+            /**
+             * Whether audit events are written to the file sink.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Directory of the segment files.
+             */
+            private String directory = "audit-sink";
+
+            /**
+             * Number of stripes, the number of available processors when not positive.
+             */
+            private int stripes = 0;
+
+            /**
+             * Size in bytes of the write buffer of a stripe.
+             */
+            private int bufferSize = 64 * 1024;
+
+            /**
+             * Size in bytes after which a segment is closed and a new one started.
+             */
+            private long segmentSize = 64 * 1024 * 1024;
+
+            /**
+             * Maximum time in milliseconds records stay in a write buffer.
+             */
+            private long flushInterval = 1000;
+
+            /**
+             * Whether closed segments are compressed with gzip.
+             */
+            private boolean compress = true;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public String getDirectory() {
+                return directory;
+            }
+
+            public void setDirectory(String directory) {
+                this.directory = directory;
+            }
+
+            public int getStripes() {
+                return stripes;
+            }
+
+            public void setStripes(int stripes) {
+                this.stripes = stripes;
+            }
+
+            public int getBufferSize() {
+                return bufferSize;
+            }
+
+            public void setBufferSize(int bufferSize) {
+                this.bufferSize = bufferSize;
+            }
+
+            public long getSegmentSize() {
+                return segmentSize;
+            }
+
+            public void setSegmentSize(long segmentSize) {
+                this.segmentSize = segmentSize;
+            }
+
+            public long getFlushInterval() {
+                return flushInterval;
+            }
+
+            public void setFlushInterval(long flushInterval) {
+                this.flushInterval = flushInterval;
+            }
+
+            public boolean isCompress() {
+                return compress;
+            }
+
+            public void setCompress(boolean compress) {
+                this.compress = compress;
+            }
+        }
+
+        /**
+         * Database sink inserting audit events with JDBC batches, committed
+         * together per size or time window instead of one transaction per event.
+         */
+        public static class JdbcSink {
+
+            /**
+             * Whether audit events are written to the database.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Table the audit events are inserted into.
+             */
+            private String table = "hipaa_audit_event";
+
+            /**
+             * Whether the table is created at startup when it does not exist.
+             */
+            private boolean initializeSchema = false;
+
+            /**
+             * Maximum number of audit events inserted in one transaction.
+             */
+            private int batchSize = 500;
+
+            /**
+             * Maximum time in milliseconds an audit event waits for its batch to fill.
+             */
+            private long batchInterval = 200;
+
+            /**
+             * Number of audit events buffered while the database is slow or
+             * unavailable, before new events are spilled to disk.
+             */
+            private int bufferCapacity = 10000;
+
+            /**
+             * Initial time in milliseconds before a failed batch is retried, doubled
+             * on every further failure.
+             */
+            private long retryBackoff = 100;
+
+            /**
+             * Maximum time in milliseconds between retries of a failed batch.
+             */
+            private long maxRetryBackoff = 30000;
+
+            /**
+             * Maximum time in milliseconds to write the buffered audit events at
+             * shutdown.
+             */
+            private long shutdownTimeout = 10000;
+
+            /**
+             * Directory of the journals holding the audit events spilled while the
+             * buffer is full or the database is unavailable at shutdown, inserted once
+             * the database accepts inserts again. Audit events the database rejects
+             * are kept in its {@code rejected} journal.
+             */
+            private String spillDirectory = "audit-jdbc-spill";
+
+            /**
+             * Size in bytes of a spill journal segment. A spilled audit event must fit
+             * into one segment.
+             */
+            private int spillSegmentSize = 64 * 1024 * 1024;
+
+            /**
+             * Number of audit events waiting to be spilled by the background spill
+             * thread. Audit events overflowing it are dropped.
+             */
+            private int spillBufferCapacity = 10000;
+
+            /**
+             * Maximum number of bytes of spilled audit events waiting to be inserted.
+             * Audit events spilled beyond it are dropped.
+             */
+            private long maxSpillBytes = 1024L * 1024 * 1024;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public String getTable() {
+                return table;
+            }
+
+            public void setTable(String table) {
+                this.table = table;
+            }
+
+            public boolean isInitializeSchema() {
+                return initializeSchema;
+            }
+
+            public void setInitializeSchema(boolean initializeSchema) {
+                this.initializeSchema = initializeSchema;
+            }
+
+            public int getBatchSize() {
+                return batchSize;
+            }
+
+            public void setBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+            }
+
+            public long getBatchInterval() {
+                return batchInterval;
+            }
+
+            public void setBatchInterval(long batchInterval) {
+                this.batchInterval = batchInterval;
+            }
+
+            public int getBufferCapacity() {
+                return bufferCapacity;
+            }
+
+            public void setBufferCapacity(int bufferCapacity) {
+                this.bufferCapacity = bufferCapacity;
+            }
+
+            public long getRetryBackoff() {
+                return retryBackoff;
+            }
+
+            public void setRetryBackoff(long retryBackoff) {
+                this.retryBackoff = retryBackoff;
+            }
+
+            public long getMaxRetryBackoff() {
+                return maxRetryBackoff;
+            }
+
+            public void setMaxRetryBackoff(long maxRetryBackoff) {
+                this.maxRetryBackoff = maxRetryBackoff;
+            }
+
+            public long getShutdownTimeout() {
+                return shutdownTimeout;
+            }
+
+            public void setShutdownTimeout(long shutdownTimeout) {
+                this.shutdownTimeout = shutdownTimeout;
+            }
+
+            public String getSpillDirectory() {
+                return spillDirectory;
+            }
+
+            public void setSpillDirectory(String spillDirectory) {
+                this.spillDirectory = spillDirectory;
+            }
+
+            public int getSpillSegmentSize() {
+                return spillSegmentSize;
+            }
+
+            public void setSpillSegmentSize(int spillSegmentSize) {
+                this.spillSegmentSize = spillSegmentSize;
+            }
+
+            public int getSpillBufferCapacity() {
+                return spillBufferCapacity;
+            }
+
+            public void setSpillBufferCapacity(int spillBufferCapacity) {
+                this.spillBufferCapacity = spillBufferCapacity;
+            }
+
+            public long getMaxSpillBytes() {
+                return maxSpillBytes;
+            }
+
+            public void setMaxSpillBytes(long maxSpillBytes) {
+                this.maxSpillBytes = maxSpillBytes;
+            }
+        }
+
+        /**
+         * Access frequencies of principals and FHIR resource types over a sliding
+         * window, estimated with Count-Min sketches of fixed size.
+         */
+        public static class Analytics {
+
+            /**
+             * Whether audited requests are counted.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Length in milliseconds of the sliding window accesses are counted over.
+             */
+            private long window = 60 * 60 * 1000;
+
+            /**
+             * Number of intervals the window is divided into. The window slides by one
+             * interval at a time.
+             */
+            private int buckets = 6;
+
+            /**
+             * Number of rows of the Count-Min sketches, the higher the less likely an
+             * estimate exceeds the error bound.
+             */
+            private int depth = 4;
+
+            /**
+             * Number of counters per row of the Count-Min sketches, rounded up to a
+             * power of two. Estimates exceed the true count by at most 2.72 / width of
+             * the accesses of the interval.
+             */
+            private int width = 2048;
+
+            /**
+             * Number of principals and resource types of the most accesses that are
+             * tracked.
+             */
+            private int topK = 10;
+
+            /**
+             * Number of accesses of a principal to a resource type within the window
+             * that raises an alert.
+             */
+            private long alertThreshold = 1000;
+
+            /**
+             * Resource types alerts are raised for, all when empty.
+             */
+            private List<String> alertResourceTypes = new ArrayList<>();
+
+            /**
+             * Number of recent alerts kept for the actuator endpoint.
+             */
+            private int maxAlerts = 100;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getWindow() {
+                return window;
+            }
+
+            public void setWindow(long window) {
+                this.window = window;
+            }
+
+            public int getBuckets() {
+                return buckets;
+            }
+
+            public void setBuckets(int buckets) {
+                this.buckets = buckets;
+            }
+
+            public int getDepth() {
+                return depth;
+            }
+
+            public void setDepth(int depth) {
+                this.depth = depth;
+            }
+
+            public int getWidth() {
+                return width;
+            }
+
+            public void setWidth(int width) {
+                this.width = width;
+            }
+
+            public int getTopK() {
+                return topK;
+            }
+
+            public void setTopK(int topK) {
+                this.topK = topK;
+            }
+
+            public long getAlertThreshold() {
+                return alertThreshold;
+            }
+
+            public void setAlertThreshold(long alertThreshold) {
+                this.alertThreshold = alertThreshold;
+            }
+
+            public List<String> getAlertResourceTypes() {
+                return alertResourceTypes;
+            }
+
+            public void setAlertResourceTypes(List<String> alertResourceTypes) {
+                this.alertResourceTypes = alertResourceTypes;
+            }
+
+            public int getMaxAlerts() {
+                return maxAlerts;
+            }
+
+            public void setMaxAlerts(int maxAlerts) {
+                this.maxAlerts = maxAlerts;
+            }
+        }
+
+        /**
+         * Coalescing of the audit events of the same principal, method, URI,
+         * parameters and response status into one audit event per window, with
+         * the number of events and the timestamps of the first and the last.
+         */
+        public static class Coalescing {
+
+            /**
+             * Whether identical audit events are coalesced.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Time in milliseconds identical audit events are coalesced for, from the
+             * first of them.
+             */
+            private long window = 60000;
+
+            /**
+             * Maximum number of distinct audit events being coalesced. Audit events of
+             * further keys are published as they are.
+             */
+            private int maxKeys = 10000;
+
+            /**
+             * Maximum size of the request and response bodies of the audit events being
+             * coalesced, in characters or compressed bytes. Audit events with further
+             * bodies are published as they are.
+             */
+            private long maxHeldBodyBytes = 16L * 1024 * 1024;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getWindow() {
+                return window;
+            }
+
+            public void setWindow(long window) {
+                this.window = window;
+            }
+
+            public int getMaxKeys() {
+                return maxKeys;
+            }
+
+            public void setMaxKeys(int maxKeys) {
+                this.maxKeys = maxKeys;
+            }
+
+            public long getMaxHeldBodyBytes() {
+                return maxHeldBodyBytes;
+            }
+
+            public void setMaxHeldBodyBytes(long maxHeldBodyBytes) {
+                this.maxHeldBodyBytes = maxHeldBodyBytes;
+            }
+        }
+
+        /**
+         * Latency histograms and counters of the audit filters.
+         */
+        public static class Metrics {
+
+            /**
+             * Whether the audit filter phases are timed.
+             */
+            private boolean enabled = true;
+
+            /**
+             * Length in milliseconds of the window latency percentiles are reported for.
+             */
+            private long window = 60000;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getWindow() {
+                return window;
+            }
+
+            public void setWindow(long window) {
+                this.window = window;
+            }
+        }
+
+        public static class Correlation {
+
+            /**
+             * Whether the request audit filter hands its record to the response audit
+             * filter, which publishes one audit event per request.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Request header holding the request ID, generated when missing.
+             */
+            private String requestIdHeader = "X-Request-Id";
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public String getRequestIdHeader() {
+                return requestIdHeader;
+            }
+
+            public void setRequestIdHeader(String requestIdHeader) {
+                this.requestIdHeader = requestIdHeader;
+            }
+        }
+
+        /**
+         * Audit policy of a route. Settings which are not set are resolved as for
+         * requests not covered by any route policy.
+         */
+        public static class RoutePolicy {
+
+            /**
+             * Whether requests to the route are audited, the URI patterns decide when not set.
+             */
+            private Boolean requestAudit;
+
+            /**
+             * Whether responses of the route are audited, the response URI patterns
+             * decide when not set.
+             */
+            private Boolean responseAudit;
+
+            /**
+             * Body mode of the route, the response capture body mode when not set.
+             */
+            private BodyMode bodyMode;
+
+            /**
+             * Maximum number of body bytes of the route, the response capture maximum when not set.
+             */
+            private Integer maxBytes;
+
+            /**
+             * Names of request parameters left out of audit events of the route, in
+             * addition to the globally excluded parameters.
+             */
+            private List<String> excludedRequestParams = new ArrayList<>();
+
+            /**
+             * Names of request parameters masked in audit events of the route, in
+             * addition to the globally masked parameters.
+             */
+            private List<String> maskedRequestParams = new ArrayList<>();
+
+            public Boolean getRequestAudit() {
+                return requestAudit;
+            }
+
+            public void setRequestAudit(Boolean requestAudit) {
+                this.requestAudit = requestAudit;
+            }
+
+            public Boolean getResponseAudit() {
+                return responseAudit;
+            }
+
+            public void setResponseAudit(Boolean responseAudit) {
+                this.responseAudit = responseAudit;
+            }
+
+            public BodyMode getBodyMode() {
+                return bodyMode;
+            }
+
+            public void setBodyMode(BodyMode bodyMode) {
+                this.bodyMode = bodyMode;
+            }
+
+            public Integer getMaxBytes() {
+                return maxBytes;
+            }
+
+            public void setMaxBytes(Integer maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            public List<String> getExcludedRequestParams() {
+                return excludedRequestParams;
+            }
+
+            public void setExcludedRequestParams(List<String> excludedRequestParams) {
+                this.excludedRequestParams = excludedRequestParams;
+            }
+
+            public List<String> getMaskedRequestParams() {
+                return maskedRequestParams;
+            }
+
+            public void setMaskedRequestParams(List<String> maskedRequestParams) {
+                this.maskedRequestParams = maskedRequestParams;
+            }
+        }
+
+        /**
+         * Adaptive fidelity of the response audit. Metadata is always recorded, the
+         * body is only digested once the average response audit time exceeds the
+         * latency budget or the async queue fills beyond its threshold, and not
+         * recorded at all, except for a sample of digests, at twice that load.
+         */
+        public static class Adaptive {
+
+            /**
+             * Whether response body capture is degraded under load.
+             */
+            private boolean enabled = false;
+
+            /**
+             * Average time in milliseconds spent auditing a response above which
+             * bodies are degraded.
+             */
+            private long latencyBudget = 5;
+
+            /**
+             * Fill ratio of the async publisher queue above which bodies are degraded.
+             */
+            private double queueThreshold = 0.5;
+
+            /**
+             * Ratio of responses whose body is still digested when no body is recorded.
+             */
+            private double sampleRate = 0.1;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getLatencyBudget() {
+                return latencyBudget;
+            }
+
+            public void setLatencyBudget(long latencyBudget) {
+                this.latencyBudget = latencyBudget;
+            }
+
+            public double getQueueThreshold() {
+                return queueThreshold;
+            }
+
+            public void setQueueThreshold(double queueThreshold) {
+                this.queueThreshold = queueThreshold;
+            }
+
+            public double getSampleRate() {
+                return sampleRate;
+            }
+
+            public void setSampleRate(double sampleRate) {
+                this.sampleRate = sampleRate;
+            }
+        }
+
+        /**
+         * Token shapes masked digit by digit wherever they appear in a body.
+         */
+        public enum RedactionToken {
+            /** Social security number, {@code 123-45-6789}. */
+            SSN,
+            /** US phone number, {@code 555-123-4567}, {@code 555.123.4567} or {@code (555) 123-4567}. */
+            PHONE
+        }
+
+        /**
+         * Masking of PHI in captured request and response bodies. applied in a single pass over
+         * the body bytes before it is recorded in an audit event. Digests are
+         * computed over the unmasked body.
+         */
+        public static class Redaction {
+
+            private boolean enabled = false;
+
+            /**
+             * Names of JSON fields whose values are replaced by the mask, e.g. MRN
+             * or birth date fields. Object and array values are replaced whole.
+             */
+            private List<String> fieldNames = new ArrayList<>();
+
+            private List<RedactionToken> tokens = new ArrayList<>(Arrays.asList(RedactionToken.values()));
+
+            /**
+             * Text replacing masked JSON field values.
+             */
+            private String mask = "***";
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public List<String> getFieldNames() {
+                return fieldNames;
+            }
+
+            public void setFieldNames(List<String> fieldNames) {
+                this.fieldNames = fieldNames;
+            }
+
+            public List<RedactionToken> getTokens() {
+                return tokens;
+            }
+
+            public void setTokens(List<RedactionToken> tokens) {
+                this.tokens = tokens;
+            }
+
+            public String getMask() {
+                return mask;
+            }
+
+            public void setMask(String mask) {
+                this.mask = mask;
+            }
+        }
+}
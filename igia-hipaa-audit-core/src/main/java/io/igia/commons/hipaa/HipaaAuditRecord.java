@@ -0,0 +1,763 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+/**
+ * Immutable Hipaa audit record.
+ * <p>
+ * Fields which are not set are left out of the audit event data, so that
+ * {@link #toAuditEvent()} produces the same data keys as the former map based
+ * events. The data map is a read-only view of the record, see
+ * {@link HipaaAuditApplicationEvent}. Its values are of the same types as well:
+ * a body held as a {@link HipaaGzippedResponseBody} is a {@code String} in the
+ * data, decompressed when first read there.
+ */
+public final class HipaaAuditRecord {
+
+    /**
+     * Audit event type of the Hipaa audit events.
+     */
+    public static final String AUDIT_EVENT_TYPE = "HIPAA_AUDIT";
+
+    public static final String REMOTE_ADDRESS = "remoteAddress";
+
+    public static final String HTTP_METHOD = "httpMethod";
+
+    public static final String REQUEST_URI = "requestUri";
+
+    public static final String REQUEST_PARAM = "requestParam";
+
+    public static final String MESSAGE = "message";
+
+    public static final String RESPONSE_BODY = "responseBody";
+
+    public static final String RESPONSE_BODY_COMPLETE = "responseBodyComplete";
+
+    public static final String RESPONSE_BODY_TRUNCATED = "responseBodyTruncated";
+
+    public static final String RESPONSE_BODY_LENGTH = "responseBodyLength";
+
+    public static final String RESPONSE_BODY_SHA256 = "responseBodySha256";
+
+    public static final String BODY_DROPPED = "auditBodyDropped";
+
+    public static final String REQUEST_ID = "requestId";
+
+    public static final String RESPONSE_STATUS = "responseStatus";
+
+    public static final String DURATION_MILLIS = "durationMillis";
+
+    /**
+     * {@link HipaaAuditFidelity} the response was audited at, when adaptive capture is enabled.
+     */
+    public static final String AUDIT_FIDELITY = "auditFidelity";
+
+    /**
+     * Request body of a method and URI opted in to request body capture.
+     */
+    public static final String REQUEST_BODY = "requestBody";
+
+    /**
+     * Set to false when the request body was not read to its end by the route.
+     */
+    public static final String REQUEST_BODY_COMPLETE = "requestBodyComplete";
+
+    public static final String REQUEST_BODY_TRUNCATED = "requestBodyTruncated";
+
+    public static final String REQUEST_BODY_LENGTH = "requestBodyLength";
+
+    public static final String REQUEST_BODY_SHA256 = "requestBodySha256";
+
+    /**
+     * Number of identical audit events a coalesced record stands for.
+     */
+    public static final String COALESCED_COUNT = "coalescedCount";
+
+    /**
+     * Timestamp of the last of the identical audit events a coalesced record
+     * stands for, the record timestamp being the one of the first.
+     */
+    public static final String LAST_TIMESTAMP = "lastTimestamp";
+
+    private final Instant timestamp;
+
+    private final String principal;
+
+    private final String type;
+
+    private final String remoteAddress;
+
+    private final String httpMethod;
+
+    private final String requestUri;
+
+    private final String requestParam;
+
+    private final String message;
+
+    private final CharSequence responseBody;
+
+    private final Boolean responseBodyComplete;
+
+    private final Boolean responseBodyTruncated;
+
+    private final Long responseBodyLength;
+
+    private final String responseBodySha256;
+
+    private final Boolean bodyDropped;
+
+    private final String requestId;
+
+    private final Integer responseStatus;
+
+    private final Long durationMillis;
+
+    private final HipaaAuditFidelity fidelity;
+
+    private final String requestBody;
+
+    private final Boolean requestBodyComplete;
+
+    private final Boolean requestBodyTruncated;
+
+    private final Long requestBodyLength;
+
+    private final String requestBodySha256;
+
+    private final Long coalescedCount;
+
+    private final Instant lastTimestamp;
+
+    private final Map<String, Object> attributes;
+
+    private HipaaAuditRecord(Builder builder) {
+        this.timestamp = builder.timestamp != null ? builder.timestamp : Instant.now();
+        this.principal = builder.principal != null ? builder.principal : "";
+        this.type = builder.type;
+        this.remoteAddress = builder.remoteAddress;
+        this.httpMethod = builder.httpMethod;
+        this.requestUri = builder.requestUri;
+        this.requestParam = builder.requestParam;
+        this.message = builder.message;
+        this.responseBody = builder.responseBody;
+        this.responseBodyComplete = builder.responseBodyComplete;
+        this.responseBodyTruncated = builder.responseBodyTruncated;
+        this.responseBodyLength = builder.responseBodyLength;
+        this.responseBodySha256 = builder.responseBodySha256;
+        this.bodyDropped = builder.bodyDropped;
+        this.requestId = builder.requestId;
+        this.responseStatus = builder.responseStatus;
+        this.durationMillis = builder.durationMillis;
+        this.fidelity = builder.fidelity;
+        this.requestBody = builder.requestBody;
+        this.requestBodyComplete = builder.requestBodyComplete;
+        this.requestBodyTruncated = builder.requestBodyTruncated;
+        this.requestBodyLength = builder.requestBodyLength;
+        this.requestBodySha256 = builder.requestBodySha256;
+        this.coalescedCount = builder.coalescedCount;
+        this.lastTimestamp = builder.lastTimestamp;
+        this.attributes = builder.attributes.isEmpty() ? Collections.emptyMap()
+            : Collections.unmodifiableMap(new LinkedHashMap<>(builder.attributes));
+    }
+
+    public static Builder builder(String principal, String type) {
+        return new Builder().principal(principal).type(type);
+    }
+
+    /**
+     * Record of an audit event, with the data values of known keys and types in
+     * the typed fields and all other values as attributes.
+     *
+     * @param auditEvent audit event
+     * @return the record of the event
+     */
+    public static HipaaAuditRecord fromAuditEvent(AuditEvent auditEvent) {
+        Builder builder = builder(auditEvent.getPrincipal(), auditEvent.getType())
+            .timestamp(auditEvent.getTimestamp());
+        for (Map.Entry<String, Object> entry : auditEvent.getData().entrySet()) {
+            if (!builder.set(entry.getKey(), entry.getValue())) {
+                builder.attribute(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    public AuditEvent toAuditEvent() {
+        return new AuditEvent(timestamp, principal, type, new DataView(this));
+    }
+
+    /**
+     * Copy of the record without the request and response bodies, marked with
+     * {@value #BODY_DROPPED}.
+     *
+     * @return the record without bodies, or this record when it has none
+     */
+    public HipaaAuditRecord withoutBody() {
+        if (responseBody == null && requestBody == null) {
+            return this;
+        }
+        Builder builder = toBuilder();
+        builder.responseBody = null;
+        builder.requestBody = null;
+        builder.bodyDropped = Boolean.TRUE;
+        return builder.build();
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.timestamp = timestamp;
+        builder.principal = principal;
+        builder.type = type;
+        builder.remoteAddress = remoteAddress;
+        builder.httpMethod = httpMethod;
+        builder.requestUri = requestUri;
+        builder.requestParam = requestParam;
+        builder.message = message;
+        builder.responseBody = responseBody;
+        builder.responseBodyComplete = responseBodyComplete;
+        builder.responseBodyTruncated = responseBodyTruncated;
+        builder.responseBodyLength = responseBodyLength;
+        builder.responseBodySha256 = responseBodySha256;
+        builder.bodyDropped = bodyDropped;
+        builder.requestId = requestId;
+        builder.responseStatus = responseStatus;
+        builder.durationMillis = durationMillis;
+        builder.fidelity = fidelity;
+        builder.requestBody = requestBody;
+        builder.requestBodyComplete = requestBodyComplete;
+        builder.requestBodyTruncated = requestBodyTruncated;
+        builder.requestBodyLength = requestBodyLength;
+        builder.requestBodySha256 = requestBodySha256;
+        builder.coalescedCount = coalescedCount;
+        builder.lastTimestamp = lastTimestamp;
+        builder.attributes.putAll(attributes);
+        return builder;
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public String getHttpMethod() {
+        return httpMethod;
+    }
+
+    public String getRequestUri() {
+        return requestUri;
+    }
+
+    public String getRequestParam() {
+        return requestParam;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public CharSequence getResponseBody() {
+        return responseBody;
+    }
+
+    public Boolean getResponseBodyComplete() {
+        return responseBodyComplete;
+    }
+
+    public Boolean getResponseBodyTruncated() {
+        return responseBodyTruncated;
+    }
+
+    public Long getResponseBodyLength() {
+        return responseBodyLength;
+    }
+
+    public String getResponseBodySha256() {
+        return responseBodySha256;
+    }
+
+    public Boolean getBodyDropped() {
+        return bodyDropped;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Integer getResponseStatus() {
+        return responseStatus;
+    }
+
+    public Long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public HipaaAuditFidelity getFidelity() {
+        return fidelity;
+    }
+
+    public String getRequestBody() {
+        return requestBody;
+    }
+
+    public Boolean getRequestBodyComplete() {
+        return requestBodyComplete;
+    }
+
+    public Boolean getRequestBodyTruncated() {
+        return requestBodyTruncated;
+    }
+
+    public Long getRequestBodyLength() {
+        return requestBodyLength;
+    }
+
+    public String getRequestBodySha256() {
+        return requestBodySha256;
+    }
+
+    public Long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public Instant getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Value of an audit event data key, null when not set.
+     *
+     * @param key audit event data key
+     * @return the value of the key
+     */
+    public Object get(String key) {
+        switch (key) {
+            case REMOTE_ADDRESS:
+                return remoteAddress;
+            case HTTP_METHOD:
+                return httpMethod;
+            case REQUEST_URI:
+                return requestUri;
+            case REQUEST_PARAM:
+                return requestParam;
+            case MESSAGE:
+                return message;
+            case RESPONSE_BODY:
+                return responseBody;
+            case RESPONSE_BODY_COMPLETE:
+                return responseBodyComplete;
+            case RESPONSE_BODY_TRUNCATED:
+                return responseBodyTruncated;
+            case RESPONSE_BODY_LENGTH:
+                return responseBodyLength;
+            case RESPONSE_BODY_SHA256:
+                return responseBodySha256;
+            case BODY_DROPPED:
+                return bodyDropped;
+            case REQUEST_ID:
+                return requestId;
+            case RESPONSE_STATUS:
+                return responseStatus;
+            case DURATION_MILLIS:
+                return durationMillis;
+            case AUDIT_FIDELITY:
+                return fidelity;
+            case REQUEST_BODY:
+                return requestBody;
+            case REQUEST_BODY_COMPLETE:
+                return requestBodyComplete;
+            case REQUEST_BODY_TRUNCATED:
+                return requestBodyTruncated;
+            case REQUEST_BODY_LENGTH:
+                return requestBodyLength;
+            case REQUEST_BODY_SHA256:
+                return requestBodySha256;
+            case COALESCED_COUNT:
+                return coalescedCount;
+            case LAST_TIMESTAMP:
+                return lastTimestamp;
+            default:
+                return attributes.get(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HipaaAuditRecord [timestamp=" + timestamp + ", principal=" + principal + ", type=" + type
+            + ", requestId=" + requestId + ", requestUri=" + requestUri + "]";
+    }
+
+    /**
+     * Builder of a {@link HipaaAuditRecord}.
+     */
+    public static final class Builder {
+
+        private Instant timestamp;
+
+        private String principal;
+
+        private String type;
+
+        private String remoteAddress;
+
+        private String httpMethod;
+
+        private String requestUri;
+
+        private String requestParam;
+
+        private String message;
+
+        private CharSequence responseBody;
+
+        private Boolean responseBodyComplete;
+
+        private Boolean responseBodyTruncated;
+
+        private Long responseBodyLength;
+
+        private String responseBodySha256;
+
+        private Boolean bodyDropped;
+
+        private String requestId;
+
+        private Integer responseStatus;
+
+        private Long durationMillis;
+
+        private HipaaAuditFidelity fidelity;
+
+        private String requestBody;
+
+        private Boolean requestBodyComplete;
+
+        private Boolean requestBodyTruncated;
+
+        private Long requestBodyLength;
+
+        private String requestBodySha256;
+
+        private Long coalescedCount;
+
+        private Instant lastTimestamp;
+
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        public Builder timestamp(Instant timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder principal(String principal) {
+            this.principal = principal;
+            return this;
+        }
+
+        public Builder type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public Builder remoteAddress(String remoteAddress) {
+            this.remoteAddress = remoteAddress;
+            return this;
+        }
+
+        public Builder httpMethod(String httpMethod) {
+            this.httpMethod = httpMethod;
+            return this;
+        }
+
+        public Builder requestUri(String requestUri) {
+            this.requestUri = requestUri;
+            return this;
+        }
+
+        public Builder requestParam(String requestParam) {
+            this.requestParam = requestParam;
+            return this;
+        }
+
+        public Builder message(String message) {
+            this.message = message;
+            return this;
+        }
+
+        public Builder responseBody(CharSequence responseBody) {
+            this.responseBody = responseBody;
+            return this;
+        }
+
+        public Builder responseBodyComplete(Boolean responseBodyComplete) {
+            this.responseBodyComplete = responseBodyComplete;
+            return this;
+        }
+
+        public Builder responseBodyTruncated(Boolean responseBodyTruncated) {
+            this.responseBodyTruncated = responseBodyTruncated;
+            return this;
+        }
+
+        public Builder responseBodyLength(Long responseBodyLength) {
+            this.responseBodyLength = responseBodyLength;
+            return this;
+        }
+
+        public Builder responseBodySha256(String responseBodySha256) {
+            this.responseBodySha256 = responseBodySha256;
+            return this;
+        }
+
+        public Builder bodyDropped(Boolean bodyDropped) {
+            this.bodyDropped = bodyDropped;
+            return this;
+        }
+
+        public Builder requestId(String requestId) {
+            this.requestId = requestId;
+            return this;
+        }
+
+        public Builder responseStatus(Integer responseStatus) {
+            this.responseStatus = responseStatus;
+            return this;
+        }
+
+        public Builder durationMillis(Long durationMillis) {
+            this.durationMillis = durationMillis;
+            return this;
+        }
+
+        public Builder fidelity(HipaaAuditFidelity fidelity) {
+            this.fidelity = fidelity;
+            return this;
+        }
+
+        public Builder requestBody(String requestBody) {
+            this.requestBody = requestBody;
+            return this;
+        }
+
+        public Builder requestBodyComplete(Boolean requestBodyComplete) {
+            this.requestBodyComplete = requestBodyComplete;
+            return this;
+        }
+
+        public Builder requestBodyTruncated(Boolean requestBodyTruncated) {
+            this.requestBodyTruncated = requestBodyTruncated;
+            return this;
+        }
+
+        public Builder requestBodyLength(Long requestBodyLength) {
+            this.requestBodyLength = requestBodyLength;
+            return this;
+        }
+
+        public Builder requestBodySha256(String requestBodySha256) {
+            this.requestBodySha256 = requestBodySha256;
+            return this;
+        }
+
+        public Builder coalescedCount(Long coalescedCount) {
+            this.coalescedCount = coalescedCount;
+            return this;
+        }
+
+        public Builder lastTimestamp(Instant lastTimestamp) {
+            this.lastTimestamp = lastTimestamp;
+            return this;
+        }
+
+        /**
+         * Additional audit event data, the typed setters are used for known keys.
+         *
+         * @param key audit event data key
+         * @param value value, removing the attribute when null
+         * @return this builder
+         */
+        public Builder attribute(String key, Object value) {
+            if (value == null) {
+                attributes.remove(key);
+            } else {
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        /**
+         * Set the typed field of a known key.
+         *
+         * @return false when the key is unknown or the value is of another type
+         */
+        boolean set(String key, Object value) {
+            switch (key) {
+                case REMOTE_ADDRESS:
+                    return value instanceof String && remoteAddress((String) value) != null;
+                case HTTP_METHOD:
+                    return value instanceof String && httpMethod((String) value) != null;
+                case REQUEST_URI:
+                    return value instanceof String && requestUri((String) value) != null;
+                case REQUEST_PARAM:
+                    return value instanceof String && requestParam((String) value) != null;
+                case MESSAGE:
+                    return value instanceof String && message((String) value) != null;
+                case RESPONSE_BODY:
+                    return value instanceof CharSequence && responseBody((CharSequence) value) != null;
+                case RESPONSE_BODY_COMPLETE:
+                    return value instanceof Boolean && responseBodyComplete((Boolean) value) != null;
+                case RESPONSE_BODY_TRUNCATED:
+                    return value instanceof Boolean && responseBodyTruncated((Boolean) value) != null;
+                case RESPONSE_BODY_LENGTH:
+                    return value instanceof Long && responseBodyLength((Long) value) != null;
+                case RESPONSE_BODY_SHA256:
+                    return value instanceof String && responseBodySha256((String) value) != null;
+                case BODY_DROPPED:
+                    return value instanceof Boolean && bodyDropped((Boolean) value) != null;
+                case REQUEST_ID:
+                    return value instanceof String && requestId((String) value) != null;
+                case RESPONSE_STATUS:
+                    return value instanceof Integer && responseStatus((Integer) value) != null;
+                case DURATION_MILLIS:
+                    return value instanceof Long && durationMillis((Long) value) != null;
+                case AUDIT_FIDELITY:
+                    return setFidelity(value);
+                case REQUEST_BODY:
+                    return value instanceof String && requestBody((String) value) != null;
+                case REQUEST_BODY_COMPLETE:
+                    return value instanceof Boolean && requestBodyComplete((Boolean) value) != null;
+                case REQUEST_BODY_TRUNCATED:
+                    return value instanceof Boolean && requestBodyTruncated((Boolean) value) != null;
+                case REQUEST_BODY_LENGTH:
+                    return value instanceof Long && requestBodyLength((Long) value) != null;
+                case REQUEST_BODY_SHA256:
+                    return value instanceof String && requestBodySha256((String) value) != null;
+                case COALESCED_COUNT:
+                    return value instanceof Long && coalescedCount((Long) value) != null;
+                case LAST_TIMESTAMP:
+                    return value instanceof Instant && lastTimestamp((Instant) value) != null;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean setFidelity(Object value) {
+            if (value instanceof HipaaAuditFidelity) {
+                fidelity((HipaaAuditFidelity) value);
+                return true;
+            }
+            // as read back from a serialized audit event
+            HipaaAuditFidelity parsed = value instanceof String ? HipaaAuditFidelity.parse((String) value) : null;
+            return parsed != null && fidelity(parsed) != null;
+        }
+
+        public HipaaAuditRecord build() {
+            if (type == null) {
+                throw new IllegalStateException("Audit record type must not be null");
+            }
+            return new HipaaAuditRecord(this);
+        }
+    }
+
+    /**
+     * Read-only audit event data backed by the record. Lookups read the fields,
+     * the entries are only materialized when the map is iterated. Bodies are
+     * materialized as strings, as audit event listeners expect. The view is
+     * serialized as a copy of its entries, like the data of any other audit
+     * event, since the record itself is not serializable.
+     */
+    private static final class DataView extends AbstractMap<String, Object> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final String[] KEYS = {REMOTE_ADDRESS, HTTP_METHOD, REQUEST_URI, REQUEST_PARAM, MESSAGE,
+            RESPONSE_BODY, RESPONSE_BODY_COMPLETE, RESPONSE_BODY_TRUNCATED, RESPONSE_BODY_LENGTH,
+            RESPONSE_BODY_SHA256, BODY_DROPPED, REQUEST_ID, RESPONSE_STATUS, DURATION_MILLIS,
+            AUDIT_FIDELITY, REQUEST_BODY, REQUEST_BODY_COMPLETE, REQUEST_BODY_TRUNCATED, REQUEST_BODY_LENGTH,
+            REQUEST_BODY_SHA256, COALESCED_COUNT, LAST_TIMESTAMP};
+
+        private final transient HipaaAuditRecord record;
+
+        private transient Set<Entry<String, Object>> entries;
+
+        DataView(HipaaAuditRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? value(record.get((String) key)) : null;
+        }
+
+        private static Object value(Object value) {
+            return value instanceof CharSequence && !(value instanceof String) ? value.toString() : value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            Set<Entry<String, Object>> entrySet = this.entries;
+            if (entrySet == null) {
+                Map<String, Object> data = new LinkedHashMap<>();
+                for (String key : KEYS) {
+                    Object value = value(record.get(key));
+                    if (value != null) {
+                        data.put(key, value);
+                    }
+                }
+                for (Entry<String, Object> attribute : record.attributes.entrySet()) {
+                    data.put(attribute.getKey(), value(attribute.getValue()));
+                }
+                entrySet = Collections.unmodifiableMap(data).entrySet();
+                this.entries = entrySet;
+            }
+            return entrySet;
+        }
+
+        private Object writeReplace() {
+            return new LinkedHashMap<>(this);
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a {@link HipaaAuditRecord}.
+ * <p>
+ * A version byte is followed by the set fields, each a tag of field number and
+ * wire type and a varint or a length-delimited value, as in protocol buffers.
+ * Unset fields take no space and unknown fields are skipped when decoding, so
+ * fields can be added without breaking readers of older records. A gzipped
+ * response body is kept compressed, unless it is redacted while decompressed.
+ */
+public final class HipaaAuditRecordCodec {
+
+    static final int VERSION = 1;
+
+    static final int WIRE_VARINT = 0;
+
+    static final int WIRE_BYTES = 2;
+
+    static final int EPOCH_SECOND = 1;
+    static final int NANO = 2;
+    static final int PRINCIPAL = 3;
+    static final int TYPE = 4;
+    static final int REMOTE_ADDRESS = 5;
+    static final int HTTP_METHOD = 6;
+    static final int REQUEST_URI = 7;
+    static final int REQUEST_PARAM = 8;
+    static final int MESSAGE = 9;
+    static final int RESPONSE_BODY = 10;
+    static final int GZIPPED_BODY = 11;
+    static final int GZIPPED_BODY_CHARSET = 12;
+    static final int GZIPPED_BODY_SUFFIX = 13;
+    static final int RESPONSE_BODY_COMPLETE = 14;
+    static final int RESPONSE_BODY_TRUNCATED = 15;
+    static final int RESPONSE_BODY_LENGTH = 16;
+    static final int RESPONSE_BODY_SHA256 = 17;
+    static final int BODY_DROPPED = 18;
+    static final int ATTRIBUTE = 19;
+    static final int REQUEST_ID = 20;
+    static final int RESPONSE_STATUS = 21;
+    static final int DURATION_MILLIS = 22;
+    static final int AUDIT_FIDELITY = 23;
+    static final int REQUEST_BODY = 24;
+    static final int REQUEST_BODY_COMPLETE = 25;
+    static final int REQUEST_BODY_TRUNCATED = 26;
+    static final int REQUEST_BODY_LENGTH = 27;
+    static final int REQUEST_BODY_SHA256 = 28;
+    static final int COALESCED_COUNT = 29;
+    static final int LAST_EPOCH_SECOND = 30;
+    static final int LAST_NANO = 31;
+    static final int GZIPPED_BODY_MAX_BYTES = 32;
+    static final int GZIPPED_BODY_TRUNCATION_MARKER = 33;
+
+    /** Encoding buffers larger than this are not kept for reuse. */
+    private static final int MAX_CACHED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    private HipaaAuditRecordCodec() {
+    }
+
+    public static byte[] encode(HipaaAuditRecord record) {
+        Output out = OUTPUT.get();
+        out.reset();
+        out.writeByte(VERSION);
+        Instant timestamp = record.getTimestamp();
+        out.writeVarintField(EPOCH_SECOND, zigZag(timestamp.getEpochSecond()));
+        if (timestamp.getNano() != 0) {
+            out.writeVarintField(NANO, timestamp.getNano());
+        }
+        out.writeStringField(PRINCIPAL, record.getPrincipal());
+        out.writeStringField(TYPE, record.getType());
+        out.writeStringField(REMOTE_ADDRESS, record.getRemoteAddress());
+        out.writeStringField(HTTP_METHOD, record.getHttpMethod());
+        out.writeStringField(REQUEST_URI, record.getRequestUri());
+        out.writeStringField(REQUEST_PARAM, record.getRequestParam());
+        out.writeStringField(MESSAGE, record.getMessage());
+        CharSequence body = record.getResponseBody();
+        if (body instanceof HipaaGzippedResponseBody && !((HipaaGzippedResponseBody) body).isRedacted()) {
+            HipaaGzippedResponseBody gzipped = (HipaaGzippedResponseBody) body;
+            out.writeBytesField(GZIPPED_BODY, gzipped.getCompressed());
+            out.writeStringField(GZIPPED_BODY_CHARSET, gzipped.getCharset().name());
+            if (!gzipped.getSuffix().isEmpty()) {
+                out.writeStringField(GZIPPED_BODY_SUFFIX, gzipped.getSuffix());
+            }
+            if (gzipped.getMaxBytes() >= 0) {
+                out.writeVarintField(GZIPPED_BODY_MAX_BYTES, gzipped.getMaxBytes());
+                out.writeStringField(GZIPPED_BODY_TRUNCATION_MARKER, gzipped.getTruncationMarker());
+            }
+        } else if (body != null) {
+            out.writeStringField(RESPONSE_BODY, body);
+        }
+        out.writeBooleanField(RESPONSE_BODY_COMPLETE, record.getResponseBodyComplete());
+        out.writeBooleanField(RESPONSE_BODY_TRUNCATED, record.getResponseBodyTruncated());
+        if (record.getResponseBodyLength() != null) {
+            out.writeVarintField(RESPONSE_BODY_LENGTH, record.getResponseBodyLength());
+        }
+        out.writeStringField(RESPONSE_BODY_SHA256, record.getResponseBodySha256());
+        out.writeBooleanField(BODY_DROPPED, record.getBodyDropped());
+        out.writeStringField(REQUEST_ID, record.getRequestId());
+        if (record.getResponseStatus() != null) {
+            out.writeVarintField(RESPONSE_STATUS, record.getResponseStatus());
+        }
+        if (record.getDurationMillis() != null) {
+            out.writeVarintField(DURATION_MILLIS, record.getDurationMillis());
+        }
+        if (record.getFidelity() != null) {
+            // by name, so that levels can be added without breaking journals
+            out.writeStringField(AUDIT_FIDELITY, record.getFidelity().name());
+        }
+        out.writeStringField(REQUEST_BODY, record.getRequestBody());
+        out.writeBooleanField(REQUEST_BODY_COMPLETE, record.getRequestBodyComplete());
+        out.writeBooleanField(REQUEST_BODY_TRUNCATED, record.getRequestBodyTruncated());
+        if (record.getRequestBodyLength() != null) {
+            out.writeVarintField(REQUEST_BODY_LENGTH, record.getRequestBodyLength());
+        }
+        out.writeStringField(REQUEST_BODY_SHA256, record.getRequestBodySha256());
+        if (record.getCoalescedCount() != null) {
+            out.writeVarintField(COALESCED_COUNT, record.getCoalescedCount());
+        }
+        Instant lastTimestamp = record.getLastTimestamp();
+        if (lastTimestamp != null) {
+            out.writeVarintField(LAST_EPOCH_SECOND, zigZag(lastTimestamp.getEpochSecond()));
+            if (lastTimestamp.getNano() != 0) {
+                out.writeVarintField(LAST_NANO, lastTimestamp.getNano());
+            }
+        }
+        for (Map.Entry<String, Object> attribute : record.getAttributes().entrySet()) {
+            String key = attribute.getKey();
+            String value = String.valueOf(attribute.getValue());
+            int keyLength = utf8Length(key);
+            int valueLength = utf8Length(value);
+            out.writeVarint(tag(ATTRIBUTE, WIRE_BYTES));
+            out.writeVarint(varintSize(keyLength) + keyLength + varintSize(valueLength) + valueLength);
+            out.writeUtf8(key, keyLength);
+            out.writeUtf8(value, valueLength);
+        }
+        byte[] encoded = out.toByteArray();
+        if (out.buffer.length > MAX_CACHED_BUFFER) {
+            OUTPUT.remove();
+        }
+        return encoded;
+    }
+
+    public static HipaaAuditRecord decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decode the remaining bytes of the buffer.
+     *
+     * @param buffer buffer holding an encoded record
+     * @return the decoded record
+     * @throws IllegalArgumentException if the bytes are not a valid record
+     */
+    public static HipaaAuditRecord decode(ByteBuffer buffer) {
+        try {
+            int version = buffer.get() & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported audit record version " + version);
+            }
+            HipaaAuditRecord.Builder builder = HipaaAuditRecord.builder(null, null);
+            long epochSecond = 0;
+            int nano = 0;
+            Long lastEpochSecond = null;
+            int lastNano = 0;
+            byte[] gzipped = null;
+            Charset charset = null;
+            String suffix = null;
+            int maxBytes = -1;
+            String truncationMarker = null;
+            while (buffer.hasRemaining()) {
+                long tag = readVarint(buffer);
+                int field = (int) (tag >>> 3);
+                int wireType = (int) (tag & 7);
+                switch (field) {
+                    case EPOCH_SECOND:
+                        epochSecond = unZigZag(readVarint(buffer));
+                        break;
+                    case NANO:
+                        nano = (int) readVarint(buffer);
+                        break;
+                    case PRINCIPAL:
+                        builder.principal(readString(buffer));
+                        break;
+                    case TYPE:
+                        builder.type(readString(buffer));
+                        break;
+                    case REMOTE_ADDRESS:
+                        builder.remoteAddress(readString(buffer));
+                        break;
+                    case HTTP_METHOD:
+                        builder.httpMethod(readString(buffer));
+                        break;
+                    case REQUEST_URI:
+                        builder.requestUri(readString(buffer));
+                        break;
+                    case REQUEST_PARAM:
+                        builder.requestParam(readString(buffer));
+                        break;
+                    case MESSAGE:
+                        builder.message(readString(buffer));
+                        break;
+                    case RESPONSE_BODY:
+                        builder.responseBody(readString(buffer));
+                        break;
+                    case GZIPPED_BODY:
+                        gzipped = readBytes(buffer);
+                        break;
+                    case GZIPPED_BODY_CHARSET:
+                        charset = Charset.forName(readString(buffer));
+                        break;
+                    case GZIPPED_BODY_SUFFIX:
+                        suffix = readString(buffer);
+                        break;
+                    case GZIPPED_BODY_MAX_BYTES:
+                        maxBytes = (int) readVarint(buffer);
+                        break;
+                    case GZIPPED_BODY_TRUNCATION_MARKER:
+                        truncationMarker = readString(buffer);
+                        break;
+                    case RESPONSE_BODY_COMPLETE:
+                        builder.responseBodyComplete(readVarint(buffer) != 0);
+                        break;
+                    case RESPONSE_BODY_TRUNCATED:
+                        builder.responseBodyTruncated(readVarint(buffer) != 0);
+                        break;
+                    case RESPONSE_BODY_LENGTH:
+                        builder.responseBodyLength(readVarint(buffer));
+                        break;
+                    case RESPONSE_BODY_SHA256:
+                        builder.responseBodySha256(readString(buffer));
+                        break;
+                    case BODY_DROPPED:
+                        builder.bodyDropped(readVarint(buffer) != 0);
+                        break;
+                    case REQUEST_ID:
+                        builder.requestId(readString(buffer));
+                        break;
+                    case RESPONSE_STATUS:
+                        builder.responseStatus((int) readVarint(buffer));
+                        break;
+                    case DURATION_MILLIS:
+                        builder.durationMillis(readVarint(buffer));
+                        break;
+                    case AUDIT_FIDELITY:
+                        builder.fidelity(HipaaAuditFidelity.parse(readString(buffer)));
+                        break;
+                    case REQUEST_BODY:
+                        builder.requestBody(readString(buffer));
+                        break;
+                    case REQUEST_BODY_COMPLETE:
+                        builder.requestBodyComplete(readVarint(buffer) != 0);
+                        break;
+                    case REQUEST_BODY_TRUNCATED:
+                        builder.requestBodyTruncated(readVarint(buffer) != 0);
+                        break;
+                    case REQUEST_BODY_LENGTH:
+                        builder.requestBodyLength(readVarint(buffer));
+                        break;
+                    case REQUEST_BODY_SHA256:
+                        builder.requestBodySha256(readString(buffer));
+                        break;
+                    case COALESCED_COUNT:
+                        builder.coalescedCount(readVarint(buffer));
+                        break;
+                    case LAST_EPOCH_SECOND:
+                        lastEpochSecond = unZigZag(readVarint(buffer));
+                        break;
+                    case LAST_NANO:
+                        lastNano = (int) readVarint(buffer);
+                        break;
+                    case ATTRIBUTE:
+                        ByteBuffer attribute = readSlice(buffer);
+                        builder.attribute(readString(attribute), readString(attribute));
+                        break;
+                    default:
+                        skip(buffer, wireType);
+                }
+            }
+            if (gzipped != null) {
+                builder.responseBody(
+                    new HipaaGzippedResponseBody(gzipped, charset, suffix, null, maxBytes, truncationMarker));
+            }
+            if (lastEpochSecond != null) {
+                builder.lastTimestamp(Instant.ofEpochSecond(lastEpochSecond, lastNano));
+            }
+            return builder.timestamp(Instant.ofEpochSecond(epochSecond, nano)).build();
+        } catch (BufferUnderflowException | IllegalStateException e) {
+            throw new IllegalArgumentException("Invalid audit record", e);
+        }
+    }
+
+    private static void skip(ByteBuffer buffer, int wireType) {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(buffer);
+                break;
+            case WIRE_BYTES:
+                readSlice(buffer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported wire type " + wireType);
+        }
+    }
+
+    static int tag(int field, int wireType) {
+        return field << 3 | wireType;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Number of bytes of the UTF-8 encoding, unpaired surrogates count as '?'.
+     */
+    static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static ByteBuffer readSlice(ByteBuffer buffer) {
+        int length = (int) readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + length);
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        ByteBuffer slice = readSlice(buffer);
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        ByteBuffer slice = readSlice(buffer);
+        if (slice.hasArray()) {
+            return new String(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining(),
+                StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Growable byte array reused by the encoding thread.
+     */
+    private static final class Output {
+
+        private byte[] buffer = new byte[512];
+
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int additional) {
+            if (size + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[size++] = (byte) b;
+        }
+
+        /**
+         * Write the varint length and the UTF-8 encoding without intermediate arrays.
+         */
+        void writeUtf8(CharSequence value, int utf8Length) {
+            writeVarint(utf8Length);
+            ensure(utf8Length);
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[size++] = (byte) (0xc0 | c >> 6);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[size++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if (Character.isSurrogate(c)) {
+                    buffer[size++] = '?';
+                } else {
+                    buffer[size++] = (byte) (0xe0 | c >> 12);
+                    buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarintField(int field, long value) {
+            writeVarint(tag(field, WIRE_VARINT));
+            writeVarint(value);
+        }
+
+        void writeBooleanField(int field, Boolean value) {
+            if (value != null) {
+                writeVarintField(field, value ? 1 : 0);
+            }
+        }
+
+        void writeBytesField(int field, byte[] bytes) {
+            writeVarint(tag(field, WIRE_BYTES));
+            writeVarint(bytes.length);
+            write(bytes);
+        }
+
+        void writeStringField(int field, CharSequence value) {
+            if (value != null) {
+                writeVarint(tag(field, WIRE_BYTES));
+                writeUtf8(value, utf8Length(value));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
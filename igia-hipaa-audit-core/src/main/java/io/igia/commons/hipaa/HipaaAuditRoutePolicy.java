@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.ResponseCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.RoutePolicy;
+
+/**
+ * Immutable audit policy of a route, resolved against the global settings once
+ * so that requests to the route need no URI pattern matching.
+ */
+public final class HipaaAuditRoutePolicy {
+
+    private final Boolean requestAudit;
+
+    private final Boolean responseAudit;
+
+    private final BodyMode bodyMode;
+
+    private final int maxBytes;
+
+    private final HipaaRequestParamSerializer paramSerializer;
+
+    private HipaaAuditRoutePolicy(RoutePolicy policy, HipaaAuditProperties applicationProperties) {
+        this.requestAudit = policy.getRequestAudit();
+        this.responseAudit = policy.getResponseAudit();
+        ResponseCapture responseCapture = applicationProperties.getResponseCapture();
+        if (policy.getBodyMode() != null || policy.getMaxBytes() != null) {
+            BodyMode defaultBodyMode = responseCapture.getBodyMode() != null ? responseCapture.getBodyMode()
+                : BodyMode.FULL;
+            this.bodyMode = policy.getBodyMode() != null ? policy.getBodyMode() : defaultBodyMode;
+            this.maxBytes = policy.getMaxBytes() != null ? policy.getMaxBytes() : responseCapture.getMaxBytes();
+        } else {
+            this.bodyMode = null;
+            this.maxBytes = -1;
+        }
+        if (isEmpty(policy.getExcludedRequestParams()) && isEmpty(policy.getMaskedRequestParams())) {
+            this.paramSerializer = null;
+        } else {
+            this.paramSerializer = new HipaaRequestParamSerializer(
+                concat(applicationProperties.getHipaaExcludedRequestParams(), policy.getExcludedRequestParams()),
+                concat(applicationProperties.getHipaaMaskedRequestParams(), policy.getMaskedRequestParams()));
+        }
+    }
+
+    public static HipaaAuditRoutePolicy compile(RoutePolicy policy, HipaaAuditProperties applicationProperties) {
+        return new HipaaAuditRoutePolicy(policy, applicationProperties);
+    }
+
+    /**
+     * Whether requests to the route are audited, null when left to the URI patterns.
+     *
+     * @return the request audit decision, or null
+     */
+    public Boolean getRequestAudit() {
+        return requestAudit;
+    }
+
+    /**
+     * Whether responses of the route are audited, null when left to the response URI patterns.
+     *
+     * @return the response audit decision, or null
+     */
+    public Boolean getResponseAudit() {
+        return responseAudit;
+    }
+
+    /**
+     * Serializer of the request parameters of the route, null when the global one applies.
+     *
+     * @return the parameter serializer, or null
+     */
+    public HipaaRequestParamSerializer getParamSerializer() {
+        return paramSerializer;
+    }
+
+    /**
+     * New capture for the body of a response of the route, from the capture
+     * policy when the route sets no body mode or maximum size.
+     *
+     * @param capturePolicy global response capture policy
+     * @param requestUri URI of the request
+     * @return the capture of the response body
+     */
+    public HipaaBodyCapture newCapture(HipaaResponseCapturePolicy capturePolicy, String requestUri) {
+        return bodyMode != null ? new HipaaBodyCapture(bodyMode, maxBytes, capturePolicy.getRedactor())
+            : capturePolicy.newCapture(requestUri);
+    }
+
+    private static boolean isEmpty(List<String> list) {
+        return list == null || list.isEmpty();
+    }
+
+    private static List<String> concat(List<String> global, List<String> route) {
+        List<String> names = new ArrayList<>();
+        if (global != null) {
+            names.addAll(global);
+        }
+        if (route != null) {
+            names.addAll(route);
+        }
+        return names;
+    }
+}
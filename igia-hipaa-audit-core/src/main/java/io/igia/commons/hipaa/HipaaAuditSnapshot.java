@@ -0,0 +1,104 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.RoutePolicy;
+
+/**
+ * Immutable audit configuration compiled from {@link HipaaAuditProperties}: the
+ * request and response URI matchers, the request parameter serializer, the
+ * request and response capture policies with their PHI redactor and the route
+ * policies.
+ * <p>
+ * The filters read the snapshot through one reference they all share, so that a
+ * new configuration is swapped in whole, for all filters at once, and requests
+ * never see it half-applied.
+ */
+public final class HipaaAuditSnapshot {
+
+    private final HipaaAuditUriMatcher requestMatcher;
+
+    private final HipaaAuditUriMatcher responseMatcher;
+
+    private final HipaaRequestParamSerializer paramSerializer;
+
+    private final HipaaResponseCapturePolicy capturePolicy;
+
+    private final HipaaRequestCapturePolicy requestCapturePolicy;
+
+    private final Map<String, HipaaAuditRoutePolicy> routePolicies;
+
+    private HipaaAuditSnapshot(HipaaAuditProperties properties) {
+        this.requestMatcher = HipaaAuditUriMatcher.compile(properties.getHipaaWhitelistUriPatterns(),
+            properties.getHipaaBlacklistUriPatterns());
+        this.responseMatcher = HipaaAuditUriMatcher.compile(properties.getHipaaResponseWhitelistUriPatterns(),
+            properties.getHipaaResponseBlacklistUriPatterns());
+        this.paramSerializer = new HipaaRequestParamSerializer(properties.getHipaaExcludedRequestParams(),
+            properties.getHipaaMaskedRequestParams());
+        HipaaPhiRedactor redactor = HipaaPhiRedactor.compile(properties.getRedaction());
+        this.capturePolicy = HipaaResponseCapturePolicy.compile(properties.getResponseCapture(), redactor);
+        this.requestCapturePolicy = HipaaRequestCapturePolicy.compile(properties.getRequestCapture(), redactor);
+        Map<String, HipaaAuditRoutePolicy> compiled = new LinkedHashMap<>();
+        if (properties.getRoutePolicies() != null) {
+            for (Map.Entry<String, RoutePolicy> policy : properties.getRoutePolicies().entrySet()) {
+                compiled.put(policy.getKey(), HipaaAuditRoutePolicy.compile(policy.getValue(), properties));
+            }
+        }
+        this.routePolicies = Collections.unmodifiableMap(compiled);
+    }
+
+    /**
+     * Compile the properties. The properties are not referenced by the snapshot,
+     * so they may be changed afterwards.
+     *
+     * @param properties audit properties
+     * @return the compiled configuration
+     * @throws IllegalArgumentException if a URI pattern is not a valid regex
+     */
+    public static HipaaAuditSnapshot compile(HipaaAuditProperties properties) {
+        return new HipaaAuditSnapshot(properties);
+    }
+
+    public HipaaAuditUriMatcher getRequestMatcher() {
+        return requestMatcher;
+    }
+
+    public HipaaAuditUriMatcher getResponseMatcher() {
+        return responseMatcher;
+    }
+
+    public HipaaRequestParamSerializer getParamSerializer() {
+        return paramSerializer;
+    }
+
+    public HipaaResponseCapturePolicy getCapturePolicy() {
+        return capturePolicy;
+    }
+
+    public HipaaRequestCapturePolicy getRequestCapturePolicy() {
+        return requestCapturePolicy;
+    }
+
+    /**
+     * Compiled route policies, keyed by route id or service id as configured.
+     *
+     * @return the route policies
+     */
+    public Map<String, HipaaAuditRoutePolicy> getRoutePolicies() {
+        return routePolicies;
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable matcher deciding whether a request URI is to be HIPAA audited.
+ * <p>
+ * All whitelist and blacklist patterns are compiled once. The literal prefix of
+ * every pattern is merged into a character trie, so that a single walk over the
+ * URI finds all exact and prefix matches and only the regular expressions whose
+ * literal prefix matched are evaluated. Patterns of the form {@code .*literal.*}
+ * and {@code .*literal} are evaluated with plain string searches.
+ * <p>
+ * The result is identical to {@code !anyMatch(blacklist) && anyMatch(whitelist)}
+ * using {@link String#matches(String)} for every pattern.
+ */
+public final class HipaaAuditUriMatcher {
+
+    private static final int WHITE = 0;
+    private static final int BLACK = 1;
+
+    private static final String ANY = ".*";
+
+    private final Node root;
+
+    private final String[][] contains;
+
+    private final String[][] suffixes;
+
+    private HipaaAuditUriMatcher(Node root, String[][] contains, String[][] suffixes) {
+        this.root = root;
+        this.contains = contains;
+        this.suffixes = suffixes;
+    }
+
+    /**
+     * Compile the given whitelist and blacklist patterns into a matcher.
+     *
+     * @param whitelistPatterns regexes of the URIs to audit
+     * @param blacklistPatterns regexes of the URIs never audited
+     * @return the compiled matcher
+     * @throws java.util.regex.PatternSyntaxException if any pattern is not a valid regex
+     */
+    public static HipaaAuditUriMatcher compile(Collection<String> whitelistPatterns,
+        Collection<String> blacklistPatterns) {
+        NodeBuilder root = new NodeBuilder();
+        List<List<String>> contains = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        List<List<String>> suffixes = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+
+        add(root, contains.get(WHITE), suffixes.get(WHITE), whitelistPatterns, WHITE);
+        add(root, contains.get(BLACK), suffixes.get(BLACK), blacklistPatterns, BLACK);
+
+        return new HipaaAuditUriMatcher(root.build(),
+            new String[][] {toArray(contains.get(WHITE)), toArray(contains.get(BLACK))},
+            new String[][] {toArray(suffixes.get(WHITE)), toArray(suffixes.get(BLACK))});
+    }
+
+    /**
+     * Determine whether the URI is matched by no blacklist pattern and by at
+     * least one whitelist pattern.
+     *
+     * @param uri request URI, may be null
+     * @return true when the URI should be audited
+     */
+    public boolean shouldAudit(String uri) {
+        if (uri == null) {
+            return false;
+        }
+        int length = uri.length();
+        int lastTerminator = lastLineTerminator(uri);
+        boolean white = false;
+
+        // literal checks first, regular expressions only when still undecided
+        for (String literal : contains[BLACK]) {
+            if (lastTerminator < 0 && uri.contains(literal)) {
+                return false;
+            }
+        }
+        for (String literal : suffixes[BLACK]) {
+            if (uri.endsWith(literal) && lastTerminator < length - literal.length()) {
+                return false;
+            }
+        }
+        for (String literal : contains[WHITE]) {
+            if (lastTerminator < 0 && uri.contains(literal)) {
+                white = true;
+                break;
+            }
+        }
+        for (int i = 0; !white && i < suffixes[WHITE].length; i++) {
+            String literal = suffixes[WHITE][i];
+            white = uri.endsWith(literal) && lastTerminator < length - literal.length();
+        }
+
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (i == length) {
+                if (node.exact[BLACK]) {
+                    return false;
+                }
+                white |= node.exact[WHITE];
+            }
+            if (lastTerminator < i) {
+                if (node.anyTail[BLACK]) {
+                    return false;
+                }
+                white |= node.anyTail[WHITE];
+            }
+            for (Pattern pattern : node.patterns[BLACK]) {
+                if (pattern.matcher(uri).matches()) {
+                    return false;
+                }
+            }
+            node = i < length ? node.child(uri.charAt(i)) : null;
+        }
+        return white || matchesWhitelistPattern(uri);
+    }
+
+    private boolean matchesWhitelistPattern(String uri) {
+        int length = uri.length();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            for (Pattern pattern : node.patterns[WHITE]) {
+                if (pattern.matcher(uri).matches()) {
+                    return true;
+                }
+            }
+            node = i < length ? node.child(uri.charAt(i)) : null;
+        }
+        return false;
+    }
+
+    private static void add(NodeBuilder root, List<String> contains, List<String> suffixes,
+        Collection<String> patterns, int list) {
+        if (patterns == null) {
+            return;
+        }
+        for (String regex : patterns) {
+            Pattern compiled = Pattern.compile(regex);
+            int start = regex.startsWith("^") ? 1 : 0;
+            // alternation may apply to the literal prefix, keep the whole pattern as regex
+            Literal prefix = regex.indexOf('|') < 0 ? Literal.scan(regex, start) : new Literal("", start);
+            String rest = regex.substring(prefix.end);
+
+            if (!hasLineTerminator(prefix.text)) {
+                if (rest.isEmpty() || "$".equals(rest)) {
+                    root.path(prefix.text).exact[list] = true;
+                    continue;
+                }
+                if (ANY.equals(rest) || ".*$".equals(rest)) {
+                    root.path(prefix.text).anyTail[list] = true;
+                    continue;
+                }
+                if (prefix.text.isEmpty() && rest.startsWith(ANY)) {
+                    Literal inner = Literal.scan(rest, ANY.length());
+                    String tail = rest.substring(inner.end);
+                    if (!inner.text.isEmpty() && !hasLineTerminator(inner.text)) {
+                        if (ANY.equals(tail)) {
+                            contains.add(inner.text);
+                            continue;
+                        }
+                        if (tail.isEmpty() || "$".equals(tail)) {
+                            suffixes.add(inner.text);
+                            continue;
+                        }
+                    }
+                }
+            }
+            root.path(prefix.text).patterns.get(list).add(compiled);
+        }
+    }
+
+    private static int lastLineTerminator(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (isLineTerminator(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasLineTerminator(String s) {
+        return lastLineTerminator(s) >= 0;
+    }
+
+    /**
+     * Characters not matched by {@code .} without the DOTALL flag.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static String[] toArray(List<String> list) {
+        return list.toArray(new String[0]);
+    }
+
+    /**
+     * Leading run of a regex that only matches literal characters.
+     */
+    private static final class Literal {
+        private static final String META = "\\^$.|?*+()[]{}";
+        private static final String QUANTIFIERS = "?*+{";
+
+        private final String text;
+        private final int end;
+
+        private Literal(String text, int end) {
+            this.text = text;
+            this.end = end;
+        }
+
+        static Literal scan(String regex, int start) {
+            StringBuilder text = new StringBuilder();
+            int i = start;
+            while (i < regex.length()) {
+                char c = regex.charAt(i);
+                int next;
+                if (c == '\\') {
+                    if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        break;
+                    }
+                    c = regex.charAt(i + 1);
+                    next = i + 2;
+                } else if (META.indexOf(c) >= 0 || Character.isHighSurrogate(c)) {
+                    break;
+                } else {
+                    next = i + 1;
+                }
+                // a quantifier applies to the last literal character only
+                if (next < regex.length() && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                    break;
+                }
+                text.append(c);
+                i = next;
+            }
+            return new Literal(text.toString(), i);
+        }
+    }
+
+    private static final class Node {
+        private static final Pattern[] NO_PATTERNS = new Pattern[0];
+
+        private final char[] keys;
+        private final Node[] children;
+        private final boolean[] exact;
+        private final boolean[] anyTail;
+        private final Pattern[][] patterns;
+
+        private Node(char[] keys, Node[] children, boolean[] exact, boolean[] anyTail, Pattern[][] patterns) {
+            this.keys = keys;
+            this.children = children;
+            this.exact = exact;
+            this.anyTail = anyTail;
+            this.patterns = patterns;
+        }
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    private static final class NodeBuilder {
+        private final TreeMap<Character, NodeBuilder> children = new TreeMap<>();
+        private final boolean[] exact = new boolean[2];
+        private final boolean[] anyTail = new boolean[2];
+        private final List<List<Pattern>> patterns = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+
+        NodeBuilder path(String literal) {
+            NodeBuilder node = this;
+            for (int i = 0; i < literal.length(); i++) {
+                node = node.children.computeIfAbsent(literal.charAt(i), c -> new NodeBuilder());
+            }
+            return node;
+        }
+
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, NodeBuilder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i++] = entry.getValue().build();
+            }
+            Pattern[][] compiled = new Pattern[2][];
+            for (int list = WHITE; list <= BLACK; list++) {
+                compiled[list] = patterns.get(list).isEmpty() ? Node.NO_PATTERNS
+                    : patterns.get(list).toArray(Node.NO_PATTERNS);
+            }
+            return new Node(keys, nodes, exact, anyTail, compiled);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.ZipException;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+
+/**
+ * OutputStream recording a body for an audit event: up to a maximum number of
+ * bytes in {@link BodyMode#FULL} mode, or only a SHA-256 digest in
+ * {@link BodyMode#DIGEST} mode. The total length is counted in both modes, so
+ * memory used per body is bounded by the maximum size.
+ * <p>
+ * With a {@link HipaaPhiRedactor}, the body recorded in the audit event is
+ * redacted; the bytes are captured and digested as received.
+ */
+public class HipaaBodyCapture extends OutputStream {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final BodyMode bodyMode;
+
+    private final int maxBytes;
+
+    private final ByteArrayOutputStream body;
+
+    private final MessageDigest digest;
+
+    private final HipaaPhiRedactor redactor;
+
+    private long length;
+
+    /**
+     * @param maxBytes maximum number of bytes kept in FULL mode, unlimited when negative
+     * @param bodyMode how the body is captured
+     */
+    public HipaaBodyCapture(BodyMode bodyMode, int maxBytes) {
+        this(bodyMode, maxBytes, null);
+    }
+
+    /**
+     * @param bodyMode how the body is captured
+     * @param maxBytes maximum number of bytes kept in FULL mode, unlimited when negative
+     * @param redactor redactor of the recorded body, or null
+     */
+    public HipaaBodyCapture(BodyMode bodyMode, int maxBytes, HipaaPhiRedactor redactor) {
+        this.bodyMode = bodyMode;
+        this.maxBytes = maxBytes;
+        this.redactor = redactor;
+        if (bodyMode == BodyMode.DIGEST) {
+            this.body = null;
+            this.digest = sha256();
+        } else {
+            this.body = new ByteArrayOutputStream(maxBytes >= 0 ? Math.min(maxBytes, 8192) : 8192);
+            this.digest = null;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        if (digest != null) {
+            digest.update((byte) b);
+        } else if (maxBytes < 0 || length < maxBytes) {
+            body.write(b);
+        }
+        length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (digest != null) {
+            digest.update(b, off, len);
+        } else {
+            int kept = maxBytes < 0 ? len : (int) Math.max(0, Math.min(len, maxBytes - length));
+            body.write(b, off, kept);
+        }
+        length += len;
+    }
+
+    /**
+     * Write the remaining bytes of the buffer without changing its position.
+     *
+     * @param buffer bytes to write
+     */
+    public void write(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(source.remaining(), 8192)];
+        while (source.hasRemaining()) {
+            int n = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, n);
+            write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Record the captured body in the audit record: the digest and length in
+     * DIGEST mode, otherwise the body, marked when truncated. Gzipped bodies are
+     * kept compressed and decompressed, up to the maximum size, and redacted when an
+     * audit sink reads them.
+     *
+     * @param auditRecord builder of the audit record
+     * @param gzipped whether the body is declared gzipped
+     * @param charset charset of the body
+     * @param truncationMarker marker appended to a truncated body
+     * @throws ZipException if the body is declared gzipped but is not
+     */
+    public void applyTo(HipaaAuditRecord.Builder auditRecord, boolean gzipped, Charset charset,
+        String truncationMarker) throws ZipException {
+        if (digest != null) {
+            auditRecord.responseBodySha256(getDigest()).responseBodyLength(length);
+            return;
+        }
+        String suffix = "";
+        if (isTruncated()) {
+            suffix = truncationMarker;
+            auditRecord.responseBodyTruncated(Boolean.TRUE).responseBodyLength(length);
+        }
+        if (!gzipped) {
+            auditRecord.responseBody(new String(redactedBody(), charset) + suffix);
+            return;
+        }
+        byte[] kept = body.toByteArray();
+        if (HipaaGzippedResponseBody.isGzipped(kept) || (isTruncated() && kept.length < 2)) {
+            auditRecord.responseBody(
+                new HipaaGzippedResponseBody(kept, charset, suffix, redactor, maxBytes, truncationMarker));
+        } else {
+            throw new ZipException("Not in GZIP format");
+        }
+    }
+
+    /**
+     * Record the captured body as the request body of the audit record: the
+     * digest and length in DIGEST mode, otherwise the body, marked when truncated.
+     *
+     * @param auditRecord builder of the audit record
+     * @param charset charset of the body
+     * @param truncationMarker marker appended to a truncated body
+     */
+    public void applyToRequest(HipaaAuditRecord.Builder auditRecord, Charset charset, String truncationMarker) {
+        if (digest != null) {
+            auditRecord.requestBodySha256(getDigest()).requestBodyLength(length);
+            return;
+        }
+        String suffix = "";
+        if (isTruncated()) {
+            suffix = truncationMarker;
+            auditRecord.requestBodyTruncated(Boolean.TRUE).requestBodyLength(length);
+        }
+        auditRecord.requestBody(new String(redactedBody(), charset) + suffix);
+    }
+
+    private byte[] redactedBody() {
+        if (redactor == null) {
+            return body.toByteArray();
+        }
+        ByteArrayOutputStream redacted = new ByteArrayOutputStream(body.size());
+        try (OutputStream out = redactor.redact(redacted, isTruncated())) {
+            body.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return redacted.toByteArray();
+    }
+
+    public BodyMode getBodyMode() {
+        return bodyMode;
+    }
+
+    /**
+     * Maximum number of bytes kept in FULL mode, unlimited when negative.
+     *
+     * @return the maximum number of bytes kept
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Number of bytes written, including bytes beyond the maximum size.
+     *
+     * @return the number of bytes written
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Whether bytes beyond the maximum size were discarded.
+     *
+     * @return true when the kept body is truncated
+     */
+    public boolean isTruncated() {
+        return body != null && length > body.size();
+    }
+
+    /**
+     * The kept bytes as received, not redacted, null in DIGEST mode.
+     *
+     * @return a copy of the kept bytes
+     */
+    public byte[] getBody() {
+        return body != null ? body.toByteArray() : null;
+    }
+
+    /**
+     * Lowercase hex SHA-256 digest of all bytes written, null in FULL mode. The
+     * digest is completed by the first call.
+     *
+     * @return the digest of the body
+     */
+    public String getDigest() {
+        if (digest == null) {
+            return null;
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
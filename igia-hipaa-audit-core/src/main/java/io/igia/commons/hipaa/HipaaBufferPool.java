@@ -0,0 +1,212 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BufferPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Pool of direct ByteBuffer slabs in size classes of {@value #MIN_SLAB_SIZE} bytes
+ * to {@value #MAX_SLAB_SIZE} bytes, each four times the previous one. Larger
+ * bodies are held in several slabs, see {@link HipaaPooledBody}.
+ * <p>
+ * Released slabs are kept for reuse up to the configured number of bytes, see
+ * {@link BufferPool}; beyond it they are dropped and their memory is reclaimed
+ * when they are garbage collected.
+ * <p>
+ * The direct slabs acquired and not yet released are bounded by the configured
+ * number of outstanding bytes; beyond it slabs are allocated on the heap, so
+ * that many large bodies in flight cannot exhaust the direct memory. Heap slabs
+ * are not pooled.
+ */
+public class HipaaBufferPool implements MeterBinder {
+
+    static final int MIN_SLAB_SIZE = 4 * 1024;
+
+    static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+    private static final int SIZE_CLASSES = 5;
+
+    private final long maxPooledBytes;
+
+    private final long maxDirectBytes;
+
+    @SuppressWarnings("unchecked")
+    private final Queue<ByteBuffer>[] free = new Queue[SIZE_CLASSES];
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    private final LongAdder allocated = new LongAdder();
+
+    private final LongAdder reused = new LongAdder();
+
+    private final LongAdder heap = new LongAdder();
+
+    public HipaaBufferPool(BufferPool properties) {
+        this(properties.getMaxPooledBytes(), properties.getMaxDirectBytes());
+    }
+
+    public HipaaBufferPool(long maxPooledBytes) {
+        this(maxPooledBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxPooledBytes maximum number of bytes of released slabs kept for reuse
+     * @param maxDirectBytes maximum number of bytes of direct slabs acquired and not released
+     */
+    public HipaaBufferPool(long maxPooledBytes, long maxDirectBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxDirectBytes = maxDirectBytes;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Cleared slab of the smallest size class holding {@code size} bytes, or of
+     * the largest size class when none does. The slab is a heap buffer when the
+     * outstanding direct slabs would exceed their maximum.
+     *
+     * @param size number of bytes to hold
+     * @return the slab
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        int slabSize = slabSize(sizeClass);
+        if (outstandingBytes.addAndGet(slabSize) > maxDirectBytes) {
+            outstandingBytes.addAndGet(-slabSize);
+            heap.increment();
+            return ByteBuffer.allocate(slabSize);
+        }
+        ByteBuffer slab = free[sizeClass].poll();
+        if (slab != null) {
+            pooledBytes.addAndGet(-slab.capacity());
+            reused.increment();
+            return slab;
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(slabSize);
+    }
+
+    /**
+     * Slab of the next size class after the given one, to continue a body which
+     * did not fit in it.
+     *
+     * @param previous slab which is full
+     * @return the larger slab
+     */
+    public ByteBuffer acquireNext(ByteBuffer previous) {
+        return acquire(Math.min(previous.capacity() * 4, MAX_SLAB_SIZE));
+    }
+
+    /**
+     * Return a slab acquired from this pool. The slab must not be used afterwards.
+     *
+     * @param slab slab to return
+     */
+    public void release(ByteBuffer slab) {
+        if (!slab.isDirect()) {
+            return;
+        }
+        int capacity = slab.capacity();
+        outstandingBytes.addAndGet(-capacity);
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        slab.clear();
+        free[sizeClass(capacity)].offer(slab);
+    }
+
+    private static int sizeClass(int size) {
+        int sizeClass = 0;
+        while (sizeClass < SIZE_CLASSES - 1 && slabSize(sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static int slabSize(int sizeClass) {
+        return MIN_SLAB_SIZE << (2 * sizeClass);
+    }
+
+    /**
+     * Number of bytes held by released slabs waiting for reuse.
+     *
+     * @return the number of pooled bytes
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of bytes of direct slabs acquired and not released yet.
+     *
+     * @return the number of outstanding direct bytes
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * Number of slabs allocated because none of their size class was free.
+     *
+     * @return the number of allocated slabs
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Number of slabs acquired from the free slabs.
+     *
+     * @return the number of reused slabs
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * Number of heap slabs allocated because the outstanding direct slabs were at their maximum.
+     *
+     * @return the number of heap slabs
+     */
+    public long getHeapAllocated() {
+        return heap.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("hipaa.audit.buffer.pool.pooled", this, HipaaBufferPool::getPooledBytes)
+            .baseUnit("bytes").description("Bytes of free slabs kept for reuse").register(registry);
+        Gauge.builder("hipaa.audit.buffer.pool.outstanding", this, HipaaBufferPool::getOutstandingBytes)
+            .baseUnit("bytes").description("Bytes of direct slabs held by bodies").register(registry);
+        FunctionCounter.builder("hipaa.audit.buffer.pool.acquired", this, HipaaBufferPool::getAllocated)
+            .tag("source", "allocated").description("Slabs acquired from the pool").register(registry);
+        FunctionCounter.builder("hipaa.audit.buffer.pool.acquired", this, HipaaBufferPool::getReused)
+            .tag("source", "reused").description("Slabs acquired from the pool").register(registry);
+        FunctionCounter.builder("hipaa.audit.buffer.pool.acquired", this, HipaaBufferPool::getHeapAllocated)
+            .tag("source", "heap").description("Slabs acquired from the pool").register(registry);
+    }
+}
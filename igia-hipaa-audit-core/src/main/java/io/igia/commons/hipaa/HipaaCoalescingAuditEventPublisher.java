@@ -0,0 +1,421 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Coalescing;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * ApplicationEventPublisher that coalesces identical Hipaa audit events, e.g.
+ * of a client polling the same URI, into one audit event per window.
+ * <p>
+ * Audit events are identical when they have the same principal, remote address,
+ * HTTP method, request URI, request parameters, response status, request id and
+ * audit fidelity, so that no source address or correlated request is lost from
+ * the audit trail. As the request id differs per request, the publisher is not
+ * configured while request correlation is enabled. The first audit event
+ * of a key is held for the window and published at its end, with
+ * {@value HipaaAuditRecord#COALESCED_COUNT} and
+ * {@value HipaaAuditRecord#LAST_TIMESTAMP} when further identical events were
+ * coalesced into it. An audit event whose request or response body differs from
+ * the held one publishes the held event and is held in its place, so that every
+ * distinct body is recorded. Bodies are compared by the SHA-256 digests of the
+ * body capture where present, by their compressed bytes when gzipped and by
+ * their content otherwise, without hashing them again.
+ * <p>
+ * At most {@code maxKeys} events with at most {@code maxHeldBodyBytes} of bodies
+ * are held; events of further keys or bodies, events other
+ * than Hipaa audit events and events published after {@link #destroy()} are
+ * published as they are. All held events are published when the application
+ * context closes, before the beans the audit listeners depend on are destroyed,
+ * or at the latest by {@link #destroy()}.
+ */
+public class HipaaCoalescingAuditEventPublisher implements ApplicationEventPublisher, MeterBinder, DisposableBean,
+    ApplicationListener<ContextClosedEvent>, ApplicationContextAware {
+
+    private static final long MAX_SWEEP_INTERVAL = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(HipaaCoalescingAuditEventPublisher.class);
+
+    private final ApplicationEventPublisher delegate;
+
+    private final ConcurrentMap<Key, Group> groups = new ConcurrentHashMap<>();
+
+    private final long window;
+
+    private final int maxKeys;
+
+    private final long maxHeldBodyBytes;
+
+    private final AtomicLong heldBodyBytes = new AtomicLong();
+
+    private final Clock clock;
+
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder passedThrough = new LongAdder();
+
+    private volatile boolean closed;
+
+    private ApplicationContext applicationContext;
+
+    public HipaaCoalescingAuditEventPublisher(ApplicationEventPublisher delegate, Coalescing properties) {
+        this(delegate, properties, Clock.systemUTC());
+    }
+
+    HipaaCoalescingAuditEventPublisher(ApplicationEventPublisher delegate, Coalescing properties, Clock clock) {
+        this.delegate = delegate;
+        this.window = Math.max(1, properties.getWindow());
+        this.maxKeys = Math.max(1, properties.getMaxKeys());
+        this.maxHeldBodyBytes = Math.max(0, properties.getMaxHeldBodyBytes());
+        this.clock = clock;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hipaa-audit-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepInterval = Math.min(window, MAX_SWEEP_INTERVAL);
+        this.sweeper.scheduleWithFixedDelay(this::flushExpired, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publishEvent(ApplicationEvent event) {
+        publishEvent((Object) event);
+    }
+
+    @Override
+    public void publishEvent(Object event) {
+        if (closed || !(event instanceof HipaaAuditApplicationEvent)) {
+            deliver(event);
+            return;
+        }
+        HipaaAuditRecord record = ((HipaaAuditApplicationEvent) event).getRecord();
+        long bodyBytes = bodyBytes(record);
+        long now = clock.millis();
+        HipaaAuditRecord[] replaced = new HipaaAuditRecord[1];
+        Group group = groups.compute(new Key(record), (key, held) -> {
+            if (held != null) {
+                if (!isExpired(held.start, now) && sameBodies(held.first, record)) {
+                    held.add(record);
+                    coalesced.increment();
+                    return held;
+                }
+                replaced[0] = held.toRecord();
+                heldBodyBytes.addAndGet(-held.bodyBytes);
+            } else if (groups.size() >= maxKeys) {
+                return null;
+            }
+            return reserve(bodyBytes) ? new Group(record, bodyBytes, now) : null;
+        });
+        if (replaced[0] != null) {
+            deliver(new HipaaAuditApplicationEvent(replaced[0]));
+        }
+        if (group == null) {
+            passedThrough.increment();
+            deliver(event);
+            return;
+        }
+        if (closed) {
+            // held after destroy() flushed
+            flush(start -> true);
+        }
+    }
+
+    private boolean reserve(long bodyBytes) {
+        if (heldBodyBytes.addAndGet(bodyBytes) <= maxHeldBodyBytes) {
+            return true;
+        }
+        heldBodyBytes.addAndGet(-bodyBytes);
+        return false;
+    }
+
+    private boolean isExpired(long start, long now) {
+        return now - start >= window;
+    }
+
+    /**
+     * Publish the held events whose window has ended.
+     */
+    void flushExpired() {
+        long now = clock.millis();
+        flush(start -> isExpired(start, now));
+    }
+
+    /**
+     * Publish the held events of a start time matching the predicate.
+     */
+    void flush(LongPredicate startMatches) {
+        List<HipaaAuditRecord> flushed = new ArrayList<>();
+        for (Key key : groups.keySet()) {
+            groups.computeIfPresent(key, (k, held) -> {
+                if (!startMatches.test(held.start)) {
+                    return held;
+                }
+                flushed.add(held.toRecord());
+                heldBodyBytes.addAndGet(-held.bodyBytes);
+                return null;
+            });
+        }
+        for (HipaaAuditRecord record : flushed) {
+            deliver(new HipaaAuditApplicationEvent(record));
+        }
+    }
+
+    private void deliver(Object event) {
+        try {
+            delegate.publishEvent(event);
+        } catch (RuntimeException e) {
+            log.error("Error publishing Hipaa audit event", e);
+        }
+    }
+
+    /**
+     * Size of the request and response bodies held with an audit event, in
+     * characters or compressed bytes.
+     */
+    static long bodyBytes(HipaaAuditRecord record) {
+        long bytes = record.getRequestBody() == null ? 0 : record.getRequestBody().length();
+        CharSequence responseBody = record.getResponseBody();
+        if (responseBody instanceof HipaaGzippedResponseBody) {
+            // not decompressed for its length
+            bytes += ((HipaaGzippedResponseBody) responseBody).getCompressed().length;
+        } else if (responseBody != null) {
+            bytes += responseBody.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Whether two audit events have the same request and response bodies.
+     */
+    static boolean sameBodies(HipaaAuditRecord held, HipaaAuditRecord record) {
+        return sameBody(held.getRequestBodySha256(), held.getRequestBody(), record.getRequestBodySha256(),
+            record.getRequestBody())
+            && sameBody(held.getResponseBodySha256(), held.getResponseBody(), record.getResponseBodySha256(),
+                record.getResponseBody());
+    }
+
+    private static boolean sameBody(String heldSha256, CharSequence heldBody, String sha256, CharSequence body) {
+        if (heldSha256 != null || sha256 != null) {
+            return Objects.equals(heldSha256, sha256);
+        }
+        if (heldBody instanceof HipaaGzippedResponseBody || body instanceof HipaaGzippedResponseBody) {
+            return heldBody instanceof HipaaGzippedResponseBody && body instanceof HipaaGzippedResponseBody
+                && sameGzippedBody((HipaaGzippedResponseBody) heldBody, (HipaaGzippedResponseBody) body);
+        }
+        return heldBody == null ? body == null : body != null && heldBody.toString().equals(body.toString());
+    }
+
+    private static boolean sameGzippedBody(HipaaGzippedResponseBody heldBody, HipaaGzippedResponseBody body) {
+        return heldBody.isRedacted() == body.isRedacted() && heldBody.getCharset().equals(body.getCharset())
+            && Objects.equals(heldBody.getSuffix(), body.getSuffix())
+            && heldBody.getMaxBytes() == body.getMaxBytes()
+            && Objects.equals(heldBody.getTruncationMarker(), body.getTruncationMarker())
+            && Arrays.equals(heldBody.getCompressed(), body.getCompressed());
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void onApplicationEvent(ContextClosedEvent event) {
+        // not the closing of a child context
+        if (event.getApplicationContext() == applicationContext) {
+            destroy();
+        }
+    }
+
+    /**
+     * Stop coalescing and publish the held events.
+     */
+    @Override
+    public void destroy() {
+        closed = true;
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(MAX_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(start -> true);
+    }
+
+    public int getHeldCount() {
+        return groups.size();
+    }
+
+    /**
+     * Size of the bodies of the held events, in characters or compressed bytes.
+     *
+     * @return the size of the held bodies
+     */
+    public long getHeldBodyBytes() {
+        return heldBodyBytes.get();
+    }
+
+    /**
+     * Audit events coalesced into a held event rather than published.
+     *
+     * @return the number of coalesced events
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Audit events published as they are because {@code maxKeys} events or
+     * {@code maxHeldBodyBytes} of bodies were held.
+     *
+     * @return the number of events passed through
+     */
+    public long getPassedThroughCount() {
+        return passedThrough.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("hipaa.audit.coalescing.held", this, HipaaCoalescingAuditEventPublisher::getHeldCount)
+            .description("Audit events held for coalescing").register(registry);
+        Gauge.builder("hipaa.audit.coalescing.held.body", this, HipaaCoalescingAuditEventPublisher::getHeldBodyBytes)
+            .description("Size of the bodies of the audit events held for coalescing").baseUnit("bytes")
+            .register(registry);
+        FunctionCounter.builder("hipaa.audit.coalescing.coalesced", this,
+            HipaaCoalescingAuditEventPublisher::getCoalescedCount)
+            .description("Audit events coalesced into a held audit event").register(registry);
+        FunctionCounter.builder("hipaa.audit.coalescing.passed.through", this,
+            HipaaCoalescingAuditEventPublisher::getPassedThroughCount)
+            .description("Audit events published uncoalesced because too many were held").register(registry);
+    }
+
+    private static final class Key {
+
+        private final String principal;
+
+        private final String remoteAddress;
+
+        private final String httpMethod;
+
+        private final String requestUri;
+
+        private final String requestParam;
+
+        private final Integer responseStatus;
+
+        private final String requestId;
+
+        private final HipaaAuditFidelity fidelity;
+
+        private final int hash;
+
+        Key(HipaaAuditRecord record) {
+            this.principal = record.getPrincipal();
+            this.remoteAddress = record.getRemoteAddress();
+            this.httpMethod = record.getHttpMethod();
+            this.requestUri = record.getRequestUri();
+            this.requestParam = record.getRequestParam();
+            this.responseStatus = record.getResponseStatus();
+            this.requestId = record.getRequestId();
+            this.fidelity = record.getFidelity();
+            this.hash = Objects.hash(principal, remoteAddress, httpMethod, requestUri, requestParam, responseStatus,
+                requestId, fidelity);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Objects.equals(principal, other.principal)
+                && Objects.equals(remoteAddress, other.remoteAddress) && Objects.equals(httpMethod, other.httpMethod)
+                && Objects.equals(requestUri, other.requestUri) && Objects.equals(requestParam, other.requestParam)
+                && Objects.equals(responseStatus, other.responseStatus) && Objects.equals(requestId, other.requestId)
+                && fidelity == other.fidelity;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Held audit event and the identical events coalesced into it, only
+     * accessed within the map operations of its key.
+     */
+    private static final class Group {
+
+        private final HipaaAuditRecord first;
+
+        private final long bodyBytes;
+
+        private final long start;
+
+        private long count = 1;
+
+        private Instant last;
+
+        Group(HipaaAuditRecord first, long bodyBytes, long start) {
+            this.first = first;
+            this.bodyBytes = bodyBytes;
+            this.start = start;
+            this.last = first.getTimestamp();
+        }
+
+        void add(HipaaAuditRecord record) {
+            count++;
+            if (record.getTimestamp().isAfter(last)) {
+                last = record.getTimestamp();
+            }
+        }
+
+        HipaaAuditRecord toRecord() {
+            return count == 1 ? first : first.toBuilder().coalescedCount(count).lastTimestamp(last).build();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Gzip compressed response body kept in an audit event as received from the
+ * upstream service.
+ * <p>
+ * The body is decompressed on the first call to {@link #toString()} or any other
+ * CharSequence method, i.e. only when an audit sink actually reads it. A body
+ * truncated in the middle of the compressed stream decodes to the text
+ * recovered so far. Decompression stops after the maximum number of bytes, if
+ * any, and the truncation marker is appended, as for uncompressed bodies, so a
+ * small compressed body cannot inflate without bound.
+ * <p>
+ * A body with a {@link HipaaPhiRedactor} is redacted while it is decompressed.
+ * Its compressed bytes are then not redacted, so it is persisted as text.
+ */
+public final class HipaaGzippedResponseBody implements CharSequence {
+
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private static final Logger log = LoggerFactory.getLogger(HipaaGzippedResponseBody.class);
+
+    private final byte[] compressed;
+
+    private final Charset charset;
+
+    private final String suffix;
+
+    private final HipaaPhiRedactor redactor;
+
+    private final int maxBytes;
+
+    private final String truncationMarker;
+
+    private volatile String decoded;
+
+    /**
+     * @param compressed the gzip compressed body, not copied
+     * @param charset character encoding of the uncompressed body, ISO-8859-1 when null
+     */
+    public HipaaGzippedResponseBody(byte[] compressed, Charset charset) {
+        this(compressed, charset, "");
+    }
+
+    /**
+     * @param compressed the gzip compressed body, not copied
+     * @param charset character encoding of the uncompressed body, ISO-8859-1 when null
+     * @param suffix text appended to the decompressed body, e.g. a truncation marker
+     */
+    public HipaaGzippedResponseBody(byte[] compressed, Charset charset, String suffix) {
+        this(compressed, charset, suffix, null);
+    }
+
+    /**
+     * @param compressed the gzip compressed body, not copied
+     * @param charset character encoding of the uncompressed body, ISO-8859-1 when null
+     * @param suffix text appended to the decompressed body, e.g. a truncation marker
+     * @param redactor redactor of the decompressed body, or null
+     */
+    public HipaaGzippedResponseBody(byte[] compressed, Charset charset, String suffix, HipaaPhiRedactor redactor) {
+        this(compressed, charset, suffix, redactor, -1, "");
+    }
+
+    /**
+     * @param compressed the gzip compressed body, not copied
+     * @param charset character encoding of the uncompressed body, ISO-8859-1 when null
+     * @param suffix text appended to the decompressed body, e.g. a truncation marker
+     * @param redactor redactor of the decompressed body, or null
+     * @param maxBytes maximum number of decompressed bytes kept, unlimited when negative
+     * @param truncationMarker marker appended when decompression stops at the maximum, unless there is a suffix
+     */
+    public HipaaGzippedResponseBody(byte[] compressed, Charset charset, String suffix, HipaaPhiRedactor redactor,
+        int maxBytes, String truncationMarker) {
+        this.redactor = redactor;
+        this.compressed = compressed;
+        this.charset = charset != null ? charset : StandardCharsets.ISO_8859_1;
+        this.suffix = suffix != null ? suffix : "";
+        this.maxBytes = maxBytes;
+        this.truncationMarker = truncationMarker != null ? truncationMarker : "";
+    }
+
+    /**
+     * Whether the bytes start with the gzip magic header.
+     *
+     * @param bytes body bytes
+     * @return true when the bytes are gzip compressed
+     */
+    public static boolean isGzipped(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xff) == 0x1f && (bytes[1] & 0xff) == 0x8b;
+    }
+
+    public byte[] getCompressed() {
+        return compressed;
+    }
+
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Maximum number of decompressed bytes kept, unlimited when negative.
+     *
+     * @return the maximum number of decompressed bytes
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public String getTruncationMarker() {
+        return truncationMarker;
+    }
+
+    /**
+     * Whether the decompressed body is redacted, the compressed bytes are not.
+     *
+     * @return true when the decompressed body is redacted
+     */
+    public boolean isRedacted() {
+        return redactor != null;
+    }
+
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    @JsonValue
+    public String toString() {
+        String body = decoded;
+        if (body == null) {
+            body = decode();
+            decoded = body;
+        }
+        return body;
+    }
+
+    private String decode() {
+        int capacity = (int) Math.min(compressed.length * 4L, maxBytes >= 0 ? maxBytes : Integer.MAX_VALUE - 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(capacity, 32));
+        boolean limited = false;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (maxBytes >= 0 && n > maxBytes - out.size()) {
+                    out.write(buffer, 0, maxBytes - out.size());
+                    limited = true;
+                    break;
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            if (suffix.isEmpty()) {
+                log.warn("Error decompressing response body, keeping {} decompressed bytes", out.size(), e);
+            }
+        }
+        String marker = limited && suffix.isEmpty() ? truncationMarker : suffix;
+        // a truncation marker follows a truncated body
+        byte[] body = redactor != null ? redact(out, limited || !suffix.isEmpty()) : out.toByteArray();
+        return new String(body, charset) + marker;
+    }
+
+    private byte[] redact(ByteArrayOutputStream decompressed, boolean truncated) {
+        ByteArrayOutputStream redacted = new ByteArrayOutputStream(decompressed.size());
+        try (OutputStream out = redactor.redact(redacted, truncated)) {
+            decompressed.writeTo(out);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+        }
+        return redacted.toByteArray();
+    }
+}
@@ -0,0 +1,495 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+import io.igia.commons.hipaa.HipaaAuditProperties.RedactionToken;
+
+/**
+ * Masks PHI in a body in a single pass over its bytes, see {@link Redaction}.
+ * <p>
+ * Quoted JSON field names are found with an Aho-Corasick automaton, compiled
+ * into a transition table over the bytes occurring in the names. When a name is
+ * followed by a colon, its value is replaced by the quoted mask: strings up to
+ * their closing quote, objects and arrays up to their matching bracket, other
+ * values up to the next delimiter. Independently, runs of digits and separators
+ * bounded by non-alphanumeric bytes are buffered, and masked digit by digit when
+ * they have the shape of an enabled {@link RedactionToken}.
+ * <p>
+ * The body is processed as UTF-8 or any other ASCII compatible encoding; bytes
+ * of multibyte characters never match names or tokens. Bodies which are not
+ * JSON only get their tokens masked.
+ */
+public final class HipaaPhiRedactor {
+
+    /**
+     * Longest token shape, plus trailing separators.
+     */
+    private static final int MAX_RUN = 16;
+
+    private static final String[] SSN_SHAPES = {"ddd-dd-dddd"};
+
+    private static final String[] PHONE_SHAPES = {"ddd-ddd-dddd", "ddd.ddd.dddd", "(ddd) ddd-dddd", "(ddd)ddd-dddd"};
+
+    private final byte[] quotedMask;
+
+    private final byte[][] shapes;
+
+    private final int[] byteClass = new int[256];
+
+    private final int classes;
+
+    private final int[] transitions;
+
+    private final boolean[] accepting;
+
+    private HipaaPhiRedactor(Redaction properties) {
+        String mask = properties.getMask() != null ? properties.getMask() : "";
+        this.quotedMask = ('"' + mask.replace("\\", "\\\\").replace("\"", "\\\"") + '"')
+            .getBytes(StandardCharsets.UTF_8);
+        List<byte[]> tokenShapes = new ArrayList<>();
+        List<RedactionToken> tokens = properties.getTokens() != null ? properties.getTokens() : new ArrayList<>();
+        if (tokens.contains(RedactionToken.SSN)) {
+            addShapes(tokenShapes, SSN_SHAPES);
+        }
+        if (tokens.contains(RedactionToken.PHONE)) {
+            addShapes(tokenShapes, PHONE_SHAPES);
+        }
+        this.shapes = tokenShapes.toArray(new byte[0][]);
+
+        List<byte[]> names = new ArrayList<>();
+        if (properties.getFieldNames() != null) {
+            for (String name : properties.getFieldNames()) {
+                names.add(('"' + name + '"').getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int nextClass = 1;
+        for (byte[] name : names) {
+            for (byte b : name) {
+                if (byteClass[b & 0xff] == 0) {
+                    byteClass[b & 0xff] = nextClass++;
+                }
+            }
+        }
+        this.classes = nextClass;
+
+        // trie of the names, then failure links in breadth first order turn it into a DFA
+        List<int[]> trie = new ArrayList<>();
+        List<Boolean> ends = new ArrayList<>();
+        trie.add(new int[classes]);
+        ends.add(Boolean.FALSE);
+        for (byte[] name : names) {
+            int state = 0;
+            for (byte b : name) {
+                int c = byteClass[b & 0xff];
+                if (trie.get(state)[c] == 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(new int[classes]);
+                    ends.add(Boolean.FALSE);
+                }
+                state = trie.get(state)[c];
+            }
+            ends.set(state, Boolean.TRUE);
+        }
+        int states = trie.size();
+        this.transitions = new int[states * classes];
+        this.accepting = new boolean[states];
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < classes; c++) {
+            int child = trie.get(0)[c];
+            transitions[c] = child;
+            if (child != 0) {
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            accepting[state] = ends.get(state) || accepting[failure[state]];
+            for (int c = 0; c < classes; c++) {
+                int child = trie.get(state)[c];
+                if (child != 0) {
+                    failure[child] = transitions[failure[state] * classes + c];
+                    transitions[state * classes + c] = child;
+                    queue[tail++] = child;
+                } else {
+                    transitions[state * classes + c] = transitions[failure[state] * classes + c];
+                }
+            }
+        }
+    }
+
+    private static void addShapes(List<byte[]> shapes, String[] tokenShapes) {
+        for (String shape : tokenShapes) {
+            shapes.add(shape.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Compile the redaction settings, null when redaction is disabled.
+     *
+     * @param properties redaction settings
+     * @return the redactor, or null
+     */
+    public static HipaaPhiRedactor compile(Redaction properties) {
+        return properties != null && properties.isEnabled() ? new HipaaPhiRedactor(properties) : null;
+    }
+
+    /**
+     * Stream writing the redacted bytes written to it to the given stream. Bytes
+     * of a possible token are held back until the token ends, so the stream must
+     * be closed to write them; closing does not close the given stream.
+     *
+     * @param out stream receiving the redacted bytes
+     * @return the redacting stream
+     */
+    public OutputStream redact(OutputStream out) {
+        return redact(out, false);
+    }
+
+    /**
+     * Stream writing the redacted bytes written to it to the given stream, see
+     * {@link #redact(OutputStream)}.
+     *
+     * @param out stream receiving the redacted bytes
+     * @param truncated whether the bytes written are the start of a truncated
+     *        body, so that a run of digits at their end, possibly the start of a
+     *        token, is masked whatever its shape
+     * @return the redacting stream
+     */
+    public OutputStream redact(OutputStream out, boolean truncated) {
+        return new RedactingOutputStream(out, truncated);
+    }
+
+    /**
+     * Redact the given bytes.
+     *
+     * @param bytes bytes to redact
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @return the redacted bytes
+     */
+    public byte[] redact(byte[] bytes, int off, int len) {
+        ByteArrayOutputStream redacted = new ByteArrayOutputStream(len);
+        try (OutputStream out = redact(redacted)) {
+            out.write(bytes, off, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return redacted.toByteArray();
+    }
+
+    private enum Mode {
+        /** Outside of masked values. */
+        TEXT,
+        /** After a field name, expecting a colon. */
+        AFTER_NAME,
+        /** After the colon of a field name, expecting its value. */
+        AFTER_COLON,
+        /** Inside a masked string value. */
+        STRING_VALUE,
+        /** Inside a masked object or array value. */
+        NESTED_VALUE,
+        /** Inside a masked number or literal value. */
+        SCALAR_VALUE
+    }
+
+    private final class RedactingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final boolean truncated;
+
+        private final byte[] buffer = new byte[8192];
+
+        private int count;
+
+        private Mode mode = Mode.TEXT;
+
+        private int state;
+
+        private int depth;
+
+        private boolean inString;
+
+        private boolean escape;
+
+        private final byte[] run = new byte[MAX_RUN];
+
+        private int runLength;
+
+        /**
+         * Whether the current run of digits and separators cannot be a token, e.g.
+         * because it is too long. Its bytes are written through until it ends.
+         */
+        private boolean runDead;
+
+        private int previous = ' ';
+
+        RedactingOutputStream(OutputStream out, boolean truncated) {
+            this.out = out;
+            this.truncated = truncated;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            process(b & 0xff);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                process(b[i] & 0xff);
+            }
+        }
+
+        private void process(int b) throws IOException {
+            switch (mode) {
+                case AFTER_NAME:
+                    if (isWhitespace(b)) {
+                        emit(b);
+                    } else if (b == ':') {
+                        emit(b);
+                        mode = Mode.AFTER_COLON;
+                    } else {
+                        mode = Mode.TEXT;
+                        text(b);
+                    }
+                    break;
+                case AFTER_COLON:
+                    if (isWhitespace(b)) {
+                        emit(b);
+                        break;
+                    }
+                    if (b == ',' || b == '}' || b == ']') {
+                        // no value, not JSON
+                        mode = Mode.TEXT;
+                        text(b);
+                        break;
+                    }
+                    emit(quotedMask, quotedMask.length);
+                    if (b == '"') {
+                        mode = Mode.STRING_VALUE;
+                        escape = false;
+                    } else if (b == '{' || b == '[') {
+                        mode = Mode.NESTED_VALUE;
+                        depth = 1;
+                        inString = false;
+                        escape = false;
+                    } else {
+                        mode = Mode.SCALAR_VALUE;
+                    }
+                    break;
+                case STRING_VALUE:
+                    if (escape) {
+                        escape = false;
+                    } else if (b == '\\') {
+                        escape = true;
+                    } else if (b == '"') {
+                        endValue(b);
+                    }
+                    break;
+                case NESTED_VALUE:
+                    nested(b);
+                    break;
+                case SCALAR_VALUE:
+                    if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                        mode = Mode.TEXT;
+                        state = 0;
+                        text(b);
+                    }
+                    break;
+                default:
+                    text(b);
+            }
+        }
+
+        private void nested(int b) {
+            if (inString) {
+                if (escape) {
+                    escape = false;
+                } else if (b == '\\') {
+                    escape = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                endValue(b);
+            }
+        }
+
+        /**
+         * Resume after the last byte of a masked value, which is not written.
+         */
+        private void endValue(int b) {
+            mode = Mode.TEXT;
+            state = 0;
+            previous = b;
+        }
+
+        /**
+         * Write a byte outside of masked values, through the token run, and advance
+         * the field name automaton.
+         */
+        private void text(int b) throws IOException {
+            token(b);
+            previous = b;
+            state = transitions[state * classes + byteClass[b]];
+            if (accepting[state]) {
+                mode = Mode.AFTER_NAME;
+                state = 0;
+            }
+        }
+
+        private void token(int b) throws IOException {
+            if (runLength > 0 || runDead) {
+                if (continuesRun(b)) {
+                    if (runDead) {
+                        emit(b);
+                    } else if (runLength == MAX_RUN) {
+                        emit(run, runLength);
+                        runLength = 0;
+                        runDead = true;
+                        emit(b);
+                    } else {
+                        run[runLength++] = (byte) b;
+                    }
+                    return;
+                }
+                endRun(!isAlphanumeric(b));
+            }
+            if (shapes.length > 0 && (isDigit(b) || b == '(') && !isAlphanumeric(previous)) {
+                run[runLength++] = (byte) b;
+            } else {
+                emit(b);
+            }
+        }
+
+        private boolean continuesRun(int b) {
+            return isDigit(b) || b == '-' || b == '.' || b == ')' || (b == ' ' && previous == ')');
+        }
+
+        /**
+         * Write the buffered run, masked when it has a token shape up to trailing
+         * separators and is followed by a boundary.
+         */
+        private void endRun(boolean boundary) throws IOException {
+            if (!runDead && boundary) {
+                int length = runLength;
+                while (length > 0 && (run[length - 1] == '-' || run[length - 1] == '.' || run[length - 1] == ' ')) {
+                    length--;
+                }
+                if (hasTokenShape(length)) {
+                    maskRun(length);
+                }
+            }
+            emit(run, runLength);
+            runLength = 0;
+            runDead = false;
+        }
+
+        private void maskRun(int length) {
+            for (int i = 0; i < length; i++) {
+                if (isDigit(run[i])) {
+                    run[i] = '*';
+                }
+            }
+        }
+
+        private boolean hasTokenShape(int length) {
+            for (byte[] shape : shapes) {
+                if (shape.length == length && matches(shape, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(byte[] shape, int length) {
+            for (int i = 0; i < length; i++) {
+                if (shape[i] == 'd' ? !isDigit(run[i]) : shape[i] != run[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void emit(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        private void emit(byte[] bytes, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                emit(bytes[i]);
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        /**
+         * Write the pending run, ended by the end of the body or masked when the
+         * body is truncated, and the buffer.
+         */
+        @Override
+        public void close() throws IOException {
+            if (truncated) {
+                maskRun(runLength);
+            }
+            if (runLength > 0 || runDead) {
+                endRun(true);
+            }
+            flush();
+        }
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isDigit(int b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Letters, digits and bytes of multibyte characters, which do not bound a token.
+     */
+    private static boolean isAlphanumeric(int b) {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b >= 0x80;
+    }
+}
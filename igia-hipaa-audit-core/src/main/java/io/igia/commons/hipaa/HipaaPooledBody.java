@@ -0,0 +1,241 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Body read into direct slabs of a {@link HipaaBufferPool}, shared by its
+ * consumers through reference counting, e.g. the stream replaying the body to
+ * the client and the audit capture. The slabs return to the pool when the last
+ * reference is released.
+ * <p>
+ * A new body holds one reference. Each {@link #newInputStream() stream} holds
+ * its own reference until it is closed.
+ */
+public final class HipaaPooledBody {
+
+    /**
+     * Buffer reused per thread to move bytes between heap streams and slabs.
+     */
+    private static final ThreadLocal<byte[]> TRANSFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final HipaaBufferPool pool;
+
+    private final List<ByteBuffer> slabs;
+
+    private final long length;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private HipaaPooledBody(HipaaBufferPool pool, List<ByteBuffer> slabs, long length) {
+        this.pool = pool;
+        this.slabs = slabs;
+        this.length = length;
+    }
+
+    /**
+     * Read the stream to its end into slabs of the pool. The stream is not closed.
+     *
+     * @param in stream of the body
+     * @param pool pool of the slabs
+     * @param sizeHint expected length of the body, e.g. the content length, or 0 when unknown
+     * @return the body read
+     * @throws IOException if reading fails, the slabs read so far are released
+     */
+    public static HipaaPooledBody read(InputStream in, HipaaBufferPool pool, long sizeHint) throws IOException {
+        List<ByteBuffer> slabs = new ArrayList<>(4);
+        ByteBuffer slab = pool.acquire((int) Math.min(Math.max(sizeHint, 0), HipaaBufferPool.MAX_SLAB_SIZE));
+        slabs.add(slab);
+        byte[] transfer = TRANSFER.get();
+        long length = 0;
+        try {
+            int n;
+            while ((n = in.read(transfer, 0, Math.min(transfer.length, slab.remaining()))) >= 0) {
+                slab.put(transfer, 0, n);
+                length += n;
+                if (!slab.hasRemaining()) {
+                    slab.flip();
+                    slab = pool.acquireNext(slab);
+                    slabs.add(slab);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            slabs.forEach(pool::release);
+            throw e;
+        }
+        slab.flip();
+        return new HipaaPooledBody(pool, slabs, length);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Write the whole body to the stream, e.g. a {@link HipaaBodyCapture}.
+     *
+     * @param out stream receiving the body
+     * @throws IOException if writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ensureReferenced();
+        byte[] transfer = TRANSFER.get();
+        for (ByteBuffer slab : slabs) {
+            ByteBuffer source = slab.duplicate();
+            while (source.hasRemaining()) {
+                int n = Math.min(transfer.length, source.remaining());
+                source.get(transfer, 0, n);
+                out.write(transfer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * New stream reading the body from its start, holding a reference to the body
+     * until it is closed.
+     *
+     * @return the stream of the body
+     */
+    public InputStream newInputStream() {
+        retain();
+        return new SlabInputStream();
+    }
+
+    /**
+     * Add a reference to the body.
+     *
+     * @return this body
+     * @throws IllegalStateException if the body was already released
+     */
+    public HipaaPooledBody retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Pooled body already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Release a reference to the body, the slabs return to the pool with the last one.
+     *
+     * @throws IllegalStateException if the body was already released
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            slabs.forEach(pool::release);
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Pooled body already released");
+        }
+    }
+
+    public int getRefCount() {
+        return Math.max(refCount.get(), 0);
+    }
+
+    private void ensureReferenced() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Pooled body already released");
+        }
+    }
+
+    /**
+     * Stream over duplicates of the slabs, so that concurrent streams of the same
+     * body do not share positions.
+     */
+    private final class SlabInputStream extends InputStream {
+
+        private int index;
+
+        private ByteBuffer current = slabs.get(0).duplicate();
+
+        private long remaining = length;
+
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            if (!advance()) {
+                return -1;
+            }
+            remaining--;
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && advance()) {
+                int step = (int) Math.min(n - skipped, current.remaining());
+                current.position(current.position() + step);
+                skipped += step;
+            }
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Move to the next slab holding bytes, false at the end of the body.
+         */
+        private boolean advance() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (!current.hasRemaining()) {
+                if (++index >= slabs.size()) {
+                    return false;
+                }
+                current = slabs.get(index).duplicate();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.RequestCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
+/**
+ * Immutable request capture settings with the route patterns compiled,
+ * resolving whether the body of a request is captured and with which body mode
+ * and maximum size. No body is captured unless a route matches.
+ */
+public final class HipaaRequestCapturePolicy {
+
+    private static final HipaaRequestCapturePolicy DEFAULT = compile(new RequestCapture());
+
+    private final Set<String> methods;
+
+    private final String truncationMarker;
+
+    private final Pattern[] routePatterns;
+
+    private final BodyMode[] routeBodyModes;
+
+    private final int[] routeMaxBytes;
+
+    private final HipaaPhiRedactor redactor;
+
+    private HipaaRequestCapturePolicy(RequestCapture properties, HipaaPhiRedactor redactor) {
+        this.redactor = redactor;
+        this.methods = new HashSet<>();
+        if (properties.getMethods() != null) {
+            for (String method : properties.getMethods()) {
+                methods.add(method.toUpperCase(Locale.ROOT));
+            }
+        }
+        BodyMode bodyMode = properties.getBodyMode() != null ? properties.getBodyMode() : BodyMode.FULL;
+        this.truncationMarker = properties.getTruncationMarker() != null ? properties.getTruncationMarker() : "";
+        List<Route> routes = properties.getRoutes() != null ? properties.getRoutes() : new ArrayList<>();
+        this.routePatterns = new Pattern[routes.size()];
+        this.routeBodyModes = new BodyMode[routes.size()];
+        this.routeMaxBytes = new int[routes.size()];
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            routePatterns[i] = Pattern.compile(route.getUriPattern());
+            routeBodyModes[i] = route.getBodyMode() != null ? route.getBodyMode() : bodyMode;
+            routeMaxBytes[i] = route.getMaxBytes() != null ? route.getMaxBytes() : properties.getMaxBytes();
+        }
+    }
+
+    /**
+     * Compile the capture settings, the defaults when null, with the redactor of
+     * captured bodies, or none when null.
+     *
+     * @param properties capture settings, or null
+     * @param redactor redactor of captured bodies, or null
+     * @return the compiled policy
+     */
+    public static HipaaRequestCapturePolicy compile(RequestCapture properties, HipaaPhiRedactor redactor) {
+        if (properties == null && redactor == null) {
+            return DEFAULT;
+        }
+        return new HipaaRequestCapturePolicy(properties != null ? properties : new RequestCapture(), redactor);
+    }
+
+    /**
+     * Compile the capture settings, the defaults when null.
+     *
+     * @param properties capture settings, or null
+     * @return the compiled policy
+     */
+    public static HipaaRequestCapturePolicy compile(RequestCapture properties) {
+        return compile(properties, null);
+    }
+
+    /**
+     * Whether the body of any request may be captured.
+     *
+     * @return true when request bodies may be captured
+     */
+    public boolean isEnabled() {
+        return routePatterns.length > 0 && !methods.isEmpty();
+    }
+
+    public String getTruncationMarker() {
+        return truncationMarker;
+    }
+
+    /**
+     * New capture for the body of the request, or null when the method is not
+     * captured or no route matches the request URI. Gzipped request bodies are
+     * only digested.
+     *
+     * @param method HTTP method of the request
+     * @param requestUri URI of the request
+     * @param gzipped whether the body is gzipped
+     * @return the capture of the request body, or null
+     */
+    public HipaaBodyCapture newCapture(String method, String requestUri, boolean gzipped) {
+        if (!methods.contains(method)) {
+            return null;
+        }
+        for (int i = 0; i < routePatterns.length; i++) {
+            if (routePatterns[i].matcher(requestUri).matches()) {
+                BodyMode bodyMode = gzipped ? BodyMode.DIGEST : routeBodyModes[i];
+                return new HipaaBodyCapture(bodyMode, routeMaxBytes[i], redactor);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record a request body read whole, without copying it into a capture.
+     *
+     * @param auditRecord builder of the audit record
+     * @param body array holding the body
+     * @param length number of bytes of the body in the array
+     * @param charset charset of the body
+     */
+    public void applyBody(HipaaAuditRecord.Builder auditRecord, byte[] body, int length, Charset charset) {
+        byte[] recorded = redactor != null ? redactor.redact(body, 0, length) : body;
+        int recordedLength = redactor != null ? recorded.length : length;
+        auditRecord.requestBody(new String(recorded, 0, recordedLength, charset));
+    }
+}
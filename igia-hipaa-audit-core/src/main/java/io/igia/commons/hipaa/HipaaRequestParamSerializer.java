@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Serializes request parameters for the audit event as
+ * {@code name:[value1, value2], name2:[value]}.
+ * <p>
+ * The text is built in a buffer reused per thread, so that the only allocation
+ * per request is the resulting string. {@value #CACHE_BUSTER} and the excluded
+ * parameters are left out, masked parameters are written as {@value #MASK}.
+ */
+public class HipaaRequestParamSerializer {
+
+    static final String CACHE_BUSTER = "cacheBuster";
+
+    static final String MASK = "***";
+
+    /**
+     * Buffers grown beyond this size are not kept for the next request.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private final Set<String> excluded;
+
+    private final Set<String> masked;
+
+    public HipaaRequestParamSerializer(Collection<String> excluded, Collection<String> masked) {
+        this.excluded = new HashSet<>(excluded);
+        this.excluded.add(CACHE_BUSTER);
+        this.masked = new HashSet<>(masked);
+    }
+
+    /**
+     * Serialize servlet request parameters.
+     *
+     * @param parameters servlet request parameters
+     * @return the serialized parameters
+     */
+    public String serialize(Map<String, String[]> parameters) {
+        return serialize(parameters, HipaaRequestParamSerializer::appendValues);
+    }
+
+    /**
+     * Serialize query parameters of multiple values, e.g. a {@code MultiValueMap}.
+     *
+     * @param parameters query parameters
+     * @return the serialized parameters
+     */
+    public String serializeValues(Map<String, ? extends List<String>> parameters) {
+        return serialize(parameters, HipaaRequestParamSerializer::appendValues);
+    }
+
+    private <V> String serialize(Map<String, V> parameters, BiConsumer<StringBuilder, V> valuesAppender) {
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        for (Map.Entry<String, V> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (excluded.contains(name)) {
+                continue;
+            }
+            if (buffer.length() > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(name).append(':');
+            V values = parameter.getValue();
+            if (masked.contains(name)) {
+                buffer.append('[').append(MASK).append(']');
+            } else if (values == null) {
+                // as Arrays.toString
+                buffer.append("null");
+            } else {
+                valuesAppender.accept(buffer, values);
+            }
+        }
+        String serialized = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            BUFFER.remove();
+        }
+        return serialized;
+    }
+
+    private static void appendValues(StringBuilder buffer, String[] values) {
+        buffer.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(values[i]);
+        }
+        buffer.append(']');
+    }
+
+    private static void appendValues(StringBuilder buffer, List<String> values) {
+        buffer.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(values.get(i));
+        }
+        buffer.append(']');
+    }
+}
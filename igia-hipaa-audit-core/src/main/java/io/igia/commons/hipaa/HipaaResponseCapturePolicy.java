@@ -0,0 +1,123 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.CaptureMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.ResponseCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
+/**
+ * Immutable response capture settings with the route patterns compiled,
+ * resolving the body mode and maximum size of a request URI. Captures share the
+ * compiled {@link HipaaPhiRedactor}, if any.
+ */
+public final class HipaaResponseCapturePolicy {
+
+    private static final HipaaResponseCapturePolicy DEFAULT = compile(new ResponseCapture());
+
+    private final CaptureMode mode;
+
+    private final BodyMode bodyMode;
+
+    private final int maxBytes;
+
+    private final String truncationMarker;
+
+    private final Pattern[] routePatterns;
+
+    private final BodyMode[] routeBodyModes;
+
+    private final int[] routeMaxBytes;
+
+    private final HipaaPhiRedactor redactor;
+
+    private HipaaResponseCapturePolicy(ResponseCapture properties, HipaaPhiRedactor redactor) {
+        this.redactor = redactor;
+        this.mode = properties.getMode() != null ? properties.getMode() : CaptureMode.BUFFERED;
+        this.bodyMode = properties.getBodyMode() != null ? properties.getBodyMode() : BodyMode.FULL;
+        this.maxBytes = properties.getMaxBytes();
+        this.truncationMarker = properties.getTruncationMarker() != null ? properties.getTruncationMarker() : "";
+        List<Route> routes = properties.getRoutes() != null ? properties.getRoutes() : new ArrayList<>();
+        this.routePatterns = new Pattern[routes.size()];
+        this.routeBodyModes = new BodyMode[routes.size()];
+        this.routeMaxBytes = new int[routes.size()];
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            routePatterns[i] = Pattern.compile(route.getUriPattern());
+            routeBodyModes[i] = route.getBodyMode() != null ? route.getBodyMode() : bodyMode;
+            routeMaxBytes[i] = route.getMaxBytes() != null ? route.getMaxBytes() : maxBytes;
+        }
+    }
+
+    /**
+     * Compile the capture settings, the defaults when null.
+     *
+     * @param properties capture settings, or null
+     * @return the compiled policy
+     */
+    public static HipaaResponseCapturePolicy compile(ResponseCapture properties) {
+        return compile(properties, null);
+    }
+
+    /**
+     * Compile the capture settings, the defaults when null, with the redactor of
+     * captured bodies, or none when null.
+     *
+     * @param properties capture settings, or null
+     * @param redactor redactor of captured bodies, or null
+     * @return the compiled policy
+     */
+    public static HipaaResponseCapturePolicy compile(ResponseCapture properties, HipaaPhiRedactor redactor) {
+        if (properties == null && redactor == null) {
+            return DEFAULT;
+        }
+        return new HipaaResponseCapturePolicy(properties != null ? properties : new ResponseCapture(), redactor);
+    }
+
+    public CaptureMode getMode() {
+        return mode;
+    }
+
+    public String getTruncationMarker() {
+        return truncationMarker;
+    }
+
+    /**
+     * Redactor of captured bodies, null when redaction is disabled.
+     *
+     * @return the redactor, or null
+     */
+    public HipaaPhiRedactor getRedactor() {
+        return redactor;
+    }
+
+    /**
+     * New capture for the body of a response to the request URI.
+     *
+     * @param requestUri URI of the request
+     * @return the capture of the response body
+     */
+    public HipaaBodyCapture newCapture(String requestUri) {
+        for (int i = 0; i < routePatterns.length; i++) {
+            if (routePatterns[i].matcher(requestUri).matches()) {
+                return new HipaaBodyCapture(routeBodyModes[i], routeMaxBytes[i], redactor);
+            }
+        }
+        return new HipaaBodyCapture(bodyMode, maxBytes, redactor);
+    }
+}
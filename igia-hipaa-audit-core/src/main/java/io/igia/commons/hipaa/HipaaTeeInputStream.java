@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * InputStream copying every byte read to a side OutputStream, so that a body
+ * can be captured while it is streamed to its consumer.
+ * <p>
+ * The completion listener is notified exactly once, when the end of the stream
+ * is reached or when the stream is closed or abandoned, whichever comes first.
+ */
+public class HipaaTeeInputStream extends FilterInputStream {
+
+    /**
+     * Callback invoked when the tee stream completes.
+     */
+    @FunctionalInterface
+    public interface CompletionListener {
+
+        /**
+         * @param endOfStream whether the whole stream was read, false when it
+         * was closed before its end
+         */
+        void onComplete(boolean endOfStream);
+    }
+
+    private final OutputStream copy;
+
+    private final CompletionListener listener;
+
+    private boolean completed;
+
+    public HipaaTeeInputStream(InputStream in, OutputStream copy, CompletionListener listener) {
+        super(in);
+        this.copy = copy;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            complete(true);
+        } else {
+            copy.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n < 0) {
+            complete(true);
+        } else if (n > 0) {
+            copy.write(b, off, n);
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are read and copied as well.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported, the copy cannot be rewound
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Close the stream. When the end of the stream was not seen yet, e.g.
+     * because a GZIPInputStream reading it stopped after the trailer, one byte
+     * is read to tell whether the stream was consumed completely.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean endOfStream = false;
+        try {
+            if (!completed) {
+                endOfStream = in.read() < 0;
+            }
+        } catch (IOException e) {
+            // treated as an incomplete stream
+        } finally {
+            try {
+                super.close();
+            } finally {
+                complete(endOfStream);
+            }
+        }
+    }
+
+    /**
+     * Close the stream its consumer gave up on, e.g. when the response was not
+     * sent, without reading it. The listener is notified of an incomplete stream
+     * unless it was notified already.
+     *
+     * @throws IOException if closing the stream fails
+     */
+    public void abandon() throws IOException {
+        try {
+            super.close();
+        } finally {
+            complete(false);
+        }
+    }
+
+    private void complete(boolean endOfStream) {
+        if (!completed) {
+            completed = true;
+            listener.onComplete(endOfStream);
+        }
+    }
+}
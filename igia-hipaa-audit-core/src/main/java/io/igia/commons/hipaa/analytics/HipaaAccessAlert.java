@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+/**
+ * Alert raised when a principal accessed more resources of a type within the
+ * analytics window than the alert threshold.
+ */
+public final class HipaaAccessAlert {
+
+    /**
+     * Type of the audit event an alert is published as.
+     */
+    public static final String AUDIT_EVENT_TYPE = "HIPAA_ACCESS_ALERT";
+
+    private final Instant timestamp;
+
+    private final String principal;
+
+    private final String resourceType;
+
+    private final long count;
+
+    private final long threshold;
+
+    private final long windowMillis;
+
+    public HipaaAccessAlert(Instant timestamp, String principal, String resourceType, long count, long threshold,
+        long windowMillis) {
+        this.timestamp = timestamp;
+        this.principal = principal;
+        this.resourceType = resourceType;
+        this.count = count;
+        this.threshold = threshold;
+        this.windowMillis = windowMillis;
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * Estimated number of accesses in the window when the alert was raised.
+     *
+     * @return the estimated number of accesses
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public AuditEvent toAuditEvent() {
+        Map<String, Object> data = new HashMap<>();
+        data.put("resourceType", resourceType);
+        data.put("count", count);
+        data.put("threshold", threshold);
+        data.put("windowMillis", windowMillis);
+        data.put("message", String.join("", "Access to ", Long.toString(count), " ", resourceType,
+            " resources within ", Long.toString(windowMillis / 1000), " s"));
+        return new AuditEvent(timestamp, principal, AUDIT_EVENT_TYPE, data);
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Analytics;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.store.HipaaFhirReferences;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Access frequencies of the audited requests over a sliding window, in fixed
+ * memory and without locking.
+ * <p>
+ * Every request audit is counted in three {@link HipaaSlidingCountMinSketch}es:
+ * per principal, per FHIR resource type accessed, and per principal and
+ * resource type. The principals and resource types of the highest counts are
+ * kept in {@link HipaaHeavyHitters} tables. A principal whose count for a
+ * resource type reaches the alert threshold raises a {@link HipaaAccessAlert},
+ * published as an audit event of type {@value HipaaAccessAlert#AUDIT_EVENT_TYPE}
+ * at most once per window.
+ * <p>
+ * Response audits are not counted, so that a request audited by both the request
+ * and the response filter counts once.
+ */
+public class HipaaAccessAnalytics implements MeterBinder {
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /**
+     * Slots of the last alerts, a power of two.
+     */
+    static final int ALERT_SLOTS = 1024;
+
+    /**
+     * Slots probed for the last alert of a principal and resource type.
+     */
+    private static final int ALERT_PROBES = 8;
+
+    private final HipaaSlidingCountMinSketch principals;
+
+    private final HipaaSlidingCountMinSketch resourceTypes;
+
+    private final HipaaSlidingCountMinSketch accesses;
+
+    private final HipaaHeavyHitters topPrincipals;
+
+    private final HipaaHeavyHitters topResourceTypes;
+
+    private final long alertThreshold;
+
+    private final Set<String> alertResourceTypes;
+
+    /**
+     * Last alert per principal and resource type, in an open addressing table by
+     * hash, to raise an alert once per window.
+     */
+    private final AtomicReferenceArray<HipaaAccessAlert> lastAlerts;
+
+    private final AtomicReferenceArray<HipaaAccessAlert> recentAlerts;
+
+    private final AtomicLong alerts = new AtomicLong();
+
+    private final AtomicLong latestInterval = new AtomicLong(Long.MIN_VALUE);
+
+    private final ApplicationEventPublisher publisher;
+
+    private final Clock clock;
+
+    public HipaaAccessAnalytics(Analytics properties, ApplicationEventPublisher publisher) {
+        this(properties, publisher, Clock.systemUTC());
+    }
+
+    HipaaAccessAnalytics(Analytics properties, ApplicationEventPublisher publisher, Clock clock) {
+        this.principals = sketch(properties);
+        this.resourceTypes = sketch(properties);
+        this.accesses = sketch(properties);
+        this.topPrincipals = new HipaaHeavyHitters(properties.getTopK());
+        this.topResourceTypes = new HipaaHeavyHitters(properties.getTopK());
+        this.alertThreshold = Math.max(1, properties.getAlertThreshold());
+        this.alertResourceTypes = new HashSet<>(properties.getAlertResourceTypes());
+        this.lastAlerts = new AtomicReferenceArray<>(ALERT_SLOTS);
+        this.recentAlerts = new AtomicReferenceArray<>(Math.max(1, properties.getMaxAlerts()));
+        this.publisher = publisher;
+        this.clock = clock;
+    }
+
+    private static HipaaSlidingCountMinSketch sketch(Analytics properties) {
+        return new HipaaSlidingCountMinSketch(properties.getWindow(), properties.getBuckets(), properties.getDepth(),
+            properties.getWidth());
+    }
+
+    /**
+     * Count the access of a request audit, once for each request a coalesced audit stands for.
+     *
+     * @param record audit record
+     */
+    public void record(HipaaAuditRecord record) {
+        if (record.getHttpMethod() == null) {
+            return;
+        }
+        long time = record.getTimestamp().toEpochMilli();
+        slide(time);
+        long count = record.getCoalescedCount() == null ? 1 : Math.max(1, record.getCoalescedCount());
+        String principal = record.getPrincipal();
+        long principalCount = principals.add(HipaaCountMinSketch.hash(principal), time, count);
+        if (principalCount < 0) {
+            // older than the window
+            return;
+        }
+        topPrincipals.offer(principal, principalCount);
+        for (String reference : HipaaFhirReferences.of(record)) {
+            if (reference.indexOf('/') >= 0) {
+                continue;
+            }
+            topResourceTypes.offer(reference, resourceTypes.add(HipaaCountMinSketch.hash(reference), time, count));
+            long accessHash = accessHash(principal, reference);
+            long accessCount = accesses.add(accessHash, time, count);
+            if (accessCount >= alertThreshold
+                && (alertResourceTypes.isEmpty() || alertResourceTypes.contains(reference))) {
+                alert(accessHash, new HipaaAccessAlert(record.getTimestamp(), principal, reference, accessCount,
+                    alertThreshold, accesses.getWindowMillis()));
+            }
+        }
+    }
+
+    static long accessHash(String principal, String resourceType) {
+        return HipaaCountMinSketch.hash(principal + KEY_SEPARATOR + resourceType);
+    }
+
+    /**
+     * Refresh the top-K counts when the window moves to a new interval.
+     */
+    private void slide(long time) {
+        long interval = principals.interval(time);
+        long latest = latestInterval.get();
+        if (interval > latest && latestInterval.compareAndSet(latest, interval)) {
+            topPrincipals.refresh(key -> principals.estimate(HipaaCountMinSketch.hash(key), time));
+            topResourceTypes.refresh(key -> resourceTypes.estimate(HipaaCountMinSketch.hash(key), time));
+        }
+    }
+
+    /**
+     * Raise the alert unless one was raised for its principal and resource type
+     * within the window. The last alert of a pair is looked up in the slots probed
+     * from its hash, so that pairs of colliding hashes keep their own alerts. A
+     * pair without an alert is stored in the first free probed slot, else in place
+     * of the oldest probed alert, which has usually expired.
+     */
+    private void alert(long accessHash, HipaaAccessAlert alert) {
+        long time = alert.getTimestamp().toEpochMilli();
+        int start = (int) accessHash & (ALERT_SLOTS - 1);
+        while (true) {
+            int slot = -1;
+            HipaaAccessAlert replaced = null;
+            for (int probe = 0; probe < ALERT_PROBES; probe++) {
+                int i = (start + probe) & (ALERT_SLOTS - 1);
+                HipaaAccessAlert last = lastAlerts.get(i);
+                if (last != null && last.getPrincipal().equals(alert.getPrincipal())
+                    && last.getResourceType().equals(alert.getResourceType())) {
+                    if (time - last.getTimestamp().toEpochMilli() < alert.getWindowMillis()) {
+                        return;
+                    }
+                    slot = i;
+                    replaced = last;
+                    break;
+                }
+                if (last == null) {
+                    // slots are never emptied, so the pair is not stored further on
+                    slot = i;
+                    replaced = null;
+                    break;
+                }
+                if (slot < 0 || last.getTimestamp().isBefore(replaced.getTimestamp())) {
+                    slot = i;
+                    replaced = last;
+                }
+            }
+            if (lastAlerts.compareAndSet(slot, replaced, alert)) {
+                break;
+            }
+            // changed concurrently, look up again
+        }
+        long sequence = alerts.getAndIncrement();
+        recentAlerts.set((int) (sequence % recentAlerts.length()), alert);
+        if (publisher != null) {
+            publisher.publishEvent(new AuditApplicationEvent(alert.toAuditEvent()));
+        }
+    }
+
+    /**
+     * Principals of the most accesses in the current window, highest first.
+     *
+     * @return the top principals
+     */
+    public List<HipaaAccessCount> getTopPrincipals() {
+        long now = clock.millis();
+        return topPrincipals.top(key -> principals.estimate(HipaaCountMinSketch.hash(key), now));
+    }
+
+    /**
+     * Resource types of the most accesses in the current window, highest first.
+     *
+     * @return the top resource types
+     */
+    public List<HipaaAccessCount> getTopResourceTypes() {
+        long now = clock.millis();
+        return topResourceTypes.top(key -> resourceTypes.estimate(HipaaCountMinSketch.hash(key), now));
+    }
+
+    /**
+     * Estimated accesses of a principal to a resource type in the current window.
+     *
+     * @param principal name of the principal
+     * @param resourceType FHIR resource type
+     * @return the estimated number of accesses
+     */
+    public long estimate(String principal, String resourceType) {
+        return accesses.estimate(accessHash(principal, resourceType), clock.millis());
+    }
+
+    /**
+     * The most recent alerts, newest first.
+     *
+     * @return the recent alerts
+     */
+    public List<HipaaAccessAlert> getAlerts() {
+        List<HipaaAccessAlert> recent = new ArrayList<>(recentAlerts.length());
+        for (int i = 0; i < recentAlerts.length(); i++) {
+            HipaaAccessAlert alert = recentAlerts.get(i);
+            if (alert != null) {
+                recent.add(alert);
+            }
+        }
+        recent.sort(Comparator.comparing(HipaaAccessAlert::getTimestamp).reversed());
+        return recent;
+    }
+
+    public long getAlertCount() {
+        return alerts.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("hipaa.audit.analytics.alerts", this, HipaaAccessAnalytics::getAlertCount)
+            .description("Alerts raised for principals exceeding the access threshold").register(registry);
+    }
+}
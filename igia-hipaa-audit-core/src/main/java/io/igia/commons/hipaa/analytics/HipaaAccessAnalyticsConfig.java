@@ -0,0 +1,50 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+
+/**
+ * Access frequency analytics of the Hipaa audit events, imported by the gateway audit configurations.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "igia.hipaa.audit.analytics", name = "enabled", havingValue = "true")
+public class HipaaAccessAnalyticsConfig {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAccessAnalyticsConfig.class);
+
+    @Bean
+    public HipaaAccessAnalytics hipaaAccessAnalytics(HipaaAuditProperties applicationProperties,
+        ApplicationEventPublisher publisher) {
+        log.info("Configuring Hipaa access analytics over a window of {} ms with an alert threshold of {}",
+            applicationProperties.getAnalytics().getWindow(), applicationProperties.getAnalytics().getAlertThreshold());
+        return new HipaaAccessAnalytics(applicationProperties.getAnalytics(), publisher);
+    }
+
+    @Bean
+    public HipaaAccessAnalyticsListener hipaaAccessAnalyticsListener(HipaaAccessAnalytics hipaaAccessAnalytics) {
+        return new HipaaAccessAnalyticsListener(hipaaAccessAnalytics);
+    }
+
+    @Bean
+    public HipaaAccessAnalyticsEndpoint hipaaAccessAnalyticsEndpoint(HipaaAccessAnalytics hipaaAccessAnalytics) {
+        return new HipaaAccessAnalyticsEndpoint(hipaaAccessAnalytics);
+    }
+}
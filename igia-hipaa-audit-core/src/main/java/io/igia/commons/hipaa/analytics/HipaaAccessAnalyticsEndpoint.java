@@ -0,0 +1,70 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.util.List;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+/**
+ * Actuator endpoint of the access analytics: the principals and resource types
+ * of the most accesses in the current window and the recent alerts, e.g.
+ * {@code /actuator/hipaaaccess}.
+ */
+@Endpoint(id = "hipaaaccess")
+public class HipaaAccessAnalyticsEndpoint {
+
+    private final HipaaAccessAnalytics analytics;
+
+    public HipaaAccessAnalyticsEndpoint(HipaaAccessAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    @ReadOperation
+    public HipaaAccessAnalyticsDescriptor analytics() {
+        return new HipaaAccessAnalyticsDescriptor(analytics.getTopPrincipals(), analytics.getTopResourceTypes(),
+            analytics.getAlerts());
+    }
+
+    /**
+     * Response of the endpoint.
+     */
+    public static final class HipaaAccessAnalyticsDescriptor {
+
+        private final List<HipaaAccessCount> principals;
+
+        private final List<HipaaAccessCount> resourceTypes;
+
+        private final List<HipaaAccessAlert> alerts;
+
+        private HipaaAccessAnalyticsDescriptor(List<HipaaAccessCount> principals,
+            List<HipaaAccessCount> resourceTypes, List<HipaaAccessAlert> alerts) {
+            this.principals = principals;
+            this.resourceTypes = resourceTypes;
+            this.alerts = alerts;
+        }
+
+        public List<HipaaAccessCount> getPrincipals() {
+            return principals;
+        }
+
+        public List<HipaaAccessCount> getResourceTypes() {
+            return resourceTypes;
+        }
+
+        public List<HipaaAccessAlert> getAlerts() {
+            return alerts;
+        }
+    }
+}
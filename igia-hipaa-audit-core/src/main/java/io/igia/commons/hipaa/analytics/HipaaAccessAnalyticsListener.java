@@ -0,0 +1,38 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationListener;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+/**
+ * Counts the Hipaa audit events published by the audit filters in the access analytics.
+ */
+public class HipaaAccessAnalyticsListener implements ApplicationListener<AuditApplicationEvent> {
+
+    private final HipaaAccessAnalytics analytics;
+
+    public HipaaAccessAnalyticsListener(HipaaAccessAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    @Override
+    public void onApplicationEvent(AuditApplicationEvent event) {
+        if (HipaaAuditRecord.AUDIT_EVENT_TYPE.equals(event.getAuditEvent().getType())) {
+            analytics.record(HipaaAuditApplicationEvent.recordOf(event));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min sketch of fixed size, estimating how often keys were added.
+ * <p>
+ * Every key increments one counter in each of {@code depth} rows of
+ * {@code width} counters; the estimate of a key is the smallest of its
+ * counters. Estimates are never below the true count, and exceed it by at most
+ * {@code e / width} of the total count with probability
+ * {@code 1 - e^-depth}. Counters are updated with atomic additions, without
+ * locking.
+ */
+public class HipaaCountMinSketch {
+
+    private final int depth;
+
+    private final int mask;
+
+    private final AtomicLongArray counters;
+
+    /**
+     * @param depth number of rows
+     * @param width number of counters per row, rounded up to a power of two
+     */
+    public HipaaCountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1 || width > 1 << 30) {
+            throw new IllegalArgumentException("Invalid Count-Min sketch size " + depth + " x " + width);
+        }
+        this.depth = depth;
+        int rowWidth = Integer.highestOneBit(width) == width ? width : Integer.highestOneBit(width) << 1;
+        this.mask = rowWidth - 1;
+        this.counters = new AtomicLongArray(depth * rowWidth);
+    }
+
+    /**
+     * 64 bit hash of a key, FNV-1a of its characters with a final avalanche.
+     *
+     * @param key key to hash
+     * @return the hash of the key
+     */
+    public static long hash(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Add {@code count} occurrences of the key of the hash.
+     *
+     * @param hash hash of the key
+     * @param count number of occurrences
+     * @return the estimate of the key including the added occurrences
+     */
+    public long add(long hash, long count) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.addAndGet(index(hash, row), count));
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimate of the occurrences of the key of the hash.
+     *
+     * @param hash hash of the key
+     * @return the estimated number of occurrences
+     */
+    public long estimate(long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(hash, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * Reset all counters. Occurrences added concurrently may be lost.
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return mask + 1;
+    }
+
+    /**
+     * Counter of a row, from two halves of the hash combined as
+     * {@code h1 + row * h2}.
+     */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+}
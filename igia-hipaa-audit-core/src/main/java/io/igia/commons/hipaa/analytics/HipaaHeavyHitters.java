@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * Fixed size table of the keys with the highest estimated counts.
+ * <p>
+ * Every offer scans the {@code k} slots without locking: a key already in the
+ * table has its count raised, otherwise it replaces the candidate of the lowest
+ * count if its own count is higher. Slots are replaced by compare-and-set, and
+ * an offer losing a race is dropped, as the key is offered again with its next
+ * occurrence. The counts of the table are refreshed from the sketch as the
+ * window slides, so that keys no longer accessed give way.
+ */
+public class HipaaHeavyHitters {
+
+    private final AtomicReferenceArray<HipaaAccessCount> candidates;
+
+    public HipaaHeavyHitters(int k) {
+        this.candidates = new AtomicReferenceArray<>(Math.max(1, k));
+    }
+
+    public void offer(String key, long count) {
+        int weakest = -1;
+        HipaaAccessCount weakestCandidate = null;
+        for (int i = 0; i < candidates.length(); i++) {
+            HipaaAccessCount candidate = candidates.get(i);
+            if (candidate == null) {
+                if (candidates.compareAndSet(i, null, new HipaaAccessCount(key, count))) {
+                    return;
+                }
+                candidate = candidates.get(i);
+            }
+            if (candidate.getKey().equals(key)) {
+                if (count > candidate.getCount()) {
+                    candidates.compareAndSet(i, candidate, new HipaaAccessCount(key, count));
+                }
+                return;
+            }
+            if (weakestCandidate == null || candidate.getCount() < weakestCandidate.getCount()) {
+                weakest = i;
+                weakestCandidate = candidate;
+            }
+        }
+        if (weakestCandidate != null && count > weakestCandidate.getCount()) {
+            candidates.compareAndSet(weakest, weakestCandidate, new HipaaAccessCount(key, count));
+        }
+    }
+
+    /**
+     * Replace the count of every candidate with its current estimate.
+     *
+     * @param estimator current estimate of a candidate
+     */
+    public void refresh(ToLongFunction<String> estimator) {
+        for (int i = 0; i < candidates.length(); i++) {
+            HipaaAccessCount candidate = candidates.get(i);
+            if (candidate != null) {
+                long count = estimator.applyAsLong(candidate.getKey());
+                if (count != candidate.getCount()) {
+                    candidates.compareAndSet(i, candidate, new HipaaAccessCount(candidate.getKey(), count));
+                }
+            }
+        }
+    }
+
+    /**
+     * Candidates of a non-zero current estimate, highest first.
+     *
+     * @param estimator current estimate of a candidate
+     * @return the counts of the candidates
+     */
+    public List<HipaaAccessCount> top(ToLongFunction<String> estimator) {
+        Map<String, HipaaAccessCount> counts = new LinkedHashMap<>();
+        for (int i = 0; i < candidates.length(); i++) {
+            HipaaAccessCount candidate = candidates.get(i);
+            if (candidate != null && !counts.containsKey(candidate.getKey())) {
+                long count = estimator.applyAsLong(candidate.getKey());
+                if (count > 0) {
+                    counts.put(candidate.getKey(), new HipaaAccessCount(candidate.getKey(), count));
+                }
+            }
+        }
+        List<HipaaAccessCount> top = new ArrayList<>(counts.values());
+        top.sort(Comparator.comparingLong(HipaaAccessCount::getCount).reversed()
+            .thenComparing(HipaaAccessCount::getKey));
+        return top;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-Min sketch over a sliding time window.
+ * <p>
+ * The window is divided into {@code buckets} consecutive intervals, each
+ * counted by its own {@link HipaaCountMinSketch}. Sketches are reused in a
+ * ring: the first occurrence of a new interval claims the sketch of the
+ * interval that left the window and clears it. Estimates sum the sketches of
+ * the intervals in the window ending at a given time, so the window slides by
+ * one interval at a time. Occurrences older than the window are ignored.
+ * <p>
+ * Occurrences added to a sketch while it is cleared for a new interval may be
+ * lost, which only affects the first instants of an interval.
+ */
+public class HipaaSlidingCountMinSketch {
+
+    private final long intervalMillis;
+
+    private final Bucket[] buckets;
+
+    /**
+     * @param windowMillis length of the window
+     * @param buckets number of intervals the window is divided into
+     * @param depth rows of the sketch of an interval
+     * @param width counters per row of the sketch of an interval
+     */
+    public HipaaSlidingCountMinSketch(long windowMillis, int buckets, int depth, int width) {
+        int count = Math.max(1, buckets);
+        this.intervalMillis = Math.max(1, windowMillis / count);
+        this.buckets = new Bucket[count];
+        for (int i = 0; i < count; i++) {
+            this.buckets[i] = new Bucket(new HipaaCountMinSketch(depth, width));
+        }
+    }
+
+    /**
+     * Interval of a time, as the number of intervals since the epoch.
+     *
+     * @param timeMillis time in milliseconds since the epoch
+     * @return the interval of the time
+     */
+    public long interval(long timeMillis) {
+        return Math.floorDiv(timeMillis, intervalMillis);
+    }
+
+    /**
+     * Add {@code count} occurrences of the key of the hash at a time.
+     *
+     * @param hash hash of the key
+     * @param timeMillis time in milliseconds since the epoch
+     * @param count number of occurrences
+     * @return the estimate of the key in the window ending at that time, or -1
+     *         when the time is older than the window
+     */
+    public long add(long hash, long timeMillis, long count) {
+        long interval = interval(timeMillis);
+        Bucket bucket = bucket(interval);
+        if (!bucket.claim(interval)) {
+            return -1;
+        }
+        long estimate = bucket.sketch.add(hash, count);
+        for (int i = 1; i < buckets.length; i++) {
+            estimate += bucket(interval - i).estimate(hash, interval - i);
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimate of the occurrences of the key of the hash in the window ending at a time.
+     *
+     * @param hash hash of the key
+     * @param timeMillis end of the window in milliseconds since the epoch
+     * @return the estimated number of occurrences
+     */
+    public long estimate(long hash, long timeMillis) {
+        long interval = interval(timeMillis);
+        long estimate = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            estimate += bucket(interval - i).estimate(hash, interval - i);
+        }
+        return estimate;
+    }
+
+    public long getWindowMillis() {
+        return intervalMillis * buckets.length;
+    }
+
+    private Bucket bucket(long interval) {
+        return buckets[(int) Math.floorMod(interval, (long) buckets.length)];
+    }
+
+    private static final class Bucket {
+
+        private final AtomicLong interval = new AtomicLong(Long.MIN_VALUE);
+
+        private final HipaaCountMinSketch sketch;
+
+        Bucket(HipaaCountMinSketch sketch) {
+            this.sketch = sketch;
+        }
+
+        /**
+         * Make the bucket count the interval, unless it already counts a later one.
+         */
+        boolean claim(long next) {
+            while (true) {
+                long current = interval.get();
+                if (current == next) {
+                    return true;
+                }
+                if (current > next) {
+                    return false;
+                }
+                if (interval.compareAndSet(current, next)) {
+                    sketch.clear();
+                    return true;
+                }
+            }
+        }
+
+        long estimate(long hash, long expected) {
+            return interval.get() == expected ? sketch.estimate(hash) : 0L;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Journal;
+
+/**
+ * Append-only journal of length-prefixed records in memory-mapped segment files.
+ * <p>
+ * A segment starts with a magic number and holds records of a length, a CRC32 of
+ * the payload and the payload. Appending copies the record into the mapped
+ * segment and waits for a background thread to sync the segment to disk. The
+ * records appended while a sync runs share the next one, which waits up to
+ * {@code groupCommitInterval} for more records unless {@code groupCommitCount}
+ * records are pending, so that many records share one fsync. A record not fitting into the current segment
+ * rolls over to a new segment, and the previous segment is unmapped.
+ * <p>
+ * On opening, existing segments are scanned and appending resumes after the last
+ * intact record. A torn record left by a crash is erased.
+ */
+public class HipaaAuditJournal implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    /** "HAJ1" */
+    static final int SEGMENT_MAGIC = 0x48414a31;
+
+    static final int SEGMENT_HEADER_SIZE = 4;
+
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditJournal.class);
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int groupCommitCount;
+
+    private final long groupCommitInterval;
+
+    private final Object lock = new Object();
+
+    /**
+     * Held while syncing or unmapping a segment, so that a segment is never
+     * synced once unmapped. Never acquired before {@link #lock}.
+     */
+    private final Object syncLock = new Object();
+
+    private final Thread flusher;
+
+    private final LongAdder appended = new LongAdder();
+
+    private final LongAdder syncs = new LongAdder();
+
+    private final long recoveredRecords;
+
+    private volatile boolean open = true;
+
+    /**
+     * Whether the current segment was unmapped at close, guarded by {@link #lock}.
+     */
+    private boolean closed;
+
+    private long segmentIndex;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
+
+    /**
+     * The mapped segment that may be synced, guarded by {@link #syncLock}.
+     */
+    private MappedByteBuffer syncable;
+
+    /**
+     * Sequence number of the last appended record, guarded by {@link #lock}.
+     */
+    private long appendedSequence;
+
+    /**
+     * Sequence number of the last record synced to disk, guarded by {@link #lock}.
+     */
+    private long syncedSequence;
+
+    public HipaaAuditJournal(Journal properties) throws IOException {
+        this(Paths.get(properties.getDirectory()), properties.getSegmentSize(), properties.getGroupCommitCount(),
+            properties.getGroupCommitInterval());
+    }
+
+    /**
+     * @param directory directory of the segments, created when missing
+     * @param segmentSize size in bytes of a segment
+     * @param groupCommitCount number of pending records a sync stops waiting for more records at
+     * @param groupCommitInterval time in milliseconds a sync waits for more records, 0 to sync at once
+     * @throws IOException if the directory cannot be created or scanned
+     */
+    public HipaaAuditJournal(Path directory, int segmentSize, int groupCommitCount, long groupCommitInterval)
+        throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Journal segment size too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.groupCommitCount = Math.max(1, groupCommitCount);
+        this.groupCommitInterval = Math.max(0, groupCommitInterval);
+        Files.createDirectories(directory);
+        this.recoveredRecords = recover();
+        this.flusher = new Thread(this::flushLoop, "hipaa-audit-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Scan the existing segments and open the last one for appending.
+     *
+     * @return the number of intact records found
+     */
+    private long recover() throws IOException {
+        List<Path> segments = segments(directory);
+        long records = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            records += scan(segments.get(i), null);
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+            return 0;
+        }
+        Path last = segments.get(segments.size() - 1);
+        long index = segmentIndex(last);
+        FileChannel lastChannel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer lastSegment = lastChannel.map(MapMode.READ_WRITE, 0, lastChannel.size());
+        if (lastSegment.capacity() < SEGMENT_HEADER_SIZE || lastSegment.getInt(0) != SEGMENT_MAGIC) {
+            unmap(lastSegment);
+            lastChannel.close();
+            log.warn("Hipaa audit journal segment {} has no valid header, starting a new segment", last);
+            openSegment(index + 1);
+            return records;
+        }
+        long[] count = {0};
+        int end = scanRecords(lastSegment, payload -> count[0]++);
+        records += count[0];
+        if (end < lastSegment.capacity() && lastSegment.getInt(end) != 0) {
+            log.warn("Erasing torn record at offset {} of Hipaa audit journal segment {}", end, last);
+            for (int position = end; position < lastSegment.capacity(); position++) {
+                lastSegment.put(position, (byte) 0);
+            }
+            lastSegment.force();
+        }
+        lastSegment.position(end);
+        this.segmentIndex = index;
+        this.channel = lastChannel;
+        this.segment = lastSegment;
+        this.syncable = lastSegment;
+        log.info("Recovered {} Hipaa audit journal records from {} segment(s) in {}", records, segments.size(),
+            directory);
+        return records;
+    }
+
+    private void openSegment(long index) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+        FileChannel newChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        MappedByteBuffer newSegment = newChannel.map(MapMode.READ_WRITE, 0, segmentSize);
+        newSegment.putInt(SEGMENT_MAGIC);
+        newSegment.force();
+        this.segmentIndex = index;
+        this.channel = newChannel;
+        this.segment = newSegment;
+        synchronized (syncLock) {
+            this.syncable = newSegment;
+        }
+    }
+
+    /**
+     * Append a record and wait until it is synced to disk by the next group
+     * commit.
+     *
+     * @param payload record to append
+     * @throws IllegalArgumentException if the record is empty or does not fit into a segment
+     * @throws IOException if the journal is closed before the record is synced
+     */
+    public void append(byte[] payload) throws IOException {
+        appendAll(Collections.singletonList(payload));
+    }
+
+    /**
+     * Append records and wait until they are synced to disk, by a single group
+     * commit unless they roll over to a new segment.
+     *
+     * @param payloads records to append
+     * @throws IllegalArgumentException if a record is empty or does not fit into a segment
+     * @throws IOException if the journal is closed before the records are synced
+     */
+    public void appendAll(Collection<byte[]> payloads) throws IOException {
+        for (byte[] payload : payloads) {
+            if (payload.length == 0) {
+                throw new IllegalArgumentException("Journal records must not be empty");
+            }
+            if (RECORD_HEADER_SIZE + payload.length > segmentSize - SEGMENT_HEADER_SIZE) {
+                throw new IllegalArgumentException("Journal record of " + payload.length
+                    + " bytes exceeds the segment size " + segmentSize);
+            }
+        }
+        CRC32 crc = new CRC32();
+        synchronized (lock) {
+            if (!open) {
+                throw new IOException("Hipaa audit journal is closed");
+            }
+            for (byte[] payload : payloads) {
+                if (segment.remaining() < RECORD_HEADER_SIZE + payload.length) {
+                    roll();
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                segment.putInt(payload.length);
+                segment.putInt((int) crc.getValue());
+                segment.put(payload);
+            }
+            appended.add(payloads.size());
+            appendedSequence += payloads.size();
+            long sequence = appendedSequence;
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (syncedSequence < sequence) {
+                if (closed) {
+                    throw new IOException("Hipaa audit journal closed before the records were synced");
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sync and unmap the current segment and open the next one. The records of
+     * the current segment are synced when this returns.
+     */
+    private void roll() throws IOException {
+        synchronized (syncLock) {
+            segment.force();
+            unmap(segment);
+            syncable = null;
+        }
+        channel.close();
+        openSegment(segmentIndex + 1);
+    }
+
+    private void flushLoop() {
+        while (open) {
+            try {
+                flush(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Error syncing Hipaa audit journal", e);
+            }
+        }
+    }
+
+    private void flush(boolean await) throws InterruptedException {
+        MappedByteBuffer toSync;
+        long sequence;
+        synchronized (lock) {
+            if (await) {
+                while (open && appendedSequence == syncedSequence) {
+                    lock.wait();
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitInterval);
+                long remaining = deadline - System.nanoTime();
+                while (open && appendedSequence - syncedSequence < groupCommitCount && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+            if (!open || appendedSequence == syncedSequence) {
+                return;
+            }
+            sequence = appendedSequence;
+            toSync = segment;
+        }
+        synchronized (syncLock) {
+            // a segment rolled over meanwhile was synced when it was unmapped
+            if (toSync == syncable) {
+                toSync.force();
+            }
+        }
+        syncs.increment();
+        synchronized (lock) {
+            syncedSequence = Math.max(syncedSequence, sequence);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Sync the appended records to disk now.
+     */
+    public void flush() {
+        try {
+            flush(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the background sync, sync the remaining records and unmap the current
+     * segment.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                synchronized (syncLock) {
+                    try {
+                        segment.force();
+                        syncedSequence = appendedSequence;
+                    } finally {
+                        unmap(segment);
+                        syncable = null;
+                    }
+                }
+                channel.close();
+            } finally {
+                closed = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Release the mapping of a segment now rather than when the buffer is
+     * garbage collected, which keeps the file mapped and, on Windows, undeletable.
+     * The buffer must not be accessed afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER != null) {
+            try {
+                UNMAPPER.accept(buffer);
+            } catch (RuntimeException e) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LoggerFactory.getLogger(HipaaAuditJournal.class)
+                .warn("Cannot unmap Hipaa audit journal segments, they are unmapped when garbage collected");
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+
+    public long getRecoveredCount() {
+        return recoveredRecords;
+    }
+
+    public long getSegmentIndex() {
+        synchronized (lock) {
+            return segmentIndex;
+        }
+    }
+
+    /**
+     * Pass the payload of every intact record in the journal directory, oldest
+     * first, to the consumer. The buffers are only valid during the call.
+     *
+     * @param directory journal directory
+     * @param consumer consumer of the payloads
+     * @return the number of records read
+     * @throws IOException if the journal cannot be read
+     */
+    public static long read(Path directory, Consumer<ByteBuffer> consumer) throws IOException {
+        long records = 0;
+        for (Path segment : segments(directory)) {
+            records += scan(segment, consumer);
+        }
+        return records;
+    }
+
+    private static long scan(Path path, Consumer<ByteBuffer> consumer) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer segment = segmentChannel.map(MapMode.READ_ONLY, 0, segmentChannel.size());
+            try {
+                if (segment.capacity() < SEGMENT_HEADER_SIZE || segment.getInt(0) != SEGMENT_MAGIC) {
+                    return 0;
+                }
+                long[] count = {0};
+                scanRecords(segment, payload -> {
+                    count[0]++;
+                    if (consumer != null) {
+                        consumer.accept(payload);
+                    }
+                });
+                return count[0];
+            } finally {
+                unmap(segment);
+            }
+        }
+    }
+
+    /**
+     * @return the offset after the last intact record
+     */
+    private static int scanRecords(ByteBuffer segment, Consumer<ByteBuffer> consumer) {
+        int position = SEGMENT_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length <= 0 || length > segment.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer payload = segment.duplicate();
+            payload.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(payload.slice().asReadOnlyBuffer());
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                if (segmentIndex(path) >= 0) {
+                    segments.add(path);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentIndex(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
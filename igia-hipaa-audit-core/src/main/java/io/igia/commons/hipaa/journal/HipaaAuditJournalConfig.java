@@ -0,0 +1,44 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.journal;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+
+/**
+ * Journal of the Hipaa audit events, imported by the gateway audit configurations.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "igia.hipaa.audit.journal", name = "enabled", havingValue = "true")
+public class HipaaAuditJournalConfig {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditJournalConfig.class);
+
+    @Bean(destroyMethod = "close")
+    public HipaaAuditJournal hipaaAuditJournal(HipaaAuditProperties applicationProperties) throws IOException {
+        log.info("Configuring Hipaa audit journal in {}", applicationProperties.getJournal().getDirectory());
+        return new HipaaAuditJournal(applicationProperties.getJournal());
+    }
+
+    @Bean
+    public HipaaAuditJournalListener hipaaAuditJournalListener(HipaaAuditJournal hipaaAuditJournal) {
+        return new HipaaAuditJournalListener(hipaaAuditJournal);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+
+/**
+ * Sinks of the Hipaa audit events, imported by the gateway audit configurations.
+ */
+@Configuration
+public class HipaaAuditSinkConfig {
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "igia.hipaa.audit.file-sink", name = "enabled", havingValue = "true")
+    static class HipaaFileSinkConfig {
+
+        private final Logger log = LoggerFactory.getLogger(HipaaFileSinkConfig.class);
+
+        @Bean(destroyMethod = "close")
+        public HipaaStripedFileSink hipaaStripedFileSink(HipaaAuditProperties applicationProperties)
+            throws IOException {
+            HipaaStripedFileSink sink = new HipaaStripedFileSink(applicationProperties.getFileSink());
+            log.info("Configuring Hipaa audit file sink of {} stripe(s) in {}", sink.getStripeCount(),
+                sink.getDirectory());
+            return sink;
+        }
+
+        @Bean
+        public HipaaStripedFileSinkListener hipaaStripedFileSinkListener(HipaaStripedFileSink hipaaStripedFileSink) {
+            return new HipaaStripedFileSinkListener(hipaaStripedFileSink);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "igia.hipaa.audit.jdbc-sink", name = "enabled", havingValue = "true")
+    static class HipaaJdbcSinkConfig {
+
+        private final Logger log = LoggerFactory.getLogger(HipaaJdbcSinkConfig.class);
+
+        @Bean(destroyMethod = "close")
+        public HipaaJdbcAuditSink hipaaJdbcAuditSink(DataSource dataSource, HipaaAuditProperties applicationProperties)
+            throws SQLException, IOException {
+            log.info("Configuring Hipaa audit database sink into table {} in batches of {} event(s)",
+                applicationProperties.getJdbcSink().getTable(), applicationProperties.getJdbcSink().getBatchSize());
+            return new HipaaJdbcAuditSink(dataSource, applicationProperties.getJdbcSink());
+        }
+
+        @Bean
+        public HipaaJdbcAuditSinkListener hipaaJdbcAuditSinkListener(HipaaJdbcAuditSink hipaaJdbcAuditSink) {
+            return new HipaaJdbcAuditSinkListener(hipaaJdbcAuditSink);
+        }
+    }
+}
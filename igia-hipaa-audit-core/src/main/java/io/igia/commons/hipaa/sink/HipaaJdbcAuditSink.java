@@ -0,0 +1,919 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.JdbcSink;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+import io.igia.commons.hipaa.journal.HipaaAuditJournal;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Writes audit records to a database table with JDBC batch inserts.
+ * <p>
+ * Records are buffered in a bounded queue and inserted by a single writer
+ * thread. The writer collects a batch until it holds {@code batchSize} records
+ * or the first record waited {@code batchInterval}, then inserts the batch in
+ * one transaction, so that the records of concurrent requests share one commit.
+ * <p>
+ * A batch failing with a transient error, e.g. while the database is
+ * unavailable, is retried with an exponential backoff while new records fill up
+ * the queue. Once the queue is full, new records are handed to a background
+ * spill thread, which appends them to a {@link HipaaAuditJournal} in
+ * {@code spillDirectory} with one sync per batch, so that requests never wait
+ * for the disk. The buffered records are spilled as well when the database is
+ * still unavailable at shutdown. Records are dropped, and counted, when the
+ * spill thread's buffer is full or the spilled records waiting to be inserted
+ * reach {@code maxSpillBytes}. Each time the
+ * queue has been written, the spilled records are inserted, in the order they
+ * were spilled, and their journal deleted; a journal of a previous run is
+ * inserted as well. The number of inserted records of a journal is kept next to
+ * it, so a spilled record is inserted at least once.
+ * <p>
+ * A batch failing with a non-transient error is retried record by record, and
+ * the records the database rejects on their own are appended to the
+ * {@code rejected} journal of the spill directory. Records are otherwise only
+ * dropped, and logged, when they cannot be spilled.
+ * <p>
+ * Besides the indexed columns, every row holds the whole record encoded by
+ * {@link HipaaAuditRecordCodec} in {@code event_data}.
+ */
+public class HipaaJdbcAuditSink implements MeterBinder, Closeable {
+
+    static final int PRINCIPAL_LENGTH = 100;
+
+    static final int TYPE_LENGTH = 50;
+
+    static final int REMOTE_ADDRESS_LENGTH = 64;
+
+    static final int HTTP_METHOD_LENGTH = 16;
+
+    static final int REQUEST_URI_LENGTH = 2048;
+
+    static final int REQUEST_ID_LENGTH = 64;
+
+    /**
+     * Maximum time the idle writer and spill thread wait for a record, bounding
+     * the time {@link #close()} waits for them.
+     */
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int SPILL_GROUP_COMMIT_COUNT = 256;
+
+    private static final long SPILL_GROUP_COMMIT_INTERVAL = 0;
+
+    static final String REJECTED_JOURNAL = "rejected";
+
+    /**
+     * Number of records of a spill journal already inserted.
+     */
+    static final String INSERTED_FILE = "inserted";
+
+    private static final String DATA_EXCEPTION = "22";
+
+    private static final String CONSTRAINT_VIOLATION = "23";
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+    private static final String SCHEMA = "CREATE TABLE %s ("
+        + "event_date TIMESTAMP NOT NULL, "
+        + "principal VARCHAR(" + PRINCIPAL_LENGTH + ") NOT NULL, "
+        + "event_type VARCHAR(" + TYPE_LENGTH + ") NOT NULL, "
+        + "remote_address VARCHAR(" + REMOTE_ADDRESS_LENGTH + "), "
+        + "http_method VARCHAR(" + HTTP_METHOD_LENGTH + "), "
+        + "request_uri VARCHAR(" + REQUEST_URI_LENGTH + "), "
+        + "response_status INTEGER, "
+        + "request_id VARCHAR(" + REQUEST_ID_LENGTH + "), "
+        + "event_data BLOB NOT NULL)";
+
+    private static final String INSERT = "INSERT INTO %s (event_date, principal, event_type, remote_address, "
+        + "http_method, request_uri, response_status, request_id, event_data) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final Logger log = LoggerFactory.getLogger(HipaaJdbcAuditSink.class);
+
+    private final DataSource dataSource;
+
+    private final String insert;
+
+    private final BlockingQueue<HipaaAuditRecord> queue;
+
+    private final BlockingQueue<HipaaAuditRecord> spillQueue;
+
+    private final int batchSize;
+
+    private final long batchIntervalNanos;
+
+    private final long retryBackoff;
+
+    private final long maxRetryBackoff;
+
+    private final long shutdownTimeout;
+
+    private final Path spillDirectory;
+
+    private final int spillSegmentSize;
+
+    private final long maxSpillBytes;
+
+    /**
+     * Bytes of the spilled records not inserted yet.
+     */
+    private final AtomicLong spillBytes = new AtomicLong();
+
+    private volatile boolean spillFull;
+
+    private final Object spillLock = new Object();
+
+    /**
+     * Journal records are spilled to, opened on the first spilled record and
+     * closed when its records are inserted.
+     */
+    private HipaaAuditJournal spill;
+
+    private HipaaAuditJournal rejectedJournal;
+
+    private long nextSpill;
+
+    private boolean spillClosed;
+
+    private volatile boolean spillPending;
+
+    private final Thread writer;
+
+    private final Thread spiller;
+
+    private final LongAdder written = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder spilled = new LongAdder();
+
+    private final LongAdder replayed = new LongAdder();
+
+    private volatile boolean running = true;
+
+    private volatile Timer commitLatency;
+
+    public HipaaJdbcAuditSink(DataSource dataSource, JdbcSink properties) throws SQLException, IOException {
+        if (!TABLE_NAME.matcher(properties.getTable()).matches()) {
+            throw new IllegalArgumentException("Invalid Hipaa audit table name " + properties.getTable());
+        }
+        this.dataSource = dataSource;
+        this.insert = String.format(INSERT, properties.getTable());
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, properties.getBufferCapacity()));
+        this.batchSize = Math.max(1, properties.getBatchSize());
+        this.batchIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, properties.getBatchInterval()));
+        this.retryBackoff = Math.max(1, properties.getRetryBackoff());
+        this.maxRetryBackoff = Math.max(retryBackoff, properties.getMaxRetryBackoff());
+        this.shutdownTimeout = properties.getShutdownTimeout();
+        this.spillDirectory = Paths.get(properties.getSpillDirectory());
+        this.spillSegmentSize = properties.getSpillSegmentSize();
+        this.spillQueue = new ArrayBlockingQueue<>(Math.max(1, properties.getSpillBufferCapacity()));
+        this.maxSpillBytes = properties.getMaxSpillBytes();
+        if (properties.isInitializeSchema()) {
+            initializeSchema(properties.getTable());
+        }
+        List<Path> spills = spills(spillDirectory);
+        if (!spills.isEmpty()) {
+            log.info("Inserting Hipaa audit events of {} spill journal(s) in {}", spills.size(), spillDirectory);
+            this.nextSpill = spillIndex(spills.get(spills.size() - 1)) + 1;
+            this.spillPending = true;
+            for (Path spill : spills) {
+                HipaaAuditJournal.read(spill, payload -> spillBytes.addAndGet(payload.remaining()));
+            }
+        }
+        this.writer = new Thread(this::write, "hipaa-audit-jdbc-sink");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.spiller = new Thread(this::spill, "hipaa-audit-jdbc-spill");
+        this.spiller.setDaemon(true);
+        this.spiller.start();
+    }
+
+    private void initializeSchema(String table) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            if (tableExists(connection.getMetaData(), table)) {
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(String.format(SCHEMA, table));
+            }
+            log.info("Created Hipaa audit table {}", table);
+        }
+    }
+
+    private static boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+        int dot = table.indexOf('.');
+        String schema = dot < 0 ? null : table.substring(0, dot);
+        String name = table.substring(dot + 1);
+        // unquoted identifiers are stored upper or lower case depending on the database
+        for (String candidate : new String[] {name, name.toUpperCase(), name.toLowerCase()}) {
+            try (ResultSet tables = metaData.getTables(null, schema, candidate, null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Buffer a record for the next batch, or hand it to the spill thread when
+     * the buffer is full. Once the sink is closed, the record is spilled on the
+     * calling thread.
+     *
+     * @param record record to insert
+     * @return whether the record was buffered or spilled, false when it was
+     *         dropped because the spill buffer was full, it could not be spilled
+     *         or the sink is closed
+     */
+    public boolean offer(HipaaAuditRecord record) {
+        if (running) {
+            if (queue.offer(record) || spillQueue.offer(record)) {
+                return true;
+            }
+            dropped.increment();
+            return false;
+        }
+        return spill(record);
+    }
+
+    /**
+     * Spill the records handed over by {@link #offer(HipaaAuditRecord)}, a
+     * batch per sync, until the sink is closed.
+     */
+    private void spill() {
+        List<HipaaAuditRecord> batch = new ArrayList<>(batchSize);
+        while (running || !spillQueue.isEmpty()) {
+            try {
+                HipaaAuditRecord first = spillQueue.poll(MAX_IDLE_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            spillQueue.drainTo(batch, batchSize - 1);
+            spillAll(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Append a record to the spill journal, or drop it when that fails or the
+     * spill directory is full.
+     */
+    private boolean spill(HipaaAuditRecord record) {
+        int bytes = 0;
+        try {
+            byte[] payload = HipaaAuditRecordCodec.encode(record);
+            if (!reserveSpill(payload.length)) {
+                dropped.increment();
+                return false;
+            }
+            bytes = payload.length;
+            appendSpilled(Collections.singletonList(payload));
+            spilled.increment();
+            spillPending = true;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            spillBytes.addAndGet(-bytes);
+            dropped.increment();
+            log.error("Error spilling Hipaa audit event of {} at {}, the event is dropped", record.getPrincipal(),
+                record.getTimestamp(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Spill records with a single sync, or one by one when that fails or they
+     * do not all fit into the spill directory.
+     */
+    private void spillAll(List<HipaaAuditRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        long bytes = 0;
+        try {
+            List<byte[]> payloads = new ArrayList<>(records.size());
+            for (HipaaAuditRecord record : records) {
+                byte[] payload = HipaaAuditRecordCodec.encode(record);
+                payloads.add(payload);
+                bytes += payload.length;
+            }
+            if (reserveSpill(bytes)) {
+                appendSpilled(payloads);
+                spilled.add(records.size());
+                spillPending = true;
+                return;
+            }
+            bytes = 0;
+        } catch (IOException | RuntimeException e) {
+            spillBytes.addAndGet(-bytes);
+            log.warn("Error spilling {} Hipaa audit events, spilling them one by one", records.size(), e);
+        }
+        for (HipaaAuditRecord record : records) {
+            spill(record);
+        }
+    }
+
+    /**
+     * Count the bytes of records about to be spilled, unless the spilled records
+     * waiting to be inserted would then exceed {@code maxSpillBytes}.
+     */
+    private boolean reserveSpill(long bytes) {
+        if (spillBytes.addAndGet(bytes) <= maxSpillBytes) {
+            return true;
+        }
+        spillBytes.addAndGet(-bytes);
+        if (!spillFull) {
+            spillFull = true;
+            log.error("Hipaa audit spill directory {} reached {} bytes, dropping audit events until the spilled "
+                + "events are inserted", spillDirectory, maxSpillBytes);
+        }
+        return false;
+    }
+
+    /**
+     * Append to the spill journal, outside the spill lock so that concurrent
+     * spills share a sync. A journal closed meanwhile to insert its records is
+     * replaced by a new one.
+     */
+    private void appendSpilled(List<byte[]> payloads) throws IOException {
+        while (true) {
+            HipaaAuditJournal journal;
+            synchronized (spillLock) {
+                journal = spillJournal();
+            }
+            try {
+                journal.appendAll(payloads);
+                return;
+            } catch (IOException e) {
+                synchronized (spillLock) {
+                    if (spill == journal || spillClosed) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The journal records are spilled to, guarded by {@link #spillLock}.
+     */
+    private HipaaAuditJournal spillJournal() throws IOException {
+        if (spillClosed) {
+            throw new IOException("Hipaa audit JDBC sink is closed");
+        }
+        if (spill == null) {
+            spill = openJournal(spillDirectory.resolve(String.format("%020d", nextSpill++)));
+        }
+        return spill;
+    }
+
+    private HipaaAuditJournal openJournal(Path directory) throws IOException {
+        return new HipaaAuditJournal(directory, spillSegmentSize, SPILL_GROUP_COMMIT_COUNT,
+            SPILL_GROUP_COMMIT_INTERVAL);
+    }
+
+    private void write() {
+        List<HipaaAuditRecord> batch = new ArrayList<>(batchSize);
+        long backoff = retryBackoff;
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            if (batch.isEmpty() && running && spillPending) {
+                if (insertSpilled()) {
+                    backoff = retryBackoff;
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+                    backoff = Math.min(backoff << 1, maxRetryBackoff);
+                }
+            }
+            if (batch.isEmpty()) {
+                try {
+                    collect(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    spillAll(batch);
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+            try {
+                insert(batch);
+                batch.clear();
+                backoff = retryBackoff;
+            } catch (SQLException e) {
+                failures.increment();
+                if (!isTransient(e)) {
+                    log.error("Error inserting a batch of {} Hipaa audit events, inserting them one by one",
+                        batch.size(), e);
+                    insertEach(batch);
+                    batch.clear();
+                } else if (!running) {
+                    queue.drainTo(batch);
+                    log.error("Error inserting Hipaa audit events at shutdown, spilling {} events to {}",
+                        batch.size(), spillDirectory, e);
+                    spillAll(batch);
+                    batch.clear();
+                } else {
+                    log.warn("Error inserting a batch of {} Hipaa audit events, retrying in {} ms: {}",
+                        batch.size(), backoff, e.getMessage());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+                    backoff = Math.min(backoff << 1, maxRetryBackoff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a first record, then collect records until the batch is full or
+     * the batch interval elapsed.
+     */
+    private void collect(List<HipaaAuditRecord> batch) throws InterruptedException {
+        HipaaAuditRecord first = running ? queue.poll(MAX_IDLE_NANOS, TimeUnit.NANOSECONDS) : queue.poll();
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + batchIntervalNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                return;
+            }
+            // wakes up to notice close() within the idle time
+            HipaaAuditRecord next = queue.poll(Math.min(remaining, MAX_IDLE_NANOS), TimeUnit.NANOSECONDS);
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+
+    private void insert(List<HipaaAuditRecord> batch) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(insert)) {
+                for (HipaaAuditRecord record : batch) {
+                    bind(statement, record);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                rollback(connection, e);
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        written.add(batch.size());
+        batches.increment();
+        Timer timer = this.commitLatency;
+        if (timer != null) {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void insertEach(List<HipaaAuditRecord> batch) {
+        for (HipaaAuditRecord record : batch) {
+            try {
+                insert(Collections.singletonList(record));
+            } catch (SQLException e) {
+                rejected.increment();
+                log.error("Error inserting Hipaa audit event of {} at {}, keeping it in the {} journal of {}",
+                    record.getPrincipal(), record.getTimestamp(), REJECTED_JOURNAL, spillDirectory, e);
+                reject(record);
+            }
+        }
+    }
+
+    private void reject(HipaaAuditRecord record) {
+        try {
+            byte[] payload = HipaaAuditRecordCodec.encode(record);
+            synchronized (spillLock) {
+                if (rejectedJournal == null) {
+                    rejectedJournal = openJournal(spillDirectory.resolve(REJECTED_JOURNAL));
+                }
+                rejectedJournal.append(payload);
+            }
+        } catch (IOException | RuntimeException e) {
+            dropped.increment();
+            log.error("Error keeping rejected Hipaa audit event of {} at {}, the event is dropped",
+                record.getPrincipal(), record.getTimestamp(), e);
+        }
+    }
+
+    /**
+     * Insert the records of the spill journals, new records being spilled to a
+     * new journal meanwhile.
+     *
+     * @return whether all spilled records were inserted, false when the database
+     *         is still unavailable
+     */
+    private boolean insertSpilled() {
+        spillPending = false;
+        List<Path> spills;
+        long replaying;
+        try {
+            synchronized (spillLock) {
+                replaying = spillBytes.get();
+                if (spill != null) {
+                    spill.close();
+                    spill = null;
+                }
+            }
+            spills = spills(spillDirectory);
+        } catch (IOException e) {
+            log.error("Error reading Hipaa audit spill journals in {}", spillDirectory, e);
+            spillPending = true;
+            return false;
+        }
+        for (Path journal : spills) {
+            if (!insertSpilled(journal)) {
+                spillPending = true;
+                return false;
+            }
+        }
+        synchronized (spillLock) {
+            // records spilled meanwhile are in the new journal, if any
+            spillBytes.set(spill == null ? 0 : Math.max(0, spillBytes.get() - replaying));
+        }
+        if (spillFull) {
+            spillFull = false;
+            log.info("Inserted the spilled Hipaa audit events, spilling audit events again");
+        }
+        return true;
+    }
+
+    private boolean insertSpilled(Path journal) {
+        Path insertedFile = journal.resolve(INSERTED_FILE);
+        long inserted = readInserted(insertedFile);
+        long[] position = {0, inserted};
+        List<HipaaAuditRecord> batch = new ArrayList<>(batchSize);
+        try {
+            HipaaAuditJournal.read(journal, payload -> {
+                if (position[0]++ < inserted) {
+                    return;
+                }
+                batch.add(HipaaAuditRecordCodec.decode(payload));
+                if (batch.size() >= batchSize) {
+                    position[1] += insertSpilled(batch, insertedFile, position[1]);
+                }
+            });
+            if (!batch.isEmpty()) {
+                insertSpilled(batch, insertedFile, position[1]);
+            }
+            delete(journal);
+            return true;
+        } catch (SpillInsertException e) {
+            log.warn("Error inserting spilled Hipaa audit events of {}, retrying: {}", journal,
+                e.getCause().getMessage());
+            return false;
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Error inserting spilled Hipaa audit events of {}", journal, e);
+            return false;
+        }
+    }
+
+    /**
+     * Insert a batch of spilled records and count them as inserted.
+     *
+     * @return the size of the batch
+     * @throws SpillInsertException if the database is unavailable
+     */
+    private int insertSpilled(List<HipaaAuditRecord> batch, Path insertedFile, long inserted) {
+        try {
+            insert(batch);
+        } catch (SQLException e) {
+            failures.increment();
+            if (isTransient(e)) {
+                throw new SpillInsertException(e);
+            }
+            insertEach(batch);
+        }
+        int size = batch.size();
+        replayed.add(size);
+        batch.clear();
+        try {
+            Files.write(insertedFile, Long.toString(inserted + size).getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return size;
+    }
+
+    private static long readInserted(Path insertedFile) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(insertedFile), StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            // none inserted yet, or torn by a crash: inserted again
+            return 0;
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Spill journals in the directory, oldest first.
+     */
+    static List<Path> spills(Path directory) throws IOException {
+        List<Path> spills = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return spills;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path) && spillIndex(path) >= 0) {
+                    spills.add(path);
+                }
+            }
+        }
+        Collections.sort(spills);
+        return spills;
+    }
+
+    private static long spillIndex(Path path) {
+        try {
+            return Long.parseLong(path.getFileName().toString());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void rollback(Connection connection, Exception cause) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Whether a batch failing with the exception may succeed when retried.
+     * Only errors of a record's data, i.e. a {@link SQLDataException}, a
+     * {@link SQLIntegrityConstraintViolationException} or an SQLState of class
+     * 22 (data exception) or 23 (integrity constraint violation), are not
+     * retried as a batch but record by record. Every other error, including a
+     * missing table (42) or invalid credentials (28), is retried, the events
+     * being spilled meanwhile, since no record would be accepted before it is
+     * fixed.
+     */
+    static boolean isTransient(SQLException e) {
+        SQLException cause = e;
+        if (e instanceof BatchUpdateException && e.getNextException() != null) {
+            cause = e.getNextException();
+        }
+        if (cause instanceof SQLDataException || cause instanceof SQLIntegrityConstraintViolationException) {
+            return false;
+        }
+        String state = cause.getSQLState();
+        return state == null || !(state.startsWith(DATA_EXCEPTION) || state.startsWith(CONSTRAINT_VIOLATION));
+    }
+
+    private static void bind(PreparedStatement statement, HipaaAuditRecord record) throws SQLException {
+        statement.setTimestamp(1, Timestamp.from(record.getTimestamp()));
+        statement.setString(2, truncate(record.getPrincipal(), PRINCIPAL_LENGTH));
+        statement.setString(3, truncate(record.getType(), TYPE_LENGTH));
+        statement.setString(4, truncate(record.getRemoteAddress(), REMOTE_ADDRESS_LENGTH));
+        statement.setString(5, truncate(record.getHttpMethod(), HTTP_METHOD_LENGTH));
+        statement.setString(6, truncate(record.getRequestUri(), REQUEST_URI_LENGTH));
+        if (record.getResponseStatus() != null) {
+            statement.setInt(7, record.getResponseStatus());
+        } else {
+            statement.setNull(7, Types.INTEGER);
+        }
+        statement.setString(8, truncate(record.getRequestId(), REQUEST_ID_LENGTH));
+        statement.setBytes(9, HipaaAuditRecordCodec.encode(record));
+    }
+
+    private static String truncate(String value, int length) {
+        return value != null && value.length() > length ? value.substring(0, length) : value;
+    }
+
+    /**
+     * Stop the writer after the buffered records have been inserted, waiting at
+     * most the shutdown timeout, and spill the records still buffered then.
+     */
+    @Override
+    public void close() {
+        running = false;
+        // cut a retry backoff short
+        LockSupport.unpark(writer);
+        try {
+            writer.join(Math.max(1, shutdownTimeout));
+            spiller.join(Math.max(1, shutdownTimeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<HipaaAuditRecord> remaining = new ArrayList<>();
+        spillQueue.drainTo(remaining);
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            log.warn("{} Hipaa audit events were not written to the database before shutdown, spilling them to {}",
+                remaining.size(), spillDirectory);
+            spillAll(remaining);
+        }
+        if (writer.isAlive()) {
+            log.warn("Hipaa audit JDBC sink is still inserting a batch at shutdown");
+        }
+        synchronized (spillLock) {
+            spillClosed = true;
+            close(spill);
+            close(rejectedJournal);
+            spill = null;
+            rejectedJournal = null;
+        }
+    }
+
+    private void close(HipaaAuditJournal journal) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.error("Error closing Hipaa audit journal {}", journal.getDirectory(), e);
+        }
+    }
+
+    public int getBufferDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Records waiting for the spill thread.
+     *
+     * @return the number of records to spill
+     */
+    public int getSpillBufferDepth() {
+        return spillQueue.size();
+    }
+
+    /**
+     * Bytes of the spilled records not inserted yet.
+     *
+     * @return the number of spilled bytes
+     */
+    public long getSpillBytes() {
+        return spillBytes.get();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getFailedBatchCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Records dropped because they could not be spilled, the spill buffer was
+     * full or the spill directory at its maximum size.
+     *
+     * @return the number of dropped records
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Records the database rejected, kept in the rejected journal.
+     *
+     * @return the number of rejected records
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Records spilled because the buffer was full or the database was
+     * unavailable at shutdown.
+     *
+     * @return the number of spilled records
+     */
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    /**
+     * Spilled records inserted or rejected.
+     *
+     * @return the number of replayed records
+     */
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("hipaa.audit.jdbc.buffer.depth", this, HipaaJdbcAuditSink::getBufferDepth)
+            .description("Audit events waiting to be inserted").register(registry);
+        Gauge.builder("hipaa.audit.jdbc.spill.depth", this, HipaaJdbcAuditSink::getSpillBufferDepth)
+            .description("Audit events waiting to be spilled to disk").register(registry);
+        Gauge.builder("hipaa.audit.jdbc.spill.bytes", this, HipaaJdbcAuditSink::getSpillBytes)
+            .baseUnit("bytes").description("Bytes of spilled audit events waiting to be inserted").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.written", this, HipaaJdbcAuditSink::getWrittenCount)
+            .description("Audit events inserted into the database").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.batches", this, HipaaJdbcAuditSink::getBatchCount)
+            .description("Batches of audit events committed").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.batches.failed", this, HipaaJdbcAuditSink::getFailedBatchCount)
+            .description("Batches of audit events that failed to be inserted").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.dropped", this, HipaaJdbcAuditSink::getDroppedCount)
+            .description("Audit events dropped because they could not be spilled").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.rejected", this, HipaaJdbcAuditSink::getRejectedCount)
+            .description("Audit events rejected by the database").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.spilled", this, HipaaJdbcAuditSink::getSpilledCount)
+            .description("Audit events spilled to disk").register(registry);
+        FunctionCounter.builder("hipaa.audit.jdbc.replayed", this, HipaaJdbcAuditSink::getReplayedCount)
+            .description("Spilled audit events inserted into the database").register(registry);
+        this.commitLatency = Timer.builder("hipaa.audit.jdbc.commit")
+            .description("Time to insert and commit a batch of audit events")
+            .publishPercentiles(0.5, 0.99, 0.999).register(registry);
+    }
+
+    /**
+     * Transient failure inserting spilled records, thrown out of the journal scan.
+     */
+    private static final class SpillInsertException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SpillInsertException(SQLException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationListener;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+/**
+ * Buffers the Hipaa audit events published by the audit filters for the next
+ * batch of the database sink.
+ */
+public class HipaaJdbcAuditSinkListener implements ApplicationListener<AuditApplicationEvent> {
+
+    private final HipaaJdbcAuditSink sink;
+
+    public HipaaJdbcAuditSinkListener(HipaaJdbcAuditSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void onApplicationEvent(AuditApplicationEvent event) {
+        if (HipaaAuditRecord.AUDIT_EVENT_TYPE.equals(event.getAuditEvent().getType())) {
+            sink.offer(HipaaAuditApplicationEvent.recordOf(event));
+        }
+    }
+}
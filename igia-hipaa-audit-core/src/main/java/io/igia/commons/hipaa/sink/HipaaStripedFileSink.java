@@ -0,0 +1,430 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.FileSink;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+
+/**
+ * File sink of audit records striped across several independent writers, so
+ * that threads appending concurrently do not contend on a single lock.
+ * <p>
+ * Every appending thread is assigned a stripe round robin on its first append.
+ * A stripe owns its segment file and its write buffer and is locked only by
+ * the threads assigned to it and by the background flush. Records are framed
+ * as in the journal, by a length and a CRC32 of their {@link HipaaAuditRecordCodec}
+ * encoding. A segment exceeding {@code segmentSize} is closed and compressed
+ * with gzip on a background thread while the stripe continues in a new segment.
+ * <p>
+ * Buffered records are written to the segment files every {@code flushInterval}
+ * and when a segment is closed; they are not synced to disk on every append, use
+ * the journal for durability. {@link HipaaStripedFileSinkReader} reads the
+ * stripes back merged in timestamp order.
+ */
+public class HipaaStripedFileSink implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    static final String COMPRESSED_SUFFIX = ".log.gz";
+
+    static final Pattern SEGMENT_NAME = Pattern.compile("stripe-(\\d{3})-(\\d{10})(\\.log|\\.log\\.gz)");
+
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private final Logger log = LoggerFactory.getLogger(HipaaStripedFileSink.class);
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final boolean compress;
+
+    private final Stripe[] stripes;
+
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    private final ThreadLocal<Stripe> stripe;
+
+    private final ExecutorService compressor;
+
+    private final Thread flusher;
+
+    private final long flushInterval;
+
+    private final Object flushLock = new Object();
+
+    private final LongAdder appended = new LongAdder();
+
+    private final LongAdder compressed = new LongAdder();
+
+    private volatile boolean open = true;
+
+    public HipaaStripedFileSink(FileSink properties) throws IOException {
+        this(Paths.get(properties.getDirectory()),
+            properties.getStripes() > 0 ? properties.getStripes() : Runtime.getRuntime().availableProcessors(),
+            properties.getBufferSize(), properties.getSegmentSize(), properties.getFlushInterval(),
+            properties.isCompress());
+    }
+
+    /**
+     * @param directory directory of the segment files, created when missing
+     * @param stripes number of stripes
+     * @param bufferSize size in bytes of a stripe buffer
+     * @param segmentSize size in bytes a segment file is rolled over at
+     * @param flushInterval maximum time in milliseconds records stay in a stripe buffer
+     * @param compress whether rolled over segment files are compressed
+     * @throws IOException if the directory cannot be created or the segments recovered
+     */
+    public HipaaStripedFileSink(Path directory, int stripes, int bufferSize, long segmentSize, long flushInterval,
+        boolean compress) throws IOException {
+        if (stripes <= 0 || stripes > 999) {
+            throw new IllegalArgumentException("Number of file sink stripes out of range: " + stripes);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compress = compress;
+        this.flushInterval = Math.max(1, flushInterval);
+        Files.createDirectories(directory);
+        this.compressor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hipaa-audit-sink-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastSequences = recover(stripes);
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(i, lastSequences[i] + 1, bufferSize);
+        }
+        this.stripe = ThreadLocal.withInitial(
+            () -> this.stripes[Math.floorMod(nextStripe.getAndIncrement(), this.stripes.length)]);
+        this.flusher = new Thread(this::flushLoop, "hipaa-audit-sink-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Find the last segment of every stripe and queue the uncompressed segments
+     * left by the previous run for compression.
+     */
+    private long[] recover(int stripeCount) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "stripe-*.tmp")) {
+            for (Path tmp : stream) {
+                Files.delete(tmp);
+            }
+        }
+        long[] lastSequences = new long[stripeCount];
+        for (List<Path> segments : segments(directory).values()) {
+            for (Path segment : segments) {
+                Matcher name = SEGMENT_NAME.matcher(segment.getFileName().toString());
+                name.matches();
+                int index = Integer.parseInt(name.group(1));
+                if (index < stripeCount) {
+                    lastSequences[index] = Math.max(lastSequences[index], Long.parseLong(name.group(2)));
+                }
+                if (segment.getFileName().toString().endsWith(SEGMENT_SUFFIX)) {
+                    closed(segment);
+                }
+            }
+        }
+        return lastSequences;
+    }
+
+    /**
+     * Append a record to the stripe of the calling thread.
+     *
+     * @param record record to append
+     * @throws IOException if the sink is closed or the segment cannot be written
+     */
+    public void append(HipaaAuditRecord record) throws IOException {
+        byte[] payload = HipaaAuditRecordCodec.encode(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        Stripe current = stripe.get();
+        synchronized (current) {
+            if (!open) {
+                throw new IOException("Hipaa audit file sink is closed");
+            }
+            current.append(payload, (int) crc.getValue());
+        }
+        appended.increment();
+    }
+
+    /**
+     * Flush the stripes periodically. The flusher is woken by close rather than
+     * interrupted, as an interrupt during a write would close the channel.
+     */
+    private void flushLoop() {
+        while (open) {
+            try {
+                synchronized (flushLock) {
+                    if (open) {
+                        flushLock.wait(flushInterval);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Stripe current : stripes) {
+                synchronized (current) {
+                    try {
+                        current.flush();
+                    } catch (IOException e) {
+                        log.error("Error flushing Hipaa audit file sink stripe {}", current.index, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void closed(Path segment) {
+        if (!compress) {
+            return;
+        }
+        compressor.execute(() -> {
+            try {
+                compress(segment);
+                compressed.increment();
+            } catch (IOException e) {
+                log.error("Error compressing Hipaa audit file sink segment {}", segment, e);
+            }
+        });
+    }
+
+    /**
+     * Replace the segment with its gzip compressed copy. The copy is written to a
+     * temporary file first, so that readers see either file complete.
+     */
+    static void compress(Path segment) throws IOException {
+        String name = segment.getFileName().toString();
+        Path target = segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length())
+            + COMPRESSED_SUFFIX);
+        Path tmp = segment.resolveSibling(target.getFileName() + ".tmp");
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(segment));
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), 8192)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(segment);
+    }
+
+    /**
+     * Write the buffered records of every stripe to the segment files.
+     *
+     * @throws IOException if a segment cannot be written
+     */
+    public void flush() throws IOException {
+        for (Stripe current : stripes) {
+            synchronized (current) {
+                current.flush();
+            }
+        }
+    }
+
+    /**
+     * Flush and close the stripes and wait for the pending compressions. The last
+     * segment of every stripe is compressed when the sink is opened next.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        synchronized (flushLock) {
+            open = false;
+            flushLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException error = null;
+        for (Stripe current : stripes) {
+            synchronized (current) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        compressor.shutdown();
+        try {
+            compressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getCompressedCount() {
+        return compressed.sum();
+    }
+
+    /**
+     * Segment files of the directory by stripe index, ordered by sequence. A
+     * segment present both compressed and uncompressed, while its compression
+     * completes, is listed compressed only.
+     */
+    static TreeMap<Integer, List<Path>> segments(Path directory) throws IOException {
+        TreeMap<Integer, TreeMap<Long, Path>> bySequence = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "stripe-*")) {
+            for (Path path : stream) {
+                Matcher name = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (!name.matches()) {
+                    continue;
+                }
+                TreeMap<Long, Path> stripeSegments = bySequence.computeIfAbsent(Integer.parseInt(name.group(1)),
+                    i -> new TreeMap<>());
+                Long sequence = Long.parseLong(name.group(2));
+                Path existing = stripeSegments.get(sequence);
+                if (existing == null || name.group(3).equals(COMPRESSED_SUFFIX)) {
+                    stripeSegments.put(sequence, path);
+                }
+            }
+        }
+        TreeMap<Integer, List<Path>> segments = new TreeMap<>();
+        bySequence.forEach((index, stripeSegments) -> segments.put(index, new ArrayList<>(stripeSegments.values())));
+        return segments;
+    }
+
+    /**
+     * Writer of one stripe, guarded by its monitor.
+     */
+    private final class Stripe {
+
+        private final int index;
+
+        private final ByteBuffer buffer;
+
+        private long sequence;
+
+        private Path path;
+
+        private FileChannel channel;
+
+        private long size;
+
+        Stripe(int index, long sequence, int bufferSize) {
+            this.index = index;
+            this.sequence = sequence;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 4096));
+        }
+
+        void append(byte[] payload, int crc) throws IOException {
+            int frameSize = RECORD_HEADER_SIZE + payload.length;
+            if (channel == null || (size > 0 && size + buffer.position() + frameSize > segmentSize)) {
+                roll();
+            }
+            if (buffer.remaining() < frameSize) {
+                flush();
+            }
+            if (buffer.remaining() >= frameSize) {
+                buffer.putInt(payload.length).putInt(crc).put(payload);
+            } else {
+                // larger than the buffer
+                ByteBuffer frame = ByteBuffer.allocate(frameSize);
+                frame.putInt(payload.length).putInt(crc).put(payload).flip();
+                write(frame);
+            }
+        }
+
+        void flush() throws IOException {
+            if (channel == null || buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                size += channel.write(source);
+            }
+        }
+
+        private void roll() throws IOException {
+            Path previous = path;
+            close();
+            path = directory.resolve(String.format("stripe-%03d-%010d%s", index, sequence++, SEGMENT_SUFFIX));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            size = 0;
+            if (previous != null) {
+                closed(previous);
+            }
+        }
+
+        void close() throws IOException {
+            if (channel == null) {
+                return;
+            }
+            try {
+                flush();
+                channel.force(false);
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
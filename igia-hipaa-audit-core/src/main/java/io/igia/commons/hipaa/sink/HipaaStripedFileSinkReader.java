@@ -0,0 +1,239 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+
+/**
+ * Reads the records of a {@link HipaaStripedFileSink} directory merged across
+ * stripes by timestamp, from compressed and uncompressed segments alike.
+ * <p>
+ * The stripes are read sequentially, one segment at a time, and merged by the
+ * timestamp of their next record, so that memory use does not depend on the
+ * number of records. Records of one stripe are not sorted but returned in the
+ * order they were appended, so the records are only in timestamp order as long
+ * as every stripe was appended in timestamp order; a record appended after a
+ * later stamped one of its stripe, e.g. by a thread preempted between stamping
+ * and appending it, is returned after it. A torn record at the end of a
+ * segment, e.g. of a segment still being written, ends the segment. A segment
+ * compressed since the directory was listed is read compressed.
+ */
+public class HipaaStripedFileSinkReader implements Iterator<HipaaAuditRecord>, Closeable {
+
+    /**
+     * Larger lengths are taken for a corrupt record rather than allocated.
+     */
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(HipaaStripedFileSinkReader.class);
+
+    private final PriorityQueue<StripeCursor> cursors = new PriorityQueue<>(
+        Comparator.<StripeCursor, Long>comparing(cursor -> cursor.head.getTimestamp().toEpochMilli())
+            .thenComparingInt(cursor -> cursor.index));
+
+    public HipaaStripedFileSinkReader(Path directory) throws IOException {
+        try {
+            for (Map.Entry<Integer, List<Path>> stripe
+                : HipaaStripedFileSink.segments(directory).entrySet()) {
+                StripeCursor cursor = new StripeCursor(stripe.getKey(), stripe.getValue());
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Pass every record of the directory, merged by timestamp in append order per
+     * stripe, to the consumer.
+     *
+     * @param directory directory of the sink
+     * @param consumer consumer of the records
+     * @return the number of records read
+     * @throws IOException if a segment cannot be read
+     */
+    public static long read(Path directory, Consumer<HipaaAuditRecord> consumer) throws IOException {
+        long records = 0;
+        try (HipaaStripedFileSinkReader reader = new HipaaStripedFileSinkReader(directory)) {
+            while (reader.hasNext()) {
+                consumer.accept(reader.next());
+                records++;
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !cursors.isEmpty();
+    }
+
+    /**
+     * @throws UncheckedIOException if a segment cannot be read
+     */
+    @Override
+    public HipaaAuditRecord next() {
+        StripeCursor cursor = cursors.poll();
+        if (cursor == null) {
+            throw new NoSuchElementException();
+        }
+        HipaaAuditRecord record = cursor.head;
+        try {
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record;
+    }
+
+    @Override
+    public void close() {
+        for (StripeCursor cursor : cursors) {
+            cursor.close();
+        }
+        cursors.clear();
+    }
+
+    /**
+     * Position in the segments of one stripe.
+     */
+    private final class StripeCursor {
+
+        private final int index;
+
+        private final List<Path> segments;
+
+        private final CRC32 crc = new CRC32();
+
+        private int segment;
+
+        private Path path;
+
+        private DataInputStream in;
+
+        private HipaaAuditRecord head;
+
+        StripeCursor(int index, List<Path> segments) {
+            this.index = index;
+            this.segments = segments;
+        }
+
+        /**
+         * Read the next record of the stripe into {@link #head}.
+         *
+         * @return false at the end of the stripe
+         */
+        boolean advance() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (segment == segments.size()) {
+                        head = null;
+                        return false;
+                    }
+                    path = segments.get(segment++);
+                    InputStream file = open();
+                    in = new DataInputStream(new BufferedInputStream(
+                        path.toString().endsWith(HipaaStripedFileSink.COMPRESSED_SUFFIX)
+                            ? new GZIPInputStream(file, 8192) : file, 65536));
+                }
+                head = readRecord();
+                if (head != null) {
+                    return true;
+                }
+                close();
+            }
+        }
+
+        /**
+         * Open the current segment, or its compressed copy when it was compressed
+         * and deleted since the directory was listed.
+         */
+        private InputStream open() throws IOException {
+            try {
+                return Files.newInputStream(path);
+            } catch (NoSuchFileException e) {
+                String name = path.getFileName().toString();
+                if (!name.endsWith(HipaaStripedFileSink.SEGMENT_SUFFIX)) {
+                    throw e;
+                }
+                path = path.resolveSibling(name.substring(0, name.length()
+                    - HipaaStripedFileSink.SEGMENT_SUFFIX.length()) + HipaaStripedFileSink.COMPRESSED_SUFFIX);
+                return Files.newInputStream(path);
+            }
+        }
+
+        private HipaaAuditRecord readRecord() throws IOException {
+            try {
+                int length = in.readInt();
+                int expectedCrc = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    return null;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    log.warn("Skipping the rest of Hipaa audit file sink segment {} after a corrupt record", path);
+                    return null;
+                }
+                return HipaaAuditRecordCodec.decode(payload);
+            } catch (EOFException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                log.warn("Skipping the rest of Hipaa audit file sink segment {} after an invalid record", path);
+                return null;
+            }
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.debug("Error closing Hipaa audit file sink segment {}", path, e);
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.time.Instant;
+
+/**
+ * Criteria of a {@link HipaaAuditStore} query. All given criteria must match;
+ * criteria not set match every record.
+ */
+public final class HipaaAuditQuery {
+
+    private final String principal;
+
+    private final String remoteAddress;
+
+    private final String resource;
+
+    private final Instant from;
+
+    private final Instant to;
+
+    private final int limit;
+
+    private HipaaAuditQuery(Builder builder) {
+        this.principal = builder.principal;
+        this.remoteAddress = builder.remoteAddress;
+        this.resource = builder.resource;
+        this.from = builder.from;
+        this.to = builder.to;
+        this.limit = builder.limit;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * FHIR resource type, e.g. {@code Patient}, or reference, e.g. {@code Patient/123}.
+     *
+     * @return the resource, or null
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * Inclusive start of the time range, null for no start.
+     *
+     * @return the start of the time range, or null
+     */
+    public Instant getFrom() {
+        return from;
+    }
+
+    /**
+     * Exclusive end of the time range, null for no end.
+     *
+     * @return the end of the time range, or null
+     */
+    public Instant getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public static final class Builder {
+
+        private String principal;
+
+        private String remoteAddress;
+
+        private String resource;
+
+        private Instant from;
+
+        private Instant to;
+
+        private int limit = 100;
+
+        private Builder() {
+        }
+
+        public Builder principal(String principal) {
+            this.principal = principal;
+            return this;
+        }
+
+        public Builder remoteAddress(String remoteAddress) {
+            this.remoteAddress = remoteAddress;
+            return this;
+        }
+
+        public Builder resource(String resource) {
+            this.resource = resource;
+            return this;
+        }
+
+        public Builder from(Instant from) {
+            this.from = from;
+            return this;
+        }
+
+        public Builder to(Instant to) {
+            this.to = to;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        public HipaaAuditQuery build() {
+            return new HipaaAuditQuery(this);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Store;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+import io.igia.commons.hipaa.store.HipaaAuditStorePartition.Match;
+
+/**
+ * Embedded, file-backed store of audit records answering queries such as "who
+ * accessed patient X last month" without scanning every record.
+ * <p>
+ * Records are appended to the active partition, one directory per time range
+ * of {@code partitionDuration} named by its start in epoch milliseconds. A
+ * record of a later time range seals the active partition, writing its indexes
+ * on the principal, the remote address and the FHIR resources of the request
+ * URI and parameters to a memory-mapped index file, see
+ * {@link HipaaAuditStorePartition}. Records arriving late are appended to the
+ * active partition, which tracks the time range it actually holds. With a
+ * {@code retention}, the sealed partitions holding only records older than the
+ * retention before the start of the active partition are deleted when the
+ * store is opened and whenever the active partition is rolled.
+ * <p>
+ * A query skips the partitions outside its time range, intersects the posting
+ * lists of its criteria and keeps the {@code limit} most recent matches of all
+ * other partitions, late records included, in a bounded heap by the indexed
+ * timestamps. It reads only the records it returns, so its cost depends on the
+ * number of matches rather than the size of the store.
+ */
+public class HipaaAuditStore implements Closeable {
+
+    private static final int PARTITION_NAME_LENGTH = 20;
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditStore.class);
+
+    private final Path directory;
+
+    private final long partitionDuration;
+
+    private final long retention;
+
+    private final Object lock = new Object();
+
+    /**
+     * Sealed partitions, oldest first, replaced as a whole when one is added.
+     */
+    private volatile List<HipaaAuditStorePartition> sealed = Collections.emptyList();
+
+    private HipaaAuditStorePartition active;
+
+    private boolean open = true;
+
+    public HipaaAuditStore(Store properties) throws IOException {
+        this(Paths.get(properties.getDirectory()), properties.getPartitionDuration(), properties.getRetention());
+    }
+
+    /**
+     * @param directory directory of the partitions, created when missing
+     * @param partitionDuration time range in milliseconds of a partition
+     * @throws IOException if the directory cannot be created or the partitions recovered
+     */
+    public HipaaAuditStore(Path directory, long partitionDuration) throws IOException {
+        this(directory, partitionDuration, 0);
+    }
+
+    /**
+     * @param directory directory of the partitions, created when missing
+     * @param partitionDuration time range in milliseconds of a partition
+     * @param retention time in milliseconds the records are kept, forever when not positive
+     * @throws IOException if the directory cannot be created or the partitions recovered
+     */
+    public HipaaAuditStore(Path directory, long partitionDuration, long retention) throws IOException {
+        if (partitionDuration <= 0) {
+            throw new IllegalArgumentException("Audit store partition duration must be positive: "
+                + partitionDuration);
+        }
+        this.directory = directory;
+        this.partitionDuration = partitionDuration;
+        this.retention = retention;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Path> partitions = partitions(directory);
+        List<HipaaAuditStorePartition> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < partitions.size(); i++) {
+                Path path = partitions.get(i);
+                boolean last = i == partitions.size() - 1;
+                HipaaAuditStorePartition partition = HipaaAuditStorePartition.open(path, partitionStart(path), last);
+                if (last) {
+                    active = partition;
+                } else {
+                    opened.add(partition);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (HipaaAuditStorePartition partition : opened) {
+                partition.close();
+            }
+            throw e;
+        }
+        this.sealed = Collections.unmodifiableList(opened);
+        expire();
+        if (!partitions.isEmpty()) {
+            log.info("Opened Hipaa audit store of {} record(s) in {} partition(s) in {}", getRecordCount(),
+                partitions.size(), directory);
+        }
+    }
+
+    /**
+     * Append a record to the partition of its timestamp, or to the active
+     * partition if that is later.
+     *
+     * @param record record to append
+     * @throws IOException if the partition cannot be written
+     */
+    public void append(HipaaAuditRecord record) throws IOException {
+        byte[] payload = HipaaAuditRecordCodec.encode(record);
+        long start = Math.floorDiv(record.getTimestamp().toEpochMilli(), partitionDuration) * partitionDuration;
+        synchronized (lock) {
+            if (!open) {
+                throw new IOException("Hipaa audit store is closed");
+            }
+            if (active == null || start > active.getStart()) {
+                roll(start);
+            }
+            active.append(record, payload);
+        }
+    }
+
+    private void roll(long start) throws IOException {
+        HipaaAuditStorePartition next = HipaaAuditStorePartition.create(
+            directory.resolve(String.format("%0" + PARTITION_NAME_LENGTH + "d", start)), start);
+        if (active != null) {
+            active.seal();
+            List<HipaaAuditStorePartition> partitions = new ArrayList<>(sealed);
+            partitions.add(active);
+            sealed = Collections.unmodifiableList(partitions);
+        }
+        active = next;
+        expire();
+    }
+
+    /**
+     * Delete the sealed partitions holding only records older than the retention
+     * before the start of the active partition.
+     */
+    private void expire() throws IOException {
+        if (retention <= 0 || active == null) {
+            return;
+        }
+        long cutoff = active.getStart() - retention;
+        List<HipaaAuditStorePartition> kept = new ArrayList<>(sealed.size());
+        List<HipaaAuditStorePartition> expired = new ArrayList<>();
+        for (HipaaAuditStorePartition partition : sealed) {
+            (partition.getMaxTimestamp() < cutoff ? expired : kept).add(partition);
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        // queries in flight skip the records of the deleted partitions
+        sealed = Collections.unmodifiableList(kept);
+        for (HipaaAuditStorePartition partition : expired) {
+            partition.delete();
+            log.info("Deleted Hipaa audit store partition {} past its retention", partition.getDirectory());
+        }
+    }
+
+    /**
+     * Records matching the query, the most recent first.
+     *
+     * @param query query of the records
+     * @return the matching records
+     * @throws IOException if a partition cannot be read
+     */
+    public List<HipaaAuditRecord> query(HipaaAuditQuery query) throws IOException {
+        String[] criteria = new String[HipaaAuditStorePartition.FIELDS];
+        criteria[HipaaAuditStorePartition.PRINCIPAL] = query.getPrincipal();
+        criteria[HipaaAuditStorePartition.REMOTE_ADDRESS] = query.getRemoteAddress();
+        criteria[HipaaAuditStorePartition.RESOURCE] = query.getResource();
+        long from = query.getFrom() != null ? query.getFrom().toEpochMilli() : Long.MIN_VALUE;
+        long to = query.getTo() != null ? query.getTo().toEpochMilli() : Long.MAX_VALUE;
+        int limit = query.getLimit();
+        PriorityQueue<Match> matches = new PriorityQueue<>(Comparator.comparingLong(Match::getTimestamp));
+        List<HipaaAuditStorePartition> partitions;
+        synchronized (lock) {
+            if (active != null) {
+                active.query(criteria, from, to, limit, matches);
+            }
+            partitions = sealed;
+        }
+        // most recent partitions first, skipping those older than the kept matches
+        for (int i = partitions.size() - 1; i >= 0; i--) {
+            partitions.get(i).query(criteria, from, to, limit, matches);
+        }
+        List<Match> kept = new ArrayList<>(matches);
+        kept.sort(Comparator.comparingLong(Match::getTimestamp).reversed());
+        List<HipaaAuditRecord> results = new ArrayList<>(kept.size());
+        for (Match match : kept) {
+            HipaaAuditRecord record = match.read();
+            if (record != null) {
+                results.add(record);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Close the partitions. The active partition is indexed again from its
+     * records when the store is opened next.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (active != null) {
+                active.close();
+            }
+            for (HipaaAuditStorePartition partition : sealed) {
+                partition.close();
+            }
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getRecordCount() {
+        long count = 0;
+        synchronized (lock) {
+            if (active != null) {
+                count += active.getCount();
+            }
+        }
+        for (HipaaAuditStorePartition partition : sealed) {
+            count += partition.getCount();
+        }
+        return count;
+    }
+
+    public int getPartitionCount() {
+        synchronized (lock) {
+            return sealed.size() + (active != null ? 1 : 0);
+        }
+    }
+
+    List<HipaaAuditStorePartition> getSealedPartitions() {
+        return sealed;
+    }
+
+    static List<Path> partitions(Path directory) throws IOException {
+        List<Path> partitions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path path : stream) {
+                if (partitionStart(path) >= 0) {
+                    partitions.add(path);
+                }
+            }
+        }
+        Collections.sort(partitions);
+        return partitions;
+    }
+
+    private static long partitionStart(Path path) {
+        String name = path.getFileName().toString();
+        if (name.length() != PARTITION_NAME_LENGTH) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
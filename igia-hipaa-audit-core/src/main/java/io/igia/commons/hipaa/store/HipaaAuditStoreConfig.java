@@ -0,0 +1,51 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.igia.commons.hipaa.HipaaAuditProperties;
+
+/**
+ * Indexed store of the Hipaa audit events, imported by the gateway audit configurations.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "igia.hipaa.audit.store", name = "enabled", havingValue = "true")
+public class HipaaAuditStoreConfig {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditStoreConfig.class);
+
+    @Bean(destroyMethod = "close")
+    public HipaaAuditStore hipaaAuditStore(HipaaAuditProperties applicationProperties) throws IOException {
+        log.info("Configuring Hipaa audit store in {}", applicationProperties.getStore().getDirectory());
+        return new HipaaAuditStore(applicationProperties.getStore());
+    }
+
+    @Bean
+    public HipaaAuditStoreListener hipaaAuditStoreListener(HipaaAuditStore hipaaAuditStore) {
+        return new HipaaAuditStoreListener(hipaaAuditStore);
+    }
+
+    @Bean
+    public HipaaAuditStoreEndpoint hipaaAuditStoreEndpoint(HipaaAuditStore hipaaAuditStore,
+        HipaaAuditProperties applicationProperties) {
+        return new HipaaAuditStoreEndpoint(hipaaAuditStore, applicationProperties.getStore().getMaxResults(),
+            applicationProperties.getStore().isIncludeBodies());
+    }
+}
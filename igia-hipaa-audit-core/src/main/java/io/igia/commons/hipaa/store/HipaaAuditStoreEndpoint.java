@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+/**
+ * Actuator endpoint querying the {@link HipaaAuditStore}, e.g.
+ * {@code /actuator/hipaaaudit?resource=Patient/123&from=2019-01-01T00:00:00Z}.
+ * <p>
+ * Unless {@code includeBodies} is set, the events only hold the metadata of the
+ * audited requests, without the request parameters, message and bodies that may
+ * contain PHI. The endpoint must be secured all the same.
+ */
+@Endpoint(id = "hipaaaudit")
+public class HipaaAuditStoreEndpoint {
+
+    private static final Set<String> METADATA_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        HipaaAuditRecord.REMOTE_ADDRESS, HipaaAuditRecord.HTTP_METHOD, HipaaAuditRecord.REQUEST_URI,
+        HipaaAuditRecord.RESPONSE_STATUS, HipaaAuditRecord.REQUEST_ID, HipaaAuditRecord.DURATION_MILLIS,
+        HipaaAuditRecord.AUDIT_FIDELITY, HipaaAuditRecord.BODY_DROPPED, HipaaAuditRecord.RESPONSE_BODY_COMPLETE,
+        HipaaAuditRecord.RESPONSE_BODY_TRUNCATED, HipaaAuditRecord.RESPONSE_BODY_LENGTH,
+        HipaaAuditRecord.RESPONSE_BODY_SHA256, HipaaAuditRecord.REQUEST_BODY_COMPLETE,
+        HipaaAuditRecord.REQUEST_BODY_TRUNCATED, HipaaAuditRecord.REQUEST_BODY_LENGTH,
+        HipaaAuditRecord.REQUEST_BODY_SHA256, HipaaAuditRecord.COALESCED_COUNT, HipaaAuditRecord.LAST_TIMESTAMP)));
+
+    private final HipaaAuditStore store;
+
+    private final int maxResults;
+
+    private final boolean includeBodies;
+
+    public HipaaAuditStoreEndpoint(HipaaAuditStore store, int maxResults, boolean includeBodies) {
+        this.store = store;
+        this.maxResults = maxResults;
+        this.includeBodies = includeBodies;
+    }
+
+    @ReadOperation
+    public HipaaAuditEventsDescriptor events(@Nullable String principal, @Nullable String remoteAddress,
+        @Nullable String resource, @Nullable OffsetDateTime from, @Nullable OffsetDateTime to,
+        @Nullable Integer limit) {
+        HipaaAuditQuery query = HipaaAuditQuery.builder()
+            .principal(principal)
+            .remoteAddress(remoteAddress)
+            .resource(resource)
+            .from(from != null ? from.toInstant() : null)
+            .to(to != null ? to.toInstant() : null)
+            .limit(limit != null ? Math.max(0, Math.min(limit, maxResults)) : maxResults)
+            .build();
+        try {
+            List<HipaaAuditRecord> records = store.query(query);
+            List<AuditEvent> events = new ArrayList<>(records.size());
+            for (HipaaAuditRecord record : records) {
+                events.add(includeBodies ? record.toAuditEvent() : metadataOf(record.toAuditEvent()));
+            }
+            return new HipaaAuditEventsDescriptor(events);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static AuditEvent metadataOf(AuditEvent event) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : event.getData().entrySet()) {
+            if (METADATA_KEYS.contains(entry.getKey())) {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return new AuditEvent(event.getTimestamp(), event.getPrincipal(), event.getType(), data);
+    }
+
+    /**
+     * Response of the endpoint, as of the {@code auditevents} endpoint.
+     */
+    public static final class HipaaAuditEventsDescriptor {
+
+        private final List<AuditEvent> events;
+
+        private HipaaAuditEventsDescriptor(List<AuditEvent> events) {
+            this.events = events;
+        }
+
+        public List<AuditEvent> getEvents() {
+            return events;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationListener;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+/**
+ * Writes the Hipaa audit events published by the audit filters to the store.
+ */
+public class HipaaAuditStoreListener implements ApplicationListener<AuditApplicationEvent> {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditStoreListener.class);
+
+    private final HipaaAuditStore store;
+
+    public HipaaAuditStoreListener(HipaaAuditStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void onApplicationEvent(AuditApplicationEvent event) {
+        if (!HipaaAuditRecord.AUDIT_EVENT_TYPE.equals(event.getAuditEvent().getType())) {
+            return;
+        }
+        try {
+            store.append(HipaaAuditApplicationEvent.recordOf(event));
+        } catch (IOException e) {
+            log.error("Error writing Hipaa audit event to the store", e);
+        }
+    }
+}
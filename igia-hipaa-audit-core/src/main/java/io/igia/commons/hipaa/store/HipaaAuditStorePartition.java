@@ -0,0 +1,650 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+
+/**
+ * One time partition of the audit store: a file of length-prefixed, CRC32
+ * checked {@link HipaaAuditRecordCodec} records and the secondary indexes on
+ * them, mapping every principal, remote address and FHIR resource term to the
+ * sorted ordinals of the records holding it.
+ * <p>
+ * While the partition is active its indexes are kept on the heap. Sealing
+ * writes them to an index file of sorted terms and posting lists, which is
+ * memory-mapped and binary searched in place, so that a sealed partition costs
+ * no heap. A partition found without an index file, e.g. after a crash, is
+ * indexed again from its records. The records file of a sealed partition found
+ * with its index file is only opened when a query reads one of its records.
+ * <p>
+ * Not thread-safe while active; sealed partitions may be queried concurrently.
+ */
+final class HipaaAuditStorePartition implements Closeable {
+
+    static final String RECORDS_FILE = "records.dat";
+
+    static final String INDEX_FILE = "index.dat";
+
+    /** "HAI1" */
+    static final int INDEX_MAGIC = 0x48414931;
+
+    static final int PRINCIPAL = 0;
+
+    static final int REMOTE_ADDRESS = 1;
+
+    static final int RESOURCE = 2;
+
+    static final int FIELDS = 3;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int INDEX_HEADER_SIZE = 24;
+
+    private static final int TERM_ENTRY_SIZE = 16;
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditStorePartition.class);
+
+    private final Path directory;
+
+    private final long start;
+
+    private volatile FileChannel records;
+
+    private boolean closed;
+
+    private long size;
+
+    private int count;
+
+    private long minTimestamp = Long.MAX_VALUE;
+
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    private long[] offsets;
+
+    private long[] timestamps;
+
+    private List<Map<String, IntList>> terms;
+
+    private MappedByteBuffer index;
+
+    private HipaaAuditStorePartition(Path directory, long start, boolean openRecords) throws IOException {
+        this.directory = directory;
+        this.start = start;
+        if (openRecords) {
+            this.records = FileChannel.open(directory.resolve(RECORDS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Create a new, active partition.
+     */
+    static HipaaAuditStorePartition create(Path directory, long start) throws IOException {
+        Files.createDirectories(directory);
+        HipaaAuditStorePartition partition = new HipaaAuditStorePartition(directory, start, true);
+        partition.initIndexes(1024);
+        return partition;
+    }
+
+    /**
+     * Open an existing partition. An active partition, or a sealed partition
+     * without an index file, is indexed from its records and a torn record at
+     * the end of the records file is truncated.
+     */
+    static HipaaAuditStorePartition open(Path directory, long start, boolean active) throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        boolean indexed = !active && Files.exists(indexFile);
+        HipaaAuditStorePartition partition = new HipaaAuditStorePartition(directory, start, !indexed);
+        try {
+            if (indexed) {
+                partition.mapIndex(indexFile);
+            } else {
+                Files.deleteIfExists(indexFile);
+                partition.reindex();
+                if (!active) {
+                    partition.seal();
+                }
+            }
+            return partition;
+        } catch (IOException | RuntimeException e) {
+            partition.close();
+            throw e;
+        }
+    }
+
+    private void initIndexes(int capacity) {
+        this.offsets = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.terms = new ArrayList<>(FIELDS);
+        for (int field = 0; field < FIELDS; field++) {
+            terms.add(new HashMap<>());
+        }
+    }
+
+    private void reindex() throws IOException {
+        initIndexes(1024);
+        long fileSize = records.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(records, header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || length > fileSize - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(records, payload, position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            HipaaAuditRecord record;
+            try {
+                record = HipaaAuditRecordCodec.decode(payload.array());
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+            index(record, position);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < fileSize) {
+            log.warn("Truncating torn record at offset {} of Hipaa audit store partition {}", position, directory);
+            records.truncate(position);
+        }
+        this.size = position;
+    }
+
+    /**
+     * Append an encoded record.
+     */
+    void append(HipaaAuditRecord record, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long position = size;
+        while (buffer.hasRemaining()) {
+            position += records.write(buffer, position);
+        }
+        index(record, size);
+        size = position;
+    }
+
+    private void index(HipaaAuditRecord record, long offset) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+        }
+        long timestamp = record.getTimestamp().toEpochMilli();
+        offsets[count] = offset;
+        timestamps[count] = timestamp;
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        addTerm(PRINCIPAL, record.getPrincipal());
+        addTerm(REMOTE_ADDRESS, record.getRemoteAddress());
+        for (String resource : HipaaFhirReferences.of(record)) {
+            addTerm(RESOURCE, resource);
+        }
+        count++;
+    }
+
+    private void addTerm(int field, String term) {
+        if (term != null) {
+            terms.get(field).computeIfAbsent(term, t -> new IntList()).add(count);
+        }
+    }
+
+    /**
+     * Write the indexes to the index file and search them there from now on.
+     */
+    void seal() throws IOException {
+        if (index != null) {
+            return;
+        }
+        records.force(false);
+        Path indexFile = directory.resolve(INDEX_FILE);
+        Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+        writeIndex(tmp);
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapIndex(indexFile);
+    }
+
+    private void writeIndex(Path file) throws IOException {
+        List<TermPostings[]> fields = new ArrayList<>(FIELDS);
+        int[] entriesPositions = new int[FIELDS];
+        long position = INDEX_HEADER_SIZE + 16L * count + 8L * FIELDS;
+        for (int field = 0; field < FIELDS; field++) {
+            TermPostings[] sorted = new TermPostings[terms.get(field).size()];
+            int i = 0;
+            for (Map.Entry<String, IntList> term : terms.get(field).entrySet()) {
+                sorted[i++] = new TermPostings(term.getKey().getBytes(StandardCharsets.UTF_8), term.getValue());
+            }
+            Arrays.sort(sorted, (a, b) -> compare(a.term, b.term));
+            fields.add(sorted);
+            entriesPositions[field] = (int) position;
+            position += (long) TERM_ENTRY_SIZE * sorted.length;
+            for (TermPostings term : sorted) {
+                position += term.term.length + 4L * term.postings.size;
+            }
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Hipaa audit store partition index exceeds 2 GB: " + directory);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+            64 * 1024))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(count);
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(timestamps[i]);
+            }
+            for (int field = 0; field < FIELDS; field++) {
+                out.writeInt(fields.get(field).length);
+                out.writeInt(entriesPositions[field]);
+            }
+            for (int field = 0; field < FIELDS; field++) {
+                TermPostings[] sorted = fields.get(field);
+                int termPosition = entriesPositions[field] + TERM_ENTRY_SIZE * sorted.length;
+                int postingsPosition = termPosition;
+                for (TermPostings term : sorted) {
+                    postingsPosition += term.term.length;
+                }
+                for (TermPostings term : sorted) {
+                    out.writeInt(termPosition);
+                    out.writeInt(term.term.length);
+                    out.writeInt(postingsPosition);
+                    out.writeInt(term.postings.size);
+                    termPosition += term.term.length;
+                    postingsPosition += 4 * term.postings.size;
+                }
+                for (TermPostings term : sorted) {
+                    out.write(term.term);
+                }
+                for (TermPostings term : sorted) {
+                    for (int i = 0; i < term.postings.size; i++) {
+                        out.writeInt(term.postings.values[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void mapIndex(Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.capacity() < INDEX_HEADER_SIZE || mapped.getInt(0) != INDEX_MAGIC) {
+                throw new IOException("Invalid Hipaa audit store index " + indexFile);
+            }
+            this.index = mapped;
+            this.count = mapped.getInt(4);
+            this.minTimestamp = mapped.getLong(8);
+            this.maxTimestamp = mapped.getLong(16);
+            this.size = records != null ? records.size() : Files.size(directory.resolve(RECORDS_FILE));
+            this.offsets = null;
+            this.timestamps = null;
+            this.terms = null;
+        }
+    }
+
+    /**
+     * Offer the records matching all given terms, indexed by field and null for
+     * no criterion, with a timestamp in {@code [from, to)} to the matches, which
+     * keep the {@code limit} most recent ones with the least recent at their head.
+     */
+    void query(String[] criteria, long from, long to, int limit, PriorityQueue<Match> matches) {
+        if (count == 0 || maxTimestamp < from || minTimestamp >= to || limit <= 0
+            || (matches.size() >= limit && maxTimestamp <= matches.peek().getTimestamp())) {
+            return;
+        }
+        List<Postings> lists = new ArrayList<>(FIELDS);
+        for (int field = 0; field < FIELDS; field++) {
+            if (criteria[field] != null) {
+                Postings postings = postings(field, criteria[field]);
+                if (postings == null) {
+                    return;
+                }
+                lists.add(postings);
+            }
+        }
+        lists.sort(Comparator.comparingInt(Postings::size));
+        Postings driver = lists.isEmpty() ? null : lists.get(0);
+        int candidates = driver != null ? driver.size() : count;
+        for (int i = candidates - 1; i >= 0; i--) {
+            int ordinal = driver != null ? driver.get(i) : i;
+            long timestamp = timestamp(ordinal);
+            if (timestamp < from || timestamp >= to
+                || (matches.size() >= limit && timestamp <= matches.peek().getTimestamp())
+                || !containsAll(lists, ordinal)) {
+                continue;
+            }
+            if (matches.size() >= limit) {
+                matches.poll();
+            }
+            matches.add(new Match(this, offset(ordinal), timestamp));
+        }
+    }
+
+    private static boolean containsAll(List<Postings> lists, int ordinal) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(ordinal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Postings postings(int field, String term) {
+        if (index == null) {
+            return terms.get(field).get(term);
+        }
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        int fieldTable = INDEX_HEADER_SIZE + 16 * count + 8 * field;
+        int low = 0;
+        int high = index.getInt(fieldTable) - 1;
+        int entries = index.getInt(fieldTable + 4);
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = entries + mid * TERM_ENTRY_SIZE;
+            int cmp = compare(index, index.getInt(entry), index.getInt(entry + 4), bytes);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new MappedPostings(index, index.getInt(entry + 8), index.getInt(entry + 12));
+            }
+        }
+        return null;
+    }
+
+    private long offset(int ordinal) {
+        return index != null ? index.getLong(INDEX_HEADER_SIZE + 8 * ordinal) : offsets[ordinal];
+    }
+
+    private long timestamp(int ordinal) {
+        return index != null ? index.getLong(INDEX_HEADER_SIZE + 8 * count + 8 * ordinal) : timestamps[ordinal];
+    }
+
+    /**
+     * Read the record at the offset, or null when the partition was closed,
+     * e.g. deleted after its retention.
+     */
+    HipaaAuditRecord read(long offset) throws IOException {
+        FileChannel channel = channel();
+        if (channel == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        ByteBuffer payload;
+        try {
+            readFully(channel, header, offset);
+            payload = ByteBuffer.allocate(header.getInt(0));
+            readFully(channel, payload, offset + RECORD_HEADER_SIZE);
+        } catch (ClosedChannelException e) {
+            if (isClosed()) {
+                return null;
+            }
+            throw e;
+        }
+        return HipaaAuditRecordCodec.decode(payload.array());
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel channel = records;
+        if (channel == null) {
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                if (records == null) {
+                    records = FileChannel.open(directory.resolve(RECORDS_FILE), StandardOpenOption.READ);
+                }
+                channel = records;
+            }
+        }
+        return channel;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void readFully(FileChannel records, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (records.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of Hipaa audit store partition " + directory);
+            }
+        }
+    }
+
+    private static int compare(ByteBuffer buffer, int position, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(position + i) & 0xff) - (term[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        return -compare(ByteBuffer.wrap(b), 0, b.length, a);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (records != null) {
+            records.close();
+        }
+    }
+
+    /**
+     * Close the partition and delete its files.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(directory.resolve(RECORDS_FILE));
+        Files.deleteIfExists(directory.resolve(INDEX_FILE));
+        Files.deleteIfExists(directory.resolve(INDEX_FILE + ".tmp"));
+        Files.deleteIfExists(directory);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Start of the time range the partition was created for. Records may have
+     * earlier timestamps, see {@link #getMinTimestamp()}.
+     */
+    long getStart() {
+        return start;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    boolean isSealed() {
+        return index != null;
+    }
+
+    boolean isRecordsOpen() {
+        return records != null;
+    }
+
+    /**
+     * Record matching a query, read once the query has kept it.
+     */
+    static final class Match {
+
+        private final HipaaAuditStorePartition partition;
+
+        private final long offset;
+
+        private final long timestamp;
+
+        private Match(HipaaAuditStorePartition partition, long offset, long timestamp) {
+            this.partition = partition;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * The record, or null when its partition was deleted meanwhile.
+         */
+        HipaaAuditRecord read() throws IOException {
+            return partition.read(offset);
+        }
+    }
+
+    /**
+     * Ascending record ordinals of a term.
+     */
+    private interface Postings {
+
+        int size();
+
+        int get(int i);
+
+        /**
+         * Binary search for the ordinal.
+         */
+        default boolean contains(int ordinal) {
+            int low = 0;
+            int high = size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int value = get(mid);
+                if (value < ordinal) {
+                    low = mid + 1;
+                } else if (value > ordinal) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class IntList implements Postings {
+
+        private int[] values = new int[4];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int get(int i) {
+            return values[i];
+        }
+    }
+
+    private static final class TermPostings {
+
+        private final byte[] term;
+
+        private final IntList postings;
+
+        TermPostings(byte[] term, IntList postings) {
+            this.term = term;
+            this.postings = postings;
+        }
+    }
+
+    private static final class MappedPostings implements Postings {
+
+        private final ByteBuffer index;
+
+        private final int position;
+
+        private final int size;
+
+        MappedPostings(ByteBuffer index, int position, int size) {
+            this.index = index;
+            this.position = position;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int get(int i) {
+            return index.getInt(position + 4 * i);
+        }
+    }
+}
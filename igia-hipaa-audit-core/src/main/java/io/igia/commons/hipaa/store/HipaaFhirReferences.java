@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+/**
+ * FHIR resources an audited request accessed, derived from its URI and
+ * parameters: the resource type of every {@code Type} or {@code Type/id} path
+ * segment pair, e.g. {@code Patient} and {@code Patient/123} for
+ * {@code /api/fhir/Patient/123/_history/2}, and the references passed as
+ * parameters, e.g. {@code Patient/123} for {@code subject=Patient/123} or
+ * {@code patient=123}.
+ */
+public final class HipaaFhirReferences {
+
+    private static final Pattern RESOURCE_TYPE = Pattern.compile("[A-Z][A-Za-z]+");
+
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+
+    private static final Pattern PARAM_REFERENCE = Pattern.compile(
+        "(?<![A-Za-z0-9])([A-Z][A-Za-z]+)/([A-Za-z0-9\\-.]{1,64})(?![A-Za-z0-9\\-.])");
+
+    private static final Pattern PATIENT_PARAM = Pattern.compile("(?:^|, )patient:\\[([A-Za-z0-9\\-.]{1,64})\\]");
+
+    private HipaaFhirReferences() {
+    }
+
+    public static Set<String> of(HipaaAuditRecord record) {
+        Set<String> references = new LinkedHashSet<>();
+        if (record.getRequestUri() != null) {
+            addPath(record.getRequestUri(), references);
+        }
+        String params = record.getRequestParam();
+        if (params != null && !params.isEmpty()) {
+            Matcher reference = PARAM_REFERENCE.matcher(params);
+            while (reference.find()) {
+                references.add(reference.group(1));
+                references.add(reference.group(1) + '/' + reference.group(2));
+            }
+            Matcher patient = PATIENT_PARAM.matcher(params);
+            if (patient.find()) {
+                references.add("Patient");
+                references.add("Patient/" + patient.group(1));
+            }
+        }
+        return references;
+    }
+
+    private static void addPath(String uri, Set<String> references) {
+        int query = uri.indexOf('?');
+        String[] segments = (query >= 0 ? uri.substring(0, query) : uri).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            if (!RESOURCE_TYPE.matcher(segments[i]).matches()) {
+                continue;
+            }
+            references.add(segments[i]);
+            if (i + 1 < segments.length && ID.matcher(segments[i + 1]).matches()) {
+                references.add(segments[i] + '/' + segments[i + 1]);
+                i++;
+            }
+        }
+    }
+}
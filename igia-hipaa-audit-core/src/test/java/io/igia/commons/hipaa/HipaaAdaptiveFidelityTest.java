@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Adaptive;
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+
+public class HipaaAdaptiveFidelityTest {
+
+    private static final long BUDGET_NANOS = 1_000_000;
+
+    @Test
+    public void testDegradesWithAuditTime() {
+        HipaaAdaptiveFidelity adaptiveFidelity = new HipaaAdaptiveFidelity(adaptive(0), null);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.FULL);
+
+        record(adaptiveFidelity, BUDGET_NANOS * 3 / 2);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.DIGEST);
+
+        record(adaptiveFidelity, BUDGET_NANOS * 3);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.METADATA);
+
+        // cheap degraded audits bring the average back under the budget
+        record(adaptiveFidelity, BUDGET_NANOS / 10);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.FULL);
+
+        assertThat(adaptiveFidelity.getCount(HipaaAuditFidelity.FULL)).isEqualTo(2);
+        assertThat(adaptiveFidelity.getCount(HipaaAuditFidelity.DIGEST)).isEqualTo(1);
+        assertThat(adaptiveFidelity.getCount(HipaaAuditFidelity.METADATA)).isEqualTo(1);
+    }
+
+    @Test
+    public void testSamplesDigestsUnderHeavyLoad() {
+        HipaaAdaptiveFidelity adaptiveFidelity = new HipaaAdaptiveFidelity(adaptive(1), null);
+        record(adaptiveFidelity, BUDGET_NANOS * 10);
+
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.DIGEST);
+    }
+
+    @Test
+    public void testDegradesWithQueueDepth() {
+        HipaaAsyncAuditEventPublisher asyncPublisher = mock(HipaaAsyncAuditEventPublisher.class);
+        when(asyncPublisher.getQueueCapacity()).thenReturn(1024);
+        HipaaAdaptiveFidelity adaptiveFidelity = new HipaaAdaptiveFidelity(adaptive(0), asyncPublisher);
+
+        when(asyncPublisher.getQueueDepth()).thenReturn(256);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.FULL);
+        when(asyncPublisher.getQueueDepth()).thenReturn(768);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.DIGEST);
+        when(asyncPublisher.getQueueDepth()).thenReturn(1024);
+        assertThat(adaptiveFidelity.next()).isEqualTo(HipaaAuditFidelity.METADATA);
+    }
+
+    @Test
+    public void testDegradeCapture() {
+        HipaaBodyCapture full = new HipaaBodyCapture(BodyMode.FULL, 16);
+        HipaaBodyCapture digest = new HipaaBodyCapture(BodyMode.DIGEST, 16);
+
+        assertThat(HipaaAdaptiveFidelity.degrade(full, null)).isSameAs(full);
+        assertThat(HipaaAdaptiveFidelity.degrade(full, HipaaAuditFidelity.FULL)).isSameAs(full);
+        assertThat(HipaaAdaptiveFidelity.degrade(full, HipaaAuditFidelity.DIGEST).getBodyMode())
+            .isEqualTo(BodyMode.DIGEST);
+        assertThat(HipaaAdaptiveFidelity.degrade(digest, HipaaAuditFidelity.DIGEST)).isSameAs(digest);
+    }
+
+    private static Adaptive adaptive(double sampleRate) {
+        Adaptive adaptive = new Adaptive();
+        adaptive.setLatencyBudget(1);
+        adaptive.setSampleRate(sampleRate);
+        return adaptive;
+    }
+
+    private static void record(HipaaAdaptiveFidelity adaptiveFidelity, long nanos) {
+        for (int i = 0; i < 200; i++) {
+            adaptiveFidelity.recordNanos(nanos);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Async;
+import io.igia.commons.hipaa.HipaaAuditProperties.OverflowPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class HipaaAsyncAuditEventPublisherTest {
+
+    private final List<Object> events = new CopyOnWriteArrayList<>();
+
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+
+    private CountDownLatch release;
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    private Async properties;
+
+    private HipaaAsyncAuditEventPublisher publisher;
+
+    private final ApplicationEventPublisher delegate = new ApplicationEventPublisher() {
+        @Override
+        public void publishEvent(Object event) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            threads.add(Thread.currentThread());
+            events.add(event);
+        }
+    };
+
+    @Before
+    public void setup() {
+        release = new CountDownLatch(0);
+        properties = new Async();
+        properties.setEnabled(true);
+        properties.setQueueCapacity(2);
+        properties.setBatchSize(4);
+        properties.setShutdownTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        if (publisher != null) {
+            publisher.destroy();
+        }
+    }
+
+    @Test
+    public void testEventsArePublishedOffTheCallingThread() throws InterruptedException {
+        publisher = new HipaaAsyncAuditEventPublisher(delegate, properties);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        publisher.bindTo(registry);
+
+        publisher.publishEvent(event("1"));
+        publisher.publishEvent(event("2"));
+        publisher.destroy();
+
+        assertThat(events).hasSize(2);
+        assertThat(threads).doesNotContain(Thread.currentThread());
+        assertThat(publisher.getPublishedCount()).isEqualTo(2);
+        assertThat(registry.get("hipaa.audit.async.latency").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDropPolicyDiscardsEventsWhenFull() throws InterruptedException {
+        release = new CountDownLatch(1);
+        properties.setOverflowPolicy(OverflowPolicy.DROP);
+        publisher = new HipaaAsyncAuditEventPublisher(delegate, properties);
+
+        // one event is held by the blocked consumer, two fill the queue
+        publisher.publishEvent(event("0"));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < 10; i++) {
+            publisher.publishEvent(event(String.valueOf(i)));
+        }
+        assertThat(publisher.getDroppedCount()).isEqualTo(7);
+
+        release.countDown();
+        publisher.destroy();
+        assertThat(events).hasSize(3);
+    }
+
+    @Test
+    public void testDropBodyPolicyQueuesMetadataOffTheCallingThread() throws InterruptedException {
+        release = new CountDownLatch(1);
+        properties.setOverflowPolicy(OverflowPolicy.DROP_BODY_KEEP_METADATA);
+        properties.setOverflowCapacity(2);
+        publisher = new HipaaAsyncAuditEventPublisher(delegate, properties);
+
+        // one event is held by the blocked consumer, two fill the queue and two the overflow queue
+        publisher.publishEvent(event("0"));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < 10; i++) {
+            publisher.publishEvent(event(String.valueOf(i)));
+        }
+        assertThat(publisher.getBodyDroppedCount()).isEqualTo(2);
+        assertThat(publisher.getOverflowDepth()).isEqualTo(2);
+        assertThat(publisher.getDroppedCount()).isEqualTo(5);
+        assertThat(events).isEmpty();
+
+        release.countDown();
+        publisher.destroy();
+        assertThat(events).hasSize(5);
+        assertThat(threads).doesNotContain(Thread.currentThread());
+        // the queues are drained in turn, so the events without bodies may be delivered first
+        assertThat(events).filteredOn(e -> ((AuditApplicationEvent) e).getAuditEvent().getData()
+            .containsKey(HipaaAsyncAuditEventPublisher.BODY_DROPPED)).hasSize(2).allSatisfy(e -> assertThat(
+                ((AuditApplicationEvent) e).getAuditEvent().getData())
+                .doesNotContainKey(HipaaAuditRecord.RESPONSE_BODY)
+                .containsKey("remoteAddress"));
+    }
+
+    @Test
+    public void testBlockPolicyDeliversEveryEvent() throws InterruptedException {
+        properties.setOverflowPolicy(OverflowPolicy.BLOCK);
+        properties.setConsumerThreads(2);
+        publisher = new HipaaAsyncAuditEventPublisher(delegate, properties);
+
+        for (int i = 0; i < 100; i++) {
+            publisher.publishEvent(event(String.valueOf(i)));
+        }
+        publisher.destroy();
+        assertThat(events).hasSize(100);
+        assertThat(publisher.getDroppedCount()).isZero();
+    }
+
+    private static AuditApplicationEvent event(String body) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(HipaaAuditRecord.RESPONSE_BODY, body);
+        data.put("remoteAddress", "127.0.0.1");
+        return new AuditApplicationEvent("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE, data);
+    }
+}
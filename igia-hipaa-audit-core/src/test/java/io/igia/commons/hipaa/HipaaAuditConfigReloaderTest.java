@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.mock.env.MockEnvironment;
+
+public class HipaaAuditConfigReloaderTest {
+
+    private final List<HipaaAuditSnapshot> snapshots = new ArrayList<>();
+
+    private MockEnvironment environment;
+
+    private HipaaAuditConfigReloader reloader;
+
+    @Before
+    public void init() {
+        environment = new MockEnvironment();
+        reloader = new HipaaAuditConfigReloader(environment);
+        reloader.addListener(snapshots::add);
+    }
+
+    @Test
+    public void testReloadsChangedPatterns() {
+        environment.setProperty("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]", ".*/fhir/.*");
+        environment.setProperty("igia.hipaa.audit.hipaa-masked-request-params[0]", "ssn");
+
+        reloader.onApplicationEvent(changed("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]"));
+
+        assertThat(snapshots).hasSize(1);
+        HipaaAuditSnapshot snapshot = snapshots.get(0);
+        assertThat(snapshot.getRequestMatcher().shouldAudit("/fhir/Patient")).isTrue();
+        // the default pattern is replaced
+        assertThat(snapshot.getRequestMatcher().shouldAudit("/api/Patient")).isFalse();
+        assertThat(snapshot.getParamSerializer().serialize(Collections.singletonMap("ssn", new String[] {"1"})))
+            .isEqualTo("ssn:[***]");
+    }
+
+    @Test
+    public void testKeepsConfigurationWhenInvalid() {
+        environment.setProperty("igia.hipaa.audit.hipaa-blacklist-uri-patterns[0]", ".*/api/(health");
+
+        reloader.onApplicationEvent(changed("igia.hipaa.audit.hipaa-blacklist-uri-patterns[0]"));
+
+        assertThat(snapshots).isEmpty();
+    }
+
+    @Test
+    public void testSwapsSharedSnapshot() {
+        HipaaAuditSnapshot current = reloader.getSnapshot().get();
+        environment.setProperty("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]", ".*/fhir/.*");
+
+        reloader.onApplicationEvent(changed("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]"));
+
+        assertThat(reloader.getSnapshot().get()).isNotSameAs(current).isSameAs(snapshots.get(0));
+    }
+
+    @Test
+    public void testKeepsConfigurationWhenRejected() {
+        AtomicReference<HipaaAuditSnapshot> shared = new AtomicReference<>();
+        reloader = new HipaaAuditConfigReloader(environment, shared);
+        reloader.addListener(snapshots::add);
+        reloader.addValidator(properties -> {
+            throw new IllegalArgumentException("rejected");
+        });
+        environment.setProperty("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]", ".*/fhir/.*");
+
+        reloader.onApplicationEvent(changed("igia.hipaa.audit.hipaa-whitelist-uri-patterns[0]"));
+
+        assertThat(shared.get()).isNull();
+        assertThat(snapshots).isEmpty();
+    }
+
+    @Test
+    public void testIgnoresOtherProperties() {
+        environment.setProperty("server.port", "8081");
+
+        reloader.onApplicationEvent(changed("server.port"));
+        assertThat(snapshots).isEmpty();
+
+        reloader.onApplicationEvent(changed("IGIA_HIPAA_AUDIT_HIPAAWHITELISTURIPATTERNS"));
+        assertThat(snapshots).hasSize(1);
+    }
+
+    private EnvironmentChangeEvent changed(String key) {
+        return new EnvironmentChangeEvent(environment, Collections.singleton(key));
+    }
+}
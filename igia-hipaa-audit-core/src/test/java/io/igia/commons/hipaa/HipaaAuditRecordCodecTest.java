@@ -0,0 +1,224 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.audit.AuditEvent;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+
+public class HipaaAuditRecordCodecTest {
+
+    private static HipaaAuditRecord.Builder requestRecord() {
+        return HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(Instant.ofEpochSecond(1546300800L, 123456789))
+            .remoteAddress("10.0.0.1")
+            .httpMethod("GET")
+            .requestUri("/api/patients")
+            .requestParam("name:[doe]")
+            .message("Attempt to access API /api/patients");
+    }
+
+    @Test
+    public void testRoundTrip() {
+        HipaaAuditRecord record = requestRecord().responseBody("{\"name\":\"José\"}")
+            .responseBodyTruncated(Boolean.TRUE).responseBodyLength(4096L).responseBodyComplete(Boolean.FALSE)
+            .fidelity(HipaaAuditFidelity.DIGEST).attribute("routeId", "patients").build();
+
+        HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record));
+
+        assertThat(decoded.getTimestamp()).isEqualTo(record.getTimestamp());
+        assertThat(decoded.getPrincipal()).isEqualTo("admin");
+        assertThat(decoded.getType()).isEqualTo(HipaaAuditRecord.AUDIT_EVENT_TYPE);
+        assertThat(decoded.toAuditEvent().getData()).isEqualTo(record.toAuditEvent().getData());
+    }
+
+    @Test
+    public void testRequestBodyRoundTrip() {
+        HipaaAuditRecord record = requestRecord().httpMethod("POST").requestBody("{\"resourceType\":\"Patient\"}")
+            .requestBodyTruncated(Boolean.TRUE).requestBodyLength(70000L).requestBodyComplete(Boolean.FALSE)
+            .requestBodySha256("ab12").build();
+
+        HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record));
+
+        assertThat(decoded.getRequestBody()).isEqualTo("{\"resourceType\":\"Patient\"}");
+        assertThat(decoded.toAuditEvent().getData()).isEqualTo(record.toAuditEvent().getData())
+            .containsKeys(HipaaAuditRecord.REQUEST_BODY, HipaaAuditRecord.REQUEST_BODY_SHA256);
+    }
+
+    @Test
+    public void testCoalescedRoundTrip() {
+        HipaaAuditRecord record = requestRecord().coalescedCount(42L)
+            .lastTimestamp(Instant.parse("2018-11-05T10:15:30.123456789Z")).build();
+
+        HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record));
+
+        assertThat(decoded.getCoalescedCount()).isEqualTo(42L);
+        assertThat(decoded.getLastTimestamp()).isEqualTo(record.getLastTimestamp());
+        assertThat(decoded.toAuditEvent().getData()).isEqualTo(record.toAuditEvent().getData());
+    }
+
+    @Test
+    public void testGzippedBodyStaysCompressed() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("compressed body".getBytes(StandardCharsets.UTF_8));
+        }
+        HipaaAuditRecord record = requestRecord()
+            .responseBody(new HipaaGzippedResponseBody(compressed.toByteArray(), StandardCharsets.UTF_8, "!"))
+            .build();
+
+        CharSequence body = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record)).getResponseBody();
+
+        assertThat(body).isInstanceOf(HipaaGzippedResponseBody.class);
+        HipaaGzippedResponseBody gzipped = (HipaaGzippedResponseBody) body;
+        assertThat(gzipped.isDecoded()).isFalse();
+        assertThat(gzipped.getCompressed()).isEqualTo(compressed.toByteArray());
+        assertThat(gzipped.toString()).isEqualTo("compressed body!");
+    }
+
+    @Test
+    public void testGzippedBodyKeepsDecompressionLimit() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("compressed body".getBytes(StandardCharsets.UTF_8));
+        }
+        HipaaAuditRecord record = requestRecord().responseBody(new HipaaGzippedResponseBody(
+            compressed.toByteArray(), StandardCharsets.UTF_8, "", null, 10, "...")).build();
+
+        CharSequence body = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record)).getResponseBody();
+
+        assertThat(body.toString()).isEqualTo("compressed...");
+    }
+
+    @Test
+    public void testRedactedGzippedBodyIsWrittenAsText() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("SSN 123-45-6789".getBytes(StandardCharsets.UTF_8));
+        }
+        Redaction redaction = new Redaction();
+        redaction.setEnabled(true);
+        HipaaAuditRecord record = requestRecord().responseBody(new HipaaGzippedResponseBody(compressed.toByteArray(),
+            StandardCharsets.UTF_8, "", HipaaPhiRedactor.compile(redaction))).build();
+
+        CharSequence body = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record)).getResponseBody();
+
+        assertThat(body).isInstanceOf(String.class).isEqualTo("SSN ***-**-****");
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() {
+        byte[] encoded = HipaaAuditRecordCodec.encode(requestRecord().build());
+        // field 100 varint 150, field 101 bytes "xy"
+        byte[] unknownFields = {(byte) 0xa0, 0x06, (byte) 0x96, 0x01, (byte) 0xaa, 0x06, 2, 'x', 'y'};
+        byte[] extended = Arrays.copyOf(encoded, encoded.length + unknownFields.length);
+        System.arraycopy(unknownFields, 0, extended, encoded.length, unknownFields.length);
+
+        HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(extended);
+
+        assertThat(decoded.getRequestUri()).isEqualTo("/api/patients");
+        assertThat(decoded.getAttributes()).isEmpty();
+    }
+
+    @Test
+    public void testUtf8Encoding() {
+        String text = "a\u00e9\u20ac\ud83d\ude00\ud800z";
+        HipaaAuditRecord record = requestRecord().message(text).build();
+
+        HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(HipaaAuditRecordCodec.encode(record));
+
+        assertThat(decoded.getMessage()).isEqualTo(new String(text.getBytes(StandardCharsets.UTF_8),
+            StandardCharsets.UTF_8));
+        assertThat(HipaaAuditRecordCodec.utf8Length(text)).isEqualTo(text.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedRecordIsRejected() {
+        byte[] encoded = HipaaAuditRecordCodec.encode(requestRecord().build());
+        HipaaAuditRecordCodec.decode(Arrays.copyOf(encoded, encoded.length - 3));
+    }
+
+    @Test
+    public void testEncodingIsSmallerThanJson() {
+        HipaaAuditRecord record = requestRecord().build();
+        assertThat(HipaaAuditRecordCodec.encode(record).length).isLessThan(120);
+    }
+
+    @Test
+    public void testAuditEventDataView() {
+        HipaaAuditRecord record = requestRecord().responseBodySha256("abc").responseBodyLength(3L).build();
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("remoteAddress", "10.0.0.1");
+        expected.put("httpMethod", "GET");
+        expected.put("requestUri", "/api/patients");
+        expected.put("requestParam", "name:[doe]");
+        expected.put("message", "Attempt to access API /api/patients");
+        expected.put("responseBodySha256", "abc");
+        expected.put("responseBodyLength", 3L);
+
+        AuditEvent auditEvent = record.toAuditEvent();
+
+        assertThat(auditEvent.getData()).isEqualTo(expected);
+        assertThat(auditEvent.getData().get("responseBody")).isNull();
+        assertThat(HipaaAuditRecord.fromAuditEvent(auditEvent).toAuditEvent().getData()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testAuditEventIsSerializable() throws IOException, ClassNotFoundException {
+        HipaaAuditRecord record = requestRecord().responseBody("{\"name\":\"doe\"}").responseBodyLength(14L)
+            .attribute("routeId", "patients").build();
+        AuditEvent auditEvent = record.toAuditEvent();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(auditEvent);
+        }
+        AuditEvent deserialized;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = (AuditEvent) in.readObject();
+        }
+
+        assertThat(deserialized.getTimestamp()).isEqualTo(auditEvent.getTimestamp());
+        assertThat(deserialized.getPrincipal()).isEqualTo("admin");
+        assertThat(deserialized.getData()).isEqualTo(auditEvent.getData()).containsEntry("routeId", "patients")
+            .containsEntry("responseBody", "{\"name\":\"doe\"}");
+    }
+
+    @Test
+    public void testWithoutBody() {
+        HipaaAuditRecord record = requestRecord().requestBody("request").responseBody("body").build();
+
+        HipaaAuditRecord withoutBody = record.withoutBody();
+
+        assertThat(withoutBody.getResponseBody()).isNull();
+        assertThat(withoutBody.getRequestBody()).isNull();
+        assertThat(withoutBody.getBodyDropped()).isTrue();
+        assertThat(withoutBody.getRequestUri()).isEqualTo("/api/patients");
+        assertThat(requestRecord().build().withoutBody().getBodyDropped()).isNull();
+    }
+}
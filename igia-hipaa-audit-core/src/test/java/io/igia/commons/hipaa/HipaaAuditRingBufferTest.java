@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class HipaaAuditRingBufferTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertThat(new HipaaAuditRingBuffer<String>(5).capacity()).isEqualTo(8);
+        assertThat(new HipaaAuditRingBuffer<String>(8).capacity()).isEqualTo(8);
+    }
+
+    @Test
+    public void testFifoAndFull() {
+        HipaaAuditRingBuffer<Integer> buffer = new HipaaAuditRingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(buffer.offer(i)).isTrue();
+        }
+        assertThat(buffer.offer(4)).as("full buffer").isFalse();
+        assertThat(buffer.size()).isEqualTo(4);
+
+        Integer[] batch = new Integer[3];
+        assertThat(buffer.drainTo(batch, 3)).isEqualTo(3);
+        assertThat(batch).containsExactly(0, 1, 2);
+        assertThat(buffer.offer(5)).isTrue();
+        assertThat(buffer.poll()).isEqualTo(3);
+        assertThat(buffer.poll()).isEqualTo(5);
+        assertThat(buffer.poll()).isNull();
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws InterruptedException {
+        HipaaAuditRingBuffer<Integer> buffer = new HipaaAuditRingBuffer<>(64);
+        int producers = 4;
+        int perProducer = 5000;
+        ConcurrentHashMap<Integer, Boolean> received = new ConcurrentHashMap<>();
+        AtomicBoolean duplicate = new AtomicBoolean();
+        CountDownLatch produced = new CountDownLatch(producers);
+        AtomicBoolean done = new AtomicBoolean();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!buffer.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+                produced.countDown();
+            }));
+        }
+        for (int c = 0; c < 3; c++) {
+            threads.add(new Thread(() -> {
+                while (!done.get() || !buffer.isEmpty()) {
+                    Integer value = buffer.poll();
+                    if (value != null && received.put(value, Boolean.TRUE) != null) {
+                        duplicate.set(true);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        produced.await();
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(duplicate.get()).as("element consumed twice").isFalse();
+        assertThat(received).hasSize(producers * perProducer);
+    }
+}
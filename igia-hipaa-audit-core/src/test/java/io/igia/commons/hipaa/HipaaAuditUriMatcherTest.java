@@ -0,0 +1,104 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class HipaaAuditUriMatcherTest {
+
+    private static final List<String> PATTERNS = Arrays.asList(
+        ".*/api/.*", "^/uaaserver.*", ".*/gateway/.*", ".*/api/healthcheck/alive\\.json$",
+        ".*/api/profile-info$", ".*/Patient\\?.*", "/services/fhir/.*", "/services/fhir/Patient/[0-9]+",
+        "/services/fhir/Patient", "/services/fhir/Patient$", "/api/accounts?", "/api/a+b.*", "/api/x{2}.*",
+        "/api/(account|users)/.*", "/api/account|/api/users", ".*\\.json", ".*\\.json.*", "(?i)/API/.*",
+        "/api/\\d+", "\\Q/api/\\E.*", "/api/.*?", ".*", "", "^/$", "/services/fhir/.*$", "/api/[a-z]*/x",
+        ".*/Observation\\?patient=[0-9]+", "/api/ü.*", "/api/\\u00fc.*");
+
+    private static final List<String> URIS = Arrays.asList(
+        "", "/", "/api", "/api/", "/api/test", "/API/test", "/api/healthcheck/alive.json",
+        "/cardiocompassuiapi/api/healthcheck/alive.json", "/cardiocompassuiapi/api/profile-info",
+        "/uaaserver/api/account", "/api/gateway/routes/", "/cardiocompassuiapi/api/all.json",
+        "v1/patient.json", "/Patient?identifier=12345", "/services/fhir/Patient", "/services/fhir/Patient/123",
+        "/services/fhir/Patient/123/_history/1", "/api/account", "/api/accounts", "/api/accountss", "/api/ab",
+        "/api/aab", "/api/b", "/api/xx", "/api/x", "/api/users/1", "/api/123", "/api/abc/x", "/api/abc/y",
+        "/services/fhir/Observation?patient=42", "/api/\u00fc", "/api/line\nbreak", "/api/\n", "\n/api/x",
+        "/api/x\r", "/api/x\u2028y", "/services/fhir/\n", "/services/fhir/Patient\n", "/x.json\n", "/x.json");
+
+    @Test
+    public void testSingleWhitelistPatternMatchesStringMatches() {
+        for (String pattern : PATTERNS) {
+            assertEquivalent(Collections.singletonList(pattern), Collections.emptyList());
+        }
+    }
+
+    @Test
+    public void testSingleBlacklistPatternMatchesStringMatches() {
+        for (String pattern : PATTERNS) {
+            assertEquivalent(Collections.singletonList(".*"), Collections.singletonList(pattern));
+        }
+    }
+
+    @Test
+    public void testDefaultConfigurationMatchesStringMatches() {
+        assertEquivalent(Collections.singletonList(".*/api/.*"), Arrays.asList("^/uaaserver.*", ".*/gateway/.*",
+            ".*/api/healthcheck/alive\\.json$", ".*/api/profile-info$"));
+    }
+
+    @Test
+    public void testRandomPatternListsMatchStringMatches() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            assertEquivalent(randomSubset(random), randomSubset(random));
+        }
+    }
+
+    @Test
+    public void testEmptyPatternListsAuditNothing() {
+        HipaaAuditUriMatcher matcher = HipaaAuditUriMatcher.compile(Collections.emptyList(), null);
+        assertThat(matcher.shouldAudit("/api/test")).as("no whitelist pattern").isFalse();
+        assertThat(matcher.shouldAudit(null)).as("null URI").isFalse();
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testInvalidPatternFailsAtCompileTime() {
+        HipaaAuditUriMatcher.compile(Collections.singletonList("/api/(.*"), Collections.emptyList());
+    }
+
+    private static List<String> randomSubset(Random random) {
+        List<String> subset = new ArrayList<>();
+        int size = random.nextInt(6);
+        for (int i = 0; i < size; i++) {
+            subset.add(PATTERNS.get(random.nextInt(PATTERNS.size())));
+        }
+        return subset;
+    }
+
+    private static void assertEquivalent(List<String> whitelist, List<String> blacklist) {
+        HipaaAuditUriMatcher matcher = HipaaAuditUriMatcher.compile(whitelist, blacklist);
+        for (String uri : URIS) {
+            boolean expected = blacklist.stream().noneMatch(uri::matches) && whitelist.stream().anyMatch(uri::matches);
+            assertThat(matcher.shouldAudit(uri))
+                .as("URI %s with whitelist %s and blacklist %s", uri, whitelist, blacklist)
+                .isEqualTo(expected);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class HipaaBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        HipaaBufferPool pool = new HipaaBufferPool(Long.MAX_VALUE);
+
+        assertThat(pool.acquire(0).capacity()).isEqualTo(4 * 1024);
+        assertThat(pool.acquire(4 * 1024).capacity()).isEqualTo(4 * 1024);
+        assertThat(pool.acquire(4 * 1024 + 1).capacity()).isEqualTo(16 * 1024);
+        assertThat(pool.acquire(100 * 1024).capacity()).isEqualTo(256 * 1024);
+        assertThat(pool.acquire(10 * 1024 * 1024).capacity()).isEqualTo(1024 * 1024);
+        ByteBuffer slab = pool.acquire(0);
+        assertThat(slab.isDirect()).isTrue();
+        assertThat(pool.acquireNext(slab).capacity()).isEqualTo(16 * 1024);
+    }
+
+    @Test
+    public void testReusesReleasedSlabs() {
+        HipaaBufferPool pool = new HipaaBufferPool(Long.MAX_VALUE);
+        ByteBuffer slab = pool.acquire(10000);
+        slab.put((byte) 1).flip();
+
+        pool.release(slab);
+        assertThat(pool.getPooledBytes()).isEqualTo(16 * 1024);
+        ByteBuffer reused = pool.acquire(5000);
+        assertThat(reused).isSameAs(slab);
+        assertThat(reused.position()).isZero();
+        assertThat(reused.limit()).isEqualTo(reused.capacity());
+        assertThat(pool.getPooledBytes()).isZero();
+        assertThat(pool.getAllocated()).isEqualTo(1);
+        assertThat(pool.getReused()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDropsSlabsBeyondMaxPooledBytes() {
+        HipaaBufferPool pool = new HipaaBufferPool(8 * 1024);
+        ByteBuffer first = pool.acquire(0);
+        ByteBuffer second = pool.acquire(0);
+        ByteBuffer third = pool.acquire(0);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertThat(pool.getPooledBytes()).isEqualTo(8 * 1024);
+        assertThat(pool.acquire(0)).isSameAs(first);
+        assertThat(pool.acquire(0)).isSameAs(second);
+        assertThat(pool.acquire(0)).isNotSameAs(third);
+    }
+
+    @Test
+    public void testFallsBackToHeapBeyondMaxDirectBytes() {
+        HipaaBufferPool pool = new HipaaBufferPool(Long.MAX_VALUE, 16 * 1024);
+        ByteBuffer direct = pool.acquire(10000);
+        assertThat(direct.isDirect()).isTrue();
+        assertThat(pool.getOutstandingBytes()).isEqualTo(16 * 1024);
+
+        ByteBuffer heap = pool.acquire(0);
+        assertThat(heap.isDirect()).isFalse();
+        assertThat(heap.capacity()).isEqualTo(4 * 1024);
+        assertThat(pool.getHeapAllocated()).isEqualTo(1);
+
+        pool.release(heap);
+        assertThat(pool.getPooledBytes()).isZero();
+        pool.release(direct);
+        assertThat(pool.getOutstandingBytes()).isZero();
+        assertThat(pool.acquire(0).isDirect()).isTrue();
+    }
+}
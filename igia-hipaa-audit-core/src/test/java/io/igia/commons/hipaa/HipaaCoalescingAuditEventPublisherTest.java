@@ -0,0 +1,236 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Coalescing;
+
+public class HipaaCoalescingAuditEventPublisherTest {
+
+    private static final Instant START = Instant.parse("2019-01-01T00:00:00Z");
+
+    private final List<Object> published = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicLong now = new AtomicLong(START.toEpochMilli());
+
+    private Coalescing properties;
+
+    private HipaaCoalescingAuditEventPublisher publisher;
+
+    @Before
+    public void setUp() {
+        properties = new Coalescing();
+        properties.setWindow(60000);
+        publisher = publisher();
+    }
+
+    @After
+    public void tearDown() {
+        publisher.destroy();
+    }
+
+    private HipaaCoalescingAuditEventPublisher publisher() {
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return Instant.ofEpochMilli(now.get());
+            }
+        };
+        return new HipaaCoalescingAuditEventPublisher(published::add, properties, clock);
+    }
+
+    private HipaaAuditRecord.Builder request(String uri) {
+        return HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(Instant.ofEpochMilli(now.get()))
+            .remoteAddress("10.0.0.1")
+            .httpMethod("GET")
+            .requestUri(uri)
+            .requestParam("_count:[10]");
+    }
+
+    private void publish(HipaaAuditRecord record) {
+        publisher.publishEvent(new HipaaAuditApplicationEvent(record));
+    }
+
+    private HipaaAuditRecord published(int index) {
+        return ((HipaaAuditApplicationEvent) published.get(index)).getRecord();
+    }
+
+    @Test
+    public void testIdenticalEventsArePublishedOncePerWindow() {
+        for (int i = 0; i < 5; i++) {
+            publish(request("/api/fhir/Patient").build());
+            now.addAndGet(1000);
+        }
+        publisher.flushExpired();
+        assertThat(published).isEmpty();
+        assertThat(publisher.getHeldCount()).isEqualTo(1);
+
+        now.set(START.toEpochMilli() + 60000);
+        publisher.flushExpired();
+        assertThat(published).hasSize(1);
+        HipaaAuditRecord coalesced = published(0);
+        assertThat(coalesced.getTimestamp()).isEqualTo(START);
+        assertThat(coalesced.getLastTimestamp()).isEqualTo(START.plusSeconds(4));
+        assertThat(coalesced.getCoalescedCount()).isEqualTo(5L);
+        assertThat(coalesced.toAuditEvent().getData()).containsEntry(HipaaAuditRecord.COALESCED_COUNT, 5L);
+        assertThat(publisher.getCoalescedCount()).isEqualTo(4);
+        assertThat(publisher.getHeldCount()).isZero();
+    }
+
+    @Test
+    public void testSingleEventIsPublishedUnchanged() {
+        HipaaAuditRecord record = request("/api/fhir/Patient").build();
+        publish(record);
+        now.addAndGet(60000);
+        publisher.flushExpired();
+        assertThat(published(0)).isSameAs(record);
+        assertThat(record.getCoalescedCount()).isNull();
+    }
+
+    @Test
+    public void testEventsOfOtherKeysAreNotCoalesced() {
+        publish(request("/api/fhir/Patient").build());
+        publish(request("/api/fhir/Observation").build());
+        publish(request("/api/fhir/Patient").requestParam("_count:[20]").build());
+        publish(request("/api/fhir/Patient").principal("nurse").build());
+        publish(request("/api/fhir/Patient").responseStatus(404).build());
+        publish(request("/api/fhir/Patient").remoteAddress("10.0.0.2").build());
+        publish(request("/api/fhir/Patient").requestId("r-1").build());
+        publish(request("/api/fhir/Patient").fidelity(HipaaAuditFidelity.METADATA).build());
+        assertThat(publisher.getHeldCount()).isEqualTo(8);
+        publisher.destroy();
+        assertThat(published).hasSize(8);
+        assertThat(published).extracting(event -> ((HipaaAuditApplicationEvent) event).getRecord().getRemoteAddress())
+            .contains("10.0.0.1", "10.0.0.2");
+    }
+
+    @Test
+    public void testChangedBodyPublishesTheHeldEvent() {
+        publish(request("/api/fhir/Patient/1").responseBody("{\"id\":\"1\",\"v\":1}").build());
+        now.addAndGet(1000);
+        publish(request("/api/fhir/Patient/1").responseBody("{\"id\":\"1\",\"v\":1}").build());
+        assertThat(published).isEmpty();
+
+        now.addAndGet(1000);
+        publish(request("/api/fhir/Patient/1").responseBody("{\"id\":\"1\",\"v\":2}").build());
+        assertThat(published).hasSize(1);
+        assertThat(published(0).getCoalescedCount()).isEqualTo(2L);
+        assertThat(published(0).getResponseBody().toString()).contains("\"v\":1");
+
+        publisher.destroy();
+        assertThat(published(1).getResponseBody().toString()).contains("\"v\":2");
+        assertThat(published(1).getCoalescedCount()).isNull();
+    }
+
+    @Test
+    public void testBodiesAreComparedByDigestOrCompressedBytes() {
+        publish(request("/api/fhir/Patient/1").responseBodySha256("a1").build());
+        publish(request("/api/fhir/Patient/1").responseBodySha256("a1").build());
+        byte[] compressed = {31, -117, 8, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(compressed, StandardCharsets.UTF_8);
+        publish(request("/api/fhir/Patient/2").responseBody(body).build());
+        publish(request("/api/fhir/Patient/2")
+            .responseBody(new HipaaGzippedResponseBody(compressed.clone(), StandardCharsets.UTF_8)).build());
+        assertThat(publisher.getCoalescedCount()).isEqualTo(2);
+        assertThat(body.isDecoded()).isFalse();
+
+        publish(request("/api/fhir/Patient/1").responseBodySha256("b2").build());
+        assertThat(published).hasSize(1);
+        assertThat(published(0).getResponseBodySha256()).isEqualTo("a1");
+    }
+
+    @Test
+    public void testEventsBeyondMaxHeldBodyBytesArePublishedDirectly() {
+        publisher.destroy();
+        properties.setMaxHeldBodyBytes(10);
+        publisher = publisher();
+        publish(request("/api/fhir/Patient/1").responseBody("{\"id\":1}").build());
+        assertThat(publisher.getHeldBodyBytes()).isEqualTo(8);
+        publish(request("/api/fhir/Patient/2").responseBody("{\"id\":2}").build());
+        assertThat(published).hasSize(1);
+        assertThat(published(0).getRequestUri()).isEqualTo("/api/fhir/Patient/2");
+        assertThat(publisher.getPassedThroughCount()).isEqualTo(1);
+
+        now.addAndGet(60000);
+        publisher.flushExpired();
+        assertThat(publisher.getHeldBodyBytes()).isZero();
+    }
+
+    @Test
+    public void testEventsBeyondMaxKeysArePublishedDirectly() {
+        publisher.destroy();
+        properties.setMaxKeys(2);
+        publisher = publisher();
+        publish(request("/api/fhir/Patient").build());
+        publish(request("/api/fhir/Observation").build());
+        publish(request("/api/fhir/Encounter").build());
+        assertThat(published).hasSize(1);
+        assertThat(published(0).getRequestUri()).isEqualTo("/api/fhir/Encounter");
+        assertThat(publisher.getPassedThroughCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testContextCloseFlushesHeldEvents() {
+        ApplicationContext context = mock(ApplicationContext.class);
+        publisher.setApplicationContext(context);
+        publish(request("/api/fhir/Patient").build());
+
+        publisher.onApplicationEvent(new ContextClosedEvent(mock(ApplicationContext.class)));
+        assertThat(published).isEmpty();
+
+        publisher.onApplicationEvent(new ContextClosedEvent(context));
+        assertThat(published).hasSize(1);
+
+        // published as they are once closed
+        publish(request("/api/fhir/Patient").build());
+        assertThat(published).hasSize(2);
+        assertThat(publisher.getHeldCount()).isZero();
+    }
+
+    @Test
+    public void testOtherEventsArePublishedDirectly() {
+        AuditApplicationEvent event = new AuditApplicationEvent("admin", "AUTHENTICATION_SUCCESS");
+        publisher.publishEvent(event);
+        assertThat(published).containsExactly(event);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+
+public class HipaaGzippedResponseBodyTest {
+
+    private static final String CONTENT = "{\"resourceType\":\"Patient\",\"name\":\"Zoë\"}";
+
+    @Test
+    public void testDecompressesOnFirstRead() throws IOException {
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(gzip(CONTENT), StandardCharsets.UTF_8);
+        assertThat(body.isDecoded()).isFalse();
+        assertThat(body.length()).isEqualTo(CONTENT.length());
+        assertThat(body.isDecoded()).isTrue();
+        assertThat(body.toString()).isSameAs(body.toString()).isEqualTo(CONTENT);
+        assertThat(body.subSequence(2, 14)).isEqualTo("resourceType");
+    }
+
+    @Test
+    public void testSerializesAsText() throws IOException {
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(gzip(CONTENT), StandardCharsets.UTF_8);
+        assertThat(new ObjectMapper().writeValueAsString(body))
+            .isEqualTo(new ObjectMapper().writeValueAsString(CONTENT));
+    }
+
+    @Test
+    public void testIsAStringInTheAuditEventData() throws IOException {
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(gzip(CONTENT), StandardCharsets.UTF_8);
+        HipaaAuditRecord record = HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .responseBody(body).build();
+        Map<String, Object> data = record.toAuditEvent().getData();
+        assertThat(body.isDecoded()).isFalse();
+        assertThat(data.get(HipaaAuditRecord.RESPONSE_BODY)).isInstanceOf(String.class).isEqualTo(CONTENT);
+        assertThat(data).containsEntry(HipaaAuditRecord.RESPONSE_BODY, CONTENT);
+        assertThat(record.getResponseBody()).isSameAs(body);
+    }
+
+    @Test
+    public void testTruncatedBodyDecodesPartially() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            content.append(i).append(',');
+        }
+        byte[] compressed = gzip(content.toString());
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 10);
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(truncated, StandardCharsets.UTF_8);
+        assertThat(content.toString()).startsWith(body.toString());
+    }
+
+    @Test
+    public void testDecompressionStopsAtMaximum() throws IOException {
+        char[] zeros = new char[1024 * 1024];
+        Arrays.fill(zeros, '0');
+        byte[] compressed = gzip(new String(zeros));
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(compressed, StandardCharsets.UTF_8, "", null,
+            100, "...[TRUNCATED]");
+        assertThat(body.toString()).hasSize(100 + "...[TRUNCATED]".length()).endsWith("0...[TRUNCATED]");
+
+        // the marker of a body truncated while captured is not repeated
+        body = new HipaaGzippedResponseBody(compressed, StandardCharsets.UTF_8, "...[TRUNCATED]", null, 100,
+            "...[TRUNCATED]");
+        assertThat(body.toString()).hasSize(100 + "...[TRUNCATED]".length());
+
+        body = new HipaaGzippedResponseBody(gzip(CONTENT), StandardCharsets.UTF_8, "", null, 100, "...[TRUNCATED]");
+        assertThat(body.toString()).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void testRedactedWhileDecompressed() throws IOException {
+        Redaction redaction = new Redaction();
+        redaction.setEnabled(true);
+        redaction.setFieldNames(Arrays.asList("name"));
+        HipaaGzippedResponseBody body = new HipaaGzippedResponseBody(gzip(CONTENT), StandardCharsets.UTF_8, "",
+            HipaaPhiRedactor.compile(redaction));
+        assertThat(body.isRedacted()).isTrue();
+        assertThat(body.toString()).isEqualTo("{\"resourceType\":\"Patient\",\"name\":\"***\"}");
+    }
+
+    @Test
+    public void testGzipMagicHeader() throws IOException {
+        assertThat(HipaaGzippedResponseBody.isGzipped(gzip(CONTENT))).isTrue();
+        assertThat(HipaaGzippedResponseBody.isGzipped(CONTENT.getBytes(StandardCharsets.UTF_8))).isFalse();
+        assertThat(HipaaGzippedResponseBody.isGzipped(new byte[0])).isFalse();
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+import io.igia.commons.hipaa.HipaaAuditProperties.RedactionToken;
+
+public class HipaaPhiRedactorTest {
+
+    private final HipaaPhiRedactor redactor = HipaaPhiRedactor.compile(redaction("mrn", "birthDate", "name"));
+
+    @Test
+    public void testDisabled() {
+        assertThat(HipaaPhiRedactor.compile(new Redaction())).isNull();
+        assertThat(HipaaPhiRedactor.compile(null)).isNull();
+    }
+
+    @Test
+    public void testMasksFieldValues() {
+        assertThat(redact("{\"resourceType\":\"Patient\",\"mrn\" : \"12\\\"34\",\"active\":true}"))
+            .isEqualTo("{\"resourceType\":\"Patient\",\"mrn\" : \"***\",\"active\":true}");
+        assertThat(redact("{\"birthDate\":19700101, \"gender\":\"female\"}"))
+            .isEqualTo("{\"birthDate\":\"***\", \"gender\":\"female\"}");
+        assertThat(redact("{\"name\":[{\"family\":\"Doe\",\"given\":[\"J]a}ne\"]}],\"id\":\"1\"}"))
+            .isEqualTo("{\"name\":\"***\",\"id\":\"1\"}");
+        assertThat(redact("{\"mrn\":null}")).isEqualTo("{\"mrn\":\"***\"}");
+    }
+
+    @Test
+    public void testLeavesOtherFieldsAndValues() {
+        String json = "{\"type\":\"name\",\"mrnType\":\"x\",\"codes\":[\"mrn\",\"birthDate\"],\"xmrn\":\"1\"}";
+        assertThat(redact(json)).isEqualTo(json);
+        assertThat(redact("name: Jane Doe")).isEqualTo("name: Jane Doe");
+    }
+
+    @Test
+    public void testMasksTokens() {
+        assertThat(redact("{\"text\":\"SSN 123-45-6789, call (555) 123-4567 or 555.123.4567.\"}"))
+            .isEqualTo("{\"text\":\"SSN ***-**-****, call (***) ***-**** or ***.***.****.\"}");
+        assertThat(redact("555-123-4567")).isEqualTo("***-***-****");
+    }
+
+    @Test
+    public void testLeavesOtherNumbers() {
+        String text = "id 1123-45-6789, A123-45-6789, 123-45-6789x, 123-45-67890, 2019-01-01, 1234567890123456789-45-6789";
+        assertThat(redact(text)).isEqualTo(text);
+    }
+
+    @Test
+    public void testTokensOnly() {
+        Redaction ssnOnly = redaction();
+        ssnOnly.setTokens(Collections.singletonList(RedactionToken.SSN));
+        assertThat(redact(HipaaPhiRedactor.compile(ssnOnly), "{\"ssn\":\"123-45-6789\",\"tel\":\"555-123-4567\"}"))
+            .isEqualTo("{\"ssn\":\"***-**-****\",\"tel\":\"555-123-4567\"}");
+    }
+
+    @Test
+    public void testSinglePassAcrossWrites() throws IOException {
+        String json = "{\"name\":{\"text\":\"Zoë\"},\"telecom\":\"555-123-4567\",\"mrn\":\"MRN-1\",\"note\":\"é 123-45-6789\"}";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream redacted = new ByteArrayOutputStream();
+        try (OutputStream out = redactor.redact(redacted)) {
+            for (byte b : bytes) {
+                out.write(b);
+            }
+        }
+        assertThat(new String(redacted.toByteArray(), StandardCharsets.UTF_8))
+            .isEqualTo("{\"name\":\"***\",\"telecom\":\"***-***-****\",\"mrn\":\"***\",\"note\":\"é ***-**-****\"}")
+            .isEqualTo(redact(json));
+    }
+
+    @Test
+    public void testCaptureRecordsRedactedBody() throws IOException {
+        HipaaBodyCapture capture = new HipaaBodyCapture(BodyMode.FULL, 20, redactor);
+        byte[] body = "{\"mrn\":\"12345\",\"tel\":\"555-123-4567\"}".getBytes(StandardCharsets.UTF_8);
+        capture.write(body, 0, body.length);
+        HipaaAuditRecord.Builder record = HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE);
+
+        capture.applyTo(record, false, StandardCharsets.UTF_8, "...");
+
+        assertThat(capture.getBody()).as("captured as received").isEqualTo(Arrays.copyOf(body, 20));
+        assertThat(record.build().getResponseBody()).isEqualTo("{\"mrn\":\"***\",\"tel\"...");
+    }
+
+    @Test
+    public void testMasksRunCutByTruncation() throws IOException {
+        HipaaBodyCapture capture = new HipaaBodyCapture(BodyMode.FULL, 20, redactor);
+        byte[] body = "{\"note\":\"SSN 123-45-6789\"}".getBytes(StandardCharsets.UTF_8);
+        capture.write(body, 0, body.length);
+        HipaaAuditRecord.Builder record = HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE);
+
+        capture.applyTo(record, false, StandardCharsets.UTF_8, "...");
+
+        assertThat(record.build().getResponseBody()).isEqualTo("{\"note\":\"SSN ***-**-...");
+        assertThat(redact("SSN 123-4")).as("not truncated").isEqualTo("SSN 123-4");
+    }
+
+    private String redact(String text) {
+        return redact(redactor, text);
+    }
+
+    private static String redact(HipaaPhiRedactor redactor, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new String(redactor.redact(bytes, 0, bytes.length), StandardCharsets.UTF_8);
+    }
+
+    private static Redaction redaction(String... fieldNames) {
+        Redaction redaction = new Redaction();
+        redaction.setEnabled(true);
+        redaction.setFieldNames(Arrays.asList(fieldNames));
+        return redaction;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+
+public class HipaaPooledBodyTest {
+
+    private final HipaaBufferPool pool = new HipaaBufferPool(Long.MAX_VALUE);
+
+    @Test
+    public void testReadsAcrossSlabs() throws IOException {
+        byte[] bytes = bytes(80 * 1024);
+        HipaaPooledBody body = HipaaPooledBody.read(new ByteArrayInputStream(bytes), pool, 0);
+
+        assertThat(body.getLength()).isEqualTo(bytes.length);
+        assertThat(pool.getAllocated()).as("4, 16 and 64 KiB slabs").isEqualTo(3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertThat(out.toByteArray()).isEqualTo(bytes);
+        try (InputStream in = body.newInputStream()) {
+            assertThat(readAll(in)).isEqualTo(bytes);
+        }
+        body.release();
+    }
+
+    @Test
+    public void testSizeHintAndEmptyBody() throws IOException {
+        HipaaPooledBody body = HipaaPooledBody.read(new ByteArrayInputStream(bytes(10000)), pool, 10000);
+        assertThat(pool.getAllocated()).isEqualTo(1);
+        body.release();
+
+        HipaaPooledBody empty = HipaaPooledBody.read(new ByteArrayInputStream(new byte[0]), pool, 0);
+        assertThat(empty.getLength()).isZero();
+        try (InputStream in = empty.newInputStream()) {
+            assertThat(in.read()).isEqualTo(-1);
+        }
+        empty.release();
+    }
+
+    @Test
+    public void testSlabsReturnWithLastReference() throws IOException {
+        byte[] bytes = bytes(20 * 1024);
+        HipaaPooledBody body = HipaaPooledBody.read(new ByteArrayInputStream(bytes), pool, 0);
+        InputStream replay = body.newInputStream();
+        HipaaBodyCapture capture = new HipaaBodyCapture(BodyMode.FULL, 1024);
+        body.writeTo(capture);
+        body.release();
+
+        assertThat(capture.getBody()).hasSize(1024);
+        assertThat(body.getRefCount()).isEqualTo(1);
+        assertThat(pool.getPooledBytes()).isZero();
+        assertThat(replay.skip(1000)).isEqualTo(1000);
+        assertThat(replay.available()).isEqualTo(bytes.length - 1000);
+        byte[] rest = readAll(replay);
+        assertThat(rest).hasSize(bytes.length - 1000);
+        assertThat(rest[0]).isEqualTo(bytes[1000]);
+
+        replay.close();
+        replay.close();
+        assertThat(body.getRefCount()).isZero();
+        assertThat(pool.getPooledBytes()).isEqualTo((4 + 16 + 64) * 1024);
+        assertThatThrownBy(body::release).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(body::newInputStream).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(replay::read).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testReleasesSlabsWhenReadFails() {
+        InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > 5000) {
+                    throw new IOException("reset");
+                }
+                return 'a';
+            }
+        };
+
+        assertThatThrownBy(() -> HipaaPooledBody.read(failing, pool, 0)).isInstanceOf(IOException.class);
+        assertThat(pool.getPooledBytes()).isEqualTo((4 + 16) * 1024);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+}
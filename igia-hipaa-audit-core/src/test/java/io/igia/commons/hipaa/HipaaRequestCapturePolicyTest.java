@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.Redaction;
+import io.igia.commons.hipaa.HipaaAuditProperties.RequestCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
+public class HipaaRequestCapturePolicyTest {
+
+    private static RequestCapture properties(String... uriPatterns) {
+        RequestCapture properties = new RequestCapture();
+        properties.setMaxBytes(16);
+        for (String uriPattern : uriPatterns) {
+            Route route = new Route();
+            route.setUriPattern(uriPattern);
+            properties.getRoutes().add(route);
+        }
+        return properties;
+    }
+
+    @Test
+    public void testDefaultsCaptureNothing() {
+        HipaaRequestCapturePolicy policy = HipaaRequestCapturePolicy.compile(null);
+        assertThat(policy.isEnabled()).isFalse();
+        assertThat(policy.newCapture("POST", "/api/Patient", false)).isNull();
+    }
+
+    @Test
+    public void testOptInByMethodAndUri() {
+        HipaaRequestCapturePolicy policy = HipaaRequestCapturePolicy.compile(properties(".*/api/Patient.*"));
+
+        assertThat(policy.isEnabled()).isTrue();
+        assertThat(policy.newCapture("GET", "/api/Patient", false)).isNull();
+        assertThat(policy.newCapture("POST", "/api/Observation", false)).isNull();
+        HipaaBodyCapture capture = policy.newCapture("POST", "/api/Patient/_search", false);
+        assertThat(capture.getBodyMode()).isEqualTo(BodyMode.FULL);
+        assertThat(capture.getMaxBytes()).isEqualTo(16);
+    }
+
+    @Test
+    public void testGzippedBodyIsDigested() {
+        HipaaRequestCapturePolicy policy = HipaaRequestCapturePolicy.compile(properties(".*"));
+        assertThat(policy.newCapture("PUT", "/api/Patient/1", true).getBodyMode()).isEqualTo(BodyMode.DIGEST);
+    }
+
+    @Test
+    public void testAppliedBodyIsRedacted() {
+        Redaction redaction = new Redaction();
+        redaction.setEnabled(true);
+        redaction.getFieldNames().add("name");
+        HipaaRequestCapturePolicy policy = HipaaRequestCapturePolicy.compile(properties(".*"),
+            HipaaPhiRedactor.compile(redaction));
+        byte[] body = "{\"name\":\"doe\"}...".getBytes(StandardCharsets.UTF_8);
+
+        HipaaAuditRecord.Builder auditRecord = HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE);
+        policy.applyBody(auditRecord, body, 14, StandardCharsets.UTF_8);
+
+        assertThat(auditRecord.build().getRequestBody()).isEqualTo("{\"name\":\"***\"}");
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class HipaaRequestParamSerializerTest {
+
+    @Test
+    public void testSameFormatAsStreamSerialization() {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("name", new String[] {"Doe"});
+        parameters.put("cacheBuster", new String[] {"1546300800000"});
+        parameters.put("_include", new String[] {"Patient:organization", "Patient:general-practitioner"});
+        parameters.put("empty", new String[0]);
+        parameters.put("missing", null);
+
+        HipaaRequestParamSerializer serializer = new HipaaRequestParamSerializer(Collections.emptyList(),
+            Collections.emptyList());
+        String expected = parameters.entrySet().stream()
+            .filter(s -> !"cacheBuster".equals(s.getKey()))
+            .map(s -> s.getKey() + ":" + Arrays.toString(s.getValue()))
+            .collect(Collectors.joining(", "));
+        assertThat(serializer.serialize(parameters)).isEqualTo(expected)
+            .isEqualTo("name:[Doe], _include:[Patient:organization, Patient:general-practitioner], empty:[], "
+                + "missing:null");
+        assertThat(serializer.serialize(parameters)).as("buffer reused").isEqualTo(expected);
+        assertThat(serializer.serialize(Collections.emptyMap())).isEmpty();
+    }
+
+    @Test
+    public void testExcludedAndMaskedParameters() {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("cacheBuster", new String[] {"1"});
+        parameters.put("access_token", new String[] {"secret"});
+        parameters.put("identifier", new String[] {"123-45-6789", "MRN-42"});
+        parameters.put("_count", new String[] {"10"});
+
+        HipaaRequestParamSerializer serializer = new HipaaRequestParamSerializer(
+            Collections.singletonList("access_token"), Collections.singletonList("identifier"));
+        assertThat(serializer.serialize(parameters)).isEqualTo("identifier:[***], _count:[10]");
+    }
+
+    @Test
+    public void testQueryParameterValues() {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        parameters.put("name", Arrays.asList("Doe", "Roe"));
+        parameters.put("cacheBuster", Collections.singletonList("1"));
+        parameters.put("identifier", Collections.singletonList("MRN-42"));
+
+        HipaaRequestParamSerializer serializer = new HipaaRequestParamSerializer(Collections.emptyList(),
+            Collections.singletonList("identifier"));
+        assertThat(serializer.serializeValues(parameters)).isEqualTo("name:[Doe, Roe], identifier:[***]");
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.BodyMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.CaptureMode;
+import io.igia.commons.hipaa.HipaaAuditProperties.ResponseCapture;
+import io.igia.commons.hipaa.HipaaAuditProperties.Route;
+
+public class HipaaResponseCapturePolicyTest {
+
+    private static final byte[] BODY = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testDefaultsCaptureWholeBody() {
+        HipaaResponseCapturePolicy policy = HipaaResponseCapturePolicy.compile(null);
+        assertThat(policy.getMode()).isEqualTo(CaptureMode.BUFFERED);
+        HipaaBodyCapture capture = policy.newCapture("/api/Patient");
+        capture.write(BODY, 0, BODY.length);
+        assertThat(capture.getBody()).isEqualTo(BODY);
+        assertThat(capture.isTruncated()).isFalse();
+        assertThat(capture.getDigest()).isNull();
+    }
+
+    @Test
+    public void testMaxBytesTruncates() {
+        HipaaBodyCapture capture = new HipaaBodyCapture(BodyMode.FULL, 4);
+        capture.write(BODY, 0, 3);
+        capture.write(BODY[3]);
+        capture.write(BODY[4]);
+        capture.write(BODY, 5, 5);
+        assertThat(new String(capture.getBody(), StandardCharsets.US_ASCII)).isEqualTo("0123");
+        assertThat(capture.isTruncated()).isTrue();
+        assertThat(capture.getLength()).isEqualTo(10);
+    }
+
+    @Test
+    public void testDigestMode() {
+        HipaaBodyCapture capture = new HipaaBodyCapture(BodyMode.DIGEST, 4);
+        capture.write(BODY, 0, 5);
+        capture.write(BODY, 5, 5);
+        assertThat(capture.getBody()).isNull();
+        assertThat(capture.isTruncated()).isFalse();
+        assertThat(capture.getLength()).isEqualTo(10);
+        // sha256sum of "0123456789"
+        assertThat(capture.getDigest()).isEqualTo("84d89877f0d4041efb6bf91a16f0248f2fd573e6af05c19f96bedb9f882f7882");
+    }
+
+    @Test
+    public void testFirstMatchingRouteApplies() {
+        ResponseCapture properties = new ResponseCapture();
+        properties.setMaxBytes(1024);
+        Route everything = new Route();
+        everything.setUriPattern(".*/\\$everything.*");
+        everything.setBodyMode(BodyMode.DIGEST);
+        Route patients = new Route();
+        patients.setUriPattern(".*/Patient.*");
+        patients.setMaxBytes(2);
+        properties.getRoutes().add(everything);
+        properties.getRoutes().add(patients);
+        HipaaResponseCapturePolicy policy = HipaaResponseCapturePolicy.compile(properties);
+
+        assertThat(policy.newCapture("/fhir/Patient/1/$everything").getBodyMode()).isEqualTo(BodyMode.DIGEST);
+
+        HipaaBodyCapture patient = policy.newCapture("/fhir/Patient?name=x");
+        patient.write(BODY, 0, BODY.length);
+        assertThat(patient.getBody()).hasSize(2);
+
+        HipaaBodyCapture other = policy.newCapture("/fhir/Observation");
+        other.write(BODY, 0, BODY.length);
+        assertThat(other.getBody()).isEqualTo(BODY);
+    }
+}
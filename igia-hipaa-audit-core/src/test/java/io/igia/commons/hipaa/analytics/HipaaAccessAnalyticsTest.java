@@ -0,0 +1,185 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.boot.actuate.audit.AuditEvent;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditProperties.Analytics;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+public class HipaaAccessAnalyticsTest {
+
+    private static final Instant START = Instant.parse("2019-01-01T00:00:00Z");
+
+    private Analytics properties;
+
+    private ApplicationEventPublisher publisher;
+
+    @Before
+    public void setUp() {
+        properties = new Analytics();
+        properties.setWindow(60000);
+        properties.setBuckets(6);
+        properties.setTopK(3);
+        properties.setAlertThreshold(50);
+        publisher = mock(ApplicationEventPublisher.class);
+    }
+
+    private HipaaAccessAnalytics analytics(Instant now) {
+        return new HipaaAccessAnalytics(properties, publisher, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private static HipaaAuditRecord request(String principal, String uri, long millis) {
+        return HipaaAuditRecord.builder(principal, HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(START.plusMillis(millis))
+            .httpMethod("GET")
+            .requestUri(uri)
+            .requestParam("")
+            .build();
+    }
+
+    @Test
+    public void testTopPrincipalsAndResourceTypes() {
+        HipaaAccessAnalytics analytics = analytics(START.plusSeconds(30));
+        for (int i = 0; i < 40; i++) {
+            analytics.record(request("clerk", "/api/fhir/Patient/" + i, i));
+        }
+        for (int i = 0; i < 20; i++) {
+            analytics.record(request("nurse", "/api/fhir/Observation/" + i, i));
+        }
+        for (int i = 0; i < 5; i++) {
+            analytics.record(request("admin" + i, "/api/fhir/Encounter/" + i, i));
+        }
+
+        assertThat(analytics.getTopPrincipals()).extracting(HipaaAccessCount::getKey)
+            .startsWith("clerk", "nurse").hasSize(3);
+        assertThat(analytics.getTopPrincipals().get(0).getCount()).isEqualTo(40);
+        assertThat(analytics.getTopResourceTypes()).extracting(HipaaAccessCount::toString)
+            .containsExactly("Patient=40", "Observation=20", "Encounter=5");
+        assertThat(analytics.estimate("nurse", "Observation")).isEqualTo(20);
+    }
+
+    @Test
+    public void testResponseAuditsAreNotCounted() {
+        HipaaAccessAnalytics analytics = analytics(START);
+        analytics.record(request("clerk", "/api/fhir/Patient/1", 0));
+        analytics.record(HipaaAuditRecord.builder("clerk", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(START).requestUri("/api/fhir/Patient/1").responseStatus(200).build());
+        assertThat(analytics.estimate("clerk", "Patient")).isEqualTo(1);
+    }
+
+    @Test
+    public void testCountsExpireWithTheWindow() {
+        HipaaAccessAnalytics analytics = analytics(START.plusSeconds(90));
+        for (int i = 0; i < 10; i++) {
+            analytics.record(request("clerk", "/api/fhir/Patient/" + i, i));
+        }
+        analytics.record(request("nurse", "/api/fhir/Observation/1", 80000));
+
+        assertThat(analytics.estimate("clerk", "Patient")).isZero();
+        assertThat(analytics.getTopPrincipals()).extracting(HipaaAccessCount::toString).containsExactly("nurse=1");
+    }
+
+    @Test
+    public void testAlertIsPublishedOncePerWindow() {
+        properties.setAlertResourceTypes(Collections.singletonList("Patient"));
+        HipaaAccessAnalytics analytics = analytics(START.plusSeconds(50));
+        for (int i = 0; i < 100; i++) {
+            analytics.record(request("clerk", "/api/fhir/Patient/" + i, i * 100));
+            analytics.record(request("nurse", "/api/fhir/Observation/" + i, i * 100));
+        }
+
+        ArgumentCaptor<ApplicationEvent> event = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(publisher, times(1)).publishEvent(event.capture());
+        AuditEvent auditEvent = ((AuditApplicationEvent) event.getValue()).getAuditEvent();
+        assertThat(auditEvent.getType()).isEqualTo(HipaaAccessAlert.AUDIT_EVENT_TYPE);
+        assertThat(auditEvent.getPrincipal()).isEqualTo("clerk");
+        assertThat(auditEvent.getData()).containsEntry("resourceType", "Patient").containsEntry("count", 50L);
+        assertThat(analytics.getAlerts()).extracting(HipaaAccessAlert::getPrincipal).containsExactly("clerk");
+
+        // a window later
+        for (int i = 0; i < 50; i++) {
+            analytics.record(request("clerk", "/api/fhir/Patient/" + i, 70000 + i));
+        }
+        verify(publisher, times(2)).publishEvent(any(ApplicationEvent.class));
+        assertThat(analytics.getAlertCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testAlertsOfCollidingPairsArePublishedOncePerWindow() {
+        int slot = (int) HipaaAccessAnalytics.accessHash("clerk", "Patient") & (HipaaAccessAnalytics.ALERT_SLOTS - 1);
+        String colliding = null;
+        for (int i = 0; colliding == null; i++) {
+            if (((int) HipaaAccessAnalytics.accessHash("user" + i, "Patient")
+                & (HipaaAccessAnalytics.ALERT_SLOTS - 1)) == slot) {
+                colliding = "user" + i;
+            }
+        }
+        HipaaAccessAnalytics analytics = analytics(START.plusSeconds(50));
+        for (int i = 0; i < 100; i++) {
+            analytics.record(request("clerk", "/api/fhir/Patient/" + i, i * 100));
+            analytics.record(request(colliding, "/api/fhir/Patient/" + i, i * 100));
+        }
+
+        verify(publisher, times(2)).publishEvent(any(ApplicationEvent.class));
+        assertThat(analytics.getAlerts()).extracting(HipaaAccessAlert::getPrincipal)
+            .containsExactlyInAnyOrder("clerk", colliding);
+    }
+
+    @Test
+    public void testListenerCountsHipaaAuditEvents() {
+        HipaaAccessAnalytics analytics = analytics(START);
+        HipaaAccessAnalyticsListener listener = new HipaaAccessAnalyticsListener(analytics);
+        listener.onApplicationEvent(new HipaaAuditApplicationEvent(request("clerk", "/api/fhir/Patient/1", 0)));
+        listener.onApplicationEvent(new AuditApplicationEvent(START, "clerk", "AUTHENTICATION_SUCCESS",
+            Collections.emptyMap()));
+        assertThat(analytics.estimate("clerk", "Patient")).isEqualTo(1);
+    }
+
+    @Test
+    public void testListenerWeighsCoalescedAudits() {
+        HipaaAccessAnalytics analytics = analytics(START);
+        HipaaAccessAnalyticsListener listener = new HipaaAccessAnalyticsListener(analytics);
+        HipaaAuditRecord coalesced = HipaaAuditRecord.builder("clerk", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(START)
+            .httpMethod("GET")
+            .requestUri("/api/fhir/Patient/1")
+            .requestParam("")
+            .coalescedCount(30L)
+            .lastTimestamp(START.plusSeconds(10))
+            .build();
+        listener.onApplicationEvent(new HipaaAuditApplicationEvent(coalesced));
+        listener.onApplicationEvent(new AuditApplicationEvent(coalesced.toAuditEvent()));
+
+        assertThat(analytics.estimate("clerk", "Patient")).isEqualTo(60);
+        assertThat(analytics.getTopPrincipals()).extracting(HipaaAccessCount::toString).containsExactly("clerk=60");
+    }
+}
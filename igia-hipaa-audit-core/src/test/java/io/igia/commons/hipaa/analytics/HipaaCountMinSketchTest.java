@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.analytics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class HipaaCountMinSketchTest {
+
+    @Test
+    public void testEstimatesAreWithinTheErrorBound() {
+        HipaaCountMinSketch sketch = new HipaaCountMinSketch(4, 1000);
+        assertThat(sketch.getWidth()).isEqualTo(1024);
+        Map<String, Long> counts = new HashMap<>();
+        Random random = new Random(42);
+        int total = 100000;
+        for (int i = 0; i < total; i++) {
+            // a few heavy hitters among many rare keys
+            String key = random.nextInt(10) == 0 ? "heavy" + random.nextInt(5) : "user" + random.nextInt(20000);
+            counts.merge(key, 1L, Long::sum);
+            sketch.add(HipaaCountMinSketch.hash(key), 1);
+        }
+        long bound = (long) (Math.E / sketch.getWidth() * total);
+        int exceeding = 0;
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            long estimate = sketch.estimate(HipaaCountMinSketch.hash(count.getKey()));
+            assertThat(estimate).isGreaterThanOrEqualTo(count.getValue());
+            if (estimate - count.getValue() > bound) {
+                exceeding++;
+            }
+        }
+        // probability e^-4 per key
+        assertThat(exceeding).isLessThan(counts.size() / 50);
+        for (int i = 0; i < 5; i++) {
+            long heavy = counts.get("heavy" + i);
+            assertThat(sketch.estimate(HipaaCountMinSketch.hash("heavy" + i))).isBetween(heavy, heavy + bound);
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        HipaaCountMinSketch sketch = new HipaaCountMinSketch(4, 64);
+        long hash = HipaaCountMinSketch.hash("admin");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        sketch.add(hash, 1);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(sketch.estimate(hash)).isEqualTo(40000);
+    }
+
+    @Test
+    public void testSlidingWindowForgetsExpiredIntervals() {
+        HipaaSlidingCountMinSketch sketch = new HipaaSlidingCountMinSketch(60000, 6, 4, 256);
+        long hash = HipaaCountMinSketch.hash("admin");
+        assertThat(sketch.add(hash, 0, 1)).isEqualTo(1);
+        assertThat(sketch.add(hash, 10000, 2)).isEqualTo(3);
+        assertThat(sketch.add(hash, 59999, 1)).isEqualTo(4);
+        assertThat(sketch.estimate(hash, 59999)).isEqualTo(4);
+
+        // the first interval leaves the window
+        assertThat(sketch.estimate(hash, 60000)).isEqualTo(3);
+        assertThat(sketch.add(hash, 60000, 1)).isEqualTo(4);
+        // older than the window, its bucket now counts a later interval
+        assertThat(sketch.add(hash, 0, 1)).isEqualTo(-1);
+        assertThat(sketch.estimate(hash, 130000)).isZero();
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.journal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.audit.listener.AuditApplicationEvent;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+
+public class HipaaAuditJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRecover() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 4096, 16, 5)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(("record-" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            assertThat(journal.getAppendedCount()).isEqualTo(10);
+        }
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 4096, 16, 5)) {
+            assertThat(journal.getRecoveredCount()).isEqualTo(10);
+            journal.append("record-10".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(read(directory)).hasSize(11).startsWith("record-0").endsWith("record-10");
+    }
+
+    @Test
+    public void testSegmentsRollOver() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        byte[] payload = new byte[100];
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 512, 4, 5)) {
+            for (int i = 0; i < 20; i++) {
+                payload[0] = (byte) i;
+                journal.append(payload);
+            }
+            assertThat(journal.getSegmentIndex()).isGreaterThan(0);
+        }
+        assertThat(HipaaAuditJournal.segments(directory)).hasSize(5);
+        List<Integer> first = new ArrayList<>();
+        assertThat(HipaaAuditJournal.read(directory, buffer -> first.add((int) buffer.get(0)))).isEqualTo(20);
+        for (int i = 0; i < 20; i++) {
+            assertThat(first.get(i)).isEqualTo(i);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordLargerThanSegmentIsRejected() throws IOException {
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(folder.getRoot().toPath(), 512, 4, 5)) {
+            journal.append(new byte[600]);
+        }
+    }
+
+    @Test
+    public void testTornRecordIsErasedOnRecovery() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 4096, 16, 5)) {
+            journal.append("intact".getBytes(StandardCharsets.UTF_8));
+            journal.append("torn".getBytes(StandardCharsets.UTF_8));
+        }
+        // corrupt the payload of the second record
+        Path segment = HipaaAuditJournal.segments(directory).get(0);
+        int offset = HipaaAuditJournal.SEGMENT_HEADER_SIZE + HipaaAuditJournal.RECORD_HEADER_SIZE + 6
+            + HipaaAuditJournal.RECORD_HEADER_SIZE;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), offset);
+        }
+
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 4096, 16, 5)) {
+            assertThat(journal.getRecoveredCount()).isEqualTo(1);
+            journal.append("after".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(read(directory)).containsExactly("intact", "after");
+    }
+
+    @Test
+    public void testGroupCommitSyncsConcurrentAppends() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        int threads = 4;
+        int perThread = 2000;
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 64 * 1024, 64, 0)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            journal.append((thread + ":" + i).getBytes(StandardCharsets.UTF_8));
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+            journal.flush();
+            assertThat(journal.getSyncCount()).isGreaterThan(0).isLessThan(threads * perThread);
+        }
+        List<String> records = read(directory);
+        assertThat(records).hasSize(threads * perThread);
+        List<String> sorted = new ArrayList<>(records);
+        Collections.sort(sorted);
+        assertThat(sorted).doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void testAppendReturnsOnceSynced() throws IOException {
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(folder.getRoot().toPath(), 4096, 1000, 0)) {
+            journal.append("record".getBytes(StandardCharsets.UTF_8));
+            assertThat(journal.getSyncCount()).as("synced before append returns")
+                .isGreaterThan(0);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testAppendAfterCloseFails() throws IOException {
+        HipaaAuditJournal journal = new HipaaAuditJournal(folder.getRoot().toPath(), 4096, 16, 0);
+        journal.close();
+        journal.append("record".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testListenerWritesHipaaAuditEvents() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditJournal journal = new HipaaAuditJournal(directory, 4096, 16, 5)) {
+            HipaaAuditJournalListener listener = new HipaaAuditJournalListener(journal);
+            listener.onApplicationEvent(new AuditApplicationEvent("admin",
+                HipaaAuditRecord.AUDIT_EVENT_TYPE, "requestUri=/api/test"));
+            listener.onApplicationEvent(new AuditApplicationEvent("admin", "AUTHENTICATION_SUCCESS"));
+        }
+        List<HipaaAuditRecord> records = new ArrayList<>();
+        HipaaAuditJournal.read(directory, buffer -> records.add(HipaaAuditRecordCodec.decode(buffer)));
+        assertThat(records).hasSize(1);
+        assertThat(records.get(0).getPrincipal()).isEqualTo("admin");
+        assertThat(records.get(0).getType()).isEqualTo(HipaaAuditRecord.AUDIT_EVENT_TYPE);
+        assertThat(records.get(0).getRequestUri()).isEqualTo("/api/test");
+    }
+
+    private static List<String> read(Path directory) throws IOException {
+        List<String> records = new ArrayList<>();
+        HipaaAuditJournal.read(directory, buffer -> {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            records.add(new String(bytes, StandardCharsets.UTF_8));
+        });
+        return records;
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.igia.commons.hipaa.HipaaAuditProperties.JdbcSink;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditRecordCodec;
+import io.igia.commons.hipaa.journal.HipaaAuditJournal;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class HipaaJdbcAuditSinkTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JdbcDataSource dataSource;
+
+    private JdbcSink properties;
+
+    private HipaaJdbcAuditSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:hipaa-audit-" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        properties = new JdbcSink();
+        properties.setInitializeSchema(true);
+        properties.setBatchInterval(50);
+        properties.setRetryBackoff(10);
+        properties.setMaxRetryBackoff(50);
+        properties.setSpillDirectory(folder.newFolder().toString());
+        properties.setSpillSegmentSize(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (sink != null) {
+            sink.close();
+        }
+        execute("SHUTDOWN");
+    }
+
+    private static HipaaAuditRecord record(int i) {
+        return HipaaAuditRecord.builder("admin", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(Instant.parse("2019-01-01T00:00:00Z").plusSeconds(i))
+            .remoteAddress("10.0.0.1")
+            .httpMethod("GET")
+            .requestUri("/api/fhir/Patient/" + i)
+            .requestParam("")
+            .message("Attempt to access API /api/fhir/Patient/" + i)
+            .responseStatus(200)
+            .build();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private int count() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+            ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM hipaa_audit_event")) {
+            rows.next();
+            return rows.getInt(1);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("timed out").isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testRecordsAreInsertedInBatchesOfBatchSize() throws Exception {
+        properties.setBatchSize(10);
+        properties.setBatchInterval(10000);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        sink.bindTo(registry);
+        for (int i = 0; i < 100; i++) {
+            assertThat(sink.offer(record(i))).isTrue();
+        }
+        await(() -> sink.getWrittenCount() == 100);
+
+        assertThat(sink.getBatchCount()).isEqualTo(10);
+        assertThat(registry.get("hipaa.audit.jdbc.commit").timer().count()).isEqualTo(10);
+        assertThat(registry.get("hipaa.audit.jdbc.batches").functionCounter().count()).isEqualTo(10);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+            ResultSet rows = statement.executeQuery(
+                "SELECT request_uri, response_status, event_data FROM hipaa_audit_event WHERE request_uri = "
+                    + "'/api/fhir/Patient/42'")) {
+            assertThat(rows.next()).isTrue();
+            assertThat(rows.getInt("response_status")).isEqualTo(200);
+            HipaaAuditRecord decoded = HipaaAuditRecordCodec.decode(rows.getBytes("event_data"));
+            assertThat(decoded.getTimestamp()).isEqualTo(record(42).getTimestamp());
+            assertThat(decoded.toAuditEvent().getData()).isEqualTo(record(42).toAuditEvent().getData());
+        }
+    }
+
+    @Test
+    public void testPartialBatchIsInsertedAfterBatchInterval() throws Exception {
+        properties.setBatchSize(1000);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        for (int i = 0; i < 3; i++) {
+            sink.offer(record(i));
+        }
+        await(() -> sink.getWrittenCount() == 3);
+        assertThat(sink.getBatchCount()).isEqualTo(1);
+        assertThat(count()).isEqualTo(3);
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedUntilTheTableIsAvailable() throws Exception {
+        properties.setInitializeSchema(false);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        for (int i = 0; i < 5; i++) {
+            sink.offer(record(i));
+        }
+        await(() -> sink.getFailedBatchCount() > 1);
+        assertThat(sink.getWrittenCount()).isZero();
+
+        new HipaaJdbcAuditSink(dataSource, properties(true)).close();
+        await(() -> sink.getWrittenCount() == 5);
+        assertThat(count()).isEqualTo(5);
+        assertThat(sink.getDroppedCount()).isZero();
+    }
+
+    @Test
+    public void testRecordsAreSpilledWhenTheBufferIsFull() throws Exception {
+        properties.setInitializeSchema(false);
+        properties.setBatchSize(5);
+        properties.setBufferCapacity(5);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        for (int i = 0; i < 20; i++) {
+            assertThat(sink.offer(record(i))).isTrue();
+        }
+        // spilled by the spill thread
+        await(() -> sink.getSpilledCount() >= 10);
+
+        new HipaaJdbcAuditSink(dataSource, properties(true)).close();
+        await(() -> sink.getWrittenCount() == 20);
+        assertThat(count()).isEqualTo(20);
+        assertThat(sink.getReplayedCount()).isEqualTo(sink.getSpilledCount());
+        assertThat(sink.getDroppedCount()).isZero();
+        // deleted once all of their records are inserted
+        await(() -> spills().isEmpty());
+    }
+
+    private List<Path> spills() {
+        try {
+            return HipaaJdbcAuditSink.spills(Paths.get(properties.getSpillDirectory()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testRecordsAreDroppedWhenTheSpillDirectoryIsFull() throws Exception {
+        properties.setInitializeSchema(false);
+        properties.setBatchSize(5);
+        properties.setBufferCapacity(5);
+        properties.setMaxSpillBytes(3L * HipaaAuditRecordCodec.encode(record(10)).length);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        sink.bindTo(registry);
+        // records of the same size, three of which fit
+        for (int i = 10; i < 30; i++) {
+            sink.offer(record(i));
+        }
+        await(() -> sink.getSpilledCount() == 3 && sink.getDroppedCount() > 0);
+        assertThat(registry.get("hipaa.audit.jdbc.spill.bytes").gauge().value())
+            .isLessThanOrEqualTo(properties.getMaxSpillBytes());
+
+        new HipaaJdbcAuditSink(dataSource, properties(true)).close();
+        await(() -> sink.getReplayedCount() == 3);
+        await(() -> sink.getSpillBytes() == 0);
+    }
+
+    @Test
+    public void testUnwrittenRecordsAreSpilledAtShutdownAndInsertedAfterRestart() throws Exception {
+        properties.setInitializeSchema(false);
+        properties.setBatchSize(1000);
+        properties.setShutdownTimeout(1000);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        for (int i = 0; i < 5; i++) {
+            sink.offer(record(i));
+        }
+        await(() -> sink.getFailedBatchCount() > 0);
+        sink.close();
+        assertThat(sink.getSpilledCount()).isEqualTo(5);
+        assertThat(sink.getDroppedCount()).isZero();
+
+        properties.setInitializeSchema(true);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        await(() -> sink.getReplayedCount() == 5);
+        assertThat(count()).isEqualTo(5);
+    }
+
+    @Test
+    public void testRejectedRecordDoesNotDropItsBatch() throws Exception {
+        properties.setBatchSize(10);
+        properties.setBatchInterval(10000);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        execute("ALTER TABLE hipaa_audit_event ADD CONSTRAINT hipaa_audit_status CHECK (response_status < 500)");
+        for (int i = 0; i < 10; i++) {
+            sink.offer(i == 3 ? record(i).toBuilder().responseStatus(503).build() : record(i));
+        }
+        await(() -> sink.getWrittenCount() + sink.getRejectedCount() == 10);
+        assertThat(sink.getRejectedCount()).isEqualTo(1);
+        assertThat(count()).isEqualTo(9);
+
+        sink.close();
+        Path rejected = Paths.get(properties.getSpillDirectory())
+            .resolve(HipaaJdbcAuditSink.REJECTED_JOURNAL);
+        assertThat(HipaaAuditJournal.read(rejected,
+            payload -> assertThat(HipaaAuditRecordCodec.decode(payload).getResponseStatus()).isEqualTo(503)))
+            .isEqualTo(1);
+    }
+
+    @Test
+    public void testCloseInsertsBufferedRecords() throws Exception {
+        properties.setBatchSize(1000);
+        properties.setBatchInterval(60000);
+        sink = new HipaaJdbcAuditSink(dataSource, properties);
+        for (int i = 0; i < 7; i++) {
+            sink.offer(record(i));
+        }
+        sink.close();
+        assertThat(count()).isEqualTo(7);
+        assertThat(sink.offer(record(7))).isFalse();
+    }
+
+    @Test
+    public void testTransientErrors() {
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLException("timeout"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLNonTransientConnectionException("closed"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLIntegrityConstraintViolationException("check"))).isFalse();
+        BatchUpdateException batch = new BatchUpdateException();
+        batch.setNextException(new SQLIntegrityConstraintViolationException("check"));
+        assertThat(HipaaJdbcAuditSink.isTransient(batch)).isFalse();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLException("check", "23513"))).isFalse();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLException("no table", "42S02"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLNonTransientException("syntax", "42000"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLNonTransientException("credentials", "28000"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLNonTransientException("unknown"))).isTrue();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLDataException("too long"))).isFalse();
+        assertThat(HipaaJdbcAuditSink.isTransient(new SQLNonTransientException("too long", "22001"))).isFalse();
+    }
+
+    private JdbcSink properties(boolean initializeSchema) throws Exception {
+        JdbcSink schema = new JdbcSink();
+        schema.setInitializeSchema(initializeSchema);
+        schema.setSpillDirectory(folder.newFolder().toString());
+        return schema;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.sink;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+public class HipaaStripedFileSinkTest {
+
+    private static final Instant START = Instant.parse("2019-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HipaaAuditRecord record(String principal, long millis) {
+        return HipaaAuditRecord.builder(principal, HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(START.plusMillis(millis))
+            .remoteAddress("10.0.0.1")
+            .httpMethod("GET")
+            .requestUri("/api/fhir/Patient/" + millis)
+            .requestParam("")
+            .message("Attempt to access API /api/fhir/Patient/" + millis)
+            .build();
+    }
+
+    private static List<HipaaAuditRecord> read(Path directory) throws IOException {
+        List<HipaaAuditRecord> records = new ArrayList<>();
+        HipaaStripedFileSinkReader.read(directory, records::add);
+        return records;
+    }
+
+    private static long segments(Path directory, String suffix) throws IOException {
+        return HipaaStripedFileSink.segments(directory).values().stream().flatMap(List::stream)
+            .filter(path -> path.getFileName().toString().endsWith(suffix)).count();
+    }
+
+    @Test
+    public void testConcurrentStripesAreMergedInTimestampOrder() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        int threads = 4;
+        AtomicLong clock = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, threads, 4096, 1 << 20, 5, true)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String principal = "user" + t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 500; i++) {
+                        sink.append(record(principal, clock.incrementAndGet()));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertThat(sink.getAppendedCount()).isEqualTo(2000);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(HipaaStripedFileSink.segments(directory)).hasSize(threads);
+        List<HipaaAuditRecord> records = read(directory);
+        assertThat(records).hasSize(2000);
+        for (int i = 1; i < records.size(); i++) {
+            assertThat(records.get(i).getTimestamp()).isAfter(records.get(i - 1).getTimestamp());
+        }
+    }
+
+    @Test
+    public void testClosedSegmentsAreCompressed() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 1, 4096, 1024, 5, true)) {
+            for (int i = 0; i < 100; i++) {
+                sink.append(record("admin", i));
+            }
+        }
+        assertThat(segments(directory, HipaaStripedFileSink.COMPRESSED_SUFFIX)).isGreaterThan(1);
+        assertThat(segments(directory, HipaaStripedFileSink.SEGMENT_SUFFIX)).isEqualTo(1);
+
+        List<HipaaAuditRecord> records = read(directory);
+        assertThat(records).hasSize(100);
+        assertThat(records.get(99).getRequestUri()).isEqualTo("/api/fhir/Patient/99");
+    }
+
+    @Test
+    public void testReopenContinuesAndCompressesPreviousSegments() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 2, 4096, 1 << 20, 5, true)) {
+            sink.append(record("admin", 1));
+        }
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 2, 4096, 1 << 20, 5, true)) {
+            sink.append(record("admin", 2));
+        }
+        assertThat(segments(directory, HipaaStripedFileSink.COMPRESSED_SUFFIX)).isEqualTo(1);
+        assertThat(read(directory)).extracting(HipaaAuditRecord::getRequestUri)
+            .containsExactly("/api/fhir/Patient/1", "/api/fhir/Patient/2");
+    }
+
+    @Test
+    public void testSegmentCompressedWhileReadingIsReadCompressed() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 1, 4096, 1024, 5, false)) {
+            for (int i = 0; i < 100; i++) {
+                sink.append(record("admin", i));
+            }
+        }
+        List<Path> segments = HipaaStripedFileSink.segments(directory).get(0);
+        assertThat(segments.size()).isGreaterThan(2);
+        List<HipaaAuditRecord> records = new ArrayList<>();
+        try (HipaaStripedFileSinkReader reader = new HipaaStripedFileSinkReader(directory)) {
+            // the first segment is open, the others are compressed by the sink meanwhile
+            for (Path segment : segments.subList(1, segments.size())) {
+                HipaaStripedFileSink.compress(segment);
+            }
+            reader.forEachRemaining(records::add);
+        }
+        assertThat(records).hasSize(100);
+        assertThat(records.get(99).getRequestUri()).isEqualTo("/api/fhir/Patient/99");
+    }
+
+    @Test
+    public void testRecordsAreInAppendOrderPerStripe() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 1, 4096, 1 << 20, 5, false)) {
+            sink.append(record("admin", 2));
+            sink.append(record("admin", 1));
+        }
+        assertThat(read(directory)).extracting(HipaaAuditRecord::getRequestUri)
+            .containsExactly("/api/fhir/Patient/2", "/api/fhir/Patient/1");
+    }
+
+    @Test
+    public void testTornRecordEndsSegment() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaStripedFileSink sink = new HipaaStripedFileSink(directory, 1, 4096, 1 << 20, 5, false)) {
+            for (int i = 0; i < 10; i++) {
+                sink.append(record("admin", i));
+            }
+        }
+        Path segment = HipaaStripedFileSink.segments(directory).get(0).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 3);
+        }
+        assertThat(read(directory)).hasSize(9);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+public class HipaaAuditStoreEndpointTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HipaaAuditRecord record() {
+        return HipaaAuditRecord.builder("alice", HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(Instant.parse("2019-01-01T00:10:00Z"))
+            .remoteAddress("10.0.0.1")
+            .httpMethod("POST")
+            .requestUri("/api/fhir/Patient")
+            .requestParam("name:[Smith]")
+            .message("Attempt to access API /api/fhir/Patient")
+            .requestBody("{\"name\":\"Smith\"}")
+            .requestBodySha256("a1")
+            .responseStatus(201)
+            .responseBody("{\"id\":\"1\",\"name\":\"Smith\"}")
+            .build();
+    }
+
+    private static Map<String, Object> query(boolean includeBodies, HipaaAuditStore store) {
+        HipaaAuditStoreEndpoint endpoint = new HipaaAuditStoreEndpoint(store, 10, includeBodies);
+        return endpoint.events("alice", null, null, null, null, null).getEvents().get(0).getData();
+    }
+
+    @Test
+    public void testEventsHoldMetadataOnly() throws IOException {
+        try (HipaaAuditStore store = new HipaaAuditStore(folder.getRoot().toPath(), HOUR)) {
+            store.append(record());
+            Map<String, Object> data = query(false, store);
+            assertThat(data).containsEntry(HipaaAuditRecord.REQUEST_URI, "/api/fhir/Patient")
+                .containsEntry(HipaaAuditRecord.HTTP_METHOD, "POST")
+                .containsEntry(HipaaAuditRecord.RESPONSE_STATUS, 201)
+                .containsEntry(HipaaAuditRecord.REQUEST_BODY_SHA256, "a1")
+                .doesNotContainKeys(HipaaAuditRecord.REQUEST_PARAM, HipaaAuditRecord.MESSAGE,
+                    HipaaAuditRecord.REQUEST_BODY, HipaaAuditRecord.RESPONSE_BODY);
+        }
+    }
+
+    @Test
+    public void testEventsHoldBodiesWhenIncluded() throws IOException {
+        try (HipaaAuditStore store = new HipaaAuditStore(folder.getRoot().toPath(), HOUR)) {
+            store.append(record());
+            assertThat(query(true, store)).containsKeys(HipaaAuditRecord.REQUEST_PARAM, HipaaAuditRecord.REQUEST_BODY,
+                HipaaAuditRecord.RESPONSE_BODY);
+        }
+    }
+}
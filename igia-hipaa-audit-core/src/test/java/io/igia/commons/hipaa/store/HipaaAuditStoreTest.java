@@ -0,0 +1,218 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.igia.commons.hipaa.HipaaAuditRecord;
+
+public class HipaaAuditStoreTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final Instant START = Instant.parse("2019-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HipaaAuditRecord record(String principal, String remoteAddress, String requestUri,
+        long minutes) {
+        return HipaaAuditRecord.builder(principal, HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .timestamp(START.plusSeconds(minutes * 60))
+            .remoteAddress(remoteAddress)
+            .httpMethod("GET")
+            .requestUri(requestUri)
+            .requestParam("")
+            .message("Attempt to access API " + requestUri)
+            .build();
+    }
+
+    private static void fill(HipaaAuditStore store) throws IOException {
+        // 3 hourly partitions
+        store.append(record("alice", "10.0.0.1", "/api/fhir/Patient/1", 10));
+        store.append(record("bob", "10.0.0.2", "/api/fhir/Patient/2", 20));
+        store.append(record("alice", "10.0.0.1", "/api/fhir/Observation", 70));
+        store.append(record("bob", "10.0.0.2", "/api/fhir/Patient/1/_history/2", 80));
+        store.append(record("carol", "10.0.0.3", "/api/fhir/Patient/1", 130));
+    }
+
+    private static List<HipaaAuditRecord> query(HipaaAuditStore store, HipaaAuditQuery.Builder query)
+        throws IOException {
+        return store.query(query.build());
+    }
+
+    @Test
+    public void testQueryByPrincipalResourceAndTime() throws IOException {
+        try (HipaaAuditStore store = new HipaaAuditStore(folder.getRoot().toPath(), HOUR)) {
+            fill(store);
+            assertThat(store.getPartitionCount()).isEqualTo(3);
+            assertThat(store.getRecordCount()).isEqualTo(5);
+
+            assertThat(query(store, HipaaAuditQuery.builder().resource("Patient/1")))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("carol", "bob", "alice");
+            assertThat(query(store, HipaaAuditQuery.builder().resource("Patient/1").principal("bob")))
+                .extracting(HipaaAuditRecord::getRequestUri).containsExactly("/api/fhir/Patient/1/_history/2");
+            assertThat(query(store, HipaaAuditQuery.builder().principal("alice").resource("Observation")))
+                .hasSize(1);
+            assertThat(query(store, HipaaAuditQuery.builder().remoteAddress("10.0.0.2")
+                .from(START.plusSeconds(30 * 60)).to(START.plusSeconds(2 * 3600))))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("bob");
+            assertThat(query(store, HipaaAuditQuery.builder().principal("dave"))).isEmpty();
+            assertThat(query(store, HipaaAuditQuery.builder().limit(2)))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("carol", "bob");
+        }
+    }
+
+    @Test
+    public void testReopenKeepsSealedIndexes() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            fill(store);
+        }
+        List<Path> partitions = HipaaAuditStore.partitions(directory);
+        assertThat(partitions).hasSize(3);
+        assertThat(partitions.get(0).resolve(HipaaAuditStorePartition.INDEX_FILE)).exists();
+        assertThat(partitions.get(2).resolve(HipaaAuditStorePartition.INDEX_FILE)).doesNotExist();
+
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            assertThat(store.getRecordCount()).isEqualTo(5);
+            store.append(record("alice", "10.0.0.1", "/api/fhir/Patient/1", 140));
+            assertThat(query(store, HipaaAuditQuery.builder().principal("alice").resource("Patient")))
+                .extracting(HipaaAuditRecord::getTimestamp)
+                .containsExactly(START.plusSeconds(140 * 60), START.plusSeconds(10 * 60));
+        }
+    }
+
+    @Test
+    public void testReopenedSealedPartitionsOpenRecordsOnRead() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            fill(store);
+        }
+
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            List<HipaaAuditStorePartition> sealed = store.getSealedPartitions();
+            assertThat(sealed).hasSize(2).noneMatch(HipaaAuditStorePartition::isRecordsOpen);
+
+            assertThat(query(store, HipaaAuditQuery.builder().principal("alice").resource("Observation")))
+                .hasSize(1);
+            assertThat(sealed.get(0).isRecordsOpen()).isFalse();
+            assertThat(sealed.get(1).isRecordsOpen()).isTrue();
+        }
+    }
+
+    @Test
+    public void testRetentionDeletesOldPartitions() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR, HOUR)) {
+            fill(store);
+            // the records of the first hour are older than an hour before the third partition
+            assertThat(store.getPartitionCount()).isEqualTo(2);
+            assertThat(store.getRecordCount()).isEqualTo(3);
+            assertThat(query(store, HipaaAuditQuery.builder().resource("Patient/1")))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("carol", "bob");
+        }
+        assertThat(HipaaAuditStore.partitions(directory)).hasSize(2);
+
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR, 30 * 60 * 1000)) {
+            assertThat(store.getPartitionCount()).isEqualTo(1);
+        }
+        assertThat(HipaaAuditStore.partitions(directory)).hasSize(1);
+    }
+
+    @Test
+    public void testLateRecordGoesToActivePartition() throws IOException {
+        try (HipaaAuditStore store = new HipaaAuditStore(folder.getRoot().toPath(), HOUR)) {
+            store.append(record("alice", "10.0.0.1", "/api/fhir/Patient/1", 70));
+            store.append(record("bob", "10.0.0.2", "/api/fhir/Patient/1", 50));
+
+            assertThat(store.getPartitionCount()).isEqualTo(1);
+            assertThat(query(store, HipaaAuditQuery.builder().to(START.plusSeconds(3600))))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("bob");
+        }
+    }
+
+    @Test
+    public void testLimitKeepsMostRecentRecordsWithLateRecords() throws IOException {
+        try (HipaaAuditStore store = new HipaaAuditStore(folder.getRoot().toPath(), HOUR)) {
+            store.append(record("alice", "10.0.0.1", "/api/fhir/Patient/1", 70));
+            store.append(record("bob", "10.0.0.2", "/api/fhir/Patient/1", 110));
+            store.append(record("carol", "10.0.0.3", "/api/fhir/Patient/1", 130));
+            // late records appended to the active partition after carol's
+            store.append(record("eve", "10.0.0.4", "/api/fhir/Patient/1", 20));
+            store.append(record("frank", "10.0.0.5", "/api/fhir/Patient/1", 100));
+
+            assertThat(query(store, HipaaAuditQuery.builder().resource("Patient/1").limit(3)))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("carol", "bob", "frank");
+            assertThat(query(store, HipaaAuditQuery.builder().limit(1)))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("carol");
+            assertThat(query(store, HipaaAuditQuery.builder().to(START.plusSeconds(3600)).limit(2)))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("eve");
+            assertThat(query(store, HipaaAuditQuery.builder().limit(0))).isEmpty();
+        }
+    }
+
+    @Test
+    public void testMissingIndexAndTornRecordAreRecovered() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            fill(store);
+        }
+        List<Path> partitions = HipaaAuditStore.partitions(directory);
+        Files.delete(partitions.get(0).resolve(HipaaAuditStorePartition.INDEX_FILE));
+        Path records = partitions.get(2).resolve(HipaaAuditStorePartition.RECORDS_FILE);
+        long size = Files.size(records);
+        try (FileChannel channel = FileChannel.open(records, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        try (HipaaAuditStore store = new HipaaAuditStore(directory, HOUR)) {
+            assertThat(store.getRecordCount()).isEqualTo(4);
+            assertThat(partitions.get(0).resolve(HipaaAuditStorePartition.INDEX_FILE)).exists();
+            assertThat(query(store, HipaaAuditQuery.builder().resource("Patient/2")))
+                .extracting(HipaaAuditRecord::getPrincipal).containsExactly("bob");
+            store.append(record("carol", "10.0.0.3", "/api/fhir/Patient/1", 131));
+            assertThat(query(store, HipaaAuditQuery.builder().principal("carol"))).hasSize(1);
+        }
+    }
+
+    @Test
+    public void testFhirReferences() {
+        assertThat(HipaaFhirReferences.of(record("a", null, "/api/fhir/Patient/123/_history/2", 0)))
+            .containsExactly("Patient", "Patient/123");
+        assertThat(HipaaFhirReferences.of(record("a", null, "/api/fhir/Patient/123/Observation", 0)))
+            .containsExactly("Patient", "Patient/123", "Observation");
+        assertThat(HipaaFhirReferences.of(record("a", null, "/api/fhir/Patient/$everything", 0)))
+            .containsExactly("Patient");
+        assertThat(HipaaFhirReferences.of(record("a", null, "/api/patients/1", 0))).isEmpty();
+
+        HipaaAuditRecord search = record("a", null, "/api/fhir/Observation", 0).toBuilder()
+            .requestParam("subject:[Patient/123], code:[1234-5]").build();
+        assertThat(HipaaFhirReferences.of(search)).containsExactly("Observation", "Patient", "Patient/123");
+        HipaaAuditRecord byPatient = record("a", null, "/api/fhir/Encounter", 0).toBuilder()
+            .requestParam("patient:[42]").build();
+        assertThat(HipaaFhirReferences.of(byPatient)).containsExactly("Encounter", "Patient", "Patient/42");
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+
+import io.igia.commons.hipaa.HipaaAuditCommonConfig;
+import io.igia.commons.hipaa.HipaaAuditConfigReloader;
+import io.igia.commons.hipaa.HipaaAuditFilterComponents;
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Hipaa audit global filters for Spring Cloud Gateway.
+ */
+@Configuration
+@ConditionalOnClass(GlobalFilter.class)
+@Import(HipaaAuditCommonConfig.class)
+public class HipaaAuditGatewayConfig {
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditGatewayConfig.class);
+
+    /**
+     * Scheduler the audit events are published on, so that listeners never block the event loop.
+     *
+     * @return the scheduler
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler hipaaAuditScheduler() {
+        return Schedulers.newElastic("hipaa-audit-publisher");
+    }
+
+    @Bean
+    public HipaaAuditGatewayFilter hipaaAuditGatewayFilter(HipaaAuditFilterComponents hipaaAuditFilterComponents,
+        HipaaAuditProperties applicationProperties, Scheduler hipaaAuditScheduler) {
+        log.info("Configuring Hipaa Audit Gateway Filter");
+        HipaaAuditGatewayFilter filter = new HipaaAuditGatewayFilter(hipaaAuditFilterComponents.getEventPublisher(),
+            applicationProperties, hipaaAuditScheduler);
+        filter.setSnapshot(hipaaAuditFilterComponents.getSnapshot());
+        filter.setDecisionCache(hipaaAuditFilterComponents.getRequestDecisionCache());
+        filter.setMetrics(hipaaAuditFilterComponents.getRequestMetrics());
+        return filter;
+    }
+
+    @Bean
+    public HipaaResponseAuditGatewayFilter hipaaResponseAuditGatewayFilter(
+        HipaaAuditFilterComponents hipaaAuditFilterComponents, HipaaAuditProperties applicationProperties,
+        Scheduler hipaaAuditScheduler) {
+        log.info("Configuring Hipaa Response Audit Gateway Filter");
+        HipaaResponseAuditGatewayFilter filter = new HipaaResponseAuditGatewayFilter(
+            hipaaAuditFilterComponents.getEventPublisher(), applicationProperties, hipaaAuditScheduler);
+        filter.setSnapshot(hipaaAuditFilterComponents.getSnapshot());
+        filter.setDecisionCache(hipaaAuditFilterComponents.getResponseDecisionCache());
+        filter.setMetrics(hipaaAuditFilterComponents.getResponseMetrics());
+        filter.setAdaptiveFidelity(hipaaAuditFilterComponents.getAdaptiveFidelity());
+        return filter;
+    }
+
+    @Configuration
+    @ConditionalOnClass(EnvironmentChangeEvent.class)
+    static class HipaaAuditGatewayReloadConfig {
+
+        @Bean
+        public HipaaAuditConfigReloader hipaaAuditConfigReloader(Environment environment,
+            HipaaAuditFilterComponents hipaaAuditFilterComponents) {
+            HipaaAuditConfigReloader reloader = new HipaaAuditConfigReloader(environment,
+                hipaaAuditFilterComponents.getSnapshot());
+            reloader.addValidator(hipaaAuditFilterComponents::validate);
+            reloader.addListener(snapshot -> hipaaAuditFilterComponents.invalidateDecisions());
+            return reloader;
+        }
+    }
+}
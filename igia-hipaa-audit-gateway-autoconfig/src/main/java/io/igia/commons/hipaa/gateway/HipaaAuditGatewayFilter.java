@@ -0,0 +1,231 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.gateway;
+
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.server.ServerWebExchange;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditDecisionCache;
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics;
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics.Phase;
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditSnapshot;
+import io.igia.commons.hipaa.HipaaAuditUriMatcher;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Spring Cloud Gateway filter which logs an audit event for API requests, with
+ * the whitelist and blacklist semantics of the Zuul request audit filter.
+ * <p>
+ * The event is published on the audit scheduler, so that audit listeners never
+ * run on the event loop.
+ */
+public class HipaaAuditGatewayFilter implements GlobalFilter, Ordered, InitializingBean {
+
+    public static final int FILTER_ORDER = 20;
+
+    /**
+     * Principal name of unauthenticated requests, as used by Spring Security.
+     */
+    static final String ANONYMOUS_PRINCIPAL = "anonymousUser";
+
+    private final Logger log = LoggerFactory.getLogger(HipaaAuditGatewayFilter.class);
+
+    private final ApplicationEventPublisher publisher;
+
+    private final HipaaAuditProperties applicationProperties;
+
+    private final Scheduler scheduler;
+
+    private AtomicReference<HipaaAuditSnapshot> snapshot = new AtomicReference<>();
+
+    private HipaaAuditDecisionCache decisionCache;
+
+    private HipaaAuditFilterMetrics metrics;
+
+    /**
+     * @param publisher publisher of the audit events
+     * @param applicationProperties audit properties
+     * @param scheduler scheduler the audit events are published on
+     */
+    public HipaaAuditGatewayFilter(ApplicationEventPublisher publisher, HipaaAuditProperties applicationProperties,
+        Scheduler scheduler) {
+        this.publisher = publisher;
+        this.applicationProperties = applicationProperties;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Compile the audit URI patterns and parameter lists at startup instead of on first request.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        getSnapshot();
+    }
+
+    /**
+     * Apply a new audit configuration to the following requests. Cached audit
+     * decisions of the previous configuration are discarded.
+     *
+     * @param snapshot the new audit configuration
+     */
+    public void reload(HipaaAuditSnapshot snapshot) {
+        this.snapshot.set(snapshot);
+        if (decisionCache != null) {
+            decisionCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Read the audit configuration from the given reference, shared with the other
+     * audit filters so that a reload swaps it for all of them at once.
+     *
+     * @param snapshot reference to the audit configuration
+     */
+    public void setSnapshot(AtomicReference<HipaaAuditSnapshot> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public int getOrder() {
+        return FILTER_ORDER;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (!shouldAudit(request)) {
+            return chain.filter(exchange);
+        }
+        return principalName(exchange)
+            .doOnNext(principal -> publish(auditRecord(principal, request)))
+            .then(chain.filter(exchange));
+    }
+
+    /**
+     * Determine whether the request should be audited.
+     */
+    boolean shouldAudit(ServerHttpRequest request) {
+        if (request.getMethod() == HttpMethod.OPTIONS) {
+            return false;
+        }
+        long start = startTimer();
+        String requestUri = request.getURI().getRawPath();
+        HipaaAuditUriMatcher matcher = getSnapshot().getRequestMatcher();
+        boolean audit = decisionCache != null ? decisionCache.shouldAudit(requestUri, matcher)
+            : matcher.shouldAudit(requestUri);
+        if (metrics != null) {
+            metrics.record(Phase.MATCH, start);
+            metrics.decided(audit);
+        }
+        return audit;
+    }
+
+    private HipaaAuditRecord auditRecord(String principal, ServerHttpRequest request) {
+        long start = startTimer();
+        String requestUri = request.getURI().getRawPath();
+        HipaaAuditRecord auditRecord = HipaaAuditRecord.builder(principal, HipaaAuditRecord.AUDIT_EVENT_TYPE)
+            .remoteAddress(remoteAddress(request))
+            .httpMethod(request.getMethodValue())
+            .requestUri(requestUri)
+            .requestParam(getSnapshot().getParamSerializer().serializeValues(request.getQueryParams()))
+            .message(String.join("", "Attempt to access API ", requestUri))
+            .build();
+        record(Phase.CAPTURE, start);
+        return auditRecord;
+    }
+
+    private void publish(HipaaAuditRecord auditRecord) {
+        scheduler.schedule(() -> {
+            long start = startTimer();
+            try {
+                publisher.publishEvent(new HipaaAuditApplicationEvent(auditRecord));
+            } catch (RuntimeException e) {
+                log.error("Error publishing request audit event", e);
+            }
+            record(Phase.PUBLISH, start);
+        });
+    }
+
+    static Mono<String> principalName(ServerWebExchange exchange) {
+        return exchange.getPrincipal().map(Principal::getName).defaultIfEmpty(ANONYMOUS_PRINCIPAL);
+    }
+
+    static String remoteAddress(ServerHttpRequest request) {
+        InetSocketAddress address = request.getRemoteAddress();
+        if (address == null) {
+            return null;
+        }
+        return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+    }
+
+    private HipaaAuditSnapshot getSnapshot() {
+        HipaaAuditSnapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, HipaaAuditSnapshot.compile(this.applicationProperties));
+            current = snapshot.get();
+        }
+        return current;
+    }
+
+    public HipaaAuditDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Cache audit decisions in the given cache, or evaluate every request when null.
+     *
+     * @param decisionCache cache of the audit decisions, or null
+     */
+    public void setDecisionCache(HipaaAuditDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    public HipaaAuditFilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Time the filter phases with the given metrics, or not at all when null.
+     *
+     * @param metrics metrics of the filter phases, or null
+     */
+    public void setMetrics(HipaaAuditFilterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private long startTimer() {
+        return metrics != null ? System.nanoTime() : 0L;
+    }
+
+    private void record(Phase phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, start);
+        }
+    }
+}
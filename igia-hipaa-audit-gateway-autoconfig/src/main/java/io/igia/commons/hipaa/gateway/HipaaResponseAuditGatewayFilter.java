@@ -0,0 +1,328 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.gateway;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.filter.NettyWriteResponseFilter;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.web.server.ServerWebExchange;
+
+import io.igia.commons.hipaa.HipaaAdaptiveFidelity;
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditDecisionCache;
+import io.igia.commons.hipaa.HipaaAuditFidelity;
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics;
+import io.igia.commons.hipaa.HipaaAuditFilterMetrics.Phase;
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditSnapshot;
+import io.igia.commons.hipaa.HipaaAuditUriMatcher;
+import io.igia.commons.hipaa.HipaaBodyCapture;
+import io.igia.commons.hipaa.HipaaResponseCapturePolicy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Spring Cloud Gateway filter which logs an audit event for API responses, with
+ * the whitelist and blacklist semantics of the Zuul response audit filter.
+ * <p>
+ * The response body is copied from the {@code Flux<DataBuffer>} as it is written
+ * to the client, so the response is never buffered by the filter. Gzipped bodies
+ * are logged compressed. Once the response is written, the body is decoded and the
+ * event published on the audit scheduler, off the event loop.
+ * Filter order is right before NettyWriteResponseFilter.
+ */
+public class HipaaResponseAuditGatewayFilter implements GlobalFilter, Ordered, InitializingBean {
+
+    public static final int FILTER_ORDER = NettyWriteResponseFilter.WRITE_RESPONSE_FILTER_ORDER - 1;
+
+    private static final String GZIP = "gzip";
+
+    private final Logger log = LoggerFactory.getLogger(HipaaResponseAuditGatewayFilter.class);
+
+    private final ApplicationEventPublisher publisher;
+
+    private final HipaaAuditProperties applicationProperties;
+
+    private final Scheduler scheduler;
+
+    private AtomicReference<HipaaAuditSnapshot> snapshot = new AtomicReference<>();
+
+    private HipaaAuditDecisionCache decisionCache;
+
+    private HipaaAuditFilterMetrics metrics;
+
+    private HipaaAdaptiveFidelity adaptiveFidelity;
+
+    /**
+     * @param publisher publisher of the audit events
+     * @param applicationProperties audit properties
+     * @param scheduler scheduler the response bodies are decoded and the audit events published on
+     */
+    public HipaaResponseAuditGatewayFilter(ApplicationEventPublisher publisher,
+        HipaaAuditProperties applicationProperties, Scheduler scheduler) {
+        this.publisher = publisher;
+        this.applicationProperties = applicationProperties;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Compile the response audit URI patterns at startup instead of on first request.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        getSnapshot();
+    }
+
+    /**
+     * Apply a new audit configuration to the following responses. Cached audit
+     * decisions of the previous configuration are discarded.
+     *
+     * @param snapshot the new audit configuration
+     */
+    public void reload(HipaaAuditSnapshot snapshot) {
+        this.snapshot.set(snapshot);
+        if (decisionCache != null) {
+            decisionCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Read the audit configuration from the given reference, shared with the other
+     * audit filters so that a reload swaps it for all of them at once.
+     *
+     * @param snapshot reference to the audit configuration
+     */
+    public void setSnapshot(AtomicReference<HipaaAuditSnapshot> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public int getOrder() {
+        return FILTER_ORDER;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (!shouldAudit(request)) {
+            return chain.filter(exchange);
+        }
+        HipaaAuditFidelity fidelity = adaptiveFidelity != null ? adaptiveFidelity.next() : null;
+        HipaaResponseCapturePolicy policy = getSnapshot().getCapturePolicy();
+        HipaaBodyCapture capture = fidelity != HipaaAuditFidelity.METADATA
+            ? HipaaAdaptiveFidelity.degrade(policy.newCapture(requestUri(request.getURI())), fidelity) : null;
+        ServerHttpResponse response = exchange.getResponse();
+        ServerWebExchange captured = capture != null
+            ? exchange.mutate().response(new CapturingResponse(response, capture)).build() : exchange;
+        return HipaaAuditGatewayFilter.principalName(exchange).flatMap(principal -> {
+            HipaaAuditRecord.Builder auditRecord = HipaaAuditRecord.builder(principal,
+                HipaaAuditRecord.AUDIT_EVENT_TYPE)
+                .remoteAddress(HipaaAuditGatewayFilter.remoteAddress(request))
+                .message(String.join("", "API ", request.getURI().getRawPath(), " accessed"));
+            if (fidelity != null) {
+                auditRecord.fidelity(fidelity).requestUri(request.getURI().getRawPath());
+            }
+            return chain.filter(captured).doFinally(
+                signal -> scheduler.schedule(() -> publish(response, auditRecord, capture, policy, signal)));
+        });
+    }
+
+    /**
+     * Determine whether the response should be audited.
+     */
+    boolean shouldAudit(ServerHttpRequest request) {
+        HttpMethod method = request.getMethod();
+        if (method != HttpMethod.GET && method != HttpMethod.POST) {
+            return false;
+        }
+        long start = startTimer();
+        String requestUri = requestUri(request.getURI());
+        HipaaAuditUriMatcher matcher = getSnapshot().getResponseMatcher();
+        boolean audit = decisionCache != null ? decisionCache.shouldAudit(requestUri, matcher)
+            : matcher.shouldAudit(requestUri);
+        if (metrics != null) {
+            metrics.record(Phase.MATCH, start);
+            metrics.decided(audit);
+        }
+        return audit;
+    }
+
+    /**
+     * Decode the captured body, if any, into the record and publish it, once the
+     * response is written.
+     */
+    private void publish(ServerHttpResponse response, HipaaAuditRecord.Builder auditRecord,
+        HipaaBodyCapture capture, HipaaResponseCapturePolicy policy, SignalType signal) {
+        long auditStart = adaptiveFidelity != null ? System.nanoTime() : 0L;
+        if (capture != null) {
+            if (metrics != null) {
+                metrics.captured(capture.getLength());
+            }
+            long start = startTimer();
+            HttpHeaders headers = response.getHeaders();
+            try {
+                capture.applyTo(auditRecord, isGzipped(headers), charset(headers), policy.getTruncationMarker());
+            } catch (IOException e) {
+                log.warn("Error decoding captured response body", e);
+            }
+            record(Phase.RECORD, start);
+            if (signal != SignalType.ON_COMPLETE) {
+                auditRecord.responseBodyComplete(Boolean.FALSE);
+            }
+        }
+        if (response.getStatusCode() != null) {
+            auditRecord.responseStatus(response.getStatusCode().value());
+        }
+        long start = startTimer();
+        try {
+            publisher.publishEvent(new HipaaAuditApplicationEvent(auditRecord.build()));
+        } catch (RuntimeException e) {
+            log.error("Error publishing response audit event", e);
+        }
+        record(Phase.PUBLISH, start);
+        if (adaptiveFidelity != null) {
+            adaptiveFidelity.recordNanos(System.nanoTime() - auditStart);
+        }
+    }
+
+    private static boolean isGzipped(HttpHeaders headers) {
+        String contentEncoding = headers.getFirst(HttpHeaders.CONTENT_ENCODING);
+        return contentEncoding != null && contentEncoding.contains(GZIP);
+    }
+
+    /**
+     * Charset of the response content type, or ISO-8859-1 as for servlet responses.
+     */
+    private static Charset charset(HttpHeaders headers) {
+        MediaType contentType = headers.getContentType();
+        Charset charset = contentType != null ? contentType.getCharset() : null;
+        return charset != null ? charset : StandardCharsets.ISO_8859_1;
+    }
+
+    private static String requestUri(URI uri) {
+        return uri.getRawQuery() != null
+            ? String.join("", uri.getRawPath(), "?", uri.getRawQuery())
+            : uri.getRawPath();
+    }
+
+    private HipaaAuditSnapshot getSnapshot() {
+        HipaaAuditSnapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, HipaaAuditSnapshot.compile(this.applicationProperties));
+            current = snapshot.get();
+        }
+        return current;
+    }
+
+    public HipaaAdaptiveFidelity getAdaptiveFidelity() {
+        return adaptiveFidelity;
+    }
+
+    /**
+     * Degrade body capture under load with the given policy and record the fidelity
+     * of each event, or always capture as configured when null.
+     *
+     * @param adaptiveFidelity adaptive fidelity policy, or null
+     */
+    public void setAdaptiveFidelity(HipaaAdaptiveFidelity adaptiveFidelity) {
+        this.adaptiveFidelity = adaptiveFidelity;
+    }
+
+    public HipaaAuditDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * Cache audit decisions in the given cache, or evaluate every request when null.
+     *
+     * @param decisionCache cache of the audit decisions, or null
+     */
+    public void setDecisionCache(HipaaAuditDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    public HipaaAuditFilterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Time the filter phases with the given metrics, or not at all when null.
+     *
+     * @param metrics metrics of the filter phases, or null
+     */
+    public void setMetrics(HipaaAuditFilterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private long startTimer() {
+        return metrics != null ? System.nanoTime() : 0L;
+    }
+
+    private void record(Phase phase, long start) {
+        if (metrics != null) {
+            metrics.record(phase, start);
+        }
+    }
+
+    /**
+     * Response which copies the body buffers into the capture as they are written.
+     * The buffers are passed on untouched, their read position is not changed.
+     */
+    private class CapturingResponse extends ServerHttpResponseDecorator {
+
+        private final HipaaBodyCapture capture;
+
+        CapturingResponse(ServerHttpResponse delegate, HipaaBodyCapture capture) {
+            super(delegate);
+            this.capture = capture;
+        }
+
+        @Override
+        public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+            return super.writeWith(Flux.from(body).doOnNext(this::capture));
+        }
+
+        @Override
+        public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+            return super.writeAndFlushWith(Flux.from(body).map(chunk -> Flux.from(chunk).doOnNext(this::capture)));
+        }
+
+        private void capture(DataBuffer buffer) {
+            long start = startTimer();
+            capture.write(buffer.asByteBuffer());
+            record(Phase.CAPTURE, start);
+        }
+    }
+}
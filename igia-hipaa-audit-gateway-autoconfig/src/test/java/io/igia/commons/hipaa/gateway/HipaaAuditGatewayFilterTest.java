@@ -0,0 +1,102 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.gateway;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+public class HipaaAuditGatewayFilterTest {
+
+    private ApplicationEventPublisher publisher;
+
+    private HipaaAuditProperties properties;
+
+    private HipaaAuditGatewayFilter filter;
+
+    private AtomicBoolean routed;
+
+    private GatewayFilterChain chain;
+
+    @Before
+    public void setUp() {
+        publisher = mock(ApplicationEventPublisher.class);
+        properties = new HipaaAuditProperties();
+        properties.getHipaaBlacklistUriPatterns().add(".*/api/health.*");
+        properties.getHipaaMaskedRequestParams().add("ssn");
+        filter = new HipaaAuditGatewayFilter(publisher, properties, Schedulers.immediate());
+        filter.afterPropertiesSet();
+        routed = new AtomicBoolean();
+        chain = exchange -> Mono.fromRunnable(() -> routed.set(true));
+    }
+
+    @Test
+    public void testRequestAudited() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+            MockServerHttpRequest.get("/api/Patient?name=doe&ssn=123"));
+
+        filter.filter(exchange, chain).block();
+
+        assertThat(routed).isTrue();
+        ArgumentCaptor<ApplicationEvent> event = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(publisher).publishEvent(event.capture());
+        HipaaAuditRecord auditRecord = ((HipaaAuditApplicationEvent) event.getValue()).getRecord();
+        assertThat(auditRecord.getPrincipal()).isEqualTo(HipaaAuditGatewayFilter.ANONYMOUS_PRINCIPAL);
+        assertThat(auditRecord.getType()).isEqualTo(HipaaAuditRecord.AUDIT_EVENT_TYPE);
+        assertThat(auditRecord.getHttpMethod()).isEqualTo("GET");
+        assertThat(auditRecord.getRequestUri()).isEqualTo("/api/Patient");
+        assertThat(auditRecord.getRequestParam()).isEqualTo("name:[doe], ssn:[***]");
+        assertThat(auditRecord.getMessage()).isEqualTo("Attempt to access API /api/Patient");
+    }
+
+    @Test
+    public void testBlacklistedRequestNotAudited() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/health"));
+
+        filter.filter(exchange, chain).block();
+
+        assertThat(routed).isTrue();
+        verify(publisher, never()).publishEvent(any(ApplicationEvent.class));
+    }
+
+    @Test
+    public void testOptionsRequestNotAudited() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+            MockServerHttpRequest.method(HttpMethod.OPTIONS, "/api/Patient"));
+
+        filter.filter(exchange, chain).block();
+
+        assertThat(routed).isTrue();
+        verify(publisher, never()).publishEvent(any(ApplicationEvent.class));
+    }
+}
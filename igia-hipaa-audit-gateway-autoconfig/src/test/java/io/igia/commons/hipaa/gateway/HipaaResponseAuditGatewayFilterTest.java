@@ -0,0 +1,146 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.commons.hipaa.gateway;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+
+import io.igia.commons.hipaa.HipaaAuditApplicationEvent;
+import io.igia.commons.hipaa.HipaaAuditProperties;
+import io.igia.commons.hipaa.HipaaAuditRecord;
+import io.igia.commons.hipaa.HipaaAuditSnapshot;
+import io.igia.commons.hipaa.HipaaGzippedResponseBody;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+public class HipaaResponseAuditGatewayFilterTest {
+
+    private static final String BODY = "{\"resourceType\":\"Bundle\",\"total\":1}";
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    private ApplicationEventPublisher publisher;
+
+    private HipaaAuditProperties properties;
+
+    private HipaaResponseAuditGatewayFilter filter;
+
+    @Before
+    public void setUp() {
+        publisher = mock(ApplicationEventPublisher.class);
+        properties = new HipaaAuditProperties();
+        properties.getHipaaResponseWhitelistUriPatterns().add(".*/api/Patient.*");
+        filter = new HipaaResponseAuditGatewayFilter(publisher, properties, Schedulers.immediate());
+        filter.afterPropertiesSet();
+    }
+
+    @Test
+    public void testResponseBodyCaptured() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/Patient?name=doe"));
+
+        filter.filter(exchange, respondWith(null, BODY.getBytes(StandardCharsets.UTF_8))).block();
+
+        // the client still receives the whole body
+        assertThat(exchange.getResponse().getBodyAsString().block()).isEqualTo(BODY);
+        HipaaAuditRecord auditRecord = publishedRecord();
+        assertThat(auditRecord.getResponseBody().toString()).isEqualTo(BODY);
+        assertThat(auditRecord.getResponseStatus()).isEqualTo(200);
+        assertThat(auditRecord.getResponseBodyComplete()).isNull();
+        assertThat(auditRecord.getMessage()).isEqualTo("API /api/Patient accessed");
+    }
+
+    @Test
+    public void testGzippedResponseBodyKeptCompressed() throws IOException {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/Patient"));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(BODY.getBytes(StandardCharsets.UTF_8));
+        }
+
+        filter.filter(exchange, respondWith("gzip", gzipped.toByteArray())).block();
+
+        HipaaAuditRecord auditRecord = publishedRecord();
+        assertThat(auditRecord.getResponseBody()).isInstanceOf(HipaaGzippedResponseBody.class);
+        assertThat(auditRecord.getResponseBody().toString()).isEqualTo(BODY);
+    }
+
+    @Test
+    public void testResponseBodyTruncated() {
+        properties.getResponseCapture().setMaxBytes(8);
+        filter.reload(HipaaAuditSnapshot.compile(properties));
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/Patient"));
+
+        filter.filter(exchange, respondWith(null, BODY.getBytes(StandardCharsets.UTF_8))).block();
+
+        assertThat(exchange.getResponse().getBodyAsString().block()).isEqualTo(BODY);
+        HipaaAuditRecord auditRecord = publishedRecord();
+        assertThat(auditRecord.getResponseBody().toString()).startsWith(BODY.substring(0, 8));
+        assertThat(auditRecord.getResponseBodyTruncated()).isTrue();
+        assertThat(auditRecord.getResponseBodyLength()).isEqualTo(BODY.length());
+    }
+
+    @Test
+    public void testNotMatchingResponseNotAudited() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/Observation"));
+
+        filter.filter(exchange, respondWith(null, BODY.getBytes(StandardCharsets.UTF_8))).block();
+
+        assertThat(exchange.getResponse().getBodyAsString().block()).isEqualTo(BODY);
+        verify(publisher, never()).publishEvent(any(ApplicationEvent.class));
+    }
+
+    /**
+     * Chain writing the body in two buffers, as the routing filters of the gateway.
+     */
+    private GatewayFilterChain respondWith(String contentEncoding, byte[] body) {
+        return exchange -> {
+            exchange.getResponse().setStatusCode(HttpStatus.OK);
+            exchange.getResponse().getHeaders().setContentType(MediaType.APPLICATION_JSON_UTF8);
+            if (contentEncoding != null) {
+                exchange.getResponse().getHeaders().set(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+            }
+            int half = body.length / 2;
+            return exchange.getResponse().writeWith(Flux.just(
+                bufferFactory.wrap(Arrays.copyOfRange(body, 0, half)),
+                bufferFactory.wrap(Arrays.copyOfRange(body, half, body.length))));
+        };
+    }
+
+    private HipaaAuditRecord publishedRecord() {
+        ArgumentCaptor<ApplicationEvent> event = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(publisher).publishEvent(event.capture());
+        return ((HipaaAuditApplicationEvent) event.getValue()).getRecord();
+    }
+}